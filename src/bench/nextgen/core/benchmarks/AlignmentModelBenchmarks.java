@@ -0,0 +1,163 @@
+package nextgen.core.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Gene;
+import nextgen.core.coordinatesystem.TranscriptomeSpace;
+import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.score.CountScore;
+import nextgen.core.model.score.WindowScoreIterator;
+import nextgen.core.readers.PairedEndReader;
+
+import org.apache.commons.collections15.Predicate;
+
+import broad.pda.datastructures.Alignments;
+
+/**
+ * Read counting on the synthetic BAM file: AlignmentModel.getCount over consecutive windows with and without the read cache,
+ * iterating over every read with PairedEndReader, and scanning genes with WindowScoreIterator
+ *
+ */
+public class AlignmentModelBenchmarks {
+
+	private static final int NUM_WINDOWS = 2000;
+	private static final int WINDOW_SIZE = 500;
+	private static final int WINDOW_STEP = 250;
+	private static final int NUM_GENES = 100;
+
+	public static List<Benchmark> getBenchmarks() {
+		List<Benchmark> rtrn = new ArrayList<Benchmark>();
+		rtrn.add(new CountBenchmark("AlignmentModel.getCount.cached", true));
+		rtrn.add(new CountBenchmark("AlignmentModel.getCount.uncached", false));
+		rtrn.add(new Benchmark("PairedEndReader.iterator") {
+			PairedEndReader reader;
+			int numReads;
+
+			@Override
+			public void setUp(SyntheticData data) throws Exception {
+				reader = new PairedEndReader(data.getBamFile());
+				numReads = (int) run();
+			}
+
+			@Override
+			public int getOperationsPerRun() {
+				return numReads;
+			}
+
+			@Override
+			public long run() {
+				CloseableIterator<Alignment> iter = reader.iterator();
+				long rtrn = 0;
+				while(iter.hasNext()) {
+					iter.next();
+					rtrn++;
+				}
+				iter.close();
+				return rtrn;
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				reader.close();
+			}
+		});
+		rtrn.add(new Benchmark("WindowScoreIterator.scan") {
+			AlignmentModel model;
+			List<Gene> genes;
+			int numWindows;
+
+			@Override
+			public void setUp(SyntheticData data) throws Exception {
+				Map<String, Collection<Gene>> byChr = data.getGenes();
+				model = new AlignmentModel(data.getBamFile().getAbsolutePath(), new TranscriptomeSpace(byChr), new ArrayList<Predicate<Alignment>>(), false);
+				genes = new ArrayList<Gene>();
+				for(Gene gene : byChr.values().iterator().next()) {
+					if(genes.size() == NUM_GENES) {
+						break;
+					}
+					genes.add(gene);
+				}
+				numWindows = 0;
+				for(Gene gene : genes) {
+					WindowScoreIterator<CountScore> iter = model.scan(gene, 50, 25);
+					while(iter.hasNext()) {
+						iter.next();
+						numWindows++;
+					}
+					iter.close();
+				}
+			}
+
+			@Override
+			public int getOperationsPerRun() {
+				return Math.max(1, numWindows);
+			}
+
+			@Override
+			public long run() {
+				long rtrn = 0;
+				for(Gene gene : genes) {
+					WindowScoreIterator<CountScore> iter = model.scan(gene, 50, 25);
+					while(iter.hasNext()) {
+						rtrn += (long) iter.next().getCount();
+					}
+					iter.close();
+				}
+				return rtrn;
+			}
+		});
+		return rtrn;
+	}
+
+	/**
+	 * Consecutive overlapping windows along the first chromosome, as a scan counts them
+	 */
+	private static class CountBenchmark extends Benchmark {
+
+		private final boolean useCache;
+		AlignmentModel model;
+		List<Annotation> windows;
+
+		CountBenchmark(String name, boolean useCache) {
+			super(name);
+			this.useCache = useCache;
+		}
+
+		@Override
+		public void setUp(SyntheticData data) throws Exception {
+			File bam = data.getBamFile();
+			model = new AlignmentModel(bam.getAbsolutePath(), null, new ArrayList<Predicate<Alignment>>(), false);
+			if(!useCache) {
+				model.setCacheSize(0);
+			}
+			String chr = data.getChromosomeLengths().keySet().iterator().next();
+			int length = data.getChromosomeLengths().get(chr).intValue();
+			windows = new ArrayList<Annotation>();
+			for(int start=0; windows.size()<NUM_WINDOWS && start+WINDOW_SIZE<length; start+=WINDOW_STEP) {
+				windows.add(new Alignments(chr, start, start + WINDOW_SIZE));
+			}
+		}
+
+		@Override
+		public int getOperationsPerRun() {
+			return windows.size();
+		}
+
+		@Override
+		public long run() {
+			long rtrn = 0;
+			for(Annotation window : windows) {
+				rtrn += (long) model.getCount(window);
+			}
+			return rtrn;
+		}
+	}
+
+}
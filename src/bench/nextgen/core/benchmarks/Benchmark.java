@@ -0,0 +1,51 @@
+package nextgen.core.benchmarks;
+
+/**
+ * One benchmarked operation, run by BenchmarkRunner
+ * run() is called repeatedly after setUp and should return a value that depends on all of its work,
+ * so the JIT cannot drop it
+ *
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return Name in the results, grouped by dots
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Build the state the benchmark works on, outside of the timing
+	 * @param data Synthetic files, created the first time they are asked for
+	 * @throws Exception
+	 */
+	public void setUp(SyntheticData data) throws Exception {}
+
+	/**
+	 * @return Number of operations done by one call to run(), the score is per operation
+	 */
+	public int getOperationsPerRun() {
+		return 1;
+	}
+
+	/**
+	 * Do the timed work once
+	 * @return A value computed from the work
+	 * @throws Exception
+	 */
+	public abstract long run() throws Exception;
+
+	/**
+	 * Release the state built by setUp
+	 * @throws Exception
+	 */
+	public void tearDown() throws Exception {}
+
+}
@@ -0,0 +1,205 @@
+package nextgen.core.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.math3.distribution.TDistribution;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import broad.core.parser.CommandLineParser;
+
+/**
+ * Runs the benchmarks and writes their scores as JSON
+ * Each benchmark gets warmup iterations and then measured iterations of at least a fixed time, and its score is the
+ * mean time per operation over the measured iterations with a 99.9% confidence interval
+ * The JSON has the layout of JMH's JSON results (benchmark, mode, primaryMetric with score, scoreError and rawData)
+ * so the same tools can compare runs
+ *
+ */
+public class BenchmarkRunner {
+
+	static Logger logger = Logger.getLogger(BenchmarkRunner.class.getName());
+
+	// Keeps the results of run() so they are not optimized away
+	private static volatile long sink;
+
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final long iterationNanos;
+
+	/**
+	 * @param warmupIterations Number of unmeasured iterations
+	 * @param measurementIterations Number of measured iterations
+	 * @param iterationMillis Least time of each iteration
+	 */
+	public BenchmarkRunner(int warmupIterations, int measurementIterations, int iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationNanos = iterationMillis * 1000000L;
+	}
+
+	/**
+	 * @return Every benchmark
+	 */
+	public static List<Benchmark> getBenchmarks() {
+		List<Benchmark> rtrn = new ArrayList<Benchmark>();
+		rtrn.addAll(IntervalTreeBenchmarks.getBenchmarks());
+		rtrn.addAll(AlignmentModelBenchmarks.getBenchmarks());
+		rtrn.addAll(ScanStatisticsBenchmarks.getBenchmarks());
+		rtrn.addAll(CompoundIntervalBenchmarks.getBenchmarks());
+		rtrn.addAll(TranscriptomeSpaceBenchmarks.getBenchmarks());
+		return rtrn;
+	}
+
+	/**
+	 * Measure one benchmark
+	 * @param benchmark Benchmark
+	 * @param data Synthetic data
+	 * @return Nanoseconds per operation of each measured iteration
+	 * @throws Exception
+	 */
+	public double[] measure(Benchmark benchmark, SyntheticData data) throws Exception {
+		benchmark.setUp(data);
+		try {
+			for(int i=0; i<warmupIterations; i++) {
+				double score = iteration(benchmark);
+				logger.info(benchmark.getName() + "\twarmup " + (i + 1) + "\t" + String.format("%.1f", Double.valueOf(score)) + " ns/op");
+			}
+			double[] rtrn = new double[measurementIterations];
+			for(int i=0; i<measurementIterations; i++) {
+				rtrn[i] = iteration(benchmark);
+				logger.info(benchmark.getName() + "\titeration " + (i + 1) + "\t" + String.format("%.1f", Double.valueOf(rtrn[i])) + " ns/op");
+			}
+			return rtrn;
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	private double iteration(Benchmark benchmark) throws Exception {
+		long calls = 0;
+		long result = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			result += benchmark.run();
+			calls++;
+			elapsed = System.nanoTime() - start;
+		} while(elapsed < iterationNanos);
+		sink += result;
+		return (double) elapsed / ((double) calls * benchmark.getOperationsPerRun());
+	}
+
+	/**
+	 * @param samples Scores of the iterations
+	 * @return Half width of the 99.9% confidence interval of the mean, NaN with one iteration
+	 */
+	static double scoreError(double[] samples) {
+		int n = samples.length;
+		if(n < 2) {
+			return Double.NaN;
+		}
+		double mean = mean(samples);
+		double squares = 0;
+		for(int i=0; i<n; i++) {
+			squares += (samples[i] - mean) * (samples[i] - mean);
+		}
+		double sd = Math.sqrt(squares / (n - 1));
+		double t = new TDistribution(n - 1).inverseCumulativeProbability(1 - 0.001 / 2);
+		return t * sd / Math.sqrt(n);
+	}
+
+	static double mean(double[] samples) {
+		double sum = 0;
+		for(int i=0; i<samples.length; i++) {
+			sum += samples[i];
+		}
+		return sum / samples.length;
+	}
+
+	private void writeResult(JsonGenerator json, Benchmark benchmark, double[] samples, int numReads) throws IOException {
+		json.writeStartObject();
+		json.writeStringField("benchmark", benchmark.getName());
+		json.writeStringField("mode", "avgt");
+		json.writeNumberField("threads", 1);
+		json.writeNumberField("forks", 1);
+		json.writeNumberField("warmupIterations", warmupIterations);
+		json.writeStringField("warmupTime", iterationNanos / 1000000 + " ms");
+		json.writeNumberField("measurementIterations", measurementIterations);
+		json.writeStringField("measurementTime", iterationNanos / 1000000 + " ms");
+		json.writeObjectFieldStart("params");
+		json.writeStringField("reads", Integer.toString(numReads));
+		json.writeEndObject();
+		json.writeObjectFieldStart("primaryMetric");
+		json.writeNumberField("score", mean(samples));
+		json.writeNumberField("scoreError", scoreError(samples));
+		json.writeStringField("scoreUnit", "ns/op");
+		json.writeArrayFieldStart("rawData");
+		json.writeStartArray();
+		for(int i=0; i<samples.length; i++) {
+			json.writeNumber(samples[i]);
+		}
+		json.writeEndArray();
+		json.writeEndArray();
+		json.writeEndObject();
+		json.writeEndObject();
+	}
+
+	public static void main(String[] args) throws Exception {
+		CommandLineParser p = new CommandLineParser();
+		p.setProgramDescription("Run the benchmarks on synthetic data and write the scores as JSON");
+		p.addStringArg("-o", "Output JSON file", false, "benchmarks.json");
+		p.addStringArg("-f", "Regular expression; only run benchmarks whose name contains a match", false, ".*");
+		p.addIntArg("-wi", "Warmup iterations", false, 3);
+		p.addIntArg("-i", "Measurement iterations", false, 5);
+		p.addIntArg("-t", "Least time of each iteration in milliseconds", false, 1000);
+		p.addIntArg("-r", "Number of reads in the synthetic BAM file", false, 200000);
+		p.addStringArg("-d", "Directory for the synthetic files", false, System.getProperty("java.io.tmpdir"));
+		p.addBooleanArg("-l", "List the benchmarks and exit", false, false);
+		p.parse(args);
+
+		Pattern filter = Pattern.compile(p.getStringArg("-f"));
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for(Benchmark benchmark : getBenchmarks()) {
+			if(filter.matcher(benchmark.getName()).find()) {
+				benchmarks.add(benchmark);
+			}
+		}
+		if(p.getBooleanArg("-l")) {
+			for(Benchmark benchmark : benchmarks) {
+				System.out.println(benchmark.getName());
+			}
+			return;
+		}
+
+		int numReads = p.getIntArg("-r");
+		SyntheticData data = new SyntheticData(new File(p.getStringArg("-d")), numReads, 1);
+		BenchmarkRunner runner = new BenchmarkRunner(p.getIntArg("-wi"), p.getIntArg("-i"), p.getIntArg("-t"));
+		File out = new File(p.getStringArg("-o"));
+		JsonGenerator json = new JsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+		json.useDefaultPrettyPrinter();
+		json.writeStartArray();
+		try {
+			for(Benchmark benchmark : benchmarks) {
+				logger.info("Running " + benchmark.getName());
+				double[] samples = runner.measure(benchmark, data);
+				runner.writeResult(json, benchmark, samples, numReads);
+				json.flush();
+				logger.info(benchmark.getName() + "\t" + String.format("%.1f +- %.1f", Double.valueOf(mean(samples)), Double.valueOf(scoreError(samples))) + " ns/op");
+			}
+		} finally {
+			json.writeEndArray();
+			json.close();
+			data.delete();
+		}
+		logger.info("Wrote " + benchmarks.size() + " results to " + out);
+		logger.debug("Checksum " + sink);
+	}
+
+}
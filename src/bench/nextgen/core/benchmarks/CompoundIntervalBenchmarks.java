@@ -0,0 +1,96 @@
+package nextgen.core.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nextgen.core.annotation.CompoundInterval;
+
+/**
+ * CompoundInterval set operations on pairs of overlapping gene-like intervals
+ *
+ */
+public class CompoundIntervalBenchmarks {
+
+	private static final int NUM_PAIRS = 1000;
+
+	public static List<Benchmark> getBenchmarks() {
+		List<Benchmark> rtrn = new ArrayList<Benchmark>();
+		rtrn.add(new CompoundIntervalBenchmark("CompoundInterval.union") {
+			@Override
+			long operate(CompoundInterval a, CompoundInterval b) {
+				return a.union(b).numBlocks();
+			}
+		});
+		rtrn.add(new CompoundIntervalBenchmark("CompoundInterval.intersect") {
+			@Override
+			long operate(CompoundInterval a, CompoundInterval b) {
+				return a.intersect(b).numBlocks();
+			}
+		});
+		rtrn.add(new CompoundIntervalBenchmark("CompoundInterval.minus") {
+			@Override
+			long operate(CompoundInterval a, CompoundInterval b) {
+				return a.minus(b).numBlocks();
+			}
+		});
+		rtrn.add(new CompoundIntervalBenchmark("CompoundInterval.overlaps") {
+			@Override
+			long operate(CompoundInterval a, CompoundInterval b) {
+				return a.overlaps(b) ? 1 : 0;
+			}
+		});
+		return rtrn;
+	}
+
+	private static abstract class CompoundIntervalBenchmark extends Benchmark {
+
+		CompoundInterval[] first;
+		CompoundInterval[] second;
+
+		CompoundIntervalBenchmark(String name) {
+			super(name);
+		}
+
+		abstract long operate(CompoundInterval a, CompoundInterval b);
+
+		@Override
+		public void setUp(SyntheticData data) {
+			Random random = new Random(1);
+			first = new CompoundInterval[NUM_PAIRS];
+			second = new CompoundInterval[NUM_PAIRS];
+			for(int i=0; i<NUM_PAIRS; i++) {
+				int start = random.nextInt(1000000);
+				first[i] = makeInterval(start, random);
+				second[i] = makeInterval(start + random.nextInt(2000), random);
+			}
+		}
+
+		private static CompoundInterval makeInterval(int start, Random random) {
+			CompoundInterval rtrn = new CompoundInterval();
+			int numBlocks = 5 + random.nextInt(16);
+			int p = start;
+			for(int b=0; b<numBlocks; b++) {
+				int end = p + 50 + random.nextInt(250);
+				rtrn.addInterval(p, end);
+				p = end + 100 + random.nextInt(1000);
+			}
+			return rtrn;
+		}
+
+		@Override
+		public int getOperationsPerRun() {
+			return NUM_PAIRS;
+		}
+
+		@Override
+		public long run() {
+			long rtrn = 0;
+			for(int i=0; i<NUM_PAIRS; i++) {
+				rtrn += operate(first[i], second[i]);
+			}
+			return rtrn;
+		}
+	}
+
+}
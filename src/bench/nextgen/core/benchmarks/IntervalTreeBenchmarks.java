@@ -0,0 +1,182 @@
+package nextgen.core.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.datastructures.IntervalTree.Node;
+import broad.core.datastructures.StaticIntervalIndex;
+
+/**
+ * IntervalTree put and overlap queries, and the same operations on StaticIntervalIndex, on read-like intervals
+ *
+ */
+public class IntervalTreeBenchmarks {
+
+	private static final int NUM_INTERVALS = 100000;
+	private static final int NUM_QUERIES = 10000;
+	private static final int WINDOW_SIZE = 500;
+
+	public static List<Benchmark> getBenchmarks() {
+		List<Benchmark> rtrn = new ArrayList<Benchmark>();
+		rtrn.add(new IntervalBenchmark("IntervalTree.put", NUM_INTERVALS) {
+			@Override
+			public long run() {
+				return makeTree().size();
+			}
+		});
+		rtrn.add(new IntervalBenchmark("IntervalTree.overlappers", NUM_QUERIES) {
+			IntervalTree<Integer> tree;
+			@Override
+			public void setUp(SyntheticData data) {
+				super.setUp(data);
+				tree = makeTree();
+			}
+			@Override
+			public long run() {
+				long rtrn = 0;
+				for(int q=0; q<queries.length; q++) {
+					Iterator<Node<Integer>> iter = tree.overlappers(queries[q], queries[q] + WINDOW_SIZE);
+					while(iter.hasNext()) {rtrn += iter.next().getValue().intValue();}
+				}
+				return rtrn;
+			}
+		});
+		rtrn.add(new IntervalBenchmark("IntervalTree.numOverlappers", NUM_QUERIES) {
+			IntervalTree<Integer> tree;
+			@Override
+			public void setUp(SyntheticData data) {
+				super.setUp(data);
+				tree = makeTree();
+			}
+			@Override
+			public long run() {
+				long rtrn = 0;
+				for(int q=0; q<queries.length; q++) {
+					rtrn += tree.numOverlappers(queries[q], queries[q] + WINDOW_SIZE);
+				}
+				return rtrn;
+			}
+		});
+		rtrn.add(new IntervalBenchmark("StaticIntervalIndex.build", NUM_INTERVALS) {
+			@Override
+			public long run() {
+				return makeIndex().size();
+			}
+		});
+		rtrn.add(new IntervalBenchmark("StaticIntervalIndex.overlappers", NUM_QUERIES) {
+			StaticIntervalIndex<Integer> index;
+			final long[] sum = new long[1];
+			final StaticIntervalIndex.OverlapVisitor<Integer> visitor = new StaticIntervalIndex.OverlapVisitor<Integer>() {
+				@Override
+				public void visit(int start, int end, Integer value) {
+					sum[0] += value.intValue();
+				}
+			};
+			@Override
+			public void setUp(SyntheticData data) {
+				super.setUp(data);
+				index = makeIndex();
+			}
+			@Override
+			public long run() {
+				sum[0] = 0;
+				for(int q=0; q<queries.length; q++) {
+					index.overlappers(queries[q], queries[q] + WINDOW_SIZE, visitor);
+				}
+				return sum[0];
+			}
+		});
+		rtrn.add(new IntervalBenchmark("StaticIntervalIndex.numOverlappers", NUM_QUERIES) {
+			StaticIntervalIndex<Integer> index;
+			@Override
+			public void setUp(SyntheticData data) {
+				super.setUp(data);
+				index = makeIndex();
+			}
+			@Override
+			public long run() {
+				long rtrn = 0;
+				for(int q=0; q<queries.length; q++) {
+					rtrn += index.numOverlappers(queries[q], queries[q] + WINDOW_SIZE);
+				}
+				return rtrn;
+			}
+		});
+		return rtrn;
+	}
+
+	/**
+	 * Sorted random intervals, mostly read sized with some spliced read spans, and random query positions
+	 */
+	private static abstract class IntervalBenchmark extends Benchmark {
+
+		private final int operations;
+		int[] starts;
+		int[] ends;
+		Integer[] values;
+		int[] queries;
+
+		IntervalBenchmark(String name, int operations) {
+			super(name);
+			this.operations = operations;
+		}
+
+		@Override
+		public int getOperationsPerRun() {
+			return operations;
+		}
+
+		@Override
+		public void setUp(SyntheticData data) {
+			Random random = new Random(1);
+			int length = NUM_INTERVALS * 20;
+			long[] packed = new long[NUM_INTERVALS];
+			for(int i=0; i<NUM_INTERVALS; i++) {
+				int size = random.nextInt(20) == 0 ? 1000 + random.nextInt(10000) : 36 + random.nextInt(65);
+				packed[i] = ((long) random.nextInt(length) << 32) | size;
+			}
+			Arrays.sort(packed);
+			starts = new int[NUM_INTERVALS];
+			ends = new int[NUM_INTERVALS];
+			values = new Integer[NUM_INTERVALS];
+			for(int i=0; i<NUM_INTERVALS; i++) {
+				starts[i] = (int) (packed[i] >>> 32);
+				ends[i] = starts[i] + (int) packed[i];
+				values[i] = Integer.valueOf(i);
+			}
+			queries = new int[NUM_QUERIES];
+			for(int q=0; q<NUM_QUERIES; q++) {
+				queries[q] = random.nextInt(length);
+			}
+		}
+
+		/**
+		 * Identical intervals share a node, as the read caches did
+		 */
+		IntervalTree<Integer> makeTree() {
+			IntervalTree<Integer> tree = new IntervalTree<Integer>();
+			for(int i=0; i<starts.length; i++) {
+				Node<Integer> node = tree.find(starts[i], ends[i]);
+				if(node == null) {
+					tree.put(starts[i], ends[i], values[i]);
+				} else {
+					node.incrementCount();
+				}
+			}
+			return tree;
+		}
+
+		StaticIntervalIndex<Integer> makeIndex() {
+			StaticIntervalIndex.Builder<Integer> builder = new StaticIntervalIndex.Builder<Integer>(starts.length);
+			for(int i=0; i<starts.length; i++) {
+				builder.add(starts[i], ends[i], values[i]);
+			}
+			return builder.build();
+		}
+	}
+
+}
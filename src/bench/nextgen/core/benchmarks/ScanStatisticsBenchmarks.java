@@ -0,0 +1,55 @@
+package nextgen.core.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import broad.core.math.ScanStatistics;
+
+/**
+ * ScanStatistics.calculatePVal over counts and rates like those of peak calling windows
+ *
+ */
+public class ScanStatisticsBenchmarks {
+
+	private static final int NUM_WINDOWS = 10000;
+
+	public static List<Benchmark> getBenchmarks() {
+		List<Benchmark> rtrn = new ArrayList<Benchmark>();
+		rtrn.add(new Benchmark("ScanStatistics.calculatePVal") {
+			int[] counts;
+			double[] lambdas;
+			double[] windowSizes;
+			double genomeLength = 3e9;
+
+			@Override
+			public void setUp(SyntheticData data) {
+				Random random = new Random(1);
+				counts = new int[NUM_WINDOWS];
+				lambdas = new double[NUM_WINDOWS];
+				windowSizes = new double[NUM_WINDOWS];
+				for(int i=0; i<NUM_WINDOWS; i++) {
+					counts[i] = random.nextInt(10) == 0 ? 50 + random.nextInt(500) : random.nextInt(50);
+					lambdas[i] = 0.001 + random.nextDouble() * 0.05;
+					windowSizes[i] = 100 + random.nextInt(1000);
+				}
+			}
+
+			@Override
+			public int getOperationsPerRun() {
+				return NUM_WINDOWS;
+			}
+
+			@Override
+			public long run() {
+				long rtrn = 0;
+				for(int i=0; i<NUM_WINDOWS; i++) {
+					rtrn += Double.doubleToRawLongBits(ScanStatistics.calculatePVal(counts[i], lambdas[i], windowSizes[i], genomeLength));
+				}
+				return rtrn;
+			}
+		});
+		return rtrn;
+	}
+
+}
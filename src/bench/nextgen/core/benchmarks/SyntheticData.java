@@ -0,0 +1,231 @@
+package nextgen.core.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.annotation.Gene;
+
+import org.apache.log4j.Logger;
+
+import broad.pda.annotation.BEDFileParser;
+
+/**
+ * Random genes and reads for the benchmarks, written to a BED file and an indexed BAM file the first time they are asked for
+ * Most reads fall in exons and some span an intron; the rest are spread over the chromosomes
+ * The same seed and number of reads always give the same files
+ *
+ */
+public class SyntheticData {
+
+	static Logger logger = Logger.getLogger(SyntheticData.class.getName());
+
+	public static final int READ_LENGTH = 50;
+	private static final String READ_BASES = "ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTAC";
+	private static final String READ_QUALITIES = "IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII";
+
+	private final File dir;
+	private final int numReads;
+	private final long seed;
+	private final Map<String, Integer> chromosomeLengths;
+	private File bedFile;
+	private File bamFile;
+	private Map<String, Collection<Gene>> genes;
+
+	/**
+	 * @param dir Directory to write the files to
+	 * @param numReads Total number of reads
+	 * @param seed Random seed
+	 */
+	public SyntheticData(File dir, int numReads, long seed) {
+		this.dir = dir;
+		this.numReads = numReads;
+		this.seed = seed;
+		this.chromosomeLengths = new LinkedHashMap<String, Integer>();
+		// About one read per 20bp
+		int length = Math.max(200000, numReads * 20 / 3);
+		for(int i=1; i<=3; i++) {
+			chromosomeLengths.put("chr" + i, Integer.valueOf(length));
+		}
+	}
+
+	public Map<String, Integer> getChromosomeLengths() {
+		return chromosomeLengths;
+	}
+
+	public int getNumReads() {
+		return numReads;
+	}
+
+	/**
+	 * @return BED file of the genes
+	 * @throws IOException
+	 */
+	public synchronized File getBedFile() throws IOException {
+		if(bedFile == null) {
+			write();
+		}
+		return bedFile;
+	}
+
+	/**
+	 * @return Coordinate sorted BAM file with its index
+	 * @throws IOException
+	 */
+	public synchronized File getBamFile() throws IOException {
+		if(bamFile == null) {
+			write();
+		}
+		return bamFile;
+	}
+
+	/**
+	 * @return The genes by chromosome, as BEDFileParser loads them
+	 * @throws IOException
+	 */
+	public synchronized Map<String, Collection<Gene>> getGenes() throws IOException {
+		if(genes == null) {
+			genes = BEDFileParser.loadDataByChr(getBedFile());
+		}
+		return genes;
+	}
+
+	/**
+	 * Delete the files written
+	 */
+	public synchronized void delete() {
+		if(bamFile != null) {
+			File[] files = dir.listFiles();
+			if(files != null) {
+				String prefix = bamFile.getName();
+				for(File file : files) {
+					// Index, paired end file and stats files written next to the BAM
+					if(file.getName().startsWith(prefix) || file.getName().startsWith(prefix.replaceAll("\\.bam$", ""))) {
+						file.delete();
+					}
+				}
+			}
+		}
+		if(bedFile != null) {
+			bedFile.delete();
+		}
+	}
+
+	private void write() throws IOException {
+		long start = System.currentTimeMillis();
+		Random random = new Random(seed);
+		File bed = new File(dir, "synthetic_" + numReads + "_" + seed + ".bed");
+		File bam = new File(dir, "synthetic_" + numReads + "_" + seed + ".bam");
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		for(String chr : chromosomeLengths.keySet()) {
+			header.addSequence(new SAMSequenceRecord(chr, chromosomeLengths.get(chr).intValue()));
+		}
+		SAMFileWriterFactory factory = new SAMFileWriterFactory();
+		factory.setCreateIndex(true);
+		SAMFileWriter writer = factory.makeBAMWriter(header, true, bam);
+		FileWriter bedWriter = new FileWriter(bed);
+		int readsPerChr = numReads / chromosomeLengths.size();
+		int readNumber = 0;
+		for(String chr : chromosomeLengths.keySet()) {
+			int length = chromosomeLengths.get(chr).intValue();
+			List<int[][]> chrGenes = makeGenes(chr, length, random, bedWriter);
+			long[] reads = new long[readsPerChr];
+			for(int i=0; i<readsPerChr; i++) {
+				reads[i] = makeRead(chrGenes, length, random);
+			}
+			// Sorted by start, the low bits hold the length of the first block
+			Arrays.sort(reads);
+			for(int i=0; i<readsPerChr; i++) {
+				int readStart = (int) (reads[i] >>> 32);
+				int intron = (int) ((reads[i] >>> 8) & 0xFFFFFF);
+				int firstBlock = (int) (reads[i] & 0xFF);
+				SAMRecord record = new SAMRecord(header);
+				record.setReadName("read" + (readNumber++));
+				record.setReferenceName(chr);
+				record.setAlignmentStart(readStart + 1);
+				record.setCigarString(intron == 0 ? READ_LENGTH + "M" : firstBlock + "M" + intron + "N" + (READ_LENGTH - firstBlock) + "M");
+				record.setReadString(READ_BASES);
+				record.setBaseQualityString(READ_QUALITIES);
+				record.setReadNegativeStrandFlag(random.nextBoolean());
+				record.setMappingQuality(255);
+				record.setAttribute("NH", Integer.valueOf(1));
+				writer.addAlignment(record);
+			}
+		}
+		bedWriter.close();
+		writer.close();
+		this.bedFile = bed;
+		this.bamFile = bam;
+		logger.info("Wrote " + numReads + " reads to " + bam + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * One gene about every 10kb with 3 to 8 exons
+	 * @return Exon starts and ends of each gene
+	 */
+	private static List<int[][]> makeGenes(String chr, int length, Random random, FileWriter bedWriter) throws IOException {
+		List<int[][]> rtrn = new ArrayList<int[][]>();
+		int position = 1000 + random.nextInt(5000);
+		int geneNumber = 0;
+		while(true) {
+			int numExons = 3 + random.nextInt(6);
+			int[] starts = new int[numExons];
+			int[] ends = new int[numExons];
+			int p = position;
+			for(int e=0; e<numExons; e++) {
+				starts[e] = p;
+				ends[e] = p + 80 + random.nextInt(220);
+				p = ends[e] + 200 + random.nextInt(1800);
+			}
+			if(ends[numExons - 1] + 1000 > length) {
+				break;
+			}
+			StringBuilder sizes = new StringBuilder();
+			StringBuilder offsets = new StringBuilder();
+			for(int e=0; e<numExons; e++) {
+				sizes.append(ends[e] - starts[e]).append(",");
+				offsets.append(starts[e] - starts[0]).append(",");
+			}
+			int geneEnd = ends[numExons - 1];
+			bedWriter.write(chr + "\t" + starts[0] + "\t" + geneEnd + "\t" + chr + "_gene" + (geneNumber++) + "\t0\t" + (random.nextBoolean() ? "+" : "-") + "\t" + starts[0] + "\t" + geneEnd + "\t0,0,0\t" + numExons + "\t" + sizes + "\t" + offsets + "\n");
+			rtrn.add(new int[][] {starts, ends});
+			position = geneEnd + 2000 + random.nextInt(8000);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Start in the high 32 bits, intron length and first block length in the low bits
+	 */
+	private static long makeRead(List<int[][]> genes, int length, Random random) {
+		if(genes.isEmpty() || random.nextInt(10) < 3) {
+			return ((long) random.nextInt(length - READ_LENGTH)) << 32;
+		}
+		int[][] gene = genes.get(random.nextInt(genes.size()));
+		int[] starts = gene[0];
+		int[] ends = gene[1];
+		int e = random.nextInt(starts.length);
+		if(e < starts.length - 1 && random.nextInt(5) == 0) {
+			// Spliced read over the next intron
+			int firstBlock = 1 + random.nextInt(READ_LENGTH - 1);
+			int intron = starts[e + 1] - ends[e];
+			return ((long) (ends[e] - firstBlock) << 32) | ((long) intron << 8) | firstBlock;
+		}
+		int readStart = starts[e] + random.nextInt(Math.max(1, ends[e] - starts[e] - READ_LENGTH));
+		return ((long) readStart) << 32;
+	}
+
+}
@@ -0,0 +1,82 @@
+package nextgen.core.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import nextgen.core.annotation.Gene;
+import nextgen.core.coordinatesystem.TranscriptomeSpace;
+
+/**
+ * TranscriptomeSpace.getFragment and its getFragmentSizes fast path for read-sized regions in and around the synthetic genes
+ *
+ */
+public class TranscriptomeSpaceBenchmarks {
+
+	private static final int NUM_QUERIES = 10000;
+
+	public static List<Benchmark> getBenchmarks() {
+		List<Benchmark> rtrn = new ArrayList<Benchmark>();
+		rtrn.add(new FragmentBenchmark("TranscriptomeSpace.getFragment") {
+			@Override
+			public long run() {
+				long rtrn = 0;
+				for(int q=0; q<NUM_QUERIES; q++) {
+					rtrn += space.getFragment(chrs[q], starts[q], starts[q] + SyntheticData.READ_LENGTH).size();
+				}
+				return rtrn;
+			}
+		});
+		rtrn.add(new FragmentBenchmark("TranscriptomeSpace.getFragmentSizes") {
+			@Override
+			public long run() {
+				long rtrn = 0;
+				int[] sizes = new int[16];
+				for(int q=0; q<NUM_QUERIES; q++) {
+					rtrn += space.getFragmentSizes(chrs[q], starts[q], starts[q] + SyntheticData.READ_LENGTH, sizes);
+				}
+				return rtrn;
+			}
+		});
+		return rtrn;
+	}
+
+	/**
+	 * Read-sized queries at random positions inside random genes
+	 */
+	private static abstract class FragmentBenchmark extends Benchmark {
+		TranscriptomeSpace space;
+		String[] chrs;
+		int[] starts;
+
+		FragmentBenchmark(String name) {
+			super(name);
+		}
+
+		@Override
+		public void setUp(SyntheticData data) throws Exception {
+			Map<String, Collection<Gene>> genes = data.getGenes();
+			space = new TranscriptomeSpace(genes);
+			List<Gene> all = new ArrayList<Gene>();
+			for(Collection<Gene> chrGenes : genes.values()) {
+				all.addAll(chrGenes);
+			}
+			Random random = new Random(1);
+			chrs = new String[NUM_QUERIES];
+			starts = new int[NUM_QUERIES];
+			for(int q=0; q<NUM_QUERIES; q++) {
+				Gene gene = all.get(random.nextInt(all.size()));
+				chrs[q] = gene.getChr();
+				starts[q] = gene.getStart() + random.nextInt(Math.max(1, gene.getEnd() - gene.getStart()));
+			}
+		}
+
+		@Override
+		public int getOperationsPerRun() {
+			return NUM_QUERIES;
+		}
+	}
+
+}
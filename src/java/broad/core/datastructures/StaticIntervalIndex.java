@@ -0,0 +1,425 @@
+package broad.core.datastructures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import broad.core.datastructures.IntervalTree.Node;
+
+/**
+ * Read only index of intervals in flat arrays, for interval sets that are built once and then only queried
+ * The intervals are sorted by start then end and the sorted array is used as an implicit augmented binary tree:
+ * the leaves are at even positions, a node at level k is at a position whose lowest k bits are set, and maxEnds
+ * holds the largest end in the subtree of each position
+ * Overlaps are as in IntervalTree: [start, end) overlaps [qstart, qend) if start&lt;qend and qstart&lt;end
+ *
+ * Thread safe once built; counting overlappers does not allocate
+ *
+ * @param <V> Value type
+ */
+public class StaticIntervalIndex<V> {
+
+	// Subtrees at or below this level are scanned instead of descended
+	private static final int SCAN_LEVEL = 3;
+
+	private final int[] starts;
+	private final int[] ends;
+	private final int[] maxEnds;
+	// Weight of each interval, null if all 1
+	private final int[] counts;
+	private final Object[] values;
+	private final int maxLevel;
+
+	private StaticIntervalIndex(int[] starts, int[] ends, int[] counts, Object[] values) {
+		this.starts = starts;
+		this.ends = ends;
+		this.counts = counts;
+		this.values = values;
+		this.maxEnds = new int[starts.length];
+		this.maxLevel = index();
+	}
+
+	/**
+	 * Build from intervals already sorted by start then end
+	 * @param starts Interval starts
+	 * @param ends Interval ends
+	 * @param values Value of each interval
+	 * @return The index, which keeps the arrays
+	 */
+	public static <V> StaticIntervalIndex<V> fromSorted(int[] starts, int[] ends, List<? extends V> values) {
+		if(starts.length != ends.length || starts.length != values.size()) {
+			throw new IllegalArgumentException("Got " + starts.length + " starts, " + ends.length + " ends and " + values.size() + " values");
+		}
+		for(int i=0; i<starts.length; i++) {
+			checkInterval(starts[i], ends[i]);
+			if(i > 0 && compare(starts[i-1], ends[i-1], starts[i], ends[i]) > 0) {
+				throw new IllegalArgumentException("Intervals are not sorted at " + i + ": " + starts[i-1] + "-" + ends[i-1] + " before " + starts[i] + "-" + ends[i]);
+			}
+		}
+		return new StaticIntervalIndex<V>(starts, ends, null, values.toArray());
+	}
+
+	/**
+	 * Copy the nodes of a tree
+	 * Each node becomes one interval with the node's value, counted as many times as the node's replicates
+	 * so numOverlappers is the same as the tree's
+	 * @param tree Interval tree
+	 * @return The index
+	 */
+	public static <V> StaticIntervalIndex<V> fromTree(IntervalTree<V> tree) {
+		Builder<V> builder = new Builder<V>(tree.size());
+		Iterator<Node<V>> iter = tree.iterator();
+		while(iter.hasNext()) {
+			Node<V> node = iter.next();
+			builder.add(node.getStart(), node.getEnd(), node.getValue(), node.getNumReplicates());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Collects intervals in any order and sorts them once when built
+	 */
+	public static class Builder<V> {
+
+		private int[] starts;
+		private int[] ends;
+		private int[] counts;
+		private Object[] values;
+		private int size;
+		private boolean sorted = true;
+		private boolean weighted;
+
+		public Builder() {
+			this(16);
+		}
+
+		/**
+		 * @param capacity Expected number of intervals
+		 */
+		public Builder(int capacity) {
+			capacity = Math.max(capacity, 1);
+			starts = new int[capacity];
+			ends = new int[capacity];
+			counts = new int[capacity];
+			values = new Object[capacity];
+		}
+
+		public Builder<V> add(int start, int end, V value) {
+			return add(start, end, value, 1);
+		}
+
+		/**
+		 * @param start Interval start
+		 * @param end Interval end
+		 * @param value Value
+		 * @param count Number of times the interval is counted by numOverlappers
+		 * @return This builder
+		 */
+		public Builder<V> add(int start, int end, V value, int count) {
+			checkInterval(start, end);
+			if(count < 1) {
+				throw new IllegalArgumentException("Count must be positive, got " + count);
+			}
+			if(size == starts.length) {
+				int capacity = 2 * size;
+				starts = Arrays.copyOf(starts, capacity);
+				ends = Arrays.copyOf(ends, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+			if(size > 0 && compare(starts[size-1], ends[size-1], start, end) > 0) {
+				sorted = false;
+			}
+			starts[size] = start;
+			ends[size] = end;
+			counts[size] = count;
+			values[size] = value;
+			weighted |= count != 1;
+			size++;
+			return this;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return The index of the intervals added so far, in a stable sort by start then end
+		 */
+		public StaticIntervalIndex<V> build() {
+			int[] s = Arrays.copyOf(starts, size);
+			int[] e = Arrays.copyOf(ends, size);
+			int[] c = weighted ? Arrays.copyOf(counts, size) : null;
+			Object[] v = Arrays.copyOf(values, size);
+			if(!sorted) {
+				Integer[] order = new Integer[size];
+				for(int i=0; i<size; i++) {order[i] = Integer.valueOf(i);}
+				Arrays.sort(order, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						return StaticIntervalIndex.compare(starts[a.intValue()], ends[a.intValue()], starts[b.intValue()], ends[b.intValue()]);
+					}
+				});
+				for(int i=0; i<size; i++) {
+					int j = order[i].intValue();
+					s[i] = starts[j];
+					e[i] = ends[j];
+					if(c != null) {c[i] = counts[j];}
+					v[i] = values[j];
+				}
+			}
+			return new StaticIntervalIndex<V>(s, e, c, v);
+		}
+	}
+
+	/**
+	 * Called for each overlapping interval, in order of start then end
+	 */
+	public interface OverlapVisitor<V> {
+		void visit(int start, int end, V value);
+	}
+
+	/**
+	 * @return Number of intervals
+	 */
+	public int size() {
+		return starts.length;
+	}
+
+	public boolean isEmpty() {
+		return starts.length == 0;
+	}
+
+	public int getStart(int i) {
+		return starts[i];
+	}
+
+	public int getEnd(int i) {
+		return ends[i];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V getValue(int i) {
+		return (V) values[i];
+	}
+
+	/**
+	 * Same as IntervalTree.numOverlappers: intervals built from a tree count their node's replicates
+	 * @param start Query start
+	 * @param end Query end
+	 * @return Number of overlapping intervals
+	 */
+	public int numOverlappers(int start, int end) {
+		if(maxLevel < 0) {
+			return 0;
+		}
+		return count(maxLevel, (1 << maxLevel) - 1, start, end);
+	}
+
+	/**
+	 * @param start Query start
+	 * @param end Query end
+	 * @return Whether any interval overlaps
+	 */
+	public boolean hasOverlapper(int start, int end) {
+		if(maxLevel < 0) {
+			return false;
+		}
+		return find(maxLevel, (1 << maxLevel) - 1, start, end);
+	}
+
+	/**
+	 * Pass every overlapping interval to the visitor
+	 * @param start Query start
+	 * @param end Query end
+	 * @param visitor Visitor
+	 */
+	public void overlappers(int start, int end, final OverlapVisitor<? super V> visitor) {
+		visit(start, end, new IndexVisitor() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public void visit(int i) {
+				visitor.visit(starts[i], ends[i], (V) values[i]);
+			}
+		});
+	}
+
+	/**
+	 * Same as IntervalTree.overlappers, with a new node per overlapping interval
+	 * @param start Query start
+	 * @param end Query end
+	 * @return The overlapping intervals in order
+	 */
+	public Iterator<Node<V>> overlappers(int start, int end) {
+		final List<Node<V>> rtrn = new ArrayList<Node<V>>();
+		visit(start, end, new IndexVisitor() {
+			@Override
+			public void visit(int i) {
+				Node<V> node = new Node<V>(starts[i], ends[i], getValue(i));
+				for(int c=1; c<weight(i); c++) {node.incrementCount();}
+				rtrn.add(node);
+			}
+		});
+		return rtrn.iterator();
+	}
+
+	/**
+	 * @param start Query start
+	 * @param end Query end
+	 * @return The values of the overlapping intervals in order
+	 */
+	public Iterator<V> overlappingValueIterator(int start, int end) {
+		return getOverlappingValues(start, end).iterator();
+	}
+
+	/**
+	 * @param start Query start
+	 * @param end Query end
+	 * @return The values of the overlapping intervals in order
+	 */
+	public Collection<V> getOverlappingValues(int start, int end) {
+		final List<V> rtrn = new ArrayList<V>();
+		overlappers(start, end, new OverlapVisitor<V>() {
+			@Override
+			public void visit(int s, int e, V value) {
+				rtrn.add(value);
+			}
+		});
+		return rtrn;
+	}
+
+	private int weight(int i) {
+		return counts == null ? 1 : counts[i];
+	}
+
+	private int count(int k, int x, int start, int end) {
+		int rtrn = 0;
+		int n = starts.length;
+		if(k <= SCAN_LEVEL) {
+			int i0 = x >> k << k;
+			int i1 = Math.min(n, i0 + (1 << (k + 1)) - 1);
+			for(int i=i0; i<i1 && starts[i] < end; i++) {
+				if(start < ends[i]) {rtrn += weight(i);}
+			}
+			return rtrn;
+		}
+		int half = 1 << (k - 1);
+		int left = x - half;
+		if(left >= n || maxEnds[left] > start) {
+			rtrn += count(k - 1, left, start, end);
+		}
+		if(x < n && starts[x] < end) {
+			if(start < ends[x]) {rtrn += weight(x);}
+			rtrn += count(k - 1, x + half, start, end);
+		}
+		return rtrn;
+	}
+
+	private boolean find(int k, int x, int start, int end) {
+		int n = starts.length;
+		if(k <= SCAN_LEVEL) {
+			int i0 = x >> k << k;
+			int i1 = Math.min(n, i0 + (1 << (k + 1)) - 1);
+			for(int i=i0; i<i1 && starts[i] < end; i++) {
+				if(start < ends[i]) {return true;}
+			}
+			return false;
+		}
+		int half = 1 << (k - 1);
+		int left = x - half;
+		if((left >= n || maxEnds[left] > start) && find(k - 1, left, start, end)) {
+			return true;
+		}
+		if(x < n && starts[x] < end) {
+			return start < ends[x] || find(k - 1, x + half, start, end);
+		}
+		return false;
+	}
+
+	private interface IndexVisitor {
+		void visit(int i);
+	}
+
+	private void visit(int start, int end, IndexVisitor visitor) {
+		if(maxLevel >= 0) {
+			visit(maxLevel, (1 << maxLevel) - 1, start, end, visitor);
+		}
+	}
+
+	private void visit(int k, int x, int start, int end, IndexVisitor visitor) {
+		int n = starts.length;
+		if(k <= SCAN_LEVEL) {
+			int i0 = x >> k << k;
+			int i1 = Math.min(n, i0 + (1 << (k + 1)) - 1);
+			for(int i=i0; i<i1 && starts[i] < end; i++) {
+				if(start < ends[i]) {visitor.visit(i);}
+			}
+			return;
+		}
+		int half = 1 << (k - 1);
+		int left = x - half;
+		if(left >= n || maxEnds[left] > start) {
+			visit(k - 1, left, start, end, visitor);
+		}
+		if(x < n && starts[x] < end) {
+			if(start < ends[x]) {visitor.visit(x);}
+			visit(k - 1, x + half, start, end, visitor);
+		}
+	}
+
+	/**
+	 * Fill maxEnds bottom up, one level at a time
+	 * A node whose right child is past the end of the array takes the largest end of the last partial subtree instead
+	 * @return Level of the root, -1 if empty
+	 */
+	private int index() {
+		int n = starts.length;
+		if(n == 0) {
+			return -1;
+		}
+		int lastIndex = 0;
+		int last = 0;
+		for(int i=0; i<n; i+=2) {
+			lastIndex = i;
+			last = maxEnds[i] = ends[i];
+		}
+		int k;
+		for(k=1; (1L << k) <= n; k++) {
+			int x = 1 << (k - 1);
+			int step = x << 2;
+			for(long i=(x << 1) - 1; i<n; i+=step) {
+				int node = (int) i;
+				int e = ends[node];
+				e = Math.max(e, maxEnds[node - x]);
+				e = Math.max(e, node + x < n ? maxEnds[node + x] : last);
+				maxEnds[node] = e;
+			}
+			// Move to the parent of the last node
+			lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x;
+			if(lastIndex < n && maxEnds[lastIndex] > last) {
+				last = maxEnds[lastIndex];
+			}
+		}
+		return k - 1;
+	}
+
+	private static void checkInterval(int start, int end) {
+		if(start > end) {
+			throw new IllegalArgumentException("Start cannot exceed end. Start=" + start + "; end=" + end);
+		}
+	}
+
+	private static int compare(int start1, int end1, int start2, int end2) {
+		if(start1 != start2) {
+			return start1 < start2 ? -1 : 1;
+		}
+		if(end1 != end2) {
+			return end1 < end2 ? -1 : 1;
+		}
+		return 0;
+	}
+
+}
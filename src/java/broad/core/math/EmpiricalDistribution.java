@@ -340,30 +340,59 @@ public class EmpiricalDistribution {
 
 	public void add(double observation) {
 		this.allDataValues.add(Double.valueOf(observation));
+		int bin = getObservationBin(observation);
+		if(bin >= 0) {
+			intervalDataNumber[bin]++;
+		} else if(observation > max) {
+			logger.trace("Observation "+observation + " is too large (max="+max+")");
+		}
+	}
+	
+	/**
+	 * The bin add() counts an observation in. Bins are searched by bisection, so this is cheap enough to bin
+	 * many observations, e.g. on several threads before adding the counts with addCounts
+	 * @param observation The observation
+	 * @return The bin, or -1 if the observation is out of range and out of range values are not included
+	 */
+	public int getObservationBin(double observation) {
 		if(observation > max) {
-			if (includeOutOfRange) {
-				intervalDataNumber[intervals.length-1]++;
-			} else {
-				logger.trace("Observation "+observation + " is too large (max="+max+")");
-				return;
-			}
+			return includeOutOfRange ? intervals.length-1 : -1;
 		} else if (observation < min) {
-			if (includeOutOfRange) {
-				intervalDataNumber[0]++;
+			return includeOutOfRange ? 0 : -1;
+		}
+		// First interval that ends after the observation
+		int low = 0;
+		int high = intervals.length;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(intervals[mid][1] > observation) {
+				high = mid;
 			} else {
-				//System.err.println("Observation "+observation + " is too small (min="+min+")");
-				return;
+				low = mid + 1;
 			}
 		}
-		
+		if(low < intervals.length && intervals[low][0] <= observation) {
+			return low;
+		}
 		for(int i = 0; i < intervals.length; i++) {
-			if((intervals[i][0] <= observation && intervals[i][1] > observation) || (intervals[i][1] == this.max && observation == this.max)) {
-				intervalDataNumber[i]++;
-				//logger.trace("Added obs " + observation + " so far we have " + intervalDataNumber[i]);
-				break;
+			if(intervals[i][1] == this.max && observation == this.max) {
+				return i;
 			}
 		}
-
+		return -1;
+	}
+	
+	/**
+	 * Add counts by bin, as if add() had been called for observations in these bins. The observations are not kept in getAllDataValues()
+	 * @param binCounts Counts, one per bin
+	 */
+	public void addCounts(long[] binCounts) {
+		if(binCounts.length != intervalDataNumber.length) {
+			throw new IllegalArgumentException("Counts need to have the same number of bins this has " + intervalDataNumber.length + " counts have " + binCounts.length);
+		}
+		for(int i = 0; i < binCounts.length; i++) {
+			intervalDataNumber[i] += binCounts[i];
+		}
 	}
 	
 	public double leftIntersect(EmpiricalDistribution other) {
@@ -30,6 +30,7 @@ public class FDRDistribution {
 	IntervalTree<Integer>[] posTrees=null;
 	IntervalTree<Integer>[] negTrees=null;
 	IntervalTree<Integer>[] absTrees=null;
+	private FDRNullDistribution nullDistribution=null;
 	
 	//TODO Merge with Moran's constructor with normalize false
 	public FDRDistribution(double[] observed, Matrix permutations, double alpha){
@@ -60,6 +61,26 @@ public class FDRDistribution {
 		//this.averagePermutations=average(sortedPermutations);
 	}
 	
+	/**
+	 * Same FDRs as FDRDistribution(observed, permutations, alpha) from the permutations pooled into a null distribution
+	 * @param observed Observed values, sorted in place
+	 * @param nullDistribution The permuted values
+	 * @param alpha Alpha
+	 */
+	public FDRDistribution(double[] observed, FDRNullDistribution nullDistribution, double alpha){
+		this.sortedAbsObservations=Statistics.absoluteValue(observed);
+		Arrays.sort(this.sortedAbsObservations);
+		Arrays.sort(observed);
+		this.sortedObservations=observed;
+		this.negativeSortedObservations=flipSort(observed);
+		this.alpha=alpha;
+		this.nullDistribution=nullDistribution;
+		
+		computeAllFDRs(nullDistribution);
+		indexMap=createIndexMap(this.sortedObservations);
+		absoluteIndexMap=createIndexMap(this.sortedAbsObservations);
+	}
+	
 	public FDRDistribution(double[] observed, FDRDistribution dist){
 		this.sortedAbsObservations=Statistics.absoluteValue(observed);
 		Arrays.sort(this.sortedAbsObservations);
@@ -67,6 +88,14 @@ public class FDRDistribution {
 		this.sortedObservations=observed;
 		this.negativeSortedObservations=flipSort(observed);
 		
+		if(dist.nullDistribution!=null){
+			this.nullDistribution=dist.nullDistribution;
+			computeAllFDRs(nullDistribution);
+			indexMap=createIndexMap(this.sortedObservations);
+			absoluteIndexMap=createIndexMap(this.sortedAbsObservations);
+			return;
+		}
+		
 		this.posTrees=dist.getPosTrees();
 		this.negTrees=dist.getNegTrees();
 		this.absTrees=dist.getAbsTrees();
@@ -263,6 +292,34 @@ public class FDRDistribution {
 	}
 	
 	
+	private void computeAllFDRs(FDRNullDistribution dist){
+		int n=sortedObservations.length;
+		double[] pos=new double[n];
+		double[] neg=new double[n];
+		double[] abs=new double[n];
+		for(int i=0; i<n; i++){
+			pos[i]=exactFDR(dist.countAtLeast(sortedObservations[i]), i, n, dist.getNumPermutations());
+			neg[i]=exactFDR(dist.countNegatedAtLeast(negativeSortedObservations[i]), i, n, dist.getNumPermutations());
+			abs[i]=exactFDR(dist.countAbsoluteAtLeast(sortedAbsObservations[i]), i, n, dist.getNumPermutations());
+		}
+		this.posFDRs=adjustFDRs(pos);
+		double[] negFDRs=adjustFDRs(neg);
+		this.negFDRs=new double[n];
+		for(int i=0; i<n; i++){
+			this.negFDRs[i]=negFDRs[n-1-i];
+		}
+		this.absFDRs=adjustFDRs(abs);
+	}
+	
+	//Same as assignFDR from the number of permuted values at or above the ith sorted observation
+	private static double exactFDR(long countAtLeast, int i, int n, int numPermutations){
+		double observedGreater=n-i;
+		double estimateOfMeanGreaterThanK=(double)countAtLeast/numPermutations;
+		if(estimateOfMeanGreaterThanK==0){estimateOfMeanGreaterThanK=((double)1/numPermutations);}
+		double fdr=estimateOfMeanGreaterThanK/observedGreater;
+		return Math.min(fdr, 1);
+	}
+	
 	private double[] adjustFDRs(double[] exactFDRs) {
 		double[] rtrn=new double[exactFDRs.length];
 		
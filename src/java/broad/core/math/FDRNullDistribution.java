@@ -0,0 +1,263 @@
+package broad.core.math;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.datastructures.IntervalTree.Node;
+
+/**
+ * Null distribution of a test statistic for FDRDistribution, built one permutation at a time
+ * FDRDistribution compares statistics at a resolution of 1/1000 (value*1000 truncated to an int), and for an observed value
+ * it only needs the number of permuted values at or above it summed over the permutations
+ * So instead of keeping every permutation, the permuted values are pooled into histograms by that key:
+ * one for the values, one for the negated values and one for the absolute values
+ * A permutation with NaN values does not have its keys in sorted order, so it is kept as the trees FDRDistribution would build
+ *
+ * Not thread safe: use one per thread and merge them
+ */
+public class FDRNullDistribution {
+
+	private final Histogram pos = new Histogram();
+	private final Histogram neg = new Histogram();
+	private final Histogram abs = new Histogram();
+	private final List<IntervalTree<Integer>> posTrees = new ArrayList<IntervalTree<Integer>>();
+	private final List<IntervalTree<Integer>> negTrees = new ArrayList<IntervalTree<Integer>>();
+	private final List<IntervalTree<Integer>> absTrees = new ArrayList<IntervalTree<Integer>>();
+	private int numPermutations;
+	private int numValues = -1;
+
+	/**
+	 * Add the statistics of one permutation
+	 * @param values Permuted statistic of every gene, in any order; not modified
+	 */
+	public void addPermutation(double[] values) {
+		if(numValues == -1) {
+			numValues = values.length;
+		} else if(numValues != values.length) {
+			throw new IllegalArgumentException("Permutation has " + values.length + " values, expected " + numValues);
+		}
+		numPermutations++;
+		boolean hasNaN = false;
+		for(int i=0; i<values.length; i++) {
+			if(Double.isNaN(values[i])) {
+				hasNaN = true;
+				break;
+			}
+		}
+		if(hasNaN) {
+			double[] sorted = values.clone();
+			Arrays.sort(sorted);
+			double[] flipped = new double[sorted.length];
+			for(int i=0; i<sorted.length; i++) {
+				flipped[i] = -sorted[sorted.length - 1 - i];
+			}
+			double[] sortedAbs = Statistics.absoluteValue(values);
+			Arrays.sort(sortedAbs);
+			posTrees.add(makeTree(sorted));
+			negTrees.add(makeTree(flipped));
+			absTrees.add(makeTree(sortedAbs));
+			return;
+		}
+		for(int i=0; i<values.length; i++) {
+			pos.add(key(values[i]));
+			neg.add(key(-values[i]));
+			abs.add(key(Math.abs(values[i])));
+		}
+	}
+
+	/**
+	 * Add all permutations of another null distribution to this one
+	 * @param other Null distribution over the same genes
+	 */
+	public void merge(FDRNullDistribution other) {
+		if(other.numPermutations == 0) {
+			return;
+		}
+		if(numValues != -1 && numValues != other.numValues) {
+			throw new IllegalArgumentException("Null distributions have " + numValues + " and " + other.numValues + " values");
+		}
+		numValues = other.numValues;
+		numPermutations += other.numPermutations;
+		pos.addAll(other.pos);
+		neg.addAll(other.neg);
+		abs.addAll(other.abs);
+		posTrees.addAll(other.posTrees);
+		negTrees.addAll(other.negTrees);
+		absTrees.addAll(other.absTrees);
+	}
+
+	/**
+	 * @return Number of permutations added
+	 */
+	public int getNumPermutations() {
+		return numPermutations;
+	}
+
+	/**
+	 * @param value Observed value
+	 * @return Number of permuted values at or above the value, summed over permutations
+	 */
+	long countAtLeast(double value) {
+		return count(value, pos, posTrees);
+	}
+
+	/**
+	 * @param value Negated observed value
+	 * @return Number of negated permuted values at or above the value, summed over permutations
+	 */
+	long countNegatedAtLeast(double value) {
+		return count(value, neg, negTrees);
+	}
+
+	/**
+	 * @param value Absolute observed value
+	 * @return Number of absolute permuted values at or above the value, summed over permutations
+	 */
+	long countAbsoluteAtLeast(double value) {
+		return count(value, abs, absTrees);
+	}
+
+	private long count(double value, Histogram histogram, List<IntervalTree<Integer>> trees) {
+		int key = key(value);
+		long rtrn = histogram.countAtLeast(key);
+		for(IntervalTree<Integer> tree : trees) {
+			// Same as FDRDistribution.computeLargerForArray
+			Node<Integer> node = tree.min(key, key);
+			int j = node == null ? numValues : node.getValue().intValue();
+			rtrn += numValues - j;
+		}
+		return rtrn;
+	}
+
+	private static IntervalTree<Integer> makeTree(double[] vals) {
+		IntervalTree<Integer> tree = new IntervalTree<Integer>();
+		for(int j=0; j<vals.length; j++) {
+			int k = key(vals[j]);
+			tree.put(k, k, Integer.valueOf(j));
+		}
+		return tree;
+	}
+
+	/**
+	 * @return The key FDRDistribution compares values by
+	 */
+	static int key(double value) {
+		return new Double(value*1000).intValue();
+	}
+
+	/**
+	 * Counts by int key in an open addressing table, sorted into cumulative counts when first queried
+	 */
+	private static class Histogram {
+
+		private static final int EMPTY = Integer.MIN_VALUE;
+
+		private int[] keys = newKeys(1024);
+		private long[] counts = new long[1024];
+		private int size;
+		private long emptyKeyCount;
+		private int[] sortedKeys;
+		private long[] atLeast;
+
+		void add(int key) {
+			add(key, 1);
+		}
+
+		void add(int key, long count) {
+			sortedKeys = null;
+			if(key == EMPTY) {
+				emptyKeyCount += count;
+				return;
+			}
+			int slot = find(keys, key);
+			if(keys[slot] == EMPTY) {
+				keys[slot] = key;
+				size++;
+				if(2 * size > keys.length) {
+					counts[slot] = count;
+					grow();
+					return;
+				}
+			}
+			counts[slot] += count;
+		}
+
+		void addAll(Histogram other) {
+			for(int i=0; i<other.keys.length; i++) {
+				if(other.keys[i] != EMPTY) {
+					add(other.keys[i], other.counts[i]);
+				}
+			}
+			if(other.emptyKeyCount > 0) {
+				add(EMPTY, other.emptyKeyCount);
+			}
+		}
+
+		long countAtLeast(int key) {
+			if(sortedKeys == null) {
+				sort();
+			}
+			int i = Arrays.binarySearch(sortedKeys, key);
+			if(i < 0) {
+				i = -i - 1;
+			}
+			return i < atLeast.length ? atLeast[i] : 0;
+		}
+
+		private void sort() {
+			int n = size + (emptyKeyCount > 0 ? 1 : 0);
+			int[] sorted = new int[n];
+			int k = 0;
+			if(emptyKeyCount > 0) {
+				sorted[k++] = EMPTY;
+			}
+			for(int i=0; i<keys.length; i++) {
+				if(keys[i] != EMPTY) {
+					sorted[k++] = keys[i];
+				}
+			}
+			Arrays.sort(sorted);
+			long[] cumulative = new long[n];
+			long total = 0;
+			for(int i=n-1; i>=0; i--) {
+				total += sorted[i] == EMPTY ? emptyKeyCount : counts[find(keys, sorted[i])];
+				cumulative[i] = total;
+			}
+			sortedKeys = sorted;
+			atLeast = cumulative;
+		}
+
+		private void grow() {
+			int[] oldKeys = keys;
+			long[] oldCounts = counts;
+			keys = newKeys(2 * oldKeys.length);
+			counts = new long[keys.length];
+			for(int i=0; i<oldKeys.length; i++) {
+				if(oldKeys[i] != EMPTY) {
+					int slot = find(keys, oldKeys[i]);
+					keys[slot] = oldKeys[i];
+					counts[slot] = oldCounts[i];
+				}
+			}
+		}
+
+		private static int find(int[] table, int key) {
+			int mask = table.length - 1;
+			int h = key * 0x9E3779B9;
+			int slot = (h ^ (h >>> 16)) & mask;
+			while(table[slot] != EMPTY && table[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private static int[] newKeys(int length) {
+			int[] rtrn = new int[length];
+			Arrays.fill(rtrn, EMPTY);
+			return rtrn;
+		}
+	}
+
+}
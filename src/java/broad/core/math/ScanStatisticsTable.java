@@ -0,0 +1,278 @@
+package broad.core.math;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memoized replacement for the Poisson terms used by {@link ScanStatistics}.
+ *
+ * ScanStatistics.poisson() builds a new Colt Poisson (and a DRand engine) for every term
+ * and Fp() sums k of them, so each window p-value costs O(k) allocations.
+ * This class computes the PMF with the recurrence log p(i) = log p(i-1) + log(mu) - log(i)
+ * and keeps the cumulative table for each Poisson mean (lambda * w) so later lookups are O(1).
+ *
+ * The cache is bounded by the total number of terms over all tables, and a single table never
+ * grows past MAX_TABLE_SIZE terms; counts beyond that are summed directly without caching.
+ *
+ * Tables are immutable once published and only ever replaced by larger ones,
+ * so a single instance can be shared between threads.
+ */
+public class ScanStatisticsTable {
+
+	/**
+	 * Default number of terms kept in memory over all Poisson means (16 bytes each)
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 1 << 21;
+
+	/**
+	 * Largest count kept in a table; larger counts are computed directly
+	 */
+	public static final int MAX_TABLE_SIZE = 1 << 16;
+
+	/**
+	 * Tables are grown at least to this many terms
+	 */
+	private static final int MIN_TABLE_SIZE = 64;
+
+	private static final ScanStatisticsTable DEFAULT = new ScanStatisticsTable(DEFAULT_MAX_ENTRIES);
+
+	private final Map<Double, PoissonTable> tables;
+	private final int maxEntries;
+	private final int maxTableSize;
+	private long numEntries;
+
+	/**
+	 * @param maxEntries Maximum number of terms to keep cached over all Poisson means (least recently used means are dropped)
+	 */
+	public ScanStatisticsTable(int maxEntries) {
+		if(maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+		}
+		this.maxEntries = maxEntries;
+		this.maxTableSize = Math.min(maxEntries, MAX_TABLE_SIZE);
+		tables = new LinkedHashMap<Double, PoissonTable>(16, 0.75f, true);
+	}
+
+	/**
+	 * @return The table shared by all callers in this JVM
+	 */
+	public static ScanStatisticsTable getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Same contract as {@link ScanStatistics#calculatePVal(int, double, double, double)}
+	 * @param k			Observed count
+	 * @param lambda	# reads on chromosome / # non-masked bases on chromosome
+	 * @param w			window size
+	 * @param T			# non-masked bases on chromosome
+	 * @return Scan statistic p-value
+	 */
+	public double calculatePVal(int k, double lambda, double w, double T) {
+		if(k<=2){return 1;}
+		double lambdaW=lambda*w;
+		return calculatePVal(k, lambdaW, lambda*(T-w));
+	}
+
+	/**
+	 * Scan statistic p-value with explicit Poisson parameters
+	 * @param k Observed count
+	 * @param lambdaW Poisson mean in the window
+	 * @param lambdaTw Expected count in the rest of the region
+	 * @return Scan statistic p-value
+	 */
+	public double calculatePVal(int k, double lambdaW, double lambdaTw) {
+		if(k<=2){return 1;}
+		double pdf;
+		double cdf;
+		if(k > maxTableSize) {
+			double[] terms = computeTerms(lambdaW, k-1);
+			pdf = terms[0];
+			cdf = terms[1];
+		} else {
+			PoissonTable table = getTable(lambdaW, k-1);
+			pdf = table.pdf(k-1);
+			cdf = table.cdf(k-1);
+		}
+		double a=((k-lambdaW)/k)*(lambdaTw*pdf);
+		double result=cdf*Math.exp(-a);
+		double p=1-result;
+		p=Math.abs(p);
+		p=Math.min(1, p);
+		return p;
+	}
+
+	/**
+	 * @param k Number of events
+	 * @param lambda Poisson mean
+	 * @return P(X = k)
+	 */
+	public double poisson(int k, double lambda) {
+		if(k >= maxTableSize) {
+			return computeTerms(lambda, k)[0];
+		}
+		return getTable(lambda, k).pdf(k);
+	}
+
+	/**
+	 * @param k Number of events
+	 * @param lambdaW Poisson mean
+	 * @return P(X <= k)
+	 */
+	public double Fp(int k, double lambdaW) {
+		if(k >= maxTableSize) {
+			return computeTerms(lambdaW, k)[1];
+		}
+		return getTable(lambdaW, k).cdf(k);
+	}
+
+	/**
+	 * Drop all cached tables
+	 */
+	public void clear() {
+		synchronized(tables) {
+			tables.clear();
+			numEntries = 0;
+		}
+	}
+
+	/**
+	 * @return Number of Poisson means currently cached
+	 */
+	public int size() {
+		synchronized(tables) {
+			return tables.size();
+		}
+	}
+
+	/**
+	 * @return Number of terms currently cached over all Poisson means
+	 */
+	public long getNumEntries() {
+		synchronized(tables) {
+			return numEntries;
+		}
+	}
+
+	/**
+	 * Get a table for the mean that covers at least 0..k, with k < maxTableSize
+	 */
+	private PoissonTable getTable(double mean, int k) {
+		if(k < 0) {
+			throw new IllegalArgumentException("k must be non-negative: " + k);
+		}
+		Double key = Double.valueOf(mean);
+		PoissonTable table;
+		synchronized(tables) {
+			table = tables.get(key);
+		}
+		if(table != null && table.covers(k)) {
+			return table;
+		}
+		// Build outside the lock; a concurrent builder may race us but both results are identical
+		PoissonTable bigger = table == null ? new PoissonTable(mean, k, maxTableSize) : table.extend(k, maxTableSize);
+		synchronized(tables) {
+			PoissonTable current = tables.get(key);
+			if(current == null || current.maxK() < bigger.maxK()) {
+				tables.put(key, bigger);
+				numEntries += bigger.size() - (current == null ? 0 : current.size());
+				evict(key);
+			}
+		}
+		return bigger;
+	}
+
+	/**
+	 * Drop least recently used tables, other than the one just stored, until the cache fits in maxEntries
+	 */
+	private void evict(Double keep) {
+		Iterator<Map.Entry<Double, PoissonTable>> iter = tables.entrySet().iterator();
+		while(numEntries > maxEntries && iter.hasNext()) {
+			Map.Entry<Double, PoissonTable> eldest = iter.next();
+			if(!eldest.getKey().equals(keep)) {
+				numEntries -= eldest.getValue().size();
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * P(X = k) and P(X <= k) for a count too large to cache, with the same recurrence as the tables
+	 */
+	private static double[] computeTerms(double mean, int k) {
+		double logMean = Math.log(mean);
+		double logPdf = -mean;
+		double cdf = Math.exp(logPdf);
+		for(int i=1; i<=k; i++) {
+			logPdf = logPdf + logMean - Math.log(i);
+			cdf += Math.exp(logPdf);
+		}
+		return new double[] {Math.exp(logPdf), cdf};
+	}
+
+	/**
+	 * PMF and CDF of a single Poisson distribution for 0..maxK
+	 */
+	private static final class PoissonTable {
+
+		private final double mean;
+		private final double logMean;
+		private final double[] logPdf;
+		private final double[] cdf;
+
+		PoissonTable(double mean, int k, int maxSize) {
+			this.mean = mean;
+			this.logMean = Math.log(mean);
+			int n = Math.max(Math.min(MIN_TABLE_SIZE, maxSize), k + 1);
+			logPdf = new double[n];
+			cdf = new double[n];
+			logPdf[0] = -mean;
+			cdf[0] = Math.exp(logPdf[0]);
+			fill(1);
+		}
+
+		private PoissonTable(PoissonTable other, int k, int maxSize) {
+			this.mean = other.mean;
+			this.logMean = other.logMean;
+			int n = Math.max(k + 1, Math.min(maxSize, 2 * other.logPdf.length));
+			logPdf = new double[n];
+			cdf = new double[n];
+			System.arraycopy(other.logPdf, 0, logPdf, 0, other.logPdf.length);
+			System.arraycopy(other.cdf, 0, cdf, 0, other.cdf.length);
+			fill(other.logPdf.length);
+		}
+
+		private void fill(int from) {
+			for(int i=from; i<logPdf.length; i++) {
+				logPdf[i] = logPdf[i-1] + logMean - Math.log(i);
+				cdf[i] = cdf[i-1] + Math.exp(logPdf[i]);
+			}
+		}
+
+		PoissonTable extend(int k, int maxSize) {
+			return new PoissonTable(this, k, maxSize);
+		}
+
+		boolean covers(int k) {
+			return k < logPdf.length;
+		}
+
+		int maxK() {
+			return logPdf.length - 1;
+		}
+
+		int size() {
+			return logPdf.length;
+		}
+
+		double pdf(int k) {
+			return Math.exp(logPdf[k]);
+		}
+
+		double cdf(int k) {
+			return cdf[k];
+		}
+	}
+
+}
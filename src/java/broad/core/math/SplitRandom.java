@@ -0,0 +1,99 @@
+package broad.core.math;
+
+import java.util.Random;
+
+/**
+ * Random generator that can be split into independent streams, one per thread or task
+ * It uses the SplitMix64 algorithm (Steele, Lea and Flood, "Fast splittable pseudorandom number generators", OOPSLA 2014):
+ * the state is a 64 bit counter advanced by an odd gamma and each output is a mix of the counter.
+ * A stream and all streams split from it are deterministic for a given seed and order of calls
+ *
+ * Unlike java.util.Random, an instance is not thread safe: give each thread its own stream with split()
+ */
+public class SplitRandom extends Random {
+
+	private static final long serialVersionUID = 1L;
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private long state;
+	private long gamma;
+
+	/**
+	 * Generator seeded from the clock
+	 */
+	public SplitRandom() {
+		this(mix64(System.nanoTime()) ^ mix64(System.currentTimeMillis()));
+	}
+
+	/**
+	 * @param seed Seed
+	 */
+	public SplitRandom(long seed) {
+		this(seed, GOLDEN_GAMMA);
+	}
+
+	private SplitRandom(long seed, long gamma) {
+		super(seed);
+		this.state = seed;
+		this.gamma = gamma;
+	}
+
+	/**
+	 * @return A new generator whose values are independent of this one's, advancing this generator
+	 */
+	public SplitRandom split() {
+		return new SplitRandom(nextLong(), mixGamma(nextState()));
+	}
+
+	/**
+	 * Restart the generator from a seed, as a new SplitRandom(seed)
+	 */
+	@Override
+	public void setSeed(long seed) {
+		// Also called by the Random constructor, before the fields of this class are assigned
+		super.setSeed(seed);
+		this.state = seed;
+		this.gamma = GOLDEN_GAMMA;
+	}
+
+	@Override
+	protected int next(int bits) {
+		return mix32(nextState()) >>> (32 - bits);
+	}
+
+	@Override
+	public int nextInt() {
+		return mix32(nextState());
+	}
+
+	@Override
+	public long nextLong() {
+		return mix64(nextState());
+	}
+
+	private long nextState() {
+		return state += gamma;
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static int mix32(long z) {
+		z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+		return (int) (((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+	}
+
+	/**
+	 * Odd gamma with enough bit transitions to give a well mixed stream
+	 */
+	private static long mixGamma(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		z = (z ^ (z >>> 33)) | 1L;
+		int n = Long.bitCount(z ^ (z >>> 1));
+		return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+	}
+}
@@ -0,0 +1,601 @@
+package broad.core.sequence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import broad.core.parser.CommandLineParser;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.Gene;
+import nextgen.core.exception.RuntimeIOException;
+
+/**
+ * Genome sequence in the UCSC .2bit format, memory mapped so that subsequences are read without loading the chromosomes
+ * Bases are packed four to a byte; runs of N and of lower case bases are stored as blocks, so subsequences come back
+ * with the case of the FASTA file.  As with faToTwoBit, any base other than A, C, G or T is stored as N
+ *
+ * Convert a FASTA file once with convertFasta, then open the .2bit file wherever a genome FASTA is loaded for subsequences.
+ * The packed bases and the blocks of a chromosome are read when it is first used and never change,
+ * so one instance can serve any number of threads
+ */
+public class TwoBitGenome {
+
+	static Logger logger = Logger.getLogger(TwoBitGenome.class.getName());
+
+	public static final String EXTENSION = ".2bit";
+
+	private static final int SIGNATURE = 0x1A412743;
+	private static final char[] BASES = {'T', 'C', 'A', 'G'};
+	private static final byte[] CODES = new byte[128];
+	static {
+		Arrays.fill(CODES, (byte) -1);
+		CODES['T'] = 0;
+		CODES['C'] = 1;
+		CODES['A'] = 2;
+		CODES['G'] = 3;
+		CODES['t'] = 0;
+		CODES['c'] = 1;
+		CODES['a'] = 2;
+		CODES['g'] = 3;
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteOrder order;
+	private final Map<String, Chromosome> chromosomes = new LinkedHashMap<String, Chromosome>();
+
+	private TwoBitGenome(File file) throws IOException {
+		this.file = file;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] header = new byte[16];
+			in.readFully(header);
+			ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+			if(buffer.getInt(0) != SIGNATURE) {
+				buffer.order(ByteOrder.BIG_ENDIAN);
+				if(buffer.getInt(0) != SIGNATURE) {
+					throw new IOException(file + " is not a .2bit file");
+				}
+			}
+			this.order = buffer.order();
+			int version = buffer.getInt(4);
+			if(version != 0 && version != 1) {
+				throw new IOException(file + " has unknown .2bit version " + version);
+			}
+			int numSequences = buffer.getInt(8);
+			ByteBuffer offset = ByteBuffer.allocate(8).order(order);
+			for(int i = 0; i < numSequences; i++) {
+				byte[] name = new byte[in.readUnsignedByte()];
+				in.readFully(name);
+				offset.clear();
+				in.readFully(offset.array(), 0, version == 0 ? 4 : 8);
+				long position = version == 0 ? offset.getInt(0) & 0xFFFFFFFFL : offset.getLong(0);
+				chromosomes.put(new String(name, "US-ASCII"), new Chromosome(position));
+			}
+		} finally {
+			in.close();
+		}
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+	}
+
+	/**
+	 * @param file A .2bit file
+	 * @return The genome, whose chromosomes are read when first used
+	 * @throws IOException
+	 */
+	public static TwoBitGenome open(String file) throws IOException {
+		return new TwoBitGenome(new File(file));
+	}
+
+	/**
+	 * @param file Genome file name
+	 * @return Whether the file name has the .2bit extension
+	 */
+	public static boolean isTwoBit(String file) {
+		return file.endsWith(EXTENSION);
+	}
+
+	/**
+	 * @return Names of the sequences in file order
+	 */
+	public Collection<String> getSequenceNames() {
+		return chromosomes.keySet();
+	}
+
+	/**
+	 * @param chr Sequence name
+	 * @return Whether the genome has the sequence
+	 */
+	public boolean hasSequence(String chr) {
+		return chromosomes.containsKey(chr);
+	}
+
+	/**
+	 * @param chr Sequence name
+	 * @return Number of bases of the sequence
+	 */
+	public int getLength(String chr) {
+		return getChromosome(chr).getLength();
+	}
+
+	/**
+	 * Bases of a region on the forward strand, with the case of the FASTA file
+	 * As in Sequence.getSubSequence, the region is clipped to the sequence
+	 * @param chr Sequence name
+	 * @param start Start position of the region
+	 * @param end Position after the last position of the region
+	 * @return The bases
+	 */
+	public String getBases(String chr, int start, int end) {
+		Chromosome chromosome = getChromosome(chr);
+		int clippedStart = Math.max(start, 0);
+		int clippedEnd = Math.min(end, chromosome.getLength());
+		if(clippedEnd < clippedStart) {
+			throw new IllegalArgumentException(chr + ":" + start + "-" + end + " is outside of the " + chromosome.getLength() + " bases of " + chr);
+		}
+		char[] bases = new char[clippedEnd - clippedStart];
+		chromosome.decode(clippedStart, clippedEnd, bases, 0);
+		return new String(bases);
+	}
+
+	/**
+	 * Get subsequence
+	 * @param chr Sequence name
+	 * @param start Start position of subsequence
+	 * @param end Position after last position to include
+	 * @param strand Strand to read the bases from, reverse complemented if negative
+	 * @return The subsequence, named chr:start-end
+	 */
+	public Sequence getSubSequence(String chr, int start, int end, Strand strand) {
+		Sequence seq = new Sequence(chr + ":" + start + "-" + end);
+		seq.setSequenceBases(getBases(chr, start, end));
+		if(Strand.NEGATIVE.equals(strand)) {
+			seq.reverse();
+		}
+		return seq;
+	}
+
+	/**
+	 * Get the spliced transcribed sequence of an annotation, as Sequence.getSubsequence(Gene) does on the chromosome
+	 * Bases are reported in 5' to 3' direction
+	 * @param annot The annotation
+	 * @return Sequence with same name as annotation containing the transcribed sequence
+	 */
+	public Sequence getSubsequence(Gene annot) {
+		return getSplicedSequence(annot);
+	}
+
+	/**
+	 * Get the spliced transcribed sequence of an annotation, as Sequence.getSubsequence(Annotation) does on the chromosome
+	 * Bases are reported in 5' to 3' direction
+	 * @param annot The annotation
+	 * @return Sequence with same name as annotation containing the transcribed sequence
+	 */
+	public Sequence getSubsequence(Annotation annot) {
+		if(annot.getOrientation().equals(Strand.UNKNOWN)) {
+			throw new IllegalArgumentException("Strand must be known");
+		}
+		return getSplicedSequence(annot);
+	}
+
+	/**
+	 * Blocks are clipped to the sequence as in getBases
+	 */
+	private Sequence getSplicedSequence(Annotation annot) {
+		Chromosome chromosome = getChromosome(annot.getChr());
+		List<? extends Annotation> blocks = annot.getBlocks();
+		int[] starts = new int[blocks.size()];
+		int[] ends = new int[blocks.size()];
+		int length = 0;
+		for(int i = 0; i < starts.length; i++) {
+			Annotation block = blocks.get(i);
+			starts[i] = Math.max(block.getStart(), 0);
+			ends[i] = Math.min(block.getEnd(), chromosome.getLength());
+			if(ends[i] < starts[i]) {
+				throw new IllegalArgumentException(block.toUCSC() + " is outside of the " + chromosome.getLength() + " bases of " + annot.getChr());
+			}
+			length += ends[i] - starts[i];
+		}
+		char[] bases = new char[length];
+		int offset = 0;
+		for(int i = 0; i < starts.length; i++) {
+			chromosome.decode(starts[i], ends[i], bases, offset);
+			offset += ends[i] - starts[i];
+		}
+		Sequence seq = new Sequence(annot.getName(), length);
+		seq.setSequenceBases(new String(bases));
+		if(annot.getOrientation().equals(Strand.NEGATIVE)) {
+			seq.reverse();
+		}
+		return seq;
+	}
+
+	/**
+	 * @param chr Sequence name
+	 * @return The whole sequence, loaded in memory
+	 */
+	public Sequence getSequence(String chr) {
+		Sequence seq = new Sequence(chr, getLength(chr));
+		seq.setSequenceBases(getBases(chr, 0, getLength(chr)));
+		return seq;
+	}
+
+	/**
+	 * Load all sequences in memory, as FastaSequenceIO.getChrSequencesFromFasta does, for callers that modify them
+	 * @return Sequences by name
+	 */
+	public Map<String, Sequence> getSequences() {
+		Map<String, Sequence> rtrn = new TreeMap<String, Sequence>();
+		for(String chr : chromosomes.keySet()) {
+			rtrn.put(chr, getSequence(chr));
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Release the file, mapped sequences stay valid until they are garbage collected
+	 */
+	public void close() {
+		try {
+			channel.close();
+			raf.close();
+		} catch(IOException e) {
+			throw new RuntimeIOException(e.getMessage());
+		}
+	}
+
+	private Chromosome getChromosome(String chr) {
+		Chromosome chromosome = chromosomes.get(chr);
+		if(chromosome == null) {
+			throw new IllegalArgumentException(chr + " is not in " + file);
+		}
+		chromosome.load();
+		return chromosome;
+	}
+
+	/**
+	 * One sequence record: length, N blocks, lower case blocks and the packed bases
+	 */
+	private final class Chromosome {
+		private final long offset;
+		private int length;
+		private int[] nStarts;
+		private int[] nEnds;
+		private int[] maskStarts;
+		private int[] maskEnds;
+		private volatile MappedByteBuffer packed; // assigned last, once the other fields are read
+
+		Chromosome(long offset) {
+			this.offset = offset;
+		}
+
+		void load() {
+			if(packed == null) {
+				synchronized(this) {
+					if(packed == null) read();
+				}
+			}
+		}
+
+		private void read() {
+			try {
+				long position = offset;
+				ByteBuffer counts = read(position, 8);
+				length = counts.getInt(0);
+				int numN = counts.getInt(4);
+				position += 8;
+				nStarts = new int[numN];
+				nEnds = new int[numN];
+				position = readBlocks(position, nStarts, nEnds);
+				int numMask = read(position, 4).getInt(0);
+				position += 4;
+				maskStarts = new int[numMask];
+				maskEnds = new int[numMask];
+				position = readBlocks(position, maskStarts, maskEnds);
+				// reserved word
+				position += 4;
+				packed = channel.map(FileChannel.MapMode.READ_ONLY, position, (length + 3L) / 4);
+			} catch(IOException e) {
+				throw new RuntimeIOException(e.getMessage());
+			}
+		}
+
+		int getLength() {
+			return length;
+		}
+
+		/**
+		 * Block starts followed by block sizes
+		 * @return Position after the blocks
+		 */
+		private long readBlocks(long position, int[] starts, int[] ends) throws IOException {
+			int n = starts.length;
+			ByteBuffer buffer = read(position, 8L * n);
+			for(int i = 0; i < n; i++) {
+				starts[i] = buffer.getInt(4 * i);
+				ends[i] = starts[i] + buffer.getInt(4 * (n + i));
+			}
+			return position + 8L * n;
+		}
+
+		private ByteBuffer read(long position, long size) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate((int) size).order(order);
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException(file + " ends inside a sequence record");
+				}
+			}
+			return buffer;
+		}
+
+		/**
+		 * Write the bases of [start, end) to out from offset, using only absolute reads of the mapped bases
+		 */
+		void decode(int start, int end, char[] out, int outOffset) {
+			for(int p = start; p < end; p++) {
+				int b = packed.get(p >>> 2);
+				out[outOffset + p - start] = BASES[(b >>> (6 - 2 * (p & 3))) & 3];
+			}
+			for(int k = firstBlockEndingAfter(nEnds, start); k < nStarts.length && nStarts[k] < end; k++) {
+				Arrays.fill(out, outOffset + Math.max(nStarts[k], start) - start, outOffset + Math.min(nEnds[k], end) - start, 'N');
+			}
+			for(int k = firstBlockEndingAfter(maskEnds, start); k < maskStarts.length && maskStarts[k] < end; k++) {
+				for(int p = Math.max(maskStarts[k], start); p < Math.min(maskEnds[k], end); p++) {
+					out[outOffset + p - start] = Character.toLowerCase(out[outOffset + p - start]);
+				}
+			}
+		}
+
+		private int firstBlockEndingAfter(int[] ends, int position) {
+			int low = 0;
+			int high = ends.length;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(ends[mid] <= position) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * Convert a FASTA file to .2bit in one pass, holding one packed chromosome in memory at a time
+	 * Sequence names are the header lines up to the first white space.  If the FASTA file has a samtools .fai index
+	 * the names are taken from it, otherwise the headers are read first
+	 * @param fasta FASTA file
+	 * @param output .2bit file to write
+	 * @throws IOException
+	 */
+	public static void convertFasta(String fasta, String output) throws IOException {
+		List<String> names = new ArrayList<String>();
+		File fai = new File(fasta + ".fai");
+		if(fai.exists() && fai.lastModified() >= new File(fasta).lastModified()) {
+			BufferedReader reader = new BufferedReader(new FileReader(fai));
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.length() > 0) names.add(line.split("\t")[0]);
+			}
+			reader.close();
+		} else {
+			InputStream in = new BufferedInputStream(new FileInputStream(fasta), 1 << 16);
+			for(String header = nextHeader(in, true); header != null; header = nextHeader(in, true)) {
+				names.add(header);
+			}
+			in.close();
+		}
+		// Offsets are 32 bit unless the file could grow past 4GB
+		int version = new File(fasta).length() > 0xFFFFFFFFL ? 1 : 0;
+		int offsetSize = version == 0 ? 4 : 8;
+		long indexSize = 16;
+		for(String name : names) {
+			if(name.length() > 255) throw new IOException("Sequence name " + name + " is longer than 255 characters");
+			indexSize += 1 + name.length() + offsetSize;
+		}
+
+		logger.info("Converting " + names.size() + " sequences from " + fasta + " to " + output + "...");
+		RandomAccessFile raf = new RandomAccessFile(output, "rw");
+		raf.setLength(0);
+		FileChannel channel = raf.getChannel();
+		long[] offsets = new long[names.size()];
+		long position = indexSize;
+		InputStream in = new BufferedInputStream(new FileInputStream(fasta), 1 << 16);
+		try {
+			int i = 0;
+			for(String name = nextHeader(in, false); name != null; i++) {
+				if(i >= names.size() || !names.get(i).equals(name)) {
+					throw new IOException(fai + " does not match the sequences of " + fasta);
+				}
+				Record record = new Record();
+				name = record.read(in);
+				offsets[i] = position;
+				position = record.write(channel, position);
+			}
+			if(i != names.size()) {
+				throw new IOException(fai + " does not match the sequences of " + fasta);
+			}
+			if(version == 0 && position > 0xFFFFFFFFL) {
+				throw new IOException(output + " would be larger than 4GB");
+			}
+
+			ByteBuffer index = ByteBuffer.allocate((int) indexSize).order(ByteOrder.LITTLE_ENDIAN);
+			index.putInt(SIGNATURE).putInt(version).putInt(names.size()).putInt(0);
+			for(int j = 0; j < names.size(); j++) {
+				index.put((byte) names.get(j).length());
+				index.put(names.get(j).getBytes("US-ASCII"));
+				if(version == 0) {
+					index.putInt((int) offsets[j]);
+				} else {
+					index.putLong(offsets[j]);
+				}
+			}
+			index.flip();
+			writeFully(channel, index, 0);
+		} finally {
+			in.close();
+			channel.close();
+			raf.close();
+		}
+		logger.info("Done converting.");
+	}
+
+	/**
+	 * Skip to the next header line and read the sequence name from it
+	 * @param skipBases Whether bases may come before the header
+	 * @return The name, or null at the end of the file
+	 */
+	static String nextHeader(InputStream in, boolean skipBases) throws IOException {
+		int c;
+		while((c = in.read()) != '>') {
+			if(c < 0) return null;
+			if(!skipBases && c != '\n' && c != '\r') throw new IOException("FASTA file does not start with a header line");
+		}
+		StringBuilder name = new StringBuilder();
+		boolean inName = true;
+		while((c = in.read()) >= 0 && c != '\n') {
+			if(Character.isWhitespace(c)) inName = false;
+			if(inName) name.append((char) c);
+		}
+		return name.toString();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Bases of one FASTA record as they are written to the .2bit file
+	 */
+	private static final class Record {
+		private int length;
+		private byte[] packed = new byte[1 << 16];
+		private IntList nBlocks = new IntList();
+		private IntList maskBlocks = new IntList();
+
+		/**
+		 * Read bases up to the next header
+		 * @return The name of the next sequence, or null at the end of the file
+		 */
+		String read(InputStream in) throws IOException {
+			boolean inN = false;
+			boolean inMask = false;
+			int c;
+			while((c = in.read()) >= 0) {
+				if(c == '>') {
+					break;
+				}
+				if(c == '\n' || c == '\r' || c == ' ' || c == '\t') {
+					continue;
+				}
+				int code = c < 128 ? CODES[c] : -1;
+				boolean lower = c >= 'a' && c <= 'z';
+				if((code < 0) != inN) {
+					inN = !inN;
+					nBlocks.add(length);
+				}
+				if(lower != inMask) {
+					inMask = !inMask;
+					maskBlocks.add(length);
+				}
+				if((length >>> 2) == packed.length) {
+					packed = Arrays.copyOf(packed, 2 * packed.length);
+				}
+				if(code > 0) {
+					packed[length >>> 2] |= code << (6 - 2 * (length & 3));
+				}
+				length++;
+			}
+			if(inN) nBlocks.add(length);
+			if(inMask) maskBlocks.add(length);
+			if(c != '>') return null;
+			StringBuilder name = new StringBuilder();
+			boolean inName = true;
+			while((c = in.read()) >= 0 && c != '\n') {
+				if(Character.isWhitespace(c)) inName = false;
+				if(inName) name.append((char) c);
+			}
+			return name.toString();
+		}
+
+		/**
+		 * @return Position after the record
+		 */
+		long write(FileChannel channel, long position) throws IOException {
+			int numN = nBlocks.size() / 2;
+			int numMask = maskBlocks.size() / 2;
+			ByteBuffer header = ByteBuffer.allocate(16 + 8 * (numN + numMask)).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(length).putInt(numN);
+			putBlocks(header, nBlocks);
+			header.putInt(numMask);
+			putBlocks(header, maskBlocks);
+			header.putInt(0);
+			header.flip();
+			writeFully(channel, header, position);
+			position += header.capacity();
+			ByteBuffer bases = ByteBuffer.wrap(packed, 0, (length + 3) / 4);
+			writeFully(channel, bases, position);
+			return position + (length + 3) / 4;
+		}
+
+		private static void putBlocks(ByteBuffer buffer, IntList bounds) {
+			for(int i = 0; i < bounds.size(); i += 2) {
+				buffer.putInt(bounds.get(i));
+			}
+			for(int i = 0; i < bounds.size(); i += 2) {
+				buffer.putInt(bounds.get(i + 1) - bounds.get(i));
+			}
+		}
+	}
+
+	private static final class IntList {
+		private int[] values = new int[64];
+		private int size;
+
+		void add(int value) {
+			if(size == values.length) values = Arrays.copyOf(values, 2 * size);
+			values[size++] = value;
+		}
+
+		int get(int i) {
+			return values[i];
+		}
+
+		int size() {
+			return size;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-f", "Genome fasta file", true);
+		p.addStringArg("-o", "Output .2bit file", true);
+		p.parse(args);
+		convertFasta(p.getStringArg("-f"), p.getStringArg("-o"));
+	}
+}
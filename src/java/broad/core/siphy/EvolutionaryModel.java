@@ -66,6 +66,10 @@ public class EvolutionaryModel {
 		clearCaches();
 	}
 	
+	public double getOmega() {
+		return omega;
+	}
+	
 	public void RPIDecomposition() {
 		R = extractEquilibriumFromRateMatrix();
 	}
@@ -1078,6 +1082,9 @@ public class EvolutionaryModel {
 		protected void setTransitions(double transitions) {
 			this.transitions = transitions;
 		}
+		protected void setPVal(double pVal) {
+			this.pVal = pVal;
+		}
 		
 		
 	}
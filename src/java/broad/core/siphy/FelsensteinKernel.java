@@ -0,0 +1,401 @@
+package broad.core.siphy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+import org.forester.phylogeny.Phylogeny;
+import org.forester.phylogeny.PhylogenyNode;
+
+import Jama.Matrix;
+import broad.core.siphy.EvolutionaryModel.OmegaFit;
+
+/**
+ * Omega fitting of EvolutionaryModel.fitOmega over flat arrays
+ * The model's eigen decomposition is copied once, trees are compiled into index arrays in post order
+ * and Felsenstein peeling and pruning run over double[] buffers held by a Workspace, so that fits do not
+ * allocate Matrix objects and do not touch the model. A kernel can be shared by threads, each with its own Workspace.
+ */
+public class FelsensteinKernel {
+
+	private final int alphabetSize;
+	private final double omega;
+	private final double[] eigenvalues;
+	private final double[] v;
+	private final double[] iv;
+	private final double[] q;
+	private final double[] pi;
+
+	/**
+	 * @param model Model whose rate matrix, stationary distribution and current omega are used
+	 */
+	public FelsensteinKernel(EvolutionaryModel model) {
+		this.alphabetSize = model.getAlphabetSize();
+		this.omega = model.getOmega();
+		int n = alphabetSize;
+		this.eigenvalues = new double[n];
+		this.v = new double[n*n];
+		this.iv = new double[n*n];
+		this.q = new double[n*n];
+		this.pi = new double[n];
+		for(int i = 0; i < n; i++) {
+			eigenvalues[i] = model.D.get(i, i);
+			pi[i] = model.pi.get(i, i);
+			for(int j = 0; j < n; j++) {
+				v[i*n + j] = model.V.get(i, j);
+				iv[i*n + j] = model.iV.get(i, j);
+				q[i*n + j] = model.Q.get(i, j);
+			}
+		}
+	}
+
+	public int getAlphabetSize() {
+		return alphabetSize;
+	}
+
+	/**
+	 * @param tree Binary tree to compile
+	 * @return The tree as arrays indexed in post order, the root last
+	 */
+	public CompiledTree compile(Phylogeny tree) {
+		return new CompiledTree(tree);
+	}
+
+	/**
+	 * @return Buffers for fits over the tree; not to be shared by threads
+	 */
+	public Workspace createWorkspace(CompiledTree tree) {
+		return new Workspace(tree);
+	}
+
+	/**
+	 * Same fit as EvolutionaryModel.fitOmega
+	 * @param tree Compiled tree
+	 * @param leafValues One row per leaf of the tree, in CompiledTree.getLeafNames() order, holding alphabetSize
+	 * 		probabilities per column; gapped columns should hold 1 for every letter
+	 * @param firstColumn Column of the first site
+	 * @param window Number of sites
+	 * @param workspace Buffers for the tree
+	 * @return The fit, without tree length or region
+	 */
+	public OmegaFit fitOmega(CompiledTree tree, double[][] leafValues, int firstColumn, int window, Workspace workspace) {
+		double currentOmega = omega;
+		double newOmega = omega;
+		int iteration = 0;
+		OmegaFit fit = new OmegaFit();
+		double[] data = workspace.data;
+		do {
+			currentOmega = newOmega;
+			omegaEMIteration(tree, leafValues, firstColumn, window, currentOmega, workspace);
+			newOmega = data[0];
+			if(iteration == 0) {
+				fit.setInitialLogLikelihood(data[3]);
+			}
+		}while(Math.abs(currentOmega - newOmega) > EvolutionaryModel.SMALL_DIFF && iteration++ < EvolutionaryModel.MAX_ITERATIONS);
+
+		fit.setFittedLogLikelihood(data[3]);
+		fit.setOmega(data[0]);
+		fit.setNumOfIterations(iteration);
+		fit.setTransitions(data[1]);
+		fit.setTotalTime(data[2]);
+		fit.setPVal(1 - workspace.chiSq.cumulativeProbability(fit.getLogOddsScore()));
+		return fit;
+	}
+
+	/**
+	 * Fills workspace.data with new omega, transitions, total time and log likelihood, as EvolutionaryModel.omegaEMIteration
+	 */
+	private void omegaEMIteration(CompiledTree tree, double[][] leafValues, int firstColumn, int window, double currentOmega, Workspace ws) {
+		int n = alphabetSize;
+		int nn = n*n;
+		int numNodes = tree.numNodes;
+		int root = numNodes - 1;
+		updateTransitions(tree, currentOmega, ws);
+
+		double numOfTransitions = 0d;
+		double totalTime = 0d;
+		double logLikelihood = 0;
+		double[] alpha = ws.alpha;
+		double[] beta = ws.beta;
+		double[] transitions = ws.transitions;
+		double[] e = ws.e;
+		double[] tmp = ws.tmp;
+		double[] projectedAlpha = ws.projectedAlpha;
+		double[] projectedBeta = ws.projectedBeta;
+		for(int site = 0; site < window; site++) {
+			int column = (firstColumn + site) * n;
+
+			// peel: alpha of every node given the leaves below it
+			for(int node = 0; node < numNodes; node++) {
+				int a = node*n;
+				int leaf = tree.leaf[node];
+				if(leaf >= 0) {
+					System.arraycopy(leafValues[leaf], column, alpha, a, n);
+				} else {
+					for(int i = 0; i < n; i++) {
+						alpha[a + i] = 1;
+					}
+					for(int child = 0; child < 2; child++) {
+						int c = child == 0 ? tree.child1[node] : tree.child2[node];
+						for(int i = 0; i < n; i++) {
+							double s = 0;
+							for(int k = 0; k < n; k++) {
+								s += transitions[c*nn + i*n + k] * alpha[c*n + k];
+							}
+							alpha[a + i] = s * alpha[a + i];
+						}
+					}
+				}
+			}
+			double likelihood = 0;
+			for(int i = 0; i < n; i++) {
+				likelihood += pi[i] * alpha[root*n + i];
+			}
+
+			// prune: beta of every node given the rest of the tree, from the root down
+			for(int i = 0; i < n; i++) {
+				beta[root*n + i] = pi[i];
+			}
+			for(int node = root - 1; node >= 0; node--) {
+				int parent = tree.parent[node];
+				int sibling = tree.sibling[node];
+				for(int i = 0; i < n; i++) {
+					double s = 0;
+					double p = 0;
+					for(int k = 0; k < n; k++) {
+						s += transitions[sibling*nn + i*n + k] * alpha[sibling*n + k];
+						p += transitions[parent*nn + k*n + i] * beta[parent*n + k];
+					}
+					beta[node*n + i] = s * p;
+				}
+			}
+
+			// sufficient statistics
+			for(int i = 0; i < nn; i++) {
+				e[i] = 0;
+			}
+			for(int node = 0; node < root; node++) {
+				for(int i = 0; i < n; i++) {
+					double pa = 0;
+					double pb = 0;
+					for(int k = 0; k < n; k++) {
+						pa += iv[i*n + k] * alpha[node*n + k];
+						pb += v[k*n + i] * beta[node*n + k];
+					}
+					projectedAlpha[i] = pa;
+					projectedBeta[i] = pb;
+				}
+				double[] j = ws.j;
+				for(int r = 0; r < n; r++) {
+					for(int c = 0; c < n; c++) {
+						e[r*n + c] += projectedBeta[r] * projectedAlpha[c] * j[node*nn + r*n + c];
+					}
+				}
+			}
+			double scale = 1d/likelihood;
+			for(int i = 0; i < nn; i++) {
+				e[i] = e[i] * scale;
+			}
+			// N = t(iV) E t(V), times Q element-wise
+			for(int r = 0; r < n; r++) {
+				for(int c = 0; c < n; c++) {
+					double s = 0;
+					for(int k = 0; k < n; k++) {
+						s += iv[k*n + r] * e[k*n + c];
+					}
+					tmp[r*n + c] = s;
+				}
+			}
+			for(int r = 0; r < n; r++) {
+				for(int c = 0; c < n; c++) {
+					double s = 0;
+					for(int k = 0; k < n; k++) {
+						s += tmp[r*n + k] * v[c*n + k];
+					}
+					s *= q[r*n + c];
+					if(r == c) {
+						totalTime -= s;
+					} else {
+						numOfTransitions += s;
+					}
+				}
+			}
+			logLikelihood += Math.log(likelihood);
+		}
+		double[] data = ws.data;
+		data[0] = numOfTransitions * currentOmega / totalTime;
+		data[1] = numOfTransitions;
+		data[2] = totalTime;
+		data[3] = logLikelihood;
+	}
+
+	/**
+	 * Transition matrices V exp(D omega t) iV and J matrices of every branch for the given omega
+	 */
+	private void updateTransitions(CompiledTree tree, double currentOmega, Workspace ws) {
+		int n = alphabetSize;
+		int nn = n*n;
+		double[] exps = ws.exps;
+		for(int node = 0; node < tree.numNodes; node++) {
+			double branchLength = tree.branchLength[node];
+			for(int i = 0; i < n; i++) {
+				exps[i] = Math.exp(eigenvalues[i] * currentOmega * branchLength);
+			}
+			int offset = node*nn;
+			for(int r = 0; r < n; r++) {
+				for(int c = 0; c < n; c++) {
+					double s = 0;
+					for(int k = 0; k < n; k++) {
+						s += (v[r*n + k] * exps[k]) * iv[k*n + c];
+					}
+					ws.transitions[offset + r*n + c] = s;
+				}
+			}
+
+			double dist = branchLength * currentOmega;
+			for(int r = 0; r < n; r++) {
+				for(int c = 0; c < n; c++) {
+					double di = eigenvalues[r];
+					double dj = eigenvalues[c];
+					if(Math.abs(di - dj) < 0.0001) {
+						ws.j[offset + r*n + c] = dist * Math.exp(di * dist);
+					} else {
+						ws.j[offset + r*n + c] = (Math.exp(di * dist) - Math.exp(dj * dist)) / (di - dj);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param column Leaf values as returned by MultipleAlignment.getColumnsAsVector
+	 * @param tree Compiled tree
+	 * @return One row per leaf of the tree with alphabetSize values per column, 1 for every letter where the leaf is gapped
+	 * @throws IllegalStateException if the column has no row for a leaf of the tree
+	 */
+	public double[][] toLeafValues(Map<String, Matrix> column, CompiledTree tree) {
+		double[][] rtrn = new double[tree.leafNames.length][];
+		for(int l = 0; l < rtrn.length; l++) {
+			Matrix leaf = column.get(tree.leafNames[l]);
+			if(leaf == null) {
+				throw new IllegalStateException ("Alignment data does not contain a row for sequence " + tree.leafNames[l] + ". The aligned sequences must inlcude all sequences in the tree");
+			}
+			int columns = leaf.getColumnDimension();
+			rtrn[l] = new double[columns * alphabetSize];
+			for(int j = 0; j < columns; j++) {
+				boolean gap = true;
+				for(int i = 0; i < alphabetSize; i++) {
+					double val = leaf.get(i, j);
+					rtrn[l][j*alphabetSize + i] = val;
+					if(val > 0) {
+						gap = false;
+					}
+				}
+				if(gap) {
+					for(int i = 0; i < alphabetSize; i++) {
+						rtrn[l][j*alphabetSize + i] = 1;
+					}
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * A binary tree as arrays in post order: children come before their parent and the root is last
+	 */
+	public static class CompiledTree {
+		final int numNodes;
+		final int[] child1;
+		final int[] child2;
+		final int[] parent;
+		final int[] sibling;
+		final int[] leaf;
+		final double[] branchLength;
+		final String[] leafNames;
+
+		CompiledTree(Phylogeny tree) {
+			List<PhylogenyNode> postOrder = new ArrayList<PhylogenyNode>();
+			addPostOrder(tree.getRoot(), postOrder);
+			numNodes = postOrder.size();
+			child1 = new int[numNodes];
+			child2 = new int[numNodes];
+			parent = new int[numNodes];
+			sibling = new int[numNodes];
+			leaf = new int[numNodes];
+			branchLength = new double[numNodes];
+			List<String> names = new ArrayList<String>();
+			for(int node = 0; node < numNodes; node++) {
+				PhylogenyNode phyloNode = postOrder.get(node);
+				parent[node] = -1;
+				sibling[node] = -1;
+				branchLength[node] = phyloNode.isRoot() ? 0 : phyloNode.getDistanceToParent();
+				if(phyloNode.isExternal()) {
+					child1[node] = -1;
+					child2[node] = -1;
+					leaf[node] = names.size();
+					names.add(phyloNode.getSeqName());
+				} else {
+					if(phyloNode.getNumberOfChildNodes() != 2) {
+						throw new IllegalArgumentException("Node " + phyloNode.getID() + " has " + phyloNode.getNumberOfChildNodes() + " children, only binary trees are supported");
+					}
+					child1[node] = postOrder.indexOf(phyloNode.getChildNode1());
+					child2[node] = postOrder.indexOf(phyloNode.getChildNode2());
+					leaf[node] = -1;
+					parent[child1[node]] = node;
+					parent[child2[node]] = node;
+					sibling[child1[node]] = child2[node];
+					sibling[child2[node]] = child1[node];
+				}
+			}
+			leafNames = names.toArray(new String[names.size()]);
+		}
+
+		private static void addPostOrder(PhylogenyNode node, List<PhylogenyNode> postOrder) {
+			if(!node.isExternal()) {
+				addPostOrder(node.getChildNode1(), postOrder);
+				addPostOrder(node.getChildNode2(), postOrder);
+			}
+			postOrder.add(node);
+		}
+
+		/**
+		 * @return Names of the leaves, in the order rows of leaf values are expected
+		 */
+		public String[] getLeafNames() {
+			return leafNames;
+		}
+	}
+
+	/**
+	 * Per thread buffers for one compiled tree
+	 */
+	public class Workspace {
+		final double[] alpha;
+		final double[] beta;
+		final double[] transitions;
+		final double[] j;
+		final double[] e;
+		final double[] tmp;
+		final double[] exps;
+		final double[] projectedAlpha;
+		final double[] projectedBeta;
+		final double[] data = new double[4];
+		final ChiSquaredDistribution chiSq = new ChiSquaredDistribution(1);
+
+		Workspace(CompiledTree tree) {
+			int n = alphabetSize;
+			alpha = new double[tree.numNodes * n];
+			beta = new double[tree.numNodes * n];
+			transitions = new double[tree.numNodes * n * n];
+			j = new double[tree.numNodes * n * n];
+			e = new double[n * n];
+			tmp = new double[n * n];
+			exps = new double[n];
+			projectedAlpha = new double[n];
+			projectedBeta = new double[n];
+		}
+	}
+
+}
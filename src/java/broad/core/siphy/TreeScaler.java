@@ -14,6 +14,7 @@ import java.io.RandomAccessFile;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -23,6 +24,12 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.log4j.Logger;
 
 import nextgen.core.annotation.Annotation;
@@ -69,6 +76,7 @@ public class TreeScaler {
 		"\n\t\t  -ignore <comma separated species to ignore>" +
 		"\n\t\t  [-minTreeLength <minimum tree length to actually compute omega, sites with lesser total tree length are ignored. Default is 1>" +
 		"\n\t\t  -window <Size of sliding window where tree is locally scaled, default is 1 > -windowOverlap <sliding window overlap, default is window length - 1>" +
+		"\n\t\t  -threads <Number of threads used to fit windows, default is the number of processors>" +
 		"\n\t\t  -neutralOmegaDist <A neutral sequence generated omega distribution by tree length,"+
 		"\n\t\t\t you can use task 3 to generate this file if provided it will be use to compute p-values," +
 		"\n\t\t\t the distribution should be generated with same window intended to run in this task>]" +
@@ -111,7 +119,7 @@ public class TreeScaler {
 	"\n\t\t\t -in <estimation file (any file generated from running tasks 1,2,7,8 or similar), default is standard input> -out <output file name defalut is standard out> [-separator <Column separator character, default is tab>]" +
 	"\n\t\t\t -pvalcol <column of site p-value (first column is 1)> -positioncol <column of position, position is assumed to be the start of the window(first column is 1)> -minscore <Minimum score used to join a site> -maxscore <Maximum score to join> -maxgap <maximum gap of sites with less than pval to paste through>" +
 	"\n\t\t\t [-chr <chromosome default is 'C'> -window <window size default is 1> " +
-	"\n\t\t10. Score regions -alignment <alignment including regions, regions should be in coordinates that are consistent with the alignment> -mod <model file> -ref <reference sequence id default is the first sequence in the alignment> [-window <If you want to tile each region with a fixed window rather than fitting omega to the full region> -overlap <By default a scan of windows with window size - 1 overlap is done> -minTreeLength <If no omega should be computed if the minimum branch length of the kmer is below this threshold>]" +
+	"\n\t\t10. Score regions -alignment <alignment including regions, regions should be in coordinates that are consistent with the alignment> -mod <model file> -ref <reference sequence id default is the first sequence in the alignment> [-window <If you want to tile each region with a fixed window rather than fitting omega to the full region> -overlap <By default a scan of windows with window size - 1 overlap is done> -minTreeLength <If no omega should be computed if the minimum branch length of the kmer is below this threshold> -threads <Number of threads used to fit windows, default is the number of processors>]" +
 	"\n\t\t\t -in <Input file BED annotation file, default is standard input> -out <Output file, default is standard output> [-shift <amount to shift position> -bedIsOneBased <Add this flad is the positions in BED file start at 1 rather than 0 ]" +
 	"\n\t\t11. Integrate Stationary distribution in windows -window <window size> [-windowOverlap <sliding window overlap, default is window length - 1> -dist <Neutral distribution in empirical format see??? if pvalues are desired>]" +
 	"\n\t\t\t -in <estimation file (any file generated from running tasks 1,2,7,8 or similar), default is standard input> -out <output file name defalut is standard out>" +
@@ -153,6 +161,8 @@ public class TreeScaler {
 	private static DecimalFormat numberFormat = new  DecimalFormat("##0.####");
 	private static DecimalFormat tinnyNumberFormat = new  DecimalFormat("##0.#########");
 	static int MAF_CHUNK_SIZE = 100000;
+	private static final int WINDOWS_PER_CHUNK = 256;
+	private int numThreads = 1;
 	private String chr;
 	
 	public TreeScaler() {
@@ -206,6 +216,7 @@ public class TreeScaler {
 
 			scaler.setNeutralModel(modelFile);
 			scaler.setMinimumTreeLength(minTreeLength);	
+			scaler.setNumThreads(argMap.containsKey("threads") ? argMap.getInteger("threads") : Runtime.getRuntime().availableProcessors());
 			if(argMap.isPresent("neutralOmegaDist")) {
 				scaler.model.setOmegaDistByTreeLength(argMap.get("neutralOmegaDist"));
 			} if(argMap.isPresent("neutralOmegas")) {
@@ -582,6 +593,7 @@ public class TreeScaler {
 					double minTreeLength = argMap.containsKey("minTreeLength") ? argMap.getDouble("minTreeLength") : MIN_TREE_LENGTH;
 					scaler.setMinimumTreeLength(minTreeLength);
 					int overlap = argMap.containsKey("overlap") ? argMap.getInteger("overlap") : window - 1;
+					scaler.setNumThreads(argMap.containsKey("threads") ? argMap.getInteger("threads") : Runtime.getRuntime().availableProcessors());
 					scaler.scaleTree(window, bw, ignoreList, overlap);
 				} else {
 					OmegaFit regionFit = scaler.scaleRegion(ignoreList, region);
@@ -1871,47 +1883,28 @@ public class TreeScaler {
 		}
 		
 		List<int[]> ungappedIslands = alignment.getUngappedReferenceIslands();
+		List<OmegaFit[]> islandFits = fitWindows(window, overlap, alnTree, alignmentTreeLength, ungappedIslands);
 		Iterator<int []> ungappedRegionIt = ungappedIslands.iterator();
+		Iterator<OmegaFit[]> islandFitIt = islandFits.iterator();
 		//System.out.println("Alignment starts at " + alignment.getReferenceStart());
 		while(ungappedRegionIt.hasNext()) {
 			int [] region = ungappedRegionIt.next();
-			if(region[1] - region[0] < window) {
+			OmegaFit [] fits = islandFitIt.next();
+			if(fits == null) {
 				logger.info("\tjikes ungapped island  is small " + region[0] +"-"+region[1]);
 			} else  { //If ungapped region is too small, just forget it.
-				//System.out.println("\tgood ungapped island " + region[0]+"-"+region[1]);
+				int windowIdx = 0;
 				for(int i = region[0]; i < region[1] - window + 1; i = i + window - overlap) { //Go through the sites within ungapped ref
-				//for(int i = region[0]; i < region[1] - window; i = i + window - overlap) {
 					int refPosition = i + alignment.getReferenceStart();
-					//System.out.println("\tref start  " + refPosition );
-					//System.out.println("\tColumn " + i + " ");
-					Map<String, Matrix> column = alignment.getColumnsAsVector(refPosition, window);
-
-					double minTreeLength = alignmentTreeLength;
-					for(int j = 0; j < window; j++) {
-						List<String> gappedSeqs = ConservationUtils.getGappedSeqsInWindowMatrix(1, column, j);						
-						ConservationUtils.setUninformativeNodes(column, gappedSeqs, j);
-						Phylogeny columnTree = ConservationUtils.pruneTree(gappedSeqs, alnTree);
-						minTreeLength = Math.min(alignmentTreeLength, getTotalDistanceFromNode(columnTree.getRoot()));
-					}
-					//TODO: the logic above is repeated for all but the new column in the window, we need to change things a bit to avoid redundanty compute the same things 
-					//TODO: Cash this values for each tree, computation is not cheap.
-					//System.out.println("\t site " + refPosition + " total dist " + minTreeLength);
-					if(minTreeLength  > minimumTreeLength) {
-						//TODO: update fitParameters to avoid 
-						OmegaFit fit =  model.fitOmega(column, alnTree, window);
-						fit.setTreeLength(minTreeLength);
-						//System.out.println ("omega = " + fit.getOmega());
+					OmegaFit fit = fits[windowIdx++];
+					if(fit != null) {
 						writeSiteOmegaInfo(bw, refPosition, fit);
-						//lastSiteWithOmega = i;
 						if(i == region[1] - window && (region[1] - region[0] ) > (window - window/3)) { //if last base before to close to alignment end was omeagable set all remaining sites to this one.
 							for(int j = 1; j + i< region[1]; j++) {
 								writeSiteOmegaInfo(bw, refPosition + j, fit);
 							}
 						}
-					} else {
-						//System.out.println("total site tree branch length is too short " + treeDist + " skipping....");
 					}
-		
 				}
 			}
 		}
@@ -1919,65 +1912,170 @@ public class TreeScaler {
 	}
 	
 	public ArrayList<OmegaFit> scaleTree(int window, List<String> ignoreList, int overlap) throws IOException {
-		//System.out.println("Alignment length : " + alignment.getAlignedSequenceIds().size() + 
-		//		" Alignment start " + alignment.getReferenceStart() + " species aligned " + alignment.getAlignedSequenceIds() );
-
 		Phylogeny alnTree = ConservationUtils.pruneTree(ignoreList, model.getTree());
 		ArrayList<OmegaFit> rtrn=new ArrayList<OmegaFit>();
 		
 		double alignmentTreeLength = getTotalDistanceFromNode(alnTree.getRoot());
-		//System.out.println("Using window " + window + " base tree total length " + alignmentTreeLength + " alignment length " + alignment.length());
 		window = Math.min(window, alignment.length());
-		//System.out.println("TREE: " + alnTree.toNewHampshire(true));
 		if(alignmentTreeLength < minimumTreeLength) {
-			//System.out.println("To few species aligned, alignment tree is too short " + alignmentTreeLength);
 			return new ArrayList();
 		}
 		
 		List<int[]> ungappedIslands = alignment.getUngappedReferenceIslands();
+		List<OmegaFit[]> islandFits = fitWindows(window, overlap, alnTree, alignmentTreeLength, ungappedIslands);
 		Iterator<int []> ungappedRegionIt = ungappedIslands.iterator();
-		//System.out.println("Alignment starts at " + alignment.getReferenceStart());
+		Iterator<OmegaFit[]> islandFitIt = islandFits.iterator();
 		while(ungappedRegionIt.hasNext()) {
 			int [] region = ungappedRegionIt.next();
-			if(region[1] - region[0] < window) {
-				//System.err.println("\tjikes ungapped island  is small " + region[0] +"-"+region[1]);
-			} else  { //If ungapped region is too small, just forget it.
-				//System.out.println("\tgood ungapped island " + region[0]+"-"+region[1]);
+			OmegaFit [] fits = islandFitIt.next();
+			if(fits != null) {
+				int windowIdx = 0;
 				for(int i = region[0]; i < region[1] - window + 1; i = i + window - overlap) { //Go through the sites within ungapped ref
-				//for(int i = region[0]; i < region[1] - window; i = i + window - overlap) {
 					int refPosition = i + alignment.getReferenceStart();
-					//System.out.println("\tref start  " + refPosition );
-					//System.out.println("\tColumn " + i + " ");
-					Map<String, Matrix> column = alignment.getColumnsAsVector(refPosition, window);
-					double minTreeLength = alignmentTreeLength;
-					for(int j = 0; j < window; j++) {
-						List<String> gappedSeqs = ConservationUtils.getGappedSeqsInWindowMatrix(1, column, j);						
-						ConservationUtils.setUninformativeNodes(column, gappedSeqs, j);
-						Phylogeny columnTree = ConservationUtils.pruneTree(gappedSeqs, alnTree);
-						minTreeLength = Math.min(alignmentTreeLength, getTotalDistanceFromNode(columnTree.getRoot()));
-					}
-					//TODO: the logic above is repeated for all but the new column in the window, we need to change things a bit to avoid redundanty compute the same things 
-					//TODO: Cash this values for each tree, computation is not cheap.
-					//System.out.println("\t site " + refPosition + " total dist " + minTreeLength);
-					if(minTreeLength  > minimumTreeLength) {
-						//TODO: update fitParameters to avoid 
-						OmegaFit fit =  model.fitOmega(column, alnTree, window);
-						fit.setTreeLength(minTreeLength);
+					OmegaFit fit = fits[windowIdx++];
+					if(fit != null) {
 						LightweightGenomicAnnotation reg=new BasicGenomicAnnotation("",chr, refPosition, refPosition+window);
 						fit.setRegion(reg);
 						rtrn.add(fit);
-						//System.out.println ("omega = " + fit.getOmega());
-						//writeSiteOmegaInfo(bw, refPosition, fit);
-						//lastSiteWithOmega = i;
-						
-					} 
-		
+					}
 				}
 			}
 		}
 			return rtrn;
 	}
 	
+	/**
+	 * Fits omega on every window of the ungapped reference islands with a FelsensteinKernel.
+	 * Islands are cut into chunks of windows whose alignment columns are read once, and chunks are fitted on numThreads threads.
+	 * The tree length of a window is that of the tree pruned of the sequences gapped in its last column, as the 
+	 * column loop scaleTree used to run left it; pruned tree lengths are cached by gap pattern.
+	 * @return For each island, the fits of its windows in order with null for windows whose tree is too short,
+	 * 		or null if the island is smaller than the window
+	 */
+	private List<OmegaFit[]> fitWindows(final int window, int overlap, Phylogeny alnTree, final double alignmentTreeLength, List<int[]> ungappedIslands) {
+		final FelsensteinKernel kernel = new FelsensteinKernel(model);
+		final FelsensteinKernel.CompiledTree compiledTree = kernel.compile(alnTree);
+		final PrunedTreeLengths treeLengths = new PrunedTreeLengths(alnTree, compiledTree.getLeafNames());
+		final int step = window - overlap;
+		List<OmegaFit[]> rtrn = new ArrayList<OmegaFit[]>(ungappedIslands.size());
+		List<Callable<Object>> chunks = new ArrayList<Callable<Object>>();
+		for(int [] region : ungappedIslands) {
+			if(region[1] - region[0] < window) {
+				rtrn.add(null);
+				continue;
+			}
+			int numWindows = (region[1] - window - region[0]) / step + 1;
+			final OmegaFit [] fits = new OmegaFit[numWindows];
+			rtrn.add(fits);
+			for(int first = 0; first < numWindows; first += WINDOWS_PER_CHUNK) {
+				final int firstWindow = first;
+				final int lastWindow = Math.min(numWindows, first + WINDOWS_PER_CHUNK);
+				final int chunkStart = region[0] + firstWindow * step;
+				final int chunkEnd = region[0] + (lastWindow - 1) * step + window;
+				chunks.add(new Callable<Object>() {
+					@Override
+					public Object call() {
+						Map<String, Matrix> columns = alignment.getColumnsAsVector(chunkStart + alignment.getReferenceStart(), chunkEnd - chunkStart);
+						double [][] leafValues = kernel.toLeafValues(columns, compiledTree);
+						FelsensteinKernel.Workspace workspace = kernel.createWorkspace(compiledTree);
+						for(int w = firstWindow; w < lastWindow; w++) {
+							int offset = (w - firstWindow) * step;
+							double minTreeLength = Math.min(alignmentTreeLength, treeLengths.get(columns, offset + window - 1));
+							if(minTreeLength  > minimumTreeLength) {
+								OmegaFit fit = kernel.fitOmega(compiledTree, leafValues, offset, window, workspace);
+								fit.setTreeLength(minTreeLength);
+								fits[w] = fit;
+							}
+						}
+						return null;
+					}
+				});
+			}
+		}
+		runAll(chunks);
+		return rtrn;
+	}
+	
+	private void runAll(List<Callable<Object>> tasks) {
+		if(numThreads <= 1 || tasks.size() <= 1) {
+			for(Callable<Object> task : tasks) {
+				try {
+					task.call();
+				} catch (Exception e) {
+					throw e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+				}
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, tasks.size()));
+		try {
+			for(Future<Object> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Total branch length of the alignment tree pruned of gapped sequences, computed once per gap pattern
+	 */
+	private class PrunedTreeLengths {
+		private final Phylogeny alnTree;
+		private final String [] leafNames;
+		private final Map<BitSet, Double> lengths = new HashMap<BitSet, Double>();
+		
+		PrunedTreeLengths(Phylogeny alnTree, String [] leafNames) {
+			this.alnTree = alnTree;
+			this.leafNames = leafNames;
+		}
+		
+		/**
+		 * @param columns Alignment columns
+		 * @param column Column whose gapped sequences are pruned
+		 */
+		double get(Map<String, Matrix> columns, int column) {
+			BitSet gapped = new BitSet(leafNames.length);
+			for(int l = 0; l < leafNames.length; l++) {
+				Matrix leaf = columns.get(leafNames[l]);
+				boolean isGap = true;
+				for(int i = 0; i < leaf.getRowDimension() && isGap; i++) {
+					isGap = leaf.get(i, column) <= 0;
+				}
+				if(isGap) {
+					gapped.set(l);
+				}
+			}
+			synchronized(lengths) {
+				Double rtrn = lengths.get(gapped);
+				if(rtrn == null) {
+					List<String> toPrune = new ArrayList<String>(gapped.cardinality());
+					for(int l = gapped.nextSetBit(0); l >= 0; l = gapped.nextSetBit(l + 1)) {
+						toPrune.add(leafNames[l]);
+					}
+					rtrn = getTotalDistanceFromNode(ConservationUtils.pruneTree(toPrune, alnTree).getRoot());
+					lengths.put(gapped, rtrn);
+				}
+				return rtrn.doubleValue();
+			}
+		}
+	}
+	
+	/**
+	 * @param numThreads Threads used by scaleTree to fit windows
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
 	public void scaleTreeWithSampling(int window, BufferedWriter bw, List<String> ignoreList,  int numberToAverage) throws IOException {
 		//System.out.println("Alignment length : " + alignment.getAlignedSequenceIds().size() + 
 		//		" Alignment start " + alignment.getReferenceStart() + " species aligned " + alignment.getAlignedSequenceIds() );
@@ -11,6 +11,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -23,9 +24,16 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import nextgen.core.annotation.AbstractAnnotation;
 import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.BasicAnnotation;
 import nextgen.core.annotation.Gene;
 import nextgen.core.annotation.Annotation.Strand;
 
@@ -604,67 +612,287 @@ public class BEDFileParser {
 	}
 	
 	public static Map<String, Collection<Gene>> loadDataByChr(File file) throws IOException{
+		return loadDataByChr(file, 1);
+	}
+	
+	/**
+	 * Read genes from the bed file and get genes by chromosome
+	 * @param file The bed file
+	 * @param numThreads Number of threads parsing the chromosomes, 1 parses while reading
+	 * @return Map of chromosome name to set of genes on chromosome
+	 * @throws IOException
+	 */
+	public static Map<String, Collection<Gene>> loadDataByChr(File file, int numThreads) throws IOException{
 		logger.info("Loading genes from file " + file.getName() + "...");
-		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+		return loadByChr(file, numThreads, false, new ChrBuilder<Collection<Gene>>() {
+			@Override
+			Collection<Gene> build(List<Gene> genes) {
+				return new TreeSet<Gene>(genes);
+			}
+		});
+	}
+
+	public static Map<String, IntervalTree<Gene>> loadDataByChrToTree(File file) throws IOException{
+		return loadDataByChrToTree(file, 1);
+	}
 	
-		Map<String, Collection<Gene>> rtrn=new TreeMap<String, Collection<Gene>>();
-		String nextLine;
-		int i=0;
-		while ((nextLine = reader.readLine()) != null ) {
+	/**
+	 * Read genes from the bed file into an interval tree per chromosome
+	 * Genes with the same span as an earlier gene are added to its node
+	 * @param file The bed file
+	 * @param numThreads Number of threads parsing the chromosomes and building their trees, 1 parses while reading
+	 * @return Map of chromosome name to tree of genes on chromosome
+	 * @throws IOException
+	 */
+	public static Map<String, IntervalTree<Gene>> loadDataByChrToTree(File file, int numThreads) throws IOException{
+		final AtomicInteger isoformMissCntr=new AtomicInteger();
+		Map<String, IntervalTree<Gene>> rtrn=loadByChr(file, numThreads, true, new ChrBuilder<IntervalTree<Gene>>() {
+			@Override
+			IntervalTree<Gene> build(List<Gene> genes) {
+				IntervalTree<Gene> data = new IntervalTree<Gene>();
+				for(Gene gene : genes) {
+					if (data.find(gene.getStart(), gene.getEnd()) != null)
+						isoformMissCntr.incrementAndGet();
+					data.put(gene.getStart(), gene.getEnd(), gene);
+				}
+				return data;
+			}
+		});
+		System.err.println("While loading "+file.getAbsolutePath()+ " missed " + isoformMissCntr.get() + " isoforms"  );
+		return rtrn;		 
+	}
 	
-			if(looksLikeData(nextLine) ){
-				//logger.info(nextLine);
-				Gene gene = new Gene(nextLine, false);
-				//System.err.println("Gene: " + gene.toBED());
+	/**
+	 * Builds the per chromosome result from the genes of a chromosome in file order
+	 */
+	private static abstract class ChrBuilder<T> {
+		abstract T build(List<Gene> genes);
+	}
 	
-				Collection<Gene> data=new TreeSet<Gene>();
-				if(rtrn.containsKey(gene.getChr())){
-					data.addAll(rtrn.get(gene.getChr()));
+	/**
+	 * Read the genes of a bed file grouped by chromosome and build a result for each chromosome
+	 * With one thread the lines are parsed as they are read, otherwise the lines of each chromosome are parsed
+	 * and built on a pool of numThreads workers
+	 * @param file The bed file
+	 * @param numThreads Number of threads
+	 * @param stopAtBlankLine Stop reading at the first blank line instead of skipping it
+	 * @param builder Builds the result of a chromosome
+	 * @return Map of chromosome name to result
+	 * @throws IOException
+	 */
+	private static <T> Map<String, T> loadByChr(File file, int numThreads, boolean stopAtBlankLine, final ChrBuilder<T> builder) throws IOException{
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+		Map<String, List<Gene>> genesByChr=new HashMap<String, List<Gene>>();
+		Map<String, List<String>> linesByChr=new HashMap<String, List<String>>();
+		// Share one name per chromosome between its genes
+		Map<String, String> chrNames=new HashMap<String, String>();
+		String nextLine;
+		int i=0;
+		try {
+			while ((nextLine = reader.readLine()) != null) {
+				if(looksLikeData(nextLine)){
+					String chr=chrNames.get(firstToken(nextLine));
+					if(chr==null){
+						chr=firstToken(nextLine);
+						chrNames.put(chr, chr);
+						genesByChr.put(chr, new ArrayList<Gene>());
+						linesByChr.put(chr, new ArrayList<String>());
+					}
+					if(numThreads==1){
+						genesByChr.get(chr).add(parseBEDLine(nextLine, chr));
+					} else {
+						linesByChr.get(chr).add(nextLine);
+					}
+					i++;
+					if(i%10000==0){logger.info("Loaded " + i + " genes.");}
+				} else if(stopAtBlankLine && nextLine.trim().length() == 0){
+					break;
 				}
-				data.add(gene);
-				rtrn.put(gene.getChr(), data);
 			}
-			i++;
-			if(i%10000==0){logger.info("Loaded " + i + " genes.");}
+		} finally {
+			reader.close();
+		}
+		
+		Map<String, T> rtrn=new TreeMap<String, T>();
+		if(numThreads==1){
+			for(String chr : genesByChr.keySet()){
+				rtrn.put(chr, builder.build(genesByChr.get(chr)));
+				genesByChr.put(chr, null);
+			}
+			return rtrn;
+		}
+		
+		ExecutorService executor=Executors.newFixedThreadPool(Math.min(numThreads, Math.max(1, linesByChr.size())));
+		Map<String, Future<T>> futures=new TreeMap<String, Future<T>>();
+		for(final String chr : linesByChr.keySet()){
+			final List<String> lines=linesByChr.get(chr);
+			futures.put(chr, executor.submit(new Callable<T>() {
+				@Override
+				public T call() {
+					List<Gene> genes=new ArrayList<Gene>(lines.size());
+					for(String line : lines){
+						genes.add(parseBEDLine(line, chr));
+					}
+					lines.clear();
+					return builder.build(genes);
+				}
+			}));
+		}
+		executor.shutdown();
+		try {
+			for(String chr : futures.keySet()){
+				rtrn.put(chr, futures.get(chr).get());
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			throw new IllegalStateException("Interrupted while loading " + file.getName(), e);
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Failed to load " + file.getName(), e.getCause());
 		}
-	
-	
-		reader.close();
 		return rtrn;
-	
 	}
-
-	public static Map<String, IntervalTree<Gene>> loadDataByChrToTree(File file) throws IOException{
-		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file)));
 	
-		Map<String, IntervalTree<Gene>> rtrn=new TreeMap<String, IntervalTree<Gene>>();
-		String nextLine;
-		int i=0;
-		int IsoformMissCntr=0;
-		while ((nextLine = reader.readLine()) != null && (nextLine.trim().length() > 0)) {
+	/**
+	 * @return The characters of the line up to the first whitespace
+	 */
+	private static String firstToken(String line) {
+		int end=0;
+		while(end<line.length() && !isWhitespace(line.charAt(end))){
+			end++;
+		}
+		return line.substring(0, end);
+	}
 	
-			if(looksLikeData(nextLine)){
+	/**
+	 * Whitespace as matched by \s
+	 */
+	private static boolean isWhitespace(char c) {
+		return c==' ' || c=='\t' || c=='\n' || c=='\r' || c=='\f' || c==0x0B;
+	}
 	
-				Gene gene = new Gene(nextLine, false);
+	/**
+	 * Parse a bed line without regular expressions or intermediate strings for the numbers
+	 * Gives the same gene as new Gene(line, false), which handles the lines that are not plain BED12
+	 * @param line A data line
+	 * @param chr The chromosome name of the line, shared between the genes of the chromosome
+	 * @return The gene
+	 */
+	static Gene parseBEDLine(String line, String chr) {
+		int numTokens=0;
+		int[] tokenStarts=new int[16];
+		int[] tokenEnds=new int[16];
+		int pos=0;
+		int length=line.length();
+		if(length==0 || isWhitespace(line.charAt(0))){
+			return new Gene(line, false);
+		}
+		while(pos<length){
+			while(pos<length && isWhitespace(line.charAt(pos))){
+				pos++;
+			}
+			if(pos==length){
+				break;
+			}
+			if(numTokens==tokenStarts.length){
+				tokenStarts=Arrays.copyOf(tokenStarts, 2*numTokens);
+				tokenEnds=Arrays.copyOf(tokenEnds, 2*numTokens);
+			}
+			tokenStarts[numTokens]=pos;
+			while(pos<length && !isWhitespace(line.charAt(pos))){
+				pos++;
+			}
+			tokenEnds[numTokens]=pos;
+			numTokens++;
+		}
+		if(numTokens<12){
+			return new Gene(line, false);
+		}
+		long start=parseInt(line, tokenStarts[1], tokenEnds[1]);
+		long cdsStart=parseInt(line, tokenStarts[6], tokenEnds[6]);
+		long cdsEnd=parseInt(line, tokenStarts[7], tokenEnds[7]);
+		long blockCount=parseInt(line, tokenStarts[9], tokenEnds[9]);
+		if(start==NOT_AN_INT || cdsStart==NOT_AN_INT || cdsEnd==NOT_AN_INT || blockCount==NOT_AN_INT || blockCount<0){
+			return new Gene(line, false);
+		}
+		int[] blockSizes=parseIntList(line, tokenStarts[10], tokenEnds[10], (int) blockCount);
+		int[] blockStarts=parseIntList(line, tokenStarts[11], tokenEnds[11], (int) blockCount);
+		if(blockSizes==null || blockStarts==null){
+			return new Gene(line, false);
+		}
+		if(!line.regionMatches(tokenStarts[0], chr, 0, chr.length()) || tokenEnds[0]-tokenStarts[0]!=chr.length()){
+			chr=line.substring(tokenStarts[0], tokenEnds[0]);
+		}
+		String name=line.substring(tokenStarts[3], tokenEnds[3]);
+		double bedScore=Double.parseDouble(line.substring(tokenStarts[4], tokenEnds[4]));
+		Strand orientation=AbstractAnnotation.getStrand(line.substring(tokenStarts[5], tokenEnds[5]));
+		Collection<Annotation> exons=new ArrayList<Annotation>(blockSizes.length);
+		for(int i=0; i<blockSizes.length; i++){
+			int exonStart=(int) start+blockStarts[i];
+			exons.add(new BasicAnnotation(chr, exonStart, exonStart+blockSizes[i], orientation, name));
+		}
+		Gene g=new Gene(chr, name, orientation, exons, (int) cdsStart, (int) cdsEnd);
+		// The Gene constructor copies the parsed gene, which keeps the bed score but not the score
+		g.setBedScore(bedScore);
+		if(numTokens>12){
+			String[] extraColumns=new String[numTokens-12];
+			for(int j=12; j<numTokens; j++){
+				extraColumns[j-12]=line.substring(tokenStarts[j], tokenEnds[j]);
+			}
+			g.setExtraFields(extraColumns);
+		}
+		return g;
+	}
 	
+	private static final long NOT_AN_INT=Long.MIN_VALUE;
 	
-				IntervalTree<Gene> data = rtrn.get(gene.getChr());
-				if(data == null){
-					data = new IntervalTree<Gene>();
-					rtrn.put(gene.getChr(), data);
-				}
-				if (data.find(gene.getStart(), gene.getEnd()) != null)
-					IsoformMissCntr++;
-				data.put(gene.getStart(), gene.getEnd(), gene);
+	/**
+	 * @return The decimal int in line[from, to) or NOT_AN_INT if it is not a plain decimal int
+	 */
+	private static long parseInt(String line, int from, int to) {
+		boolean negative=from<to && line.charAt(from)=='-';
+		int i=negative ? from+1 : from;
+		if(i==to || to-i>10){
+			return NOT_AN_INT;
+		}
+		long rtrn=0;
+		for(; i<to; i++){
+			char c=line.charAt(i);
+			if(c<'0' || c>'9'){
+				return NOT_AN_INT;
 			}
-			i++;
-			if(i%10000==0){logger.info("Loaded " + i + " genes.");}
+			rtrn=10*rtrn+(c-'0');
 		}
+		rtrn=negative ? -rtrn : rtrn;
+		return rtrn<Integer.MIN_VALUE || rtrn>Integer.MAX_VALUE ? NOT_AN_INT : rtrn;
+	}
 	
-	
-		reader.close();
-		System.err.println("While loading "+file.getAbsolutePath()+ " missed " + IsoformMissCntr + " isoforms"  );
-		return rtrn;		 
+	/**
+	 * @return The count comma separated ints in line[from, to), allowing a trailing comma, or null if the list is anything else
+	 */
+	private static int[] parseIntList(String line, int from, int to, int count) {
+		int[] rtrn=new int[count];
+		int n=0;
+		int i=from;
+		while(i<to){
+			int end=line.indexOf(',', i);
+			if(end<0 || end>to){
+				end=to;
+			}
+			long value=parseInt(line, i, end);
+			if(value==NOT_AN_INT || n==count){
+				return null;
+			}
+			rtrn[n++]=(int) value;
+			i=end+1;
+		}
+		return n==count ? rtrn : null;
 	}
 
 	public static Map<String, Integer> loadChrSizes(String file){
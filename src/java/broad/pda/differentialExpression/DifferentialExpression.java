@@ -2,6 +2,7 @@ package broad.pda.differentialExpression;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -32,6 +33,10 @@ public class DifferentialExpression {
 	Collection<String> group2;
 	MatrixWithHeaders data;
 	Map<String, FDRDistribution> fdrDists;
+	//Permuted groups, kept so the permutation matrices are only computed if asked for
+	List<List<List<String>>> permutations;
+	PermutationEngine permutationEngine;
+	PermutationEngine.Summary permutationSummary;
 	
 	//TODO Cache the permutations for the same number of replicates
 	
@@ -55,12 +60,13 @@ public class DifferentialExpression {
 		//Step 2: Generate permutations
 		if(permutationMatrix==null){
 			logger.trace("Permutation matrix is null");
-			this.permutationMatrix=Permutations.permuteData(data, group1, group2, numberPermutations, fudgeFactors, useFold, paired);
+			this.permutations=Permutations.drawPermutations(group1, group2, numberPermutations);
+			this.permutationEngine=new PermutationEngine(data, fudgeFactors, useFold, paired, Permutations.getNumThreads());
 		}
 	
 		//Step 3: Assess significance of each gene using the FDR`
 		if(this.fdrDists==null){
-			MatrixWithHeaders[] matrix=assignFDRValues(testStatistics, this.permutationMatrix);
+			MatrixWithHeaders[] matrix=this.permutations!=null ? assignFDRValues(testStatistics, getPermutationSummary()) : assignFDRValues(testStatistics, this.permutationMatrix);
 			this.fdrMatrix=matrix[0];
 			this.absFdrMatrix=matrix[1];
 		}
@@ -91,12 +97,13 @@ public class DifferentialExpression {
 		
 		//Step 2: Generate permutations
 		if(permutationMatrix==null){
-			this.permutationMatrix=Permutations.permuteData(data, groups, numberPermutations, fudgeFactors, useFold, paired);
+			this.permutations=Permutations.drawPermutations(groups, numberPermutations);
+			this.permutationEngine=new PermutationEngine(data, fudgeFactors, useFold, paired, Permutations.getNumThreads());
 		}
 	
 		//Step 3: Assess significance of each gene using the FDR
 		if(this.fdrDists==null){
-			MatrixWithHeaders[] matrix=assignFDRValues(testStatistics, this.permutationMatrix);
+			MatrixWithHeaders[] matrix=assignFDRValues(testStatistics, getPermutationSummary());
 			this.fdrMatrix=matrix[0];
 			this.absFdrMatrix=matrix[1];
 		}
@@ -249,6 +256,32 @@ public class DifferentialExpression {
 		return rtrn;
 	}
 	
+	//Same as assignFDRValues(data, permutations) with the permutations folded into null distributions
+	private MatrixWithHeaders[] assignFDRValues(MatrixWithHeaders data, PermutationEngine.Summary summary) {
+		MatrixWithHeaders fdr=new MatrixWithHeaders(data.getRowNames(), data.getColumnNames()); 
+		MatrixWithHeaders absFDR=new MatrixWithHeaders(data.getRowNames(), data.getColumnNames()); 
+		
+		this.fdrDists=new TreeMap<String, FDRDistribution>();
+		
+		for(String column: data.getColumnNames()){
+			logger.debug("processing colname " + column);
+			double[] observed=data.getColumn(column);
+			FDRDistribution dist=new FDRDistribution(observed, summary.getFDRNullDistribution(column), alpha);
+			fdrDists.put(column, dist);
+			for(String row: data.getRowNames()){
+				double val=data.get(row, column);
+				double fdrVal=dist.getFDR(val); //TODO: Consider whether to do this or not
+				double absFDRVal=dist.getAbsFDR(val);
+				absFDR.set(row, column, absFDRVal);
+				fdr.set(row, column, fdrVal);
+			}
+		}
+		
+		MatrixWithHeaders[] rtrn={fdr, absFDR};
+		
+		return rtrn;
+	}
+	
 	private MatrixWithHeaders[] assignFDRValues(MatrixWithHeaders data, Map<String, FDRDistribution> fdrDists) {
 		MatrixWithHeaders fdr=new MatrixWithHeaders(data.getRowNames(), data.getColumnNames()); 
 		MatrixWithHeaders absFDR=new MatrixWithHeaders(data.getRowNames(), data.getColumnNames()); 
@@ -295,6 +328,19 @@ public class DifferentialExpression {
 		return fdr;
 	}
 	
+	private MatrixWithHeaders assignFWERValues(MatrixWithHeaders data, PermutationEngine.Summary summary) {
+		MatrixWithHeaders fwer=new MatrixWithHeaders(data.getRowNames(), data.getColumnNames()); 
+		
+		for(String column: data.getColumnNames()){
+			FWERDistribution dist=summary.getFWERDistribution(column);
+			for(String row: data.getRowNames()){
+				fwer.set(row, column, dist.getFWER(data.get(row, column)));
+			}
+		}
+		
+		return fwer;
+	}
+	
 	private MatrixWithHeaders assignFWERValues(MatrixWithHeaders data, MatrixWithHeaders[] permutations) {
 		MatrixWithHeaders fwer=new MatrixWithHeaders(data.getRowNames(), data.getColumnNames()); 
 		
@@ -318,19 +364,31 @@ public class DifferentialExpression {
 	public MatrixWithHeaders getTestStatisticMatrix(){return this.testStatistics;}
 	public MatrixWithHeaders getFDRMatrix(){return this.fdrMatrix;}
 	public MatrixWithHeaders getAbsFDRMatrix(){return this.absFdrMatrix;}
-	public MatrixWithHeaders[] getPermutationMatrix(){return this.permutationMatrix;}
+	public MatrixWithHeaders[] getPermutationMatrix(){
+		if(this.permutationMatrix==null && this.permutations!=null){
+			this.permutationMatrix=this.permutationEngine.materialize(this.permutations);
+		}
+		return this.permutationMatrix;
+	}
+	
+	private PermutationEngine.Summary getPermutationSummary(){
+		if(this.permutationSummary==null){
+			this.permutationSummary=this.permutationEngine.summarize(this.permutations);
+		}
+		return this.permutationSummary;
+	}
 
 	public MatrixWithHeaders getFoldMatrix() {
 		return DifferentialScoring.computeAbsFoldMatrix(data, group1, group2);
 	}
 
 	public MatrixWithHeaders getFWERMatrix() {
-		if(this.fwerMatrix==null){this.fwerMatrix=assignFWERValues(testStatistics, this.permutationMatrix);}
+		if(this.fwerMatrix==null){this.fwerMatrix=this.permutations!=null ? assignFWERValues(testStatistics, getPermutationSummary()) : assignFWERValues(testStatistics, this.permutationMatrix);}
 		return this.fwerMatrix;
 	}
 
 	public MatrixWithHeaders getNominalPValueMatrix() {
-		if(this.pvalueMatrix==null){this.pvalueMatrix=assignNominalPValues(testStatistics, this.permutationMatrix);}
+		if(this.pvalueMatrix==null){this.pvalueMatrix=assignNominalPValues(testStatistics, getPermutationMatrix());}
 		return this.pvalueMatrix;
 	}
 
@@ -110,7 +110,7 @@ public class DifferentialScoring {
 	
 	
 	//Max fold between any 2 groups
-	private static double computeFold(Collection<double[]> vals) {
+	static double computeFold(Collection<double[]> vals) {
 		double maxFold=-1;
 		for(double[] vals1: vals){
 			for(double[] vals2: vals){
@@ -126,19 +126,19 @@ public class DifferentialScoring {
 		return fold;
 	}
 	
-	private static double computeFold(double[] gr1, double[] gr2) {
+	static double computeFold(double[] gr1, double[] gr2) {
 		double fold=Statistics.fold(gr1, gr2, true);
 		return fold;
 	}
 
-	private static double computeTestStatistic(double[] gr1, double[] gr2, double fudgeFactor, boolean paired) {
+	static double computeTestStatistic(double[] gr1, double[] gr2, double fudgeFactor, boolean paired) {
 		Collection<double[]> groups=new ArrayList<double[]>();
 		groups.add(gr1);
 		groups.add(gr2);
 		return computeTestStatistic(groups, fudgeFactor, paired);
 	}
 	
-	private static double computeTestStatistic(Collection<double[]> groups, double fudgeFactor, boolean paired) {
+	static double computeTestStatistic(Collection<double[]> groups, double fudgeFactor, boolean paired) {
 		if(groups.size()>2){
 			//do an ANOVA
 			//TODO: add fudge factor to the computation
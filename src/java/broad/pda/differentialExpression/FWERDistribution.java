@@ -31,6 +31,21 @@ public class FWERDistribution {
 		maxDist=new EmpiricalDistribution(pos, 200);	
 	}
 
+	/**
+	 * @param permutationMins Minimum statistic of each permutation
+	 * @param permutationMaxs Maximum statistic of each permutation
+	 */
+	public FWERDistribution(double[] permutationMins, double[] permutationMaxs){
+		Collection<Double> neg=new ArrayList<Double>();
+		Collection<Double> pos=new ArrayList<Double>();
+		for(int i=0; i<permutationMins.length; i++){
+			neg.add(permutationMins[i]);
+			pos.add(permutationMaxs[i]);
+		}
+		minDist=new EmpiricalDistribution(neg,200);
+		maxDist=new EmpiricalDistribution(pos, 200);	
+	}
+
 	public double getFWER(double d) {
 		double fwer = 0;
 		if(d<0){
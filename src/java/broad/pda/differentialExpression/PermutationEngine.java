@@ -0,0 +1,265 @@
+package broad.pda.differentialExpression;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import broad.core.datastructures.MatrixWithHeaders;
+import broad.core.math.FDRNullDistribution;
+import broad.core.math.Statistics;
+
+/**
+ * Computes test statistics of permuted sample groups on a primitive copy of the data
+ * The statistics are the same as DifferentialScoring.computeTestStatistics for the same groups
+ * summarize() folds each permutation into the null distributions for FDR and FWER as soon as it is computed,
+ * so no more than one permutation per thread is held in memory
+ *
+ * A permutation is a list of groups, each a list of sample names in the order their values are passed to the statistic
+ */
+public class PermutationEngine {
+
+	static Logger logger = Logger.getLogger(PermutationEngine.class.getName());
+
+	private final List<String> rowNames;
+	private final List<String> statisticNames;
+	private final Map<String, Integer> columnIndex;
+	private final double[][] values;
+	private final double[] fudgeFactors;
+	private final boolean useFold;
+	private final boolean paired;
+	private final int numThreads;
+
+	/**
+	 * @param data Expression data
+	 * @param fudgeFactors Fudge factors, one statistic each
+	 * @param useFold Also compute the fold statistic
+	 * @param paired Paired test
+	 * @param numThreads Number of threads to compute permutations on
+	 */
+	public PermutationEngine(MatrixWithHeaders data, double[] fudgeFactors, boolean useFold, boolean paired, int numThreads) {
+		this.rowNames = data.getRowNames();
+		List<String> columns = data.getColumnNames();
+		this.columnIndex = new HashMap<String, Integer>();
+		for(int j=0; j<columns.size(); j++) {
+			columnIndex.put(columns.get(j), Integer.valueOf(j));
+		}
+		this.values = new double[rowNames.size()][];
+		for(int i=0; i<values.length; i++) {
+			values[i] = new double[columns.size()];
+			for(int j=0; j<columns.size(); j++) {
+				values[i][j] = data.get(rowNames.get(i), columns.get(j));
+			}
+		}
+		this.fudgeFactors = fudgeFactors;
+		this.useFold = useFold;
+		this.paired = paired;
+		this.numThreads = Math.max(1, numThreads);
+		this.statisticNames = new ArrayList<String>();
+		for(int i=0; i<fudgeFactors.length; i++) {statisticNames.add(""+fudgeFactors[i]);}
+		if(useFold) {statisticNames.add("Fold");}
+	}
+
+	/**
+	 * @return Names of the statistics, the columns of DifferentialScoring.computeTestStatistics
+	 */
+	public List<String> getStatisticNames() {
+		return statisticNames;
+	}
+
+	/**
+	 * @param groups Permuted groups
+	 * @return Statistics by statistic then gene, in the order of getStatisticNames() and the data rows
+	 */
+	public double[][] computeStatistics(List<List<String>> groups) {
+		int[][] indices = new int[groups.size()][];
+		for(int g=0; g<indices.length; g++) {
+			List<String> group = groups.get(g);
+			indices[g] = new int[group.size()];
+			for(int k=0; k<indices[g].length; k++) {
+				Integer index = columnIndex.get(group.get(k));
+				if(index == null) {
+					throw new IllegalArgumentException("Sample " + group.get(k) + " is not a column of the data.");
+				}
+				indices[g][k] = index.intValue();
+			}
+		}
+		double[][] rtrn = new double[statisticNames.size()][values.length];
+		for(int r=0; r<values.length; r++) {
+			// New arrays for every gene, as the statistics may keep them
+			List<double[]> vals = new ArrayList<double[]>(indices.length);
+			for(int g=0; g<indices.length; g++) {
+				double[] gr = new double[indices[g].length];
+				for(int k=0; k<gr.length; k++) {
+					gr[k] = values[r][indices[g][k]];
+				}
+				vals.add(gr);
+			}
+			for(int i=0; i<fudgeFactors.length; i++) {
+				rtrn[i][r] = vals.size() == 2 ? DifferentialScoring.computeTestStatistic(vals.get(0), vals.get(1), fudgeFactors[i], paired) : DifferentialScoring.computeTestStatistic(vals, fudgeFactors[i], paired);
+			}
+			if(useFold) {
+				rtrn[fudgeFactors.length][r] = vals.size() == 2 ? DifferentialScoring.computeFold(vals.get(0), vals.get(1)) : DifferentialScoring.computeFold(vals);
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param groups Permuted groups
+	 * @return The statistics as DifferentialScoring.computeTestStatistics returns them
+	 */
+	public MatrixWithHeaders toMatrix(List<List<String>> groups) {
+		double[][] stats = computeStatistics(groups);
+		MatrixWithHeaders rtrn = new MatrixWithHeaders(rowNames, statisticNames);
+		for(int i=0; i<stats.length; i++) {
+			for(int r=0; r<stats[i].length; r++) {
+				rtrn.set(rowNames.get(r), statisticNames.get(i), stats[i][r]);
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Compute the statistics of every permutation as a matrix
+	 * @param permutations Permuted groups
+	 * @return One matrix per permutation, in order
+	 */
+	public MatrixWithHeaders[] materialize(final List<List<List<String>>> permutations) {
+		final MatrixWithHeaders[] rtrn = new MatrixWithHeaders[permutations.size()];
+		runInParallel(permutations.size(), new PermutationTask() {
+			@Override
+			public void run(int thread, int permutation) {
+				rtrn[permutation] = toMatrix(permutations.get(permutation));
+			}
+		});
+		return rtrn;
+	}
+
+	/**
+	 * Compute the statistics of every permutation and fold them into null distributions
+	 * @param permutations Permuted groups
+	 * @return The null distributions
+	 */
+	public Summary summarize(final List<List<List<String>>> permutations) {
+		final int numStatistics = statisticNames.size();
+		final FDRNullDistribution[][] nulls = new FDRNullDistribution[numThreads][numStatistics];
+		for(int t=0; t<numThreads; t++) {
+			for(int i=0; i<numStatistics; i++) {
+				nulls[t][i] = new FDRNullDistribution();
+			}
+		}
+		final double[][] mins = new double[numStatistics][permutations.size()];
+		final double[][] maxs = new double[numStatistics][permutations.size()];
+		runInParallel(permutations.size(), new PermutationTask() {
+			@Override
+			public void run(int thread, int permutation) {
+				double[][] stats = computeStatistics(permutations.get(permutation));
+				for(int i=0; i<numStatistics; i++) {
+					nulls[thread][i].addPermutation(stats[i]);
+					mins[i][permutation] = Statistics.min(stats[i]);
+					maxs[i][permutation] = Statistics.max(stats[i]);
+				}
+			}
+		});
+		Summary rtrn = new Summary();
+		for(int i=0; i<numStatistics; i++) {
+			FDRNullDistribution merged = nulls[0][i];
+			for(int t=1; t<numThreads; t++) {
+				merged.merge(nulls[t][i]);
+			}
+			String name = statisticNames.get(i);
+			rtrn.fdrNulls.put(name, merged);
+			rtrn.permutationMins.put(name, mins[i]);
+			rtrn.permutationMaxs.put(name, maxs[i]);
+		}
+		return rtrn;
+	}
+
+	private interface PermutationTask {
+		void run(int thread, int permutation);
+	}
+
+	/**
+	 * Run the task for every permutation, thread t taking permutations t, t+numThreads, ...
+	 */
+	private void runInParallel(final int numPermutations, final PermutationTask task) {
+		if(numThreads == 1 || numPermutations <= 1) {
+			for(int p=0; p<numPermutations; p++) {
+				task.run(0, p);
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for(int t=0; t<numThreads; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						for(int p=thread; p<numPermutations; p+=numThreads) {
+							task.run(thread, p);
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Object> future : futures) {
+				future.get();
+			}
+		} catch(InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		logger.debug("Computed " + numPermutations + " permutations on " + numThreads + " threads");
+	}
+
+	/**
+	 * Null distributions of each statistic over all permutations
+	 */
+	public static class Summary {
+
+		private final Map<String, FDRNullDistribution> fdrNulls = new HashMap<String, FDRNullDistribution>();
+		private final Map<String, double[]> permutationMins = new HashMap<String, double[]>();
+		private final Map<String, double[]> permutationMaxs = new HashMap<String, double[]>();
+
+		/**
+		 * @param statistic Statistic name
+		 * @return Pooled permuted values of the statistic for FDRDistribution
+		 */
+		public FDRNullDistribution getFDRNullDistribution(String statistic) {
+			return fdrNulls.get(statistic);
+		}
+
+		/**
+		 * @param statistic Statistic name
+		 * @return Distribution of the minimum and maximum over genes of each permutation
+		 */
+		public FWERDistribution getFWERDistribution(String statistic) {
+			return new FWERDistribution(permutationMins.get(statistic), permutationMaxs.get(statistic));
+		}
+
+		/**
+		 * @return Names of the statistics
+		 */
+		public Collection<String> getStatisticNames() {
+			return fdrNulls.keySet();
+		}
+	}
+
+}
@@ -3,23 +3,54 @@ package broad.pda.differentialExpression;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 
-import Jama.Matrix;
 import broad.core.datastructures.MatrixWithHeaders;
 import broad.core.math.CombinationGenerator;
 import broad.core.math.FDRDistribution;
+import broad.core.math.FDRNullDistribution;
 
 
 public class Permutations {
 	static Logger logger = Logger.getLogger(Permutations.class.getName());
+	private static int numThreads=1;
+	
+	/**
+	 * @param threads Number of threads to compute permutations on
+	 */
+	public static void setNumThreads(int threads){
+		if(threads<1){throw new IllegalArgumentException("Number of threads must be at least 1: "+threads);}
+		numThreads=threads;
+	}
+	
+	/**
+	 * @return Number of threads to compute permutations on
+	 */
+	public static int getNumThreads(){
+		return numThreads;
+	}
+	
 	//TODO This should call permuteData for multiple groups
 	public static MatrixWithHeaders[] permuteData(MatrixWithHeaders data, Collection<String> group1, Collection<String> group2, int numberPermutations, double[] fudgeFactors, boolean useFold, boolean paired) {
-		MatrixWithHeaders[] rtrn;
+		List<List<List<String>>> permutations=drawPermutations(group1, group2, numberPermutations);
+		return new PermutationEngine(data, fudgeFactors, useFold, paired, numThreads).materialize(permutations);
+	}
+	
+	/**
+	 * Draw the permuted groups permuteData uses, without computing any statistics
+	 * All combinations if there are fewer than numberPermutations, otherwise numberPermutations random ones
+	 * @param group1 Samples in group 1
+	 * @param group2 Samples in group 2
+	 * @param numberPermutations Number of permutations
+	 * @return For each permutation, the sorted samples of the permuted group 1 and group 2
+	 */
+	public static List<List<List<String>>> drawPermutations(Collection<String> group1, Collection<String> group2, int numberPermutations) {
+		List<List<List<String>>> rtrn=new ArrayList<List<List<String>>>();
 		CombinationGenerator comb=new CombinationGenerator((group1.size()+group2.size()), group1.size());
 		ArrayList<String> samples=new ArrayList<String>();
 		samples.addAll(group1);
@@ -33,32 +64,38 @@ public class Permutations {
 		if(totalNumberPossible<numberPermutations){
 			logger.debug("Doing all "+totalNumberPossible +" permutations");
 			//do all
-			rtrn=new MatrixWithHeaders[totalNumberPossible];
-			int i=0;
 			while(comb.hasMore()){
-				System.err.print(" "+i);
 				int[] next=comb.getNext();
-				rtrn[i]=generatePermutation(data, next, samples, fudgeFactors, useFold, paired);
-				i++;
+				rtrn.add(permutedGroups(next, samples));
 			}
-			System.err.println();
 		}
 		
 		else{
 			logger.debug("Doing a random "+numberPermutations+" out of "+totalNumberPossible +" possible permutations");
 			//do numPermutations randomly
-			rtrn=new MatrixWithHeaders[numberPermutations];
 			for(int i=0; i<numberPermutations; i++){
-				System.err.print(" "+i);
 				int[] next=comb.getNextRandom();
-				rtrn[i]=generatePermutation(data, next, samples, fudgeFactors, useFold, paired);
+				rtrn.add(permutedGroups(next, samples));
 			}
-			System.err.println();
 		}
 		
 		return rtrn;
 	}
 	
+	private static List<List<String>> permutedGroups(int[] permutedIndeces, ArrayList<String> samples) {
+		Collection<String> group1=new TreeSet<String>();
+		Collection<String> group2=new TreeSet<String>();
+		for(int i=0; i<permutedIndeces.length; i++){
+			group1.add(samples.get(permutedIndeces[i]));
+		}
+		for(String sample: samples){if(!group1.contains(sample)){group2.add(sample);}}
+		logger.debug("permuted group 1: " + group1 + " perm g2: " + group2);
+		List<List<String>> rtrn=new ArrayList<List<String>>();
+		rtrn.add(new ArrayList<String>(group1));
+		rtrn.add(new ArrayList<String>(group2));
+		return rtrn;
+	}
+	
 	private static MatrixWithHeaders generatePermutation(MatrixWithHeaders data, int[] permutedIndeces, ArrayList<String> samples, double[] fudgeFactors, boolean useFold, boolean paired) {
 		Collection<String> group1=new TreeSet<String>();
 		Collection<String> group2=new TreeSet<String>();
@@ -74,14 +111,25 @@ public class Permutations {
 
 	//MG: This is a new generic constructor that supports as many groups as provided
 	public static MatrixWithHeaders[] permuteData(MatrixWithHeaders data, Map<String, Collection<String>> groups, int numberPermutations, double[] fudgeFactors, boolean useFold, boolean paired) {
+		List<List<List<String>>> permutations=drawPermutations(groups, numberPermutations);
+		return new PermutationEngine(data, fudgeFactors, useFold, paired, numThreads).materialize(permutations);
+	}
+	
+	/**
+	 * Draw the permuted groups permuteData uses for any number of groups, without computing any statistics
+	 * @param groups Samples by group
+	 * @param numberPermutations Number of permutations
+	 * @return For each permutation, the sorted samples of each permuted group in order of group name
+	 */
+	public static List<List<List<String>>> drawPermutations(Map<String, Collection<String>> groups, int numberPermutations) {
 		if(groups.size()==2){
 			Iterator<Collection<String>> iter=groups.values().iterator();
 			Collection<String> group1=iter.next();
 			Collection<String> group2=iter.next();
-			return permuteData(data, group1, group2, numberPermutations, fudgeFactors, useFold, paired);
+			return drawPermutations(group1, group2, numberPermutations);
 		}
 		
-		MatrixWithHeaders[] rtrn=new MatrixWithHeaders[numberPermutations];;
+		List<List<List<String>>> rtrn=new ArrayList<List<List<String>>>();
 		
 		//TODO How do we do this permutations systematically
 		ArrayList<String> samples=new ArrayList<String>();
@@ -90,13 +138,16 @@ public class Permutations {
 		
 		for(int i=0; i<numberPermutations; i++){
 			//Generate permuted groups
-			rtrn[i]=permutedGroups(data, fudgeFactors, useFold, paired, groups, samples);
+			Map<String, Collection<String>> permutedGroups=permutedGroups(groups, samples);
+			List<List<String>> permutation=new ArrayList<List<String>>();
+			for(String group: permutedGroups.keySet()){permutation.add(new ArrayList<String>(permutedGroups.get(group)));}
+			rtrn.add(permutation);
 		}
 				
 		return rtrn;
 	}
 
-	private static MatrixWithHeaders permutedGroups(MatrixWithHeaders data, double[] fudgeFactors, boolean useFold, boolean paired, Map<String, Collection<String>> groups, ArrayList<String> samples) {
+	private static Map<String, Collection<String>> permutedGroups(Map<String, Collection<String>> groups, ArrayList<String> samples) {
 		Map<String, Collection<String>> permutedGroups=new TreeMap<String, Collection<String>>();
 				
 		ArrayList<String> remainingSamples=new ArrayList<String>();
@@ -113,7 +164,7 @@ public class Permutations {
 			permutedGroups.put(group, list);
 		}		
 		
-		return DifferentialScoring.computeTestStatistics(data, permutedGroups, fudgeFactors, useFold, paired);
+		return permutedGroups;
 	}
 
 	
@@ -137,7 +188,7 @@ public class Permutations {
 		
 		//TODO Make part of combination generator
 		for(int i=0; i<numPerm; i++){
-			System.err.print(" "+i);
+			logger.debug("Permutation "+i);
 			//First pick the samples
 			ArrayList<String> all=new ArrayList<String>();
 			all.addAll(remainder);
@@ -159,7 +210,6 @@ public class Permutations {
 			int[] next=gen.getNextRandom();
 			rtrn[i]=generatePermutation(data, next, temp, fudgeFactors, useFold, false);
 		}
-		System.err.println();
 		
 		return rtrn;
 	}
@@ -168,66 +218,18 @@ public class Permutations {
 		MatrixWithHeaders fdr=new MatrixWithHeaders(testStats.getRowNames(), testStats.getColumnNames()); 
 		MatrixWithHeaders absFDR=new MatrixWithHeaders(testStats.getRowNames(), testStats.getColumnNames()); 
 		
-		
-		//MatrixWithHeaders[] permMatrix; //Might not want to save this
-		CombinationGenerator comb=new CombinationGenerator((group1.size()+group2.size()), group1.size());
-		ArrayList<String> samples=new ArrayList<String>();
-		samples.addAll(group1);
-		samples.addAll(group2);
-		
-		int totalNumberPossible=comb.getTotal();
-		if(totalNumberPossible<0){totalNumberPossible=1000; }//to account for overflow
-		System.err.println("Size of group1: "+group1.size()+" group2: "+group2.size()+" number of possible permutations: "+ totalNumberPossible);
-		
-		Map<String, Matrix> map=new TreeMap<String, Matrix>();
-		for(String column: testStats.getColumnNames()){
-			//make new matrix consisting of all genes by all permutations
-			Matrix matrix=new Matrix(testStats.rowDimension(), numberPermutations);
-			map.put(column, matrix);
-		}
-		
-		if(totalNumberPossible<numberPermutations){
-			System.err.println("Doing all "+totalNumberPossible +" permutations");
-			//do all
-			//permMatrix=new MatrixWithHeaders[totalNumberPossible];
-			int i=0;
-			while(comb.hasMore()){
-				//for each permutation
-				System.err.print(" "+i);
-				int[] next=comb.getNext();
-				MatrixWithHeaders perm=generatePermutation(data, next, samples, fudgeFactors, useFold, paired); //test stat scores for perm
-				for(String column: perm.getColumnNames()){
-					Matrix matrix=map.get(column);
-					matrix.setColumn(i, perm.getColumn(column));
-					map.put(column, matrix);
-				}
-				i++;
-			}
-			System.err.println();
-		}
-		
-		else{
-			System.err.println("Doing a random "+numberPermutations+" out of "+totalNumberPossible +" possible permutations");
-			//do numPermutations randomly
-			//permMatrix=new MatrixWithHeaders[numberPermutations];
-			for(int i=0; i<numberPermutations; i++){
-				System.err.print(" "+i);
-				int[] next=comb.getNextRandom();
-				MatrixWithHeaders perm=generatePermutation(data, next, samples, fudgeFactors, useFold, paired); //test stat scores for perm
-				for(String column: perm.getColumnNames()){
-					Matrix matrix=map.get(column);
-					matrix.setColumn(i, perm.getColumn(column));
-					map.put(column, matrix);
-				}				
-			}
-			System.err.println();
-		}
-		
+		//Each permutation is folded into the null distributions as soon as it is computed
+		List<List<List<String>>> permutations=drawPermutations(group1, group2, numberPermutations);
+		PermutationEngine.Summary summary=new PermutationEngine(data, fudgeFactors, useFold, paired, numThreads).summarize(permutations);
 		
 		for(String column: testStats.getColumnNames()){
 			double[] observed=testStats.getColumn(column);
-			Matrix matrix=map.get(column);
-			FDRDistribution dist=new FDRDistribution(observed, matrix, alpha);
+			FDRNullDistribution nullDist=summary.getFDRNullDistribution(column);
+			//When all combinations are fewer than numberPermutations, the remaining permutations count as all zero
+			for(int i=permutations.size(); i<numberPermutations; i++){
+				nullDist.addPermutation(new double[testStats.rowDimension()]);
+			}
+			FDRDistribution dist=new FDRDistribution(observed, nullDist, alpha);
 			for(String row: testStats.getRowNames()){
 				//get test-stat value
 				double val=testStats.get(row, column);
@@ -706,10 +706,11 @@ public class RunDifferentialExpression {
 		boolean preprocess=new Boolean(args[4]);
 		double alpha=new Double(args[5]);
 		int perm=new Integer(args[6]);
+		if(args.length>7){Permutations.setNumThreads(new Integer(args[7]));}
 		new RunDifferentialExpression(gctFile, experimentInfo, chipFile, save, preprocess, alpha, perm);
 		}
 		else{System.err.println(usage);}
 	}
 
-	static String usage=" args[0]=gct file \n args[1]=experimentInfo \n args[2]=chip file \n args[3]=save \n args[4]=preprocess \n args[5]=alpha \n args[6]=numPerm";
+	static String usage=" args[0]=gct file \n args[1]=experimentInfo \n args[2]=chip file \n args[3]=save \n args[4]=preprocess \n args[5]=alpha \n args[6]=numPerm \n args[7]=number of threads for permutations (optional, default 1)";
 }
@@ -3,11 +3,18 @@ package broad.pda.geneexpression.clustering;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.forester.phylogeny.Phylogeny;
 import org.forester.phylogeny.PhylogenyNode;
@@ -28,6 +35,15 @@ public class HierarchicalClustering {
 	ClusterDistanceFunction distanceFunction;
 	ArrayList<Cluster>  initialColumnClusters;
 	ArrayList<Cluster>  initialRowClusters;
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	
+	private static final int COMPLETE = 0;
+	private static final int SINGLE = 1;
+	private static final int AVERAGE = 2;
+	private static final int PEARSON = 0;
+	private static final int ABSOLUTE_PEARSON = 1;
+	private static final int EUCLIDEAN = 2;
+	private static final int OTHER = 3;
 	
 	public HierarchicalClustering(MatrixWithHeaders data) {
 		this(data, null, null);
@@ -73,6 +89,13 @@ public class HierarchicalClustering {
 		}
 	}
 	
+	/**
+	 * @param numThreads Number of threads computing the distance matrix
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+	
 	public void cluster (boolean clusterRow, boolean clusterColumn) {
 		if(clusterColumn){
 			System.err.println("Clustering columns");
@@ -94,127 +117,333 @@ public class HierarchicalClustering {
 		}
 	}
 	
+	/**
+	 * Agglomerate the initial clusters with the nearest neighbor chain algorithm (Murtagh 1983; Mullner, "Modern hierarchical,
+	 * agglomerative clustering algorithms", 2011) over a condensed float matrix of cluster distances, updated at each merge with the
+	 * Lance-Williams formula of the linkage. This takes O(n^2) time and n(n-1)/2 floats instead of rescanning all cluster pairs at each level.
+	 * The merges are replayed in order of distance, so the tree, the names and the scores are those of merging the closest pair at each level
+	 * when the merge distances are distinct
+	 */
 	private Cluster createCluster( boolean columns) {
-		ArrayList<Cluster> initialClusters = columns? initialColumnClusters : initialRowClusters; 
-		ArrayList<Cluster> clusters = initialClusters;
+		ArrayList<Cluster> initialClusters = columns? initialColumnClusters : initialRowClusters;
+		int n = initialClusters.size();
+		if(n == 1) {
+			return initialClusters.get(0);
+		}
+		if((long) n * (n - 1) / 2 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Can not cluster " + n + " items, the distance matrix would have more than " + Integer.MAX_VALUE + " entries");
+		}
+		int linkage = getLinkageCode();
+		int[] rowStart = new int[n];
+		for(int i=1; i<n; i++) {
+			rowStart[i] = rowStart[i-1] + n - i;
+		}
 
-		System.err.print("Computing similarity matrix .. ");
+		System.err.print("Computing distance matrix .. ");
 		long pTime = System.nanoTime();
-		//TODO: repeace similarityMat with a HashTable it is a much smaller structure when the groups are large 
-		// and the number of pairwise distances compared is smaller.
-		MatrixWithHeaders similarityMat = makeSimilarityMatrix(columns);
+		float[] distances = makeDistanceMatrix(initialClusters, rowStart, linkage, columns);
 		System.err.println(" done  " +  (System.nanoTime() - pTime)/1000000);
-		int level=0;
-		while(clusters.size()>1){
-			double minDistance=Double.MAX_VALUE;
-			int iMin=-1;
-			int jMin=-1;
-			
-			//Matrix similarityMatrix = new Matrix(initialClusters.size(), );
-			
-			System.err.print("level "+level);
-			pTime = System.nanoTime();
-			for(int i=0; i<initialClusters.size(); i++){
-				for(int j=i; j<initialClusters.size(); j++){
-					if(i!=j){
-						Cluster cluster1=initialClusters.get(i);
-						Cluster cluster2=initialClusters.get(j);
-						double p=distance(cluster1, cluster2, similarityMat, columns);
-						if(p<minDistance){
-							minDistance=p;
-							iMin=i;
-							jMin=j;
+
+		System.err.print("Merging " + n + " clusters .. ");
+		pTime = System.nanoTime();
+		int[] sizes = new int[n];
+		for(int i=0; i<n; i++) {
+			sizes[i] = initialClusters.get(i).getMembers().size();
+		}
+		int[] mergedSlot = new int[n-1];
+		int[] keptSlot = new int[n-1];
+		float[] mergeDistance = new float[n-1];
+		nearestNeighborChain(distances, rowStart, sizes, linkage, mergedSlot, keptSlot, mergeDistance);
+		Cluster rtrn = buildTree(initialClusters, mergedSlot, keptSlot, mergeDistance);
+		System.err.println(" done  " +  (System.nanoTime() - pTime)/1000000);
+		return rtrn;
+	}
+
+	private int getLinkageCode() throws IllegalStateException {
+		if(metric.equalsIgnoreCase("complete")) {
+			return COMPLETE;
+		} else if(metric.equalsIgnoreCase("single")) {
+			return SINGLE;
+		} else if(metric.equalsIgnoreCase("average")) {
+			return AVERAGE;
+		}
+		throw new IllegalStateException("Linkage was " + metric + " it can only be one of complete, single or average, the HierarchicalCluster object is badly set up.");
+	}
+
+	/**
+	 * Distances between the initial clusters, with entry (i, j), i < j, at rowStart[i] + j - i - 1
+	 * Rows are computed in parallel. Pearson distances are dot products of vectors standardized once
+	 */
+	private float[] makeDistanceMatrix(final List<Cluster> clusters, final int[] rowStart, final int linkage, boolean columns) {
+		final int n = clusters.size();
+		final float[] rtrn = new float[(int) ((long) n * (n - 1) / 2)];
+		final int[][] members = new int[n][];
+		List<double[]> vectors = new ArrayList<double[]>();
+		for(int i=0; i<n; i++) {
+			Collection<String> names = clusters.get(i).getMembers();
+			members[i] = new int[names.size()];
+			int m = 0;
+			for(String name : names) {
+				members[i][m++] = vectors.size();
+				vectors.add(getData(data, name, columns));
+			}
+		}
+		final int distance = getDistanceCode();
+		final double[][] points = prepare(vectors, distance);
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		// Row i has n-i-1 entries, so interleave the rows to balance the tasks
+		final int numTasks = Math.min(n, 4 * numThreads);
+		for(int t=0; t<numTasks; t++) {
+			final int firstRow = t;
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					for(int i=firstRow; i<n; i+=numTasks) {
+						for(int j=i+1; j<n; j++) {
+							rtrn[rowStart[i] + j - i - 1] = (float) clusterDistance(points, members[i], members[j], distance, linkage);
 						}
 					}
+					return null;
 				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			for(Future<Object> future : executor.invokeAll(tasks)) {
+				future.get();
 			}
-			System.err.println(" done  " +  (System.nanoTime() - pTime)/1000000);
-			Cluster cluster1=clusters.get(iMin);
-			Cluster cluster2=clusters.get(jMin);
-			//System.err.println(minDistance+" "+iMin+" "+jMin+" "+cluster1.getMembers()+" "+cluster2.getMembers());
-			
-			
-			clusters.remove(cluster1);
-			clusters.remove(cluster2);
-			Cluster merged=merge(cluster1, cluster2);
-			merged.setScore(minDistance);
-			clusters.add(merged);
-			level++;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
 		}
-		
-		return clusters.get(0);
+		return rtrn;
 	}
-	
-	private MatrixWithHeaders makeSimilarityMatrix(boolean columns)  throws IllegalStateException{
-		List<String> rowColNames = columns? data.getColumnNames() : data.getRowNames();
-		MatrixWithHeaders similarityMat = new MatrixWithHeaders(rowColNames, rowColNames);
-		/*for(String r : rowColNames) {
-			for(String c : rowColNames) {
-				if(!c.equals(r)) {
-					double[] vals1=getData(data, r, columns);
-					double[] vals2=getData(data, c, columns);
-					double d=distanceFunction.measure(vals1, vals2);
-					similarityMat.set(r,c,d);
+
+	/**
+	 * Distance between clusters of several members, as the linkage of the distances between their members
+	 */
+	private double clusterDistance(double[][] points, int[] members1, int[] members2, int distance, int linkage) {
+		if(members1.length == 1 && members2.length == 1) {
+			return pointDistance(points[members1[0]], points[members2[0]], distance);
+		}
+		double dist = linkage == SINGLE ? Double.MAX_VALUE : 0;
+		for(int member1 : members1) {
+			for(int member2 : members2) {
+				double d = pointDistance(points[member1], points[member2], distance);
+				if(linkage == COMPLETE) {
+					if(d>dist){dist=d;}
+				} else if(linkage == SINGLE) {
+					if(d<dist){dist=d;}
+				} else {
+					dist += d;
 				}
 			}
-		}*/
-		
-		return similarityMat;
+		}
+		if(linkage == AVERAGE) {
+			dist = dist/(double)(members1.length * members2.length);
+		}
+		return dist;
 	}
-	
-	
-	private double distance(Cluster cluster1, Cluster cluster2, MatrixWithHeaders similarityMat, boolean columns) throws IllegalStateException{
-		double dist = 0;
-		
-		if(metric.equalsIgnoreCase("complete")){
-			for(String member1: cluster1.getMembers()){
-				for(String member2: cluster2.getMembers()){
-					//double t = System.nanoTime();
-					double d=getOrUpdateDistance(member1, member2, similarityMat, columns) ;
-					//System.err.println("Too " + (System.nanoTime() - t)/1000000000 + " to compute dist ("+member1+","+member2+")");
-					
-					if(d>dist){dist=d;}
-				}
+
+	/**
+	 * Vectors as pointDistance takes them: centered and scaled to unit length for Pearson distances, unchanged otherwise
+	 */
+	private static double[][] prepare(List<double[]> vectors, int distance) {
+		double[][] rtrn = new double[vectors.size()][];
+		boolean pearson = distance == PEARSON || distance == ABSOLUTE_PEARSON;
+		for(int i=0; i<rtrn.length; i++) {
+			double[] vals = vectors.get(i);
+			if(!pearson) {
+				rtrn[i] = vals;
+				continue;
 			}
-		}else if(metric.equalsIgnoreCase("single")){
-			dist = Double.MAX_VALUE;
-			for(String member1: cluster1.getMembers()){
-				for(String member2: cluster2.getMembers()){
-					double d=getOrUpdateDistance(member1, member2, similarityMat, columns);
-					
-					if(d<dist){dist=d;}
-				}
+			double mean = Statistics.average(vals);
+			double sumSquares = 0;
+			double[] standardized = new double[vals.length];
+			for(int k=0; k<vals.length; k++) {
+				standardized[k] = vals[k] - mean;
+				sumSquares += standardized[k] * standardized[k];
 			}
-		}else if(metric.equalsIgnoreCase("average")){
-			for(String member1: cluster1.getMembers()){
-				for(String member2: cluster2.getMembers()){
-					double d=getOrUpdateDistance(member1, member2, similarityMat, columns);
-					dist += d;
+			// A constant vector has undefined correlation, as in Statistics.pearsonDistance
+			double norm = Math.sqrt(sumSquares);
+			for(int k=0; k<vals.length; k++) {
+				standardized[k] /= norm;
+			}
+			rtrn[i] = standardized;
+		}
+		return rtrn;
+	}
+
+	private double pointDistance(double[] a, double[] b, int distance) {
+		if(distance == PEARSON || distance == ABSOLUTE_PEARSON) {
+			double r = 0;
+			for(int k=0; k<a.length; k++) {
+				r += a[k] * b[k];
+			}
+			return distance == PEARSON ? 1 - r : 1 - Math.abs(r);
+		} else if(distance == EUCLIDEAN) {
+			double sum = 0;
+			for(int k=0; k<a.length; k++) {
+				double d = a[k] - b[k];
+				sum += d * d;
+			}
+			return Math.sqrt(sum);
+		}
+		return distanceFunction.measure(a, b);
+	}
+
+	/**
+	 * @return Which distance function pointDistance computes itself, OTHER to call the function
+	 */
+	private int getDistanceCode() {
+		if(distanceFunction.getClass().equals(PearsonDistance.class)) {
+			return PEARSON;
+		} else if(distanceFunction.getClass().equals(AbsolutePearsonFunction.class)) {
+			return ABSOLUTE_PEARSON;
+		} else if(distanceFunction.getClass().equals(EuclideanDistance.class)) {
+			return EUCLIDEAN;
+		}
+		return OTHER;
+	}
+
+	/**
+	 * Follow chains of nearest neighbors until two clusters are each other's nearest neighbor and merge them.
+	 * The merged cluster takes the slot of the higher index and its distances are updated with the Lance-Williams formula
+	 * @param distances Condensed distance matrix of the initial clusters, overwritten
+	 * @param sizes Number of members of the initial clusters, overwritten
+	 * @param mergedSlot Filled with the slot that is freed by each merge
+	 * @param keptSlot Filled with the slot that holds each merged cluster
+	 * @param mergeDistance Filled with the distance of each merge
+	 */
+	private static void nearestNeighborChain(float[] distances, int[] rowStart, int[] sizes, int linkage, int[] mergedSlot, int[] keptSlot, float[] mergeDistance) {
+		int n = sizes.length;
+		boolean[] active = new boolean[n];
+		Arrays.fill(active, true);
+		int[] chain = new int[n];
+		int chainLength = 0;
+		for(int step=0; step<n-1; step++) {
+			if(chainLength == 0) {
+				int first = 0;
+				while(!active[first]) first++;
+				chain[chainLength++] = first;
+			}
+			int x;
+			int y;
+			float min;
+			while(true) {
+				x = chain[chainLength-1];
+				// Prefer the previous cluster of the chain on ties, so the chain can not cycle
+				if(chainLength > 1) {
+					y = chain[chainLength-2];
+					min = distances[index(rowStart, x, y)];
+				} else {
+					y = -1;
+					min = Float.POSITIVE_INFINITY;
+				}
+				for(int k=0; k<x; k++) {
+					if(active[k] && distances[rowStart[k] + x - k - 1] < min) {
+						min = distances[rowStart[k] + x - k - 1];
+						y = k;
+					}
+				}
+				for(int k=x+1; k<n; k++) {
+					if(active[k] && distances[rowStart[x] + k - x - 1] < min) {
+						min = distances[rowStart[x] + k - x - 1];
+						y = k;
+					}
 				}
+				if(y < 0) {
+					throw new IllegalArgumentException("Distances of cluster " + x + " to all other clusters are undefined");
+				}
+				if(chainLength > 1 && y == chain[chainLength-2]) {
+					break;
+				}
+				chain[chainLength++] = y;
+			}
+			chainLength -= 2;
+
+			int a = Math.min(x, y);
+			int b = Math.max(x, y);
+			mergedSlot[step] = a;
+			keptSlot[step] = b;
+			mergeDistance[step] = min;
+			active[a] = false;
+			for(int k=0; k<n; k++) {
+				if(!active[k] || k == b) continue;
+				int ib = index(rowStart, k, b);
+				distances[ib] = lanceWilliams(distances[index(rowStart, k, a)], distances[ib], sizes[a], sizes[b], linkage);
 			}
-			dist =  dist/(double)(cluster1.getMembers().size() * cluster2.getMembers().size());
+			sizes[b] += sizes[a];
 		}
-		else{
-			throw new IllegalStateException("Linkage was " + metric + " it can only be one of complete, single or average, the HierarchicalCluster object is badly set up.");
+	}
+
+	private static int index(int[] rowStart, int i, int j) {
+		return i < j ? rowStart[i] + j - i - 1 : rowStart[j] + i - j - 1;
+	}
+
+	/**
+	 * Distance from a cluster to the merge of clusters a and b. Undefined distances are skipped by single and complete linkage
+	 */
+	private static float lanceWilliams(float toA, float toB, int sizeA, int sizeB, int linkage) {
+		if(linkage == SINGLE) {
+			return toA < toB || Float.isNaN(toB) ? toA : toB;
+		} else if(linkage == COMPLETE) {
+			return toA > toB || Float.isNaN(toB) ? toA : toB;
 		}
-		
-		return dist;	
-		
+		return (float) (((double) sizeA * toA + (double) sizeB * toB) / (sizeA + sizeB));
 	}
-	
-	
-	private double getOrUpdateDistance(String member1, String member2, MatrixWithHeaders similarityMat, boolean columns) {
-		double dist = similarityMat.get(member1, member2);
-		if(dist == 0 && !member1.equals(member2)) {
-			//System.err.println("Hummm... computing dist ("+member1+","+member2+")");
-			double[] vals1=getData(data, member1, columns);
-			double[] vals2=getData(data, member2, columns);
-			dist=distanceFunction.measure(vals1, vals2);
-			similarityMat.set(member1,member2,dist);
-			similarityMat.set(member2, member1,dist);
+
+	/**
+	 * Build the clusters from the merges in increasing distance, naming each merge first by the cluster that was made or listed first
+	 */
+	private Cluster buildTree(List<Cluster> initialClusters, int[] mergedSlot, int[] keptSlot, final float[] mergeDistance) {
+		int n = initialClusters.size();
+		Integer[] order = new Integer[n-1];
+		for(int i=0; i<order.length; i++) {
+			order[i] = Integer.valueOf(i);
 		}
-		
-		return dist;
+		// Stable, so a merge stays after the merges that made its clusters
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Float.compare(mergeDistance[o1.intValue()], mergeDistance[o2.intValue()]);
+			}
+		});
+		int[] parent = new int[n];
+		int[] created = new int[n];
+		Cluster[] clusters = new Cluster[n];
+		for(int i=0; i<n; i++) {
+			parent[i] = i;
+			created[i] = i;
+			clusters[i] = initialClusters.get(i);
+		}
+		for(int level=0; level<order.length; level++) {
+			int m = order[level].intValue();
+			int a = find(parent, mergedSlot[m]);
+			int b = find(parent, keptSlot[m]);
+			Cluster merged = created[a] < created[b] ? merge(clusters[a], clusters[b]) : merge(clusters[b], clusters[a]);
+			merged.setScore(mergeDistance[m]);
+			parent[a] = b;
+			clusters[b] = merged;
+			created[b] = n + level;
+		}
+		return clusters[find(parent, 0)];
+	}
+
+	private static int find(int[] parent, int i) {
+		while(parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
 	}
 
 	private double distanceOld(Cluster cluster1, Cluster cluster2, String metric, MatrixWithHeaders data, boolean columns) {
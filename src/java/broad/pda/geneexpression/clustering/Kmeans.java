@@ -3,10 +3,12 @@ package broad.pda.geneexpression.clustering;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 import broad.core.datastructures.MatrixWithHeaders;
 import broad.core.math.Statistics;
@@ -17,36 +19,87 @@ public class Kmeans {
 	MatrixWithHeaders data;
 	MatrixWithHeaders initialCentroids;
 	KmeansInfo currentClusters;
-	KmeansInfo newClusters;
 	int K;
 	String distMetric; //eclidean,pearson,JS
 	SilhouetteInfo silhouette;
+	KmeansEngine engine;
+	List<String> clusterNames;
+	int batchSize;
+	Random random;
 	
 	
   public Kmeans(MatrixWithHeaders mat, MatrixWithHeaders initCentroids, int numOfClusters,String distanceMetric){
+	 this(mat, initCentroids, numOfClusters, distanceMetric, 0, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param mat Data, clustering its rows
+   * @param initCentroids Initial centroids or null, completed with k-means++ seeding if there are fewer than numOfClusters
+   * @param numOfClusters Number of clusters
+   * @param distanceMetric euclidean, pearson or JS
+   * @param batchSize Number of rows in each mini-batch, or 0 to iterate over all rows
+   * @param numThreads Number of threads assigning rows to centroids
+   */
+  public Kmeans(MatrixWithHeaders mat, MatrixWithHeaders initCentroids, int numOfClusters,String distanceMetric, int batchSize, int numThreads){
+	 this(mat, initCentroids, numOfClusters, distanceMetric, batchSize, numThreads, 0);
+  }
+
+  /**
+   * @param mat Data, clustering its rows
+   * @param initCentroids Initial centroids or null, completed with k-means++ seeding if there are fewer than numOfClusters
+   * @param numOfClusters Number of clusters
+   * @param distanceMetric euclidean, pearson or JS
+   * @param batchSize Number of rows in each mini-batch, or 0 to iterate over all rows
+   * @param numThreads Number of threads assigning rows to centroids
+   * @param tolerance Stop when no centroid moves further than this, or 0 to stop when no row changes cluster
+   */
+  public Kmeans(MatrixWithHeaders mat, MatrixWithHeaders initCentroids, int numOfClusters,String distanceMetric, int batchSize, int numThreads, double tolerance){
 	 this.data=mat;
-	 this.initialCentroids=initCentroids;
 	 this.K=numOfClusters;
 	 this.distMetric=distanceMetric;
 	 this.silhouette= new SilhouetteInfo();
+	 this.batchSize=batchSize;
+	 this.random=new Random();
 	 
 	 if(distMetric.equalsIgnoreCase("JS"))
 		 this.data=JSnormalize(mat);
-	 	 
-	 if (initCentroids==null)
-		 this.initialCentroids=generateRandomCenters(mat,K);
-	 //If the number of predefined centroids is smaller than k add random centroids
-	 else if (initCentroids.rowDimension() < this.K)
-		 addRandomCenters(initCentroids,mat);
-	
-	 MatrixWithHeaders distMat= new MatrixWithHeaders(mat.getRowNames(),this.initialCentroids.getRowNames());
-	 this.currentClusters=new KmeansInfo(this.initialCentroids,distMat,this.K);
-	 this.newClusters=new KmeansInfo(this.initialCentroids,distMat,this.K);
+	 
+	 this.engine=new KmeansEngine(toRowMajor(this.data), this.data.rowDimension(), this.data.columnDimension(), distanceMetric);
+	 this.engine.setNumThreads(numThreads);
+	 this.engine.setTolerance(tolerance);
+	 
+	 //If the number of predefined centroids is smaller than k add k-means++ centroids
+	 int numGiven=initCentroids==null ? 0 : Math.min(initCentroids.rowDimension(), this.K);
+	 double[] given=new double[numGiven*this.data.columnDimension()];
+	 this.clusterNames=new ArrayList<String>();
+	 for (int i=0; i<numGiven; i++){
+		 System.arraycopy(initCentroids.getRow(i), 0, given, i*this.data.columnDimension(), this.data.columnDimension());
+		 this.clusterNames.add(initCentroids.getRowName(i));
+	 }
+	 for (int i=numGiven; i<this.K; i++)
+		 this.clusterNames.add(String.valueOf(i+1));
+	 this.engine.initialize(given, numGiven, this.K, this.random);
+	 this.initialCentroids=toCentroidMatrix(this.engine.getCentroids());
 
 	 this.runKmeans();
   }
 
   
+  private static double[] toRowMajor(MatrixWithHeaders mat) {
+	  int numColumns=mat.columnDimension();
+	  double[] res=new double[mat.rowDimension()*numColumns];
+	  for (int i=0; i<mat.rowDimension(); i++)
+		  System.arraycopy(mat.getRow(i), 0, res, i*numColumns, numColumns);
+	  return res;
+  }
+  
+  private MatrixWithHeaders toCentroidMatrix(double[] centroids) {
+	  int numColumns=this.data.columnDimension();
+	  MatrixWithHeaders res=new MatrixWithHeaders(this.clusterNames,this.data.getColumnNames());
+	  for (int k=0; k<this.K; k++)
+		  res.setRow(this.clusterNames.get(k), Arrays.copyOfRange(centroids, k*numColumns, (k+1)*numColumns));
+	  return res;
+  }
   
 
 private MatrixWithHeaders JSnormalize(MatrixWithHeaders mat) {
@@ -58,23 +111,17 @@ private MatrixWithHeaders JSnormalize(MatrixWithHeaders mat) {
 		return res;
 	}
 
-//assign random cluster to each data row, calc the random centroids
-  private MatrixWithHeaders generateRandomCenters(MatrixWithHeaders mat, int k) {
-	
-	List<String> clusterNames=new LinkedList<String>();
-	for (int i=1; i<=k ; i++)
-		clusterNames.add(String.valueOf(i));
-	MatrixWithHeaders distMat= new MatrixWithHeaders(mat.getRowNames(),clusterNames);
-	MatrixWithHeaders centroids=new MatrixWithHeaders(clusterNames,mat.getColumnNames());	 
-	KmeansInfo clusters =new KmeansInfo (centroids,distMat,k);
-	clusters.assignRandomClusters(mat,k);
-	MatrixWithHeaders res=calcCentroids(clusters);
-	return res;
+  //Centroid shift at which runKmeans stops; 0 runs until no row changes cluster
+  public void setTolerance(double tolerance){
+	  this.engine.setTolerance(tolerance);
   }
 
-  
-  //This implementation runs one gene per iteration
-  
+  //Stops the threads of the engine once the clusters and silhouettes are computed
+  public void close(){
+	  this.engine.close();
+  }
+
+  //Runs the engine over all rows, or over mini-batches if a batch size is set, and stores the clusters by name
 public void runKmeans(){
   
 	        // Asserts
@@ -82,185 +129,25 @@ public void runKmeans(){
 	        	System.err.println("USAGE: num of cluster shoud be postive and number of samples > num of clusters");
 	        	return;
 	        }
-	        int count=1;
-	        
-	        //Initialize 
-	        calcDistanceFromCentroids(this.currentClusters);
-	        AssignSamplesToClosestCentroid(this.currentClusters);
-	        //M
-	        System.err.println("After initilaize Line 91");
-	        this.currentClusters.printClusterSizes();
-	        System.err.println();
+	        int count;
+	        if (this.batchSize > 0)
+	        	count=this.engine.runMiniBatch(this.batchSize, this.random);
+	        else
+	        	count=this.engine.run(this.random);
+	        System.err.println("Run " + count + "  kmeans iterations");
 	        
-	        //Iterate
-	        while(true){
-	        	//kmeansIteration();
-	        	kmeansByGeneIteration();
-	        	System.err.println( count + "  kmeans iterations");
-	        	 count+=1;
-	        	//if (isStableClusters(this.currentClusters,this.newClusters,0.05))
-	        		//break;
-	        	if (this.isIdenticalClusters(this.currentClusters,this.newClusters))
-	        		break;
-	        	this.currentClusters = this.newClusters;
-               
+	        MatrixWithHeaders distMat= new MatrixWithHeaders(this.data.getRowNames(),this.clusterNames);
+	        this.currentClusters=new KmeansInfo(toCentroidMatrix(this.engine.getCentroids()),distMat,this.K);
+	        int[] labels=this.engine.getLabels();
+	        for (int i=0; i<this.data.rowDimension(); i++){
+	        	String name=this.data.getRowName(i);
+	        	String cluster= labels[i]==KmeansEngine.UNASSIGNED ? String.valueOf(this.K+1) : this.clusterNames.get(labels[i]);
+	        	this.currentClusters.sampleClusterAssignment.put(name, cluster);
+	        	this.currentClusters.clusterSampleAssignment.get(cluster).add(name);
 	        }
-	        System.err.println("Run " + count + "  kmeans iterations");
-	        this.currentClusters = this.newClusters;
+	        this.currentClusters.printClusterSizes();
   }
  
-  
-  private boolean isIdenticalClusters(KmeansInfo c1,KmeansInfo c2) {
-	boolean res=true;
-	for (String name:c1.sampleClusterAssignment.keySet()){
-		if (! c1.sampleClusterAssignment.get(name).equalsIgnoreCase(c2.sampleClusterAssignment.get(name))){
-			res=false; 
-			break;
-		}
-	}
-	return res;
- }
-
-  //Check if all clusters didn't change in more than x precent
-  private boolean isStableClusters(KmeansInfo c1,KmeansInfo c2,double pct) {
-		boolean res=true;
-		for (String name:c1.clusterSampleAssignment.keySet()){
-			List<String> l1=c1.clusterSampleAssignment.get(name);
-			if (! c2.clusterSampleAssignment.containsKey(name))
-				continue;
-			List<String> l2=c2.clusterSampleAssignment.get(name);
-			double inter=0.0;
-			for (String s:l1){
-				if (l2.contains(s))
-					inter++;
-			}
-			//if new cluster is larger than old in more than x% , or previous 
-			//cluster got small in x% , cluster is not stable
-			double len2=l2.size();
-			double len1=l1.size();
-			
-			if (((len1-inter)/len1) > pct || ((len2-len1)/len1) > pct )
-				res=false; break;
-		}
-		return res;
-  }
-  
- private void kmeansByGeneIteration(){
-	  //Calculate centroids
-	  MatrixWithHeaders new_centroids=calcCentroids(this.currentClusters);
-	  MatrixWithHeaders distMat=new MatrixWithHeaders(this.data.getRowNames(),new_centroids.getRowNames());
-	  this.newClusters=new KmeansInfo(new_centroids,distMat,this.K);
-	  //Initialize cluster assigment information
-	  this.newClusters.UpdateSampleClusterAssignment(this.currentClusters.sampleClusterAssignment);
-	  
-	  
-	  //Iterate over genes- assign gene to the closest centroid,
-	  //recalc the centroids of the clusters that changed
-	  for (int g=0; g<this.data.rowDimension(); g++){
-		 double[] dist= calcGeneDistanceFromCentroids(this.newClusters,g);
-		 assignGeneToNewCluster(this.newClusters,g,dist);
-	  }
-	  
-      
-  }
-  
-
-
-
-
-
-
-private void kmeansIteration(){
-
-	  //Calculate centroids
-	  MatrixWithHeaders new_centroids=calcCentroids(this.currentClusters);
-	  MatrixWithHeaders distMat=new MatrixWithHeaders(this.data.getRowNames(),new_centroids.getRowNames());
-	  this.newClusters=new KmeansInfo(new_centroids,distMat,this.K);
-      // Calc distance of all points from k centroids
-      calcDistanceFromCentroids(this.newClusters);
-      //Assign each sample to the closest centroid
-      AssignSamplesToClosestCentroid(this.newClusters);
-  }
-  
-  private void AssignSamplesToClosestCentroid(KmeansInfo clusters) { 
-	  int j=0;
-	  HashMap<String, List<String>> cs_map=new HashMap<String, List<String>>(); 
-	  for (int i=0; i<this.data.rowDimension(); i++){
-		  String name=this.data.getRowName(i);
-		  double [] dists= clusters.centroidDist.getRow(i);
-		  double minVal=Statistics.min(dists);
-		  String cluster;
-		  if (Double.isNaN(minVal) )
-			  cluster=String.valueOf(this.K+1);
-		  else{
-			  for (j=0; j<dists.length; j++)
-			  {if (dists[j]==minVal) break; }
-			  cluster=clusters.centroids.getRowName(j);
-		  }
-		  clusters.sampleClusterAssignment.put(name, cluster );
-		  if(! cs_map.containsKey(cluster)){
-			  cs_map.put(cluster, new LinkedList<String>());
-		  }
-		  cs_map.get(cluster).add(name);
-	  }
-	  
-	  //in case there are empty clusters - pick a random sample and make it a new cluster on 1 member
-	  List<String> emptyList=clusters.areThereEmptyClusters(cs_map);
-	  if( ! emptyList.isEmpty()){
-		  
-			  for(int i=0; i<emptyList.size(); i++){
-				  String cluster=emptyList.get(i);
-				  if (cluster.equalsIgnoreCase(String.valueOf(K+1))) // if the outliers cluster is empty- move on
-						  continue;
-				  String randname;
-				  while(true){
-					  int randSampleIx=new Double(Math.random()* (this.data.rowDimension()-1)).intValue();
-					  randname=this.data.getRowName(randSampleIx);
-					  if (cs_map.get(clusters.sampleClusterAssignment.get(randname)).size() >= 2)
-						  break;
-				  }
-				  String prevCluster=clusters.sampleClusterAssignment.get(randname);
-				  cs_map.get(prevCluster).remove(randname);
-				  clusters.sampleClusterAssignment.put(randname, cluster );
-				  if(! cs_map.containsKey(cluster)){
-					  cs_map.put(cluster, new LinkedList<String>());
-				  }
-				  cs_map.get(cluster).add(randname);
-			  }
-	  }
-	   
-	  clusters.clusterSampleAssignment=cs_map;	  
-  }
-
-//calculate centroids - doesn't update clusters 
-  private MatrixWithHeaders calcCentroids(KmeansInfo clusters){
-	  
-      MatrixWithHeaders centMat = new MatrixWithHeaders(clusters.centroids.getRowNames(),clusters.centroids.getColumnNames());
-      for (int i=0; i<K; i++){
-    	  String clusterName=centMat.getRowName(i);
-    	  double[] avPattern= calcCentroids(clusters, clusterName);
-    	  centMat.setRow(clusterName, avPattern);
-      }
-      return centMat;
-          
-  }
-  
-  private double[] calcCentroids(KmeansInfo clusters,String clusterName){
-	  
-	  double[] avPattern=new double[clusters.centroids.columnDimension()];
-	  if (! clusters.clusterSampleAssignment.containsKey(clusterName))
-		  System.err.println(clusterName + " was not found");
-	  List<String> samples = clusters.clusterSampleAssignment.get(clusterName);
-	  
-	  
-	  MatrixWithHeaders submat= this.data.submatrixByRowNames(samples);
-	  if (submat != null)
-		  avPattern=submat.getMeanOverAllRows();
-	  else
-	  {for (int j=0; j<avPattern.length; j++) avPattern[j]=Double.NaN; }
-	  return  avPattern;
-  }
-  
   //update clusters
   private void calcDistanceFromCentroids(KmeansInfo clusters) {	
 	  for (int i=0; i<data.rowDimension(); i++){
@@ -273,42 +160,6 @@ private void kmeansIteration(){
   }
   
   
-  private double[] calcGeneDistanceFromCentroids(KmeansInfo clusters, int geneNum) {
-		double[] res=new double[this.K];
-		for (int k=0; k<this.K; k++)
-			 res[k]= distance(this.data.getRow(geneNum),clusters.centroids.getRow(k));	
-		return res;
-	}
-  
-  //assigns gene to a new cluster and updates the centroids of the leaving and entering clusters
-  private void assignGeneToNewCluster(KmeansInfo clusters, int geneNum,double[] dists) {
-
-	  double minVal=Statistics.min(dists);
-	  int j=0;
-	  String geneName=this.data.getRowName(geneNum);
-	  String newCluster;
-	  String oldCluster=clusters.sampleClusterAssignment.get(geneName);
-	  if (Double.isNaN(minVal) )
-		  newCluster=String.valueOf(this.K+1);
-	  else{
-		  for ( j=0; j<dists.length; j++)
-		  {if (dists[j]==minVal) break; }
-		  newCluster=clusters.centroids.getRowName(j);
-	  }
-	  //If the gene should be reassigned
-	  if (! newCluster.equals(oldCluster)){
-		  clusters.clusterSampleAssignment.get(oldCluster).remove(geneName);
-		  clusters.clusterSampleAssignment.get(newCluster).add(geneName);
-		  clusters.sampleClusterAssignment.put(geneName,newCluster);
-		  //Recalc centroids
-		  clusters.centroids.setRow(oldCluster,calcCentroids(clusters,oldCluster));
-		  clusters.centroids.setRow(newCluster,calcCentroids(clusters,newCluster));
-	  }
-	 
-		
-	}
-
-
   private double distance(double[] a, double[] b) {
 
 		return distance(a,b,this.distMetric);
@@ -340,28 +191,23 @@ private void kmeansIteration(){
   
 
   
-  private void addRandomCenters(MatrixWithHeaders initCentroids, MatrixWithHeaders mat) {
-	  
-	    MatrixWithHeaders tmp= generateRandomCenters(mat,this.K);
-		List<String> rowNames=tmp.getRowNames();
-		List<String> fewNames=new LinkedList<String>();
-		int d=this.K-initCentroids.rowDimension();
-		for (int i=initCentroids.rowDimension(); i<this.K; i++)
-			fewNames.add(rowNames.get(i));
-		MatrixWithHeaders tmp2=tmp.submatrixByRowNames(fewNames);
-				
-		initCentroids.appendRows(tmp2);
-	
-}
-
   //The silhouette score of each gene is a measure of how close it is to genes within its cluster
   //in comparison to genes in the cluster that is second far from it.
+  //Genes are scored in parallel against all clustered genes.
   public void calcSilhouette() {
-	  this.silhouette.initVals(this.currentClusters,this.data,this.distMetric,false);
+	  calcSilhouette(this.data.rowDimension(), this.random);
 	}
 
+  //Score a random sample of the genes, the averages are over the sampled genes
+  public void calcSilhouette(int sampleSize, Random rand) {
+	  int[] rows=this.engine.sampleAssignedRows(sampleSize, rand);
+	  this.silhouette.initVals(this.currentClusters,this.data,rows,this.engine.getSilhouette(rows));
+	}
+
+  //Distances to the centroids instead of the genes of the clusters
   public void calcLightSilhouette() {
-	  this.silhouette.initVals(this.currentClusters,this.data,this.distMetric,true);
+	  int[] rows=this.engine.sampleAssignedRows(this.data.rowDimension(), this.random);
+	  this.silhouette.initVals(this.currentClusters,this.data,rows,this.engine.getCentroidSilhouette(rows));
 	} 
   public double getSilhouette() {
 	  if (this.silhouette.isempty())
@@ -618,14 +464,12 @@ public static class KmeansInfo{
 //*********
 class SilhouetteInfo{
 
-	MatrixWithHeaders pairwiseDist;
 	MatrixWithHeaders silhouetteScr;
 	double avSilhouette=0; //mean of all genes (account for cluster size)
 	double avAcrossClustersSilhouette=0; //mean of cluster means (don't account for cluster size)
 	HashMap<String,Double> clusterAvSilhouette;
 
 	public SilhouetteInfo (){
-		this.pairwiseDist=null;
 		this.silhouetteScr=null;
 		this.clusterAvSilhouette=new HashMap<String,Double> ();
 	}
@@ -645,154 +489,56 @@ class SilhouetteInfo{
 		return false;
 	}
 
-	//Calc the pairwise distance between all genes, and calc silhouette val for each gene
-	public void initVals(KmeansInfo currentClusters,MatrixWithHeaders data, String distMetric,boolean lightVersion) {
+	//Store the silhouette {ai, bi, si} of the scored genes, the other genes get NaN
+	public void initVals(KmeansInfo currentClusters,MatrixWithHeaders data, int[] rows, double[][] scores) {
 
 		LinkedList<String> sampleNames=new LinkedList<String>();
-		sampleNames.addAll(currentClusters.getSampleClusterAssignment().keySet());
+		sampleNames.addAll(data.getRowNames());
 		LinkedList<String> sScrs=new LinkedList<String>();
 		sScrs.add("ai");  sScrs.add("bi");  sScrs.add("si"); 
 
-
-		this.silhouetteScr=new MatrixWithHeaders(sampleNames,sScrs);	
-
-		if(lightVersion){
-			calcLightSilhouette(data,sampleNames,currentClusters,distMetric);
-		}
-		else{
-			this.pairwiseDist=new MatrixWithHeaders(sampleNames,sampleNames);
-			//calc pairwise dist
-			calcPairwiseDist(sampleNames,data,  distMetric);
-			//calc silhouette
-			calcSilhouette(sampleNames,currentClusters);
-		}
-	}
-
-
-	private void calcPairwiseDist(LinkedList<String> sampleNames,
-			MatrixWithHeaders data, String distMetric) {
-
-		for(int i=0; i<sampleNames.size(); i++){
-			String name=sampleNames.get(i);
-			double[]a=data.getRow(name);
-			for(int j=0; j<sampleNames.size(); j++){
-				String pair=sampleNames.get(j);
-				//if (new Double(this.pairwiseDist.get(name,pair)).isNaN()){
-				double[] b =data.getRow(pair);
-				double res=Kmeans.distance(a,b,distMetric);
-				this.pairwiseDist.set(name,pair,res);
-				this.pairwiseDist.set(pair,name,res);
-				//}
-
-
-			}
-		}
-
-	}
-
-	private void calcSilhouette(LinkedList<String> sampleNames, KmeansInfo currentClusters) {
-
-		HashMap<String, List<String>> clusterSampleMap=currentClusters.getClusterSampleAssignment();
-		for (int i=0; i<sampleNames.size(); i++){
-			String name=sampleNames.get(i);
-			String currCluster=currentClusters.getSampleClusterAssignment().get(name);
-			ArrayList<Double> biArr=new ArrayList<Double>();
-			double ai=calcAvDistanceFromCluster(name,clusterSampleMap.get(currCluster));
-			for(String cluster: clusterSampleMap.keySet()){
-				if (! cluster.equals(currCluster)){
-					double bi= calcAvDistanceFromCluster(name,clusterSampleMap.get(cluster));
-					if (! new Double(bi).isNaN())
-						biArr.add(bi);
-				}
-			}
-
-			double bi=Statistics.min(biArr);
-			double si= calcSi(ai,bi);
-			double[] arr={ai,bi,si};
-			this.silhouetteScr.setRow(name,arr );
+		this.silhouetteScr=new MatrixWithHeaders(sampleNames,sScrs);
+		double[] nan={Double.NaN, Double.NaN, Double.NaN};
+		for (String name: sampleNames)
+			this.silhouetteScr.setRow(name, nan);
+		HashMap<String,Double> scored=new HashMap<String,Double>();
+		for (int i=0; i<rows.length; i++){
+			String name=data.getRowName(rows[i]);
+			this.silhouetteScr.setRow(name, scores[i]);
+			scored.put(name, scores[i][2]);
 		}
 		//update av silhouette
-		this.avSilhouette=Statistics.mean(this.silhouetteScr.getColumn("si"));
+		this.avSilhouette=meanOfDefined(scored.values());
 
 		//update cluster av sillhouete
-		for(String cluster: clusterSampleMap.keySet()){
-			ArrayList<Double> siArr=new ArrayList<Double>();
-			List<String> clusterSamples =clusterSampleMap.get(cluster);
-			for (String sample:clusterSamples)
-				siArr.add(this.silhouetteScr.get(sample,"si"));
-			this.clusterAvSilhouette.put(cluster,Statistics.mean(siArr));
-		}
-
-	}
-
-	private double calcAvDistanceFromCluster(String name, List<String> pairlist) {
-		ArrayList<Double> dArr=new ArrayList<Double>();
-		for (String pair:pairlist)
-			dArr.add(this.pairwiseDist.get(name,pair));
-		double res=Statistics.mean(dArr);
-		return res;
-	}
-
-	//si= (bi-ai)/(max(ai,bi))
-	private double calcSi(double ai, double bi) {
-
-		double si= 0;
-		if (ai>bi)
-			si=bi/ai -1;
-		if(bi>ai)
-			si=1- ai/bi;
-		return si;
-	}
-
-
-	public void calcLightSilhouette(MatrixWithHeaders data,LinkedList<String> sampleNames,
-			KmeansInfo currentClusters,String distMetric) {
-
-
 		HashMap<String, List<String>> clusterSampleMap=currentClusters.getClusterSampleAssignment();
-		for (int i=0; i<sampleNames.size(); i++){
-			String name=sampleNames.get(i);
-			double[] sampleExp=data.getRow(name);
-			String currCluster=currentClusters.getSampleClusterAssignment().get(name);
-			ArrayList<Double> biArr=new ArrayList<Double>();
-
-			double ai=Kmeans.distance(sampleExp,currentClusters.getCentroid(currCluster),distMetric);
-
-			for(String cluster: clusterSampleMap.keySet()){
-				if (! cluster.equals(currCluster)){
-					double [] c=currentClusters.getCentroid(cluster);
-					if (c == null)
-						continue;
-					double bi= Kmeans.distance(sampleExp,c,distMetric);
-					if (! new Double(bi).isNaN())
-						biArr.add(bi);
-				}
-			}
-
-			double bi=Statistics.min(biArr);
-			double si= calcSi(ai,bi);
-			double[] arr={ai,bi,si};
-			this.silhouetteScr.setRow(name,arr );
-		}
-		//update av silhouette
-		this.avSilhouette=Statistics.mean(this.silhouetteScr.getColumn("si"));
-
-		//update cluster av sillhouete
+		this.clusterAvSilhouette.clear();
 		ArrayList<Double> avOfAv =new ArrayList<Double>();
 		for(String cluster: clusterSampleMap.keySet()){
 			ArrayList<Double> siArr=new ArrayList<Double>();
-			List<String> clusterSamples =clusterSampleMap.get(cluster);
-			for (String sample:clusterSamples)
-				siArr.add(this.silhouetteScr.get(sample,"si"));
-			Double meanSi=Statistics.mean(siArr);
+			for (String sample:clusterSampleMap.get(cluster)){
+				if (scored.containsKey(sample))
+					siArr.add(scored.get(sample));
+			}
+			Double meanSi=meanOfDefined(siArr);
 			this.clusterAvSilhouette.put(cluster,meanSi);
 			if (! meanSi.isNaN())
 				avOfAv.add(meanSi);
 		}
-		this.avAcrossClustersSilhouette=Statistics.mean(avOfAv);
+		this.avAcrossClustersSilhouette=meanOfDefined(avOfAv);
 	}
 
-
+	private double meanOfDefined(Collection<Double> vals) {
+		double sum=0;
+		int n=0;
+		for (Double d: vals){
+			if (! d.isNaN()){
+				sum+=d;
+				n++;
+			}
+		}
+		return n==0 ? Double.NaN : sum/n;
+	}
 
 }
 
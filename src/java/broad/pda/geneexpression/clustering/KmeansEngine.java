@@ -0,0 +1,738 @@
+package broad.pda.geneexpression.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * K-means over a row-major matrix, with clusters labeled 0 to k-1
+ * Rows are assigned to their closest centroid in parallel. The sums of the rows of each cluster are kept and only
+ * the rows that change cluster are moved between them, so the centroids are updated without rescanning the matrix.
+ * Centroids are seeded with k-means++ (Arthur and Vassilvitskii, 2007) and very large matrices can be clustered with
+ * mini-batches (Sculley, "Web-scale k-means clustering", 2010)
+ *
+ * Rows whose distance to every centroid is undefined, such as rows with NaN values, are left UNASSIGNED
+ *
+ * The worker threads are started on the first parallel pass and reused until close()
+ */
+public class KmeansEngine {
+
+	public static final int UNASSIGNED = -1;
+	public static final int DEFAULT_MAX_ITERATIONS = 1000;
+
+	private static final int EUCLIDEAN = 0;
+	private static final int PEARSON = 1;
+	private static final int JS = 2;
+
+	private final double[] data;
+	private final int numRows;
+	private final int numColumns;
+	private final int metric;
+	// Rows centered and scaled to unit length for Pearson distances, the data otherwise
+	private final double[] rows;
+	// Entropies of the rows for Jensen-Shannon distances
+	private final double[] rowEntropy;
+
+	private int k;
+	private double[] centroids;
+	private double[] centroidValues;
+	private double[] centroidEntropy;
+	private int[] labels;
+	private double[] sums;
+	private int[] counts;
+
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private double tolerance = 0;
+	private int maxIterations = DEFAULT_MAX_ITERATIONS;
+	private ExecutorService executor;
+
+	/**
+	 * @param data Values of row i and column j at i * numColumns + j
+	 * @param numRows Number of rows
+	 * @param numColumns Number of columns
+	 * @param distanceMetric euclidean, pearson or JS, as Kmeans.distance. JS rows should already sum to one
+	 */
+	public KmeansEngine(double[] data, int numRows, int numColumns, String distanceMetric) {
+		if(data.length != numRows * numColumns) {
+			throw new IllegalArgumentException("Matrix has " + data.length + " values, not " + numRows + " x " + numColumns);
+		}
+		this.data = data;
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+		if(distanceMetric.equalsIgnoreCase("euclidean")) {
+			metric = EUCLIDEAN;
+		} else if(distanceMetric.equalsIgnoreCase("pearson")) {
+			metric = PEARSON;
+		} else if(distanceMetric.equalsIgnoreCase("JS")) {
+			metric = JS;
+		} else {
+			throw new IllegalArgumentException("Invalid distance metric " + distanceMetric + ", only JS, pearson and euclidean are supported");
+		}
+		if(metric == PEARSON) {
+			rows = new double[data.length];
+			for(int i=0; i<numRows; i++) {
+				standardize(data, rows, i * numColumns, numColumns);
+			}
+		} else {
+			rows = data;
+		}
+		rowEntropy = new double[numRows];
+		if(metric == JS) {
+			for(int i=0; i<numRows; i++) {
+				rowEntropy[i] = entropy(data, i * numColumns, numColumns);
+			}
+		}
+	}
+
+	/**
+	 * @param numThreads Number of threads assigning rows to centroids
+	 */
+	public void setNumThreads(int numThreads) {
+		numThreads = Math.max(1, numThreads);
+		if(numThreads != this.numThreads) {
+			close();
+		}
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * @param tolerance Stop when no centroid moves further than this euclidean distance in an iteration. With 0, k-means stops when no row changes cluster
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @param maxIterations Maximum number of iterations or mini-batches
+	 */
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * Set the initial centroids, completing them with k-means++ seeding
+	 * @param initialCentroids Row-major values of the given centroids, or null
+	 * @param numGiven Number of given centroids
+	 * @param numClusters Number of clusters k
+	 * @param random Random generator for the seeding
+	 */
+	public void initialize(double[] initialCentroids, int numGiven, int numClusters, Random random) {
+		if(numGiven > numClusters) {
+			throw new IllegalArgumentException(numGiven + " centroids are given for " + numClusters + " clusters");
+		}
+		k = numClusters;
+		centroids = new double[k * numColumns];
+		centroidValues = metric == PEARSON ? new double[k * numColumns] : centroids;
+		centroidEntropy = new double[k];
+		if(numGiven > 0) {
+			System.arraycopy(initialCentroids, 0, centroids, 0, numGiven * numColumns);
+		}
+		labels = new int[numRows];
+		sums = new double[k * numColumns];
+		counts = new int[k];
+		for(int c=0; c<numGiven; c++) {
+			prepareCentroid(c);
+		}
+		seedPlusPlus(numGiven, random);
+	}
+
+	/**
+	 * Choose each further centroid among the rows with probability proportional to its squared distance from the closest centroid so far
+	 */
+	private void seedPlusPlus(int numGiven, Random random) {
+		final double[] nearest = new double[numRows];
+		Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+		for(int c=0; c<numGiven; c++) {
+			updateNearest(nearest, c);
+		}
+		for(int c=numGiven; c<k; c++) {
+			double total = 0;
+			int numUsable = 0;
+			for(int i=0; i<numRows; i++) {
+				if(isUsable(i)) {
+					numUsable++;
+					total += nearest[i];
+				}
+			}
+			if(numUsable == 0) {
+				throw new IllegalArgumentException("No row has a defined distance to seed the centroids with");
+			}
+			int chosen = -1;
+			if(total > 0 && !Double.isInfinite(total) && !Double.isNaN(total)) {
+				double target = random.nextDouble() * total;
+				for(int i=0; i<numRows && chosen < 0; i++) {
+					if(!isUsable(i)) continue;
+					target -= nearest[i];
+					if(target < 0) chosen = i;
+				}
+			}
+			if(chosen < 0) {
+				// First centroid, or all rows are on the centroids already: choose uniformly
+				int target = random.nextInt(numUsable);
+				for(int i=0; i<numRows && chosen < 0; i++) {
+					if(isUsable(i) && target-- == 0) chosen = i;
+				}
+			}
+			System.arraycopy(data, chosen * numColumns, centroids, c * numColumns, numColumns);
+			prepareCentroid(c);
+			updateNearest(nearest, c);
+		}
+	}
+
+	private boolean isUsable(int row) {
+		return !Double.isNaN(rowToRow(row, row));
+	}
+
+	private void updateNearest(final double[] nearest, final int c) {
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		int numBlocks = getNumBlocks(numRows);
+		for(int b=0; b<numBlocks; b++) {
+			final int start = blockStart(numRows, numBlocks, b);
+			final int end = blockStart(numRows, numBlocks, b + 1);
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					for(int i=start; i<end; i++) {
+						double d = rowToCentroid(i, c);
+						if(d * d < nearest[i]) nearest[i] = d * d;
+					}
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+	}
+
+	/**
+	 * Assign rows to their closest centroid and recompute the centroids until no row changes cluster,
+	 * no centroid moves further than the tolerance or the maximum number of iterations is reached
+	 * @param random Random generator to refill empty clusters
+	 * @return Number of iterations
+	 */
+	public int run(Random random) {
+		checkInitialized();
+		Arrays.fill(labels, UNASSIGNED);
+		Arrays.fill(sums, 0);
+		Arrays.fill(counts, 0);
+		int changed = assign(random);
+		int iteration = 1;
+		while(changed > 0 && iteration < maxIterations) {
+			if(updateCentroids() <= tolerance && tolerance > 0) {
+				break;
+			}
+			changed = assign(random);
+			iteration++;
+		}
+		finish();
+		return iteration;
+	}
+
+	/**
+	 * Move the centroids towards rows sampled in mini-batches, each by the inverse of the number of rows it was moved towards,
+	 * then assign all rows to the closest centroid
+	 * @param batchSize Number of rows sampled in each batch
+	 * @param random Random generator to sample the batches and refill empty clusters
+	 * @return Number of batches
+	 */
+	public int runMiniBatch(int batchSize, Random random) {
+		checkInitialized();
+		final int[] batch = new int[batchSize];
+		final int[] batchLabels = new int[batchSize];
+		long[] numMoves = new long[k];
+		int iteration = 0;
+		while(iteration < maxIterations) {
+			iteration++;
+			for(int b=0; b<batchSize; b++) {
+				batch[b] = random.nextInt(numRows);
+			}
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			int numBlocks = getNumBlocks(batchSize);
+			for(int t=0; t<numBlocks; t++) {
+				final int start = blockStart(batchSize, numBlocks, t);
+				final int end = blockStart(batchSize, numBlocks, t + 1);
+				tasks.add(new Callable<Object>() {
+					@Override
+					public Object call() {
+						for(int b=start; b<end; b++) {
+							batchLabels[b] = getClosestCentroid(batch[b]);
+						}
+						return null;
+					}
+				});
+			}
+			invokeAll(tasks);
+			double[] previous = centroids.clone();
+			for(int b=0; b<batchSize; b++) {
+				int c = batchLabels[b];
+				if(c == UNASSIGNED) continue;
+				numMoves[c]++;
+				double rate = 1.0 / numMoves[c];
+				int row = batch[b] * numColumns;
+				int centroid = c * numColumns;
+				for(int j=0; j<numColumns; j++) {
+					centroids[centroid + j] += rate * (data[row + j] - centroids[centroid + j]);
+				}
+			}
+			for(int c=0; c<k; c++) {
+				prepareCentroid(c);
+			}
+			if(tolerance > 0 && getMaxShift(previous) <= tolerance) {
+				break;
+			}
+		}
+		Arrays.fill(labels, UNASSIGNED);
+		Arrays.fill(sums, 0);
+		Arrays.fill(counts, 0);
+		assign(random);
+		finish();
+		return iteration;
+	}
+
+	private void checkInitialized() {
+		if(centroids == null) {
+			throw new IllegalStateException("Centroids are not initialized");
+		}
+	}
+
+	/**
+	 * Recompute the sums from the labels, so the final centroids are the exact means of their rows
+	 */
+	private void finish() {
+		Arrays.fill(sums, 0);
+		Arrays.fill(counts, 0);
+		for(int i=0; i<numRows; i++) {
+			if(labels[i] != UNASSIGNED) {
+				addRow(sums, counts, i, labels[i], 1);
+			}
+		}
+		updateCentroids();
+	}
+
+	/**
+	 * Assign each row to its closest centroid, in parallel blocks of rows, and move the rows that changed cluster between the sums
+	 * @return Number of rows that changed cluster
+	 */
+	private int assign(Random random) {
+		List<Callable<Delta>> tasks = new ArrayList<Callable<Delta>>();
+		int numBlocks = getNumBlocks(numRows);
+		for(int b=0; b<numBlocks; b++) {
+			final int start = blockStart(numRows, numBlocks, b);
+			final int end = blockStart(numRows, numBlocks, b + 1);
+			tasks.add(new Callable<Delta>() {
+				@Override
+				public Delta call() {
+					Delta delta = new Delta(k * numColumns, k);
+					for(int i=start; i<end; i++) {
+						int label = getClosestCentroid(i);
+						if(label == labels[i]) continue;
+						if(labels[i] != UNASSIGNED) addRow(delta.sums, delta.counts, i, labels[i], -1);
+						if(label != UNASSIGNED) addRow(delta.sums, delta.counts, i, label, 1);
+						labels[i] = label;
+						delta.changed++;
+					}
+					return delta;
+				}
+			});
+		}
+		int changed = 0;
+		for(Delta delta : invokeAll(tasks)) {
+			for(int j=0; j<sums.length; j++) {
+				sums[j] += delta.sums[j];
+			}
+			for(int c=0; c<k; c++) {
+				counts[c] += delta.counts[c];
+			}
+			changed += delta.changed;
+		}
+		return changed + refillEmptyClusters(random);
+	}
+
+	/**
+	 * In case there are empty clusters, move a random row of a cluster with at least two rows to each
+	 * @return Number of rows moved
+	 */
+	private int refillEmptyClusters(Random random) {
+		int moved = 0;
+		for(int c=0; c<k; c++) {
+			if(counts[c] > 0) continue;
+			boolean canMove = false;
+			for(int other=0; other<k && !canMove; other++) {
+				canMove = counts[other] >= 2;
+			}
+			if(!canMove) {
+				return moved;
+			}
+			int row;
+			do {
+				row = random.nextInt(numRows);
+			} while(labels[row] == UNASSIGNED || counts[labels[row]] < 2);
+			addRow(sums, counts, row, labels[row], -1);
+			addRow(sums, counts, row, c, 1);
+			labels[row] = c;
+			moved++;
+		}
+		return moved;
+	}
+
+	private void addRow(double[] clusterSums, int[] clusterCounts, int row, int c, int sign) {
+		int offset = row * numColumns;
+		int centroid = c * numColumns;
+		for(int j=0; j<numColumns; j++) {
+			clusterSums[centroid + j] += sign * data[offset + j];
+		}
+		clusterCounts[c] += sign;
+	}
+
+	/**
+	 * Set the centroids to the means of their rows, keeping the centroids of empty clusters
+	 * @return The furthest euclidean distance a centroid moved
+	 */
+	private double updateCentroids() {
+		double[] previous = centroids.clone();
+		for(int c=0; c<k; c++) {
+			if(counts[c] == 0) continue;
+			int centroid = c * numColumns;
+			for(int j=0; j<numColumns; j++) {
+				centroids[centroid + j] = sums[centroid + j] / counts[c];
+			}
+			prepareCentroid(c);
+		}
+		return getMaxShift(previous);
+	}
+
+	private double getMaxShift(double[] previous) {
+		double rtrn = 0;
+		for(int c=0; c<k; c++) {
+			double sum = 0;
+			for(int j=c*numColumns; j<(c+1)*numColumns; j++) {
+				double d = centroids[j] - previous[j];
+				sum += d * d;
+			}
+			rtrn = Math.max(rtrn, Math.sqrt(sum));
+		}
+		return rtrn;
+	}
+
+	private void prepareCentroid(int c) {
+		if(metric == PEARSON) {
+			standardize(centroids, centroidValues, c * numColumns, numColumns);
+		} else if(metric == JS) {
+			centroidEntropy[c] = entropy(centroids, c * numColumns, numColumns);
+		}
+	}
+
+	/**
+	 * @return The closest centroid, the first one on ties, or UNASSIGNED if no distance is defined
+	 */
+	private int getClosestCentroid(int row) {
+		int rtrn = UNASSIGNED;
+		double min = Double.POSITIVE_INFINITY;
+		for(int c=0; c<k; c++) {
+			double d = rowToCentroid(row, c);
+			if(d < min) {
+				min = d;
+				rtrn = c;
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Distance between a row and a centroid, as Kmeans.distance computes it
+	 */
+	public double rowToCentroid(int row, int c) {
+		return distance(rows, row * numColumns, rowEntropy[row], centroidValues, c * numColumns, centroidEntropy[c]);
+	}
+
+	/**
+	 * @return Distance between two rows, as Kmeans.distance computes it
+	 */
+	public double rowToRow(int row1, int row2) {
+		return distance(rows, row1 * numColumns, rowEntropy[row1], rows, row2 * numColumns, rowEntropy[row2]);
+	}
+
+	private double distance(double[] x, int xOffset, double xEntropy, double[] y, int yOffset, double yEntropy) {
+		if(metric == PEARSON) {
+			double r = 0;
+			for(int j=0; j<numColumns; j++) {
+				r += x[xOffset + j] * y[yOffset + j];
+			}
+			return 1 - r;
+		} else if(metric == JS) {
+			double mixtureEntropy = 0;
+			for(int j=0; j<numColumns; j++) {
+				double p = (x[xOffset + j] + y[yOffset + j]) / 2;
+				if(p != 0) mixtureEntropy += p * (Math.log(p) / Math.log(2));
+			}
+			// Rounding can make the divergence of nearly identical rows slightly negative
+			return Math.sqrt(Math.max(0, -mixtureEntropy - (xEntropy + yEntropy) / 2));
+		}
+		double sum = 0;
+		for(int j=0; j<numColumns; j++) {
+			double d = x[xOffset + j] - y[yOffset + j];
+			sum += d * d;
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Center and scale the values to unit length, so the Pearson correlation of two vectors is their dot product
+	 */
+	private static void standardize(double[] values, double[] standardized, int offset, int length) {
+		double mean = 0;
+		for(int j=offset; j<offset+length; j++) {
+			mean += values[j];
+		}
+		mean /= length;
+		double sumSquares = 0;
+		for(int j=offset; j<offset+length; j++) {
+			standardized[j] = values[j] - mean;
+			sumSquares += standardized[j] * standardized[j];
+		}
+		double norm = Math.sqrt(sumSquares);
+		for(int j=offset; j<offset+length; j++) {
+			standardized[j] /= norm;
+		}
+	}
+
+	/**
+	 * Entropy in bits, as Statistics.entropy
+	 */
+	private static double entropy(double[] values, int offset, int length) {
+		double rtrn = 0;
+		for(int j=offset; j<offset+length; j++) {
+			double p = values[j];
+			if(p != 0) rtrn += p * (Math.log(p) / Math.log(2));
+		}
+		return -rtrn;
+	}
+
+	/**
+	 * Silhouette of sampled rows: a is the mean distance to the other rows of the row's cluster, b the lowest mean distance to the rows
+	 * of another cluster and s = (b - a) / max(a, b), or 0 for a row alone in its cluster. Rows are scored in parallel against all assigned rows
+	 * @param sampledRows Rows to score
+	 * @return {a, b, s} of each sampled row, NaN for unassigned rows
+	 */
+	public double[][] getSilhouette(final int[] sampledRows) {
+		final double[][] rtrn = new double[sampledRows.length][];
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		int numBlocks = getNumBlocks(sampledRows.length);
+		for(int b=0; b<numBlocks; b++) {
+			final int start = blockStart(sampledRows.length, numBlocks, b);
+			final int end = blockStart(sampledRows.length, numBlocks, b + 1);
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					double[] clusterSums = new double[k];
+					int[] clusterCounts = new int[k];
+					for(int s=start; s<end; s++) {
+						int row = sampledRows[s];
+						int label = labels[row];
+						if(label == UNASSIGNED) {
+							rtrn[s] = new double[] {Double.NaN, Double.NaN, Double.NaN};
+							continue;
+						}
+						Arrays.fill(clusterSums, 0);
+						Arrays.fill(clusterCounts, 0);
+						for(int i=0; i<numRows; i++) {
+							if(i == row || labels[i] == UNASSIGNED) continue;
+							double d = rowToRow(row, i);
+							if(Double.isNaN(d)) continue;
+							clusterSums[labels[i]] += d;
+							clusterCounts[labels[i]]++;
+						}
+						double a = clusterCounts[label] > 0 ? clusterSums[label] / clusterCounts[label] : 0;
+						double bMin = Double.NaN;
+						for(int c=0; c<k; c++) {
+							if(c == label || clusterCounts[c] == 0) continue;
+							double mean = clusterSums[c] / clusterCounts[c];
+							if(Double.isNaN(bMin) || mean < bMin) bMin = mean;
+						}
+						double si = clusterCounts[label] > 0 ? getSi(a, bMin) : 0;
+						rtrn[s] = new double[] {a, bMin, si};
+					}
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+		return rtrn;
+	}
+
+	/**
+	 * Silhouette of sampled rows computed with the centroids instead of the rows of the clusters: a is the distance to the row's centroid
+	 * and b the distance to the closest other centroid
+	 * @param sampledRows Rows to score
+	 * @return {a, b, s} of each sampled row, NaN for unassigned rows
+	 */
+	public double[][] getCentroidSilhouette(final int[] sampledRows) {
+		final double[][] rtrn = new double[sampledRows.length][];
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		int numBlocks = getNumBlocks(sampledRows.length);
+		for(int b=0; b<numBlocks; b++) {
+			final int start = blockStart(sampledRows.length, numBlocks, b);
+			final int end = blockStart(sampledRows.length, numBlocks, b + 1);
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					for(int s=start; s<end; s++) {
+						int row = sampledRows[s];
+						int label = labels[row];
+						if(label == UNASSIGNED) {
+							rtrn[s] = new double[] {Double.NaN, Double.NaN, Double.NaN};
+							continue;
+						}
+						double a = rowToCentroid(row, label);
+						double bMin = Double.NaN;
+						for(int c=0; c<k; c++) {
+							if(c == label) continue;
+							double d = rowToCentroid(row, c);
+							if(!Double.isNaN(d) && (Double.isNaN(bMin) || d < bMin)) bMin = d;
+						}
+						rtrn[s] = new double[] {a, bMin, getSi(a, bMin)};
+					}
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+		return rtrn;
+	}
+
+	/**
+	 * si = (bi - ai) / max(ai, bi)
+	 */
+	private static double getSi(double ai, double bi) {
+		double si = 0;
+		if(ai > bi) si = bi / ai - 1;
+		if(bi > ai) si = 1 - ai / bi;
+		return si;
+	}
+
+	/**
+	 * @param sampleSize Number of rows to sample
+	 * @param random Random generator
+	 * @return Assigned rows sampled without replacement, in increasing order, or all of them if there are fewer than sampleSize
+	 */
+	public int[] sampleAssignedRows(int sampleSize, Random random) {
+		int[] assigned = new int[numRows];
+		int numAssigned = 0;
+		for(int i=0; i<numRows; i++) {
+			if(labels[i] != UNASSIGNED) assigned[numAssigned++] = i;
+		}
+		int n = Math.min(sampleSize, numAssigned);
+		for(int i=0; i<n; i++) {
+			int j = i + random.nextInt(numAssigned - i);
+			int tmp = assigned[i];
+			assigned[i] = assigned[j];
+			assigned[j] = tmp;
+		}
+		int[] rtrn = Arrays.copyOf(assigned, n);
+		Arrays.sort(rtrn);
+		return rtrn;
+	}
+
+	/**
+	 * @return Cluster of each row, or UNASSIGNED
+	 */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return Row-major values of the k centroids
+	 */
+	public double[] getCentroids() {
+		return centroids;
+	}
+
+	/**
+	 * @return Number of clusters
+	 */
+	public int getNumClusters() {
+		return k;
+	}
+
+	private int getNumBlocks(int n) {
+		return Math.max(1, Math.min(n, 4 * numThreads));
+	}
+
+	private static int blockStart(int n, int numBlocks, int block) {
+		return (int) ((long) n * block / numBlocks);
+	}
+
+	/**
+	 * Stop the worker threads. The engine can still be used and starts new threads when needed
+	 */
+	public synchronized void close() {
+		if(executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if(executor == null) {
+			executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "KmeansEngine");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+		List<T> rtrn = new ArrayList<T>();
+		if(numThreads == 1) {
+			try {
+				for(Callable<T> task : tasks) {
+					rtrn.add(task.call());
+				}
+			} catch(RuntimeException e) {
+				throw e;
+			} catch(Exception e) {
+				throw new IllegalStateException(e);
+			}
+			return rtrn;
+		}
+		try {
+			for(Future<T> future : getExecutor().invokeAll(tasks)) {
+				rtrn.add(future.get());
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Changes to the cluster sums from one block of rows
+	 */
+	private static class Delta {
+		double[] sums;
+		int[] counts;
+		int changed;
+
+		Delta(int numValues, int numClusters) {
+			sums = new double[numValues];
+			counts = new int[numClusters];
+		}
+	}
+}
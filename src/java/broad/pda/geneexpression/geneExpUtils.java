@@ -48,7 +48,7 @@ public class geneExpUtils {
 	"\n\tGetSignificantCorrSet\n: get all genes that are significantly correlated with another set: \n\t\t -set1 <list of genes>\n\t\t -corrMat<all pairs correlation mat between set1 to set2 >\n\t\t -pvalMat<all pairs correlation p-value mat between set1 to set2 >\n\t\t -outPrefix<set2 out fname>\n"+
 	"\n\tCalcGlobalRPKM\n: calculate a global RPKM value based on Scripture's score output: \n\t\t -set1 <output bed of scripture's score task> \n\t\t -out <outfile>"+
 	"\n\tclusterByJS\n: partition exp matrix to the closest centroid using the Jensen-Shannon divergence metric: \n\t\t -exp <exp matrix (def: GCT format)> \n\t\t -numHeader<num header rows> \n\t\t -numHeaderCol <num header column> \n\t\t -centroids <same format GCT file> \n\t\t -reportJSSpecificity <optional, report all specificity scores> \n\t\t -outprefix <string> \n" +
-	"\n\tkmeans\n: apply kmeans clustering on a gct file: \n\t\t -exp <exp matrix (def: GCT format)> \n\t\t  -centroids <optional; same format GCT file with predefined centroids> \n\t\t -refCentroids <optional; same format GCT file with predefined centroids; will calculate distance from these patterns>  \n\t\t -metric <JS/pearson/euclidean>\n\t\t -k <number of clusters> \n\t\t -chooseK <OPTIONAL \"x,y,z...\" comma seperated list of Ks to run and report Sillouette> \n\t\t -outprefix <string> \n" +
+	"\n\tkmeans\n: apply kmeans clustering on a gct file: \n\t\t -exp <exp matrix (def: GCT format)> \n\t\t  -centroids <optional; same format GCT file with predefined centroids> \n\t\t -refCentroids <optional; same format GCT file with predefined centroids; will calculate distance from these patterns>  \n\t\t -metric <JS/pearson/euclidean>\n\t\t -k <number of clusters> \n\t\t -chooseK <OPTIONAL \"x,y,z...\" comma seperated list of Ks to run and report Sillouette> \n\t\t -outprefix <string> \n\t\t -batchSize <OPTIONAL number of genes in each mini-batch; def: all genes in every iteration> \n\t\t -threads <OPTIONAL number of threads; def: number of processors> \n\t\t -tolerance <OPTIONAL stop when no centroid moves further than this; def: 0, stop when no gene changes cluster> \n" +
 	"\n";
 	
 	static int permCashSize=10000;
@@ -141,10 +141,13 @@ public class geneExpUtils {
 			String clusterCentroids_F= argmap.containsKey("centroids")? argmap.getMandatory("centroids"):"" ;
 			String refCentroids_F= argmap.containsKey("refCentroids")? argmap.getMandatory("refCentroids"):"" ;
 			String chooseK = argmap.containsKey("chooseK")? argmap.getMandatory("chooseK"):"" ;
+			int batchSize = argmap.getInteger("batchSize", 0);
+			int threads = argmap.getInteger("threads", Runtime.getRuntime().availableProcessors());
+			double tolerance = argmap.getDouble("tolerance", 0);
 			if (chooseK.equals(""))
-				runKmeans(expMat_F,clusterCentroids_F,metric,k,outprefix,refCentroids_F);
+				runKmeans(expMat_F,clusterCentroids_F,metric,k,outprefix,refCentroids_F,batchSize,threads,tolerance);
 			else
-				runKmeansWithSilhouette(expMat_F,clusterCentroids_F,metric,k,outprefix,refCentroids_F,chooseK);
+				runKmeansWithSilhouette(expMat_F,clusterCentroids_F,metric,k,outprefix,refCentroids_F,chooseK,batchSize,threads,tolerance);
 			
 		}
 		
@@ -926,7 +929,7 @@ public class geneExpUtils {
 	
 	
 	private static void runKmeans(String expMatF, String clusterCentroidsF,
-			String metric, int k, String outprefix, String refCentroidsF) throws IOException, ParseException {
+			String metric, int k, String outprefix, String refCentroidsF, int batchSize, int threads, double tolerance) throws IOException, ParseException {
 
 		MatrixWithHeaders expMat=new MatrixWithHeaders(expMatF);
 		MatrixWithHeaders centroids=null;
@@ -939,7 +942,8 @@ public class geneExpUtils {
 			 if (metric.equalsIgnoreCase("JS"))
 				 normalizeToRelativeAbundance(centroids);
 		}
-		Kmeans kmeans_res=new Kmeans(expMat,centroids,k,metric);
+		Kmeans kmeans_res=new Kmeans(expMat,centroids,k,metric,batchSize,threads,tolerance);
+		kmeans_res.close();
 		
 		BufferedWriter bw= new BufferedWriter (new FileWriter (outprefix + ".clusterMap.txt"));
 		kmeans_res.writeClusters(bw);
@@ -970,7 +974,7 @@ public class geneExpUtils {
 	
 	private static void runKmeansWithSilhouette(String expMatF,
 			String clusterCentroidsF, String metric, int k, String outprefix,
-			String refCentroidsF, String chooseK) throws IOException, ParseException {
+			String refCentroidsF, String chooseK, int batchSize, int threads, double tolerance) throws IOException, ParseException {
 
 
 		MatrixWithHeaders expMat=new MatrixWithHeaders(expMatF);
@@ -1010,8 +1014,9 @@ public class geneExpUtils {
 		for (int i=0; i<Ks.length; i++){
 			k=Ks[i];
 			System.err.println("Start runing k=" +k);
-			Kmeans kmeans_res=new Kmeans(expMat,centroids,k,metric);
+			Kmeans kmeans_res=new Kmeans(expMat,centroids,k,metric,batchSize,threads,tolerance);
 			kmeans_res.calcLightSilhouette();
+			kmeans_res.close();
 			
 			//Write cluster res
 			BufferedWriter bw= new BufferedWriter (new FileWriter (outprefix + ".clusterMap."+k+".txt"));
@@ -25,6 +25,7 @@ import broad.core.math.MathUtil;
 import broad.core.math.UnfairDie;
 import broad.core.sequence.FastaSequenceIO;
 import broad.core.sequence.Sequence;
+import broad.core.sequence.TwoBitGenome;
 import broad.pda.annotation.BEDFileParser;
 import net.sf.samtools.util.CloseableIterator;
 import nextgen.core.alignment.Alignment;
@@ -53,6 +54,7 @@ public class Pileup {
 	private Map<Gene, Gene> regionToParent;
 	static Logger logger = Logger.getLogger(Pileup.class.getName());
 	private Map<String, Sequence> genome;
+	private TwoBitGenome twoBitGenome;
 	private Map<Gene, Sequence> geneSequences;
 	private WigReader wigFragmentEnds;
 	private static int NUM_BINS = 200;
@@ -60,7 +62,7 @@ public class Pileup {
 	/**
 	 * @param bamFile Bam file of alignments
 	 * @param annotationBedFile Bed transcriptome annotation
-	 * @param genomeFasta Fasta file of genome
+	 * @param genomeFasta Fasta file of genome, or .2bit file to read gene sequences without loading the genome
 	 * @param readFilters Read filters to use
 	 * @throws IOException
 	 */
@@ -74,7 +76,11 @@ public class Pileup {
 		logger.info("Loading alignment data from " + bamFile + "...");
 		data = new AlignmentModel(bamFile, new TranscriptomeSpace(annotation), readFilters);
 		logger.info("Loading genome from " + genomeFasta + "...");
-		genome = FastaSequenceIO.getChrSequencesFromFasta(genomeFasta);
+		if(TwoBitGenome.isTwoBit(genomeFasta)) {
+			twoBitGenome = TwoBitGenome.open(genomeFasta);
+		} else {
+			genome = FastaSequenceIO.getChrSequencesFromFasta(genomeFasta);
+		}
 		geneSequences = new TreeMap<Gene, Sequence>();
 		overlapperCounts = new TreeMap<Annotation, Double>();
 		peakRegions = new TreeMap<Annotation, Annotation>();
@@ -105,6 +111,16 @@ public class Pileup {
 		}
 	}
 	
+	/**
+	 * Close the .2bit file if gene sequences are read from one
+	 */
+	public void close() {
+		if(twoBitGenome != null) {
+			twoBitGenome.close();
+			twoBitGenome = null;
+		}
+	}
+	
 	/**
 	 * Get a region by name from stored regions
 	 * @param regionName Region name
@@ -235,7 +251,7 @@ public class Pileup {
 	private Sequence getGeneSequence(Gene gene) {
 		if(!geneSequences.containsKey(gene)) {
 			//logger.debug("Getting sequence of gene " + gene.getName());
-			Sequence seq = genome.get(gene.getChr()).getSubsequence(gene);
+			Sequence seq = twoBitGenome != null ? twoBitGenome.getSubsequence(gene) : genome.get(gene.getChr()).getSubsequence(gene);
 			geneSequences.put(gene, seq);
 		}
 		return geneSequences.get(gene);
@@ -772,7 +788,7 @@ public class Pileup {
 		p.addIntArg("-f", "When using bam file, max fragment length", false, 1000);
 		p.addBooleanArg("-d", "Debug logging on", false, false);
 		p.addStringArg("-oe", "Output table for fragment end stats", false, null);
-		p.addStringArg("-g", "Genome fasta", true);
+		p.addStringArg("-g", "Genome fasta or .2bit file", true);
 		p.addStringArg("-np", "Nucleotide probability file", false, null);
 		p.addBooleanArg("-sp", "When providing nucleotide probability file, scale all probabilitie to add up to one if they don't already", false, false);
 		p.addIntArg("-nr", "Number of random position permutations per region", false, 100);
@@ -820,6 +836,7 @@ public class Pileup {
 			pileup.writeScanPvalsFragmentEndPileupsAllRegionsWig(outTableWigPval, outBedSigPos, pvalCutoff, fullyContained, readNucProbsFromFile(nucProbFile, scaleProbsToOne), numRand);
 		}
 		
+		pileup.close();
 		logger.info("");
 		logger.info("All done.");
 		
@@ -75,8 +75,16 @@ public class BatchedMultiSampleScanPeakCaller extends MultiSampleScanPeakCaller
 	 * @throws IOException 
 	 */
 	public static void main(String[] args) throws IOException {
-		
-		
+		runBatch(args);
+	}
+	
+	/**
+	 * Write the peaks for one sample and chromosome
+	 * Runs in this JVM when batched jobs use the local scheduler
+	 * @param args Command arguments extended with extendSuperArgsForSampleAndChr
+	 * @throws IOException
+	 */
+	public static void runBatch(String[] args) throws IOException {
 		String[] superArgs = getSuperCommandArgs(args);
 		
 		String sampleName = getSampleName(args);
@@ -20,6 +20,7 @@ import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -28,6 +29,9 @@ import org.ggf.drmaa.DrmaaException;
 import nextgen.core.pipeline.Job;
 import nextgen.core.pipeline.JobUtils;
 import nextgen.core.pipeline.LSFJob;
+import nextgen.core.pipeline.LocalJob;
+import nextgen.core.pipeline.LocalJobPool;
+import nextgen.core.pipeline.Scheduler;
 
 import broad.core.math.MathUtil;
 import broad.core.math.Statistics;
@@ -452,6 +456,22 @@ public class MultiSampleScanPeakCaller {
 	}
 	
 	private void batchWriteSingleSampleScanPeaksAllSamples(String[] commandArgs, String chrListFile, int memRequestGb) throws IOException, InterruptedException, DrmaaException {
+		batchWriteSingleSampleScanPeaksAllSamples(commandArgs, chrListFile, memRequestGb, Scheduler.LSF, 1);
+	}
+	
+	/**
+	 * Write peaks with one job per sample and chromosome
+	 * With the LOCAL scheduler the jobs run in this JVM, at most numLocalThreads at once and within the maximum heap size
+	 * @param commandArgs Command arguments
+	 * @param chrListFile File with the chromosomes to run, or null for all
+	 * @param memRequestGb Memory request per job in Gb
+	 * @param scheduler Scheduler
+	 * @param numLocalThreads Maximum number of local jobs at once
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void batchWriteSingleSampleScanPeaksAllSamples(String[] commandArgs, String chrListFile, int memRequestGb, Scheduler scheduler, int numLocalThreads) throws IOException, InterruptedException, DrmaaException {
 		
 		logger.info("");
 		logger.info("\nBatching out peak calling by sample and chromosome...\n");
@@ -480,7 +500,8 @@ public class MultiSampleScanPeakCaller {
 			b.close();
 		}
 		
-		String jar = commandLineBatchJar(commandArgs);
+		String jar = scheduler == Scheduler.LOCAL ? null : commandLineBatchJar(commandArgs);
+		LocalJobPool pool = scheduler == Scheduler.LOCAL ? new LocalJobPool(numLocalThreads, LocalJobPool.getMaxHeapGb()) : null;
 		ArrayList<Job> jobs = new ArrayList<Job>();
 		String outDir = commandLineOutDir(commandArgs);
 		File o = new File(outDir);
@@ -494,7 +515,21 @@ public class MultiSampleScanPeakCaller {
 		
 		for(SampleData sample : allSamples) {
 			for(String chr : chrs) {
-				String[] batchedCmmdArgs = BatchedMultiSampleScanPeakCaller.extendSuperArgsForSampleAndChr(commandArgs, sample.getSampleName(), chr);
+				final String[] batchedCmmdArgs = BatchedMultiSampleScanPeakCaller.extendSuperArgsForSampleAndChr(commandArgs, sample.getSampleName(), chr);
+				if(scheduler == Scheduler.LOCAL) {
+					String jobID = sample.getSampleName() + "_" + chr;
+					LocalJob job = new LocalJob(pool, jobID, new Callable<Object>() {
+						@Override
+						public Object call() throws IOException {
+							BatchedMultiSampleScanPeakCaller.runBatch(batchedCmmdArgs);
+							return null;
+						}
+					}, memRequestGb);
+					jobs.add(job);
+					logger.info("Local job ID is " + jobID + ".");
+					job.submit();
+					continue;
+				}
 				String args = "";
 				for(int i=0; i < batchedCmmdArgs.length; i++) {
 					args += batchedCmmdArgs[i] + " ";
@@ -516,6 +551,9 @@ public class MultiSampleScanPeakCaller {
 		logger.info("");
 		logger.info("Waiting for jobs to finish...");
 		JobUtils.waitForAll(jobs);
+		if(pool != null) {
+			pool.shutdown();
+		}
 		
 		logger.info("\nAll jobs finished.\n");
 		
@@ -1319,6 +1357,8 @@ public class MultiSampleScanPeakCaller {
 		p.addStringArg("-cl", "Chromosome list file for batched run", false, null);
 		p.addIntArg("-m", "Memory request for batched processes", false, DEFAULT_BATCH_MEM_REQUEST);
 		p.addStringArg("-bj", "Batched peak caller jar file", false, null);
+		p.addStringArg("-sch", "Scheduler for batched run: " + Scheduler.getCommaSeparatedList() + ". LOCAL runs the batches in this JVM", false, Scheduler.LSF.toString());
+		p.addIntArg("-lt", "Number of batches to run at once with LOCAL scheduler", false, Runtime.getRuntime().availableProcessors());
 		p.addStringArg("-o", "Output directory", false, null);
 		p.addDoubleArg("-q", "Quantile for peak trimming by trim max contiguous algorithm", false, DEFAULT_TRIM_PEAK_QUANTILE);
 		p.addStringArg("-c", "Chromosome size file", true);
@@ -1370,6 +1410,16 @@ public class MultiSampleScanPeakCaller {
 		return p.getStringArg("-cl");
 	}
 	
+	private static Scheduler commandLineBatchScheduler(String[] commandArgs) {
+		CommandLineParser p = getCommandLineParser(commandArgs);
+		return Scheduler.fromString(p.getStringArg("-sch"));
+	}
+	
+	private static int commandLineBatchLocalThreads(String[] commandArgs) {
+		CommandLineParser p = getCommandLineParser(commandArgs);
+		return p.getIntArg("-lt");
+	}
+	
 	private static int commandLineBatchMemRequest(String[] commandArgs) {
 		CommandLineParser p = getCommandLineParser(commandArgs);
 		return p.getIntArg("-m");
@@ -1414,7 +1464,7 @@ public class MultiSampleScanPeakCaller {
 		}
 		
 		if(commandLineHasBatchFlag(args)) {
-			m.batchWriteSingleSampleScanPeaksAllSamples(args, commandLineBatchChrList(args), commandLineBatchMemRequest(args));
+			m.batchWriteSingleSampleScanPeaksAllSamples(args, commandLineBatchChrList(args), commandLineBatchMemRequest(args), commandLineBatchScheduler(args), commandLineBatchLocalThreads(args));
 		} else {
 			m.initializeFilterRejectWriters("all_chr", FILTER_REJECT_DIR);
 			m.writeSingleSampleScanPeaksAllSamples(commandLineOutDir(args));
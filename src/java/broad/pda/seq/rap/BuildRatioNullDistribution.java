@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
 
 import org.ggf.drmaa.DrmaaException;
 
@@ -20,10 +21,12 @@ import net.sf.picard.util.Log;
 import net.sf.samtools.util.CloseableIterator;
 import nextgen.core.coordinatesystem.GenomicSpace;
 import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.ReadSpans;
 import nextgen.core.model.score.WindowScoreIterator;
 import nextgen.core.alignment.Alignment;
 import nextgen.core.model.score.*;
 import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.AnnotationCounts;
 import nextgen.core.writers.PairedEndWriter;
 import nextgen.core.readFilters.*;
 
@@ -63,6 +66,12 @@ public class BuildRatioNullDistribution extends GenomeCommandLineProgram {
 	@Option(doc="Set the random generator seed for reproducible behavior (note: does not work for submitting multiple jobs).", optional=true)
 	public Integer RANDOM_SEED = null;
 	
+	@Option(doc="Permute reads in memory instead of writing and scanning a shuffled BAM file for each permutation.  Without a QUEUE, runs all PERMUTATIONS")
+	public boolean IN_MEMORY = true;
+	
+	@Option(doc="Number of permutations to compute at once in memory")
+	public Integer THREADS = 1;
+	
 	
 	private Runtime run = Runtime.getRuntime();
 	private String jobID = LSFJob.generateJobID();
@@ -91,6 +100,8 @@ public class BuildRatioNullDistribution extends GenomeCommandLineProgram {
 				submitJobs();
 				collateResults();
 				if (!KEEP_INTERMEDIATES) cleanup();
+			} else if (IN_MEMORY) {
+				permuteInMemory(OUTPUT.getAbsolutePath());
 			} else {
 				permuteOnce(OUTPUT.getAbsolutePath());
 			}
@@ -120,9 +131,10 @@ public class BuildRatioNullDistribution extends GenomeCommandLineProgram {
 			
 			String[] argv = getCommandLineParser().getArgv();
 			for (String arg : argv) {
-				if (arg.indexOf("QUEUE") < 0 && arg.indexOf("OUTPUT") < 0) // don't set QUEUE
+				if (arg.indexOf("QUEUE") < 0 && arg.indexOf("OUTPUT") < 0 && !arg.startsWith("PERMUTATIONS=") && !arg.startsWith("N=")) // don't set QUEUE
 					command += " " + arg;
 			}
+			command += " PERMUTATIONS=1";
 			
 			String outfile = OUTPUT.getAbsolutePath() + "_" + i;
 			command += " OUTPUT=" + outfile;
@@ -171,6 +183,43 @@ public class BuildRatioNullDistribution extends GenomeCommandLineProgram {
 		}
 	}
 	
+	/**
+	 * Permute the target reads in memory and scan each permutation against the control
+	 * Both files are read once, and the ratios of all permutations go to a single empirical distribution
+	 * @param output
+	 * @throws IOException
+	 */
+	private void permuteInMemory(String output) throws IOException {
+		List<Annotation> regions = getRegions();
+		GenomicSpace space = (GenomicSpace) getCoordinateSpace();
+		space.setPercentMaskedAllowed(PCT_MASKED_ALLOWED);  // windows are filtered as in the scan of a permuted file
+		
+		AlignmentModel target = loadAlignmentModel(TARGET);
+		ReadPermutationEngine engine = new ReadPermutationEngine(target, space, regions, WINDOW, OVERLAP);
+		engine.setNumThreads(THREADS);
+		final ReadSpans control = ReadSpans.load(loadAlignmentModel(CONTROL), regions, false);
+		
+		EmpiricalDistribution ed = getEmptyEmpiricalDistribution();
+		long seed = RANDOM_SEED != null ? RANDOM_SEED.longValue() : new Random().nextLong();
+		engine.addPermutations(PERMUTATIONS, seed, new ReadPermutationEngine.Scorer<RatioScore>() {
+			@Override
+			public WindowProcessor<RatioScore> getProcessor(AnnotationCounts permuted) {
+				return new RatioScore.Processor(permuted, control);
+			}
+
+			@Override
+			public double getValue(RatioScore score) {
+				double ratio = score.getLog2RegionRatio();
+				if (ratio < -20 || ratio > 20) {
+					log.warn("Ratio out of bounds: " + score);
+				}
+				return ratio;
+			}
+		}, ed);
+		
+		ed.write(output + ".empiricalDistribution.txt");
+	}
+	
 	/**
 	 * Do the processing for a single permutation
 	 * @param output
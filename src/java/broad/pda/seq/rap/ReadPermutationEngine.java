@@ -0,0 +1,180 @@
+package broad.pda.seq.rap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.picard.util.Log;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.AnnotationCollection;
+import nextgen.core.annotation.AnnotationCounts;
+import nextgen.core.coordinatesystem.GenomicSpace;
+import nextgen.core.feature.GenomeWindow;
+import nextgen.core.feature.Window;
+import nextgen.core.model.ReadSpans;
+import nextgen.core.model.score.WindowProcessor;
+import nextgen.core.model.score.WindowScore;
+import broad.core.math.EmpiricalDistribution;
+
+/**
+ * Builds null distributions of window scores from reads permuted in memory
+ * The reads are loaded once as ReadSpans. Each permutation shuffles them within their region as ShuffleBAM does,
+ * scans the windows with a new processor and bins the scores, so no permuted file is written or read back
+ * Permutations run on a pool of threads, each with a generator seeded from the seed of the run,
+ * so the distribution does not depend on the number of threads
+ */
+public class ReadPermutationEngine {
+	private static final Log log = Log.getInstance(ReadPermutationEngine.class);
+
+	/**
+	 * Scores the windows of one permutation
+	 */
+	public interface Scorer<W extends WindowScore> {
+		/**
+		 * @param permuted Permuted reads
+		 * @return A processor for the windows of the permuted reads, used by a single thread
+		 */
+		public WindowProcessor<W> getProcessor(AnnotationCounts permuted);
+
+		/**
+		 * @return The value added to the null distribution for a window
+		 */
+		public double getValue(W score);
+	}
+
+	private final ReadSpans reads;
+	private final List<Annotation> regions;
+	private final Map<String, Annotation> bounds;
+	private final GenomicSpace space;
+	private final List<int[]> windows; // starts and ends of the windows of each region, interleaved
+	private int numThreads = 1;
+
+	/**
+	 * Load the reads fully contained in the regions and the windows to scan
+	 * @param model Reads to permute
+	 * @param space Genomic space of the reads. Reads are permuted away from all its masked bases, and windows are filtered with its current percent masked allowed
+	 * @param regions Regions to permute the reads within, at most one per chromosome
+	 * @param windowSize Window size
+	 * @param overlap Overlap between windows
+	 */
+	public ReadPermutationEngine(AnnotationCollection<? extends Annotation> model, GenomicSpace space, List<? extends Annotation> regions, int windowSize, int overlap) {
+		this.regions = new ArrayList<Annotation>(regions);
+		this.bounds = new HashMap<String, Annotation>();
+		this.space = space;
+		this.windows = new ArrayList<int[]>();
+		for (Annotation region : regions) {
+			if (bounds.put(region.getChr(), region) != null) {
+				throw new IllegalArgumentException("Reads are permuted within one region per chromosome, " + region.getChr() + " has more than one");
+			}
+			int[] regionWindows = new int[64];
+			int n = 0;
+			Iterator<? extends Window> itr = space.getWindowIterator(region, windowSize, overlap);
+			while (itr.hasNext()) {
+				Window window = itr.next();
+				if (n == regionWindows.length) regionWindows = Arrays.copyOf(regionWindows, 2 * n);
+				regionWindows[n++] = window.getStart();
+				regionWindows[n++] = window.getEnd();
+			}
+			windows.add(Arrays.copyOf(regionWindows, n));
+		}
+		log.info("Loading reads to permute");
+		this.reads = ReadSpans.load(model, regions, true);
+		log.info("Loaded " + reads.size() + " reads");
+	}
+
+	/**
+	 * @param numThreads Number of permutations to compute at once
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * @return The reads that are permuted
+	 */
+	public ReadSpans getReads() {
+		return reads;
+	}
+
+	/**
+	 * @param random Random generator
+	 * @return The reads moved to uniformly drawn unmasked positions within their region
+	 */
+	public ReadSpans permute(Random random) {
+		return reads.permute(space, bounds, random);
+	}
+
+	/**
+	 * Permute the reads, scan the windows of each permutation and add the window scores to the distribution
+	 * The observations are added as bin counts, they are not kept in the distribution's data values
+	 * @param numPermutations Number of permutations
+	 * @param seed Seed for the generators of the permutations
+	 * @param scorer Window scores
+	 * @param distribution Null distribution to add the scores to
+	 */
+	public <W extends WindowScore> void addPermutations(int numPermutations, long seed, final Scorer<W> scorer, final EmpiricalDistribution distribution) {
+		Random seeds = new Random(seed);
+		List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+		for (int i = 0; i < numPermutations; i++) {
+			final long permutationSeed = seeds.nextLong();
+			final int permutation = i;
+			tasks.add(new Callable<long[]>() {
+				@Override
+				public long[] call() {
+					long[] counts = scorePermutation(new Random(permutationSeed), scorer, distribution);
+					log.info("Finished permutation " + permutation);
+					return counts;
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			for (Future<long[]> future : executor.invokeAll(tasks)) {
+				distribution.addCounts(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return Counts of the window scores of one permutation by bin of the distribution
+	 */
+	private <W extends WindowScore> long[] scorePermutation(Random random, Scorer<W> scorer, EmpiricalDistribution distribution) {
+		ReadSpans permuted = permute(random);
+		WindowProcessor<W> processor = scorer.getProcessor(permuted);
+		long[] counts = new long[distribution.getBinNumber()];
+		for (int r = 0; r < regions.size(); r++) {
+			int[] regionWindows = windows.get(r);
+			if (regionWindows.length == 0) continue;
+			Annotation region = regions.get(r);
+			// Same calls as WindowScoreIterator
+			processor.initRegion(region);
+			W score = null;
+			for (int w = 0; w < regionWindows.length; w += 2) {
+				score = processor.processWindow(new GenomeWindow(region.getChr(), regionWindows[w], regionWindows[w + 1]), score);
+				int bin = distribution.getObservationBin(scorer.getValue(score));
+				if (bin >= 0) counts[bin]++;
+			}
+			processor.finishedRegion();
+		}
+		return counts;
+	}
+}
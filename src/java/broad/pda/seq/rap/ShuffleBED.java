@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.List;
+import java.util.Random;
 
 import broad.core.annotation.ShortBED;
 import broad.core.annotation.ShortBEDReader;
@@ -32,6 +33,9 @@ public class ShuffleBED extends GenomeCommandLineProgram {
 	@Option(doc="Number of permutations", shortName="N")
 	public Integer PERMUTATIONS = 1;
 	
+	@Option(doc="Set the random generator seed for reproducible behavior.", optional=true)
+	public Integer RANDOM_SEED = null;
+	
 	
 	/**
 	 * Stock main method.
@@ -56,6 +60,8 @@ public class ShuffleBED extends GenomeCommandLineProgram {
 			ShortBEDReader peakReader = new ShortBEDReader(INPUT.getAbsolutePath());
 			AnnotationList<ShortBED> peaks = new AnnotationList<ShortBED>(getCoordinateSpace(), peakReader.getAnnotationList()).getOverlappingAnnotationList(regions, true);
 			
+			if (RANDOM_SEED != null) GenomicSpace.setSeed(RANDOM_SEED);
+			
 			// Cast to genomic space
 			shuffleAndWriteAnnotations(regions, (GenomicSpace) getCoordinateSpace(), peaks, OUTPUT, PERMUTATIONS);
 		} catch (Exception e) {
@@ -68,6 +74,7 @@ public class ShuffleBED extends GenomeCommandLineProgram {
 	
 	public static void shuffleAndWriteAnnotations(AnnotationList<Annotation> regions, GenomicSpace cs, AnnotationList<? extends Annotation> annotations, File output, int permutations) throws IOException {
 		BufferedWriter bw = new BufferedWriter(new FileWriter(output));
+		Random random = cs.newRandomStream();
 		
 		// Permute multiple times and write all to the same file
 		for (int i = 1; i <= permutations; i++) {
@@ -76,7 +83,7 @@ public class ShuffleBED extends GenomeCommandLineProgram {
 				CloseableIterator<? extends Annotation> overlappers = annotations.getOverlappingAnnotations(region, true);
 				while (overlappers.hasNext()) {
 					Annotation shuffled = overlappers.next().copy();
-					cs.permuteAnnotation(shuffled, region);
+					cs.permuteAnnotation(shuffled, region, random);
 					bw.write(shuffled.toShortBED());
 					bw.newLine();
 				}
@@ -282,15 +282,27 @@ public abstract class AbstractPairedEndAlignment extends BasicAnnotation impleme
 	@Override
 	public Collection<Integer> getFragmentSize(CoordinateSpace C) {
 		Collection<Integer> rtrn=new ArrayList<Integer>();
-		Collection<? extends Window> fragments = this.getFragment(C);
 		
-		if(fragments == null) {
+		if(C==null){
+			rtrn.add(Integer.valueOf(this.getFragmentEnd() - this.getFragmentStart()));
+			return rtrn;
+		}
+		
+		//Sizes come from the coordinate space without building the fragment windows
+		int[] sizes=new int[4];
+		int numFragments=C.getFragmentSizes(this.getChr(), this.getFragmentStart(), this.getFragmentEnd(), sizes);
+		if(numFragments > sizes.length){
+			sizes=new int[numFragments];
+			numFragments=C.getFragmentSizes(this.getChr(), this.getFragmentStart(), this.getFragmentEnd(), sizes);
+		}
+		
+		if (numFragments < 0) {
 			rtrn.add(Integer.valueOf(this.getEnd() - this.getStart()));
 			return rtrn;
 		}
 		
-		for(Window w: fragments){
-			rtrn.add(Integer.valueOf(w.getSize()));
+		for(int i=0; i<numFragments; i++){
+			rtrn.add(Integer.valueOf(sizes[i]));
 		}
 		
 		return rtrn;
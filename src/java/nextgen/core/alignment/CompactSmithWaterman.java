@@ -0,0 +1,232 @@
+package nextgen.core.alignment;
+
+import jaligner.Alignment;
+import jaligner.Directions;
+import jaligner.Markups;
+import jaligner.Sequence;
+import jaligner.matrix.Matrix;
+
+/**
+ * Smith Waterman alignment with Gotoh's affine gaps, computing the same alignment as jaligner.SmithWatermanGotoh
+ * The traceback is packed into one byte per cell (direction and gap extension flags) instead of a byte and two shorts,
+ * and the score rows and traceback buffer are reused between calls
+ * Not thread safe: use one instance per thread
+ */
+public final class CompactSmithWaterman {
+
+	private static final byte DIRECTION_MASK = 3;
+	private static final byte EXTENDS_VERTICAL_GAP = 4;
+	private static final byte EXTENDS_HORIZONTAL_GAP = 8;
+
+	private final Matrix matrix;
+	private final float[][] scores;
+	private final float open;
+	private final float extend;
+	private byte[] traceback = new byte[0];
+	private float[] g = new float[0];
+	private float[] v = new float[0];
+
+	/**
+	 * @param matrix Scoring matrix
+	 * @param open Gap open penalty
+	 * @param extend Gap extend penalty
+	 */
+	public CompactSmithWaterman(Matrix matrix, float open, float extend) {
+		this.matrix = matrix;
+		this.scores = matrix.getScores();
+		this.open = open;
+		this.extend = extend;
+	}
+
+	/**
+	 * @param s1 Sequence 1
+	 * @param s2 Sequence 2
+	 * @return The local alignment jaligner.SmithWatermanGotoh.align would return for the same sequences and scores
+	 */
+	public Alignment align(Sequence s1, Sequence s2) {
+		char[] a1 = s1.toArray();
+		char[] a2 = s2.toArray();
+		int m = a1.length + 1;
+		int n = a2.length + 1;
+		if(traceback.length < m * n) {
+			traceback = new byte[Math.max(m * n, 2 * traceback.length)];
+		}
+		if(v.length < n) {
+			v = new float[n];
+			g = new float[n];
+		}
+		// row 0 and column 0 are STOP
+		for(int j = 0; j < n; j++) {
+			traceback[j] = Directions.STOP;
+			g[j] = Float.NEGATIVE_INFINITY;
+			v[j] = 0;
+		}
+
+		int bestRow = 0;
+		int bestCol = 0;
+		float bestScore = Float.NEGATIVE_INFINITY;
+		for(int i = 1, k = n; i < m; i++, k += n) {
+			traceback[k] = Directions.STOP;
+			float h = Float.NEGATIVE_INFINITY;
+			float vDiagonal = v[0];
+			float[] row = scores[a1[i - 1]];
+			for(int j = 1, l = k + 1; j < n; j++, l++) {
+				byte cell = 0;
+				float f = vDiagonal + row[a2[j - 1]];
+
+				float g1 = g[j] - extend;
+				float g2 = v[j] - open;
+				if(g1 > g2) {
+					g[j] = g1;
+					cell |= EXTENDS_VERTICAL_GAP;
+				} else {
+					g[j] = g2;
+				}
+
+				float h1 = h - extend;
+				float h2 = v[j - 1] - open;
+				if(h1 > h2) {
+					h = h1;
+					cell |= EXTENDS_HORIZONTAL_GAP;
+				} else {
+					h = h2;
+				}
+
+				vDiagonal = v[j];
+				float score = maximum(f, g[j], h, 0);
+				v[j] = score;
+
+				if(score == 0) {
+					cell |= Directions.STOP;
+				} else if(score == f) {
+					cell |= Directions.DIAGONAL;
+				} else if(score == g[j]) {
+					cell |= Directions.UP;
+				} else {
+					cell |= Directions.LEFT;
+				}
+				traceback[l] = cell;
+
+				if(score > bestScore) {
+					bestRow = i;
+					bestCol = j;
+					bestScore = score;
+				}
+			}
+		}
+
+		Alignment alignment = traceback(a1, a2, n, bestRow, bestCol);
+		alignment.setScore(bestScore);
+		alignment.setOriginalSequence1(s1);
+		alignment.setOriginalSequence2(s2);
+		alignment.setMatrix(matrix);
+		alignment.setOpen(open);
+		alignment.setExtend(extend);
+		if(s1.getId() != null) {
+			alignment.setName1(s1.getId());
+		}
+		if(s2.getId() != null) {
+			alignment.setName2(s2.getId());
+		}
+		return alignment;
+	}
+
+	/**
+	 * @param l Index of the cell where a gap ends
+	 * @param flag Extension flag of the gap direction
+	 * @param stride Index offset of the previous cell of the gap
+	 * @return Length of the gap, as jaligner stores it in sizesOfVerticalGaps and sizesOfHorizontalGaps
+	 */
+	private int gapLength(int l, byte flag, int stride) {
+		int rtrn = 1;
+		while((traceback[l] & flag) != 0) {
+			rtrn++;
+			l -= stride;
+		}
+		return rtrn;
+	}
+
+	private Alignment traceback(char[] a1, char[] a2, int n, int i, int j) {
+		int maxlen = a1.length + a2.length;
+		char[] reversed1 = new char[maxlen];
+		char[] reversed2 = new char[maxlen];
+		char[] reversed3 = new char[maxlen];
+		int len = 0;
+		int identity = 0;
+		int similarity = 0;
+		int gaps = 0;
+		int k = i * n;
+		boolean stillGoing = true;
+		while(stillGoing) {
+			switch(traceback[k + j] & DIRECTION_MASK) {
+			case Directions.UP:
+				for(int c = 0, size = gapLength(k + j, EXTENDS_VERTICAL_GAP, n); c < size; c++) {
+					reversed1[len] = a1[--i];
+					reversed2[len] = Alignment.GAP;
+					reversed3[len++] = Markups.GAP;
+					k -= n;
+					gaps++;
+				}
+				break;
+			case Directions.DIAGONAL:
+				char c1 = a1[--i];
+				char c2 = a2[--j];
+				k -= n;
+				reversed1[len] = c1;
+				reversed2[len] = c2;
+				if(c1 == c2) {
+					reversed3[len++] = Markups.IDENTITY;
+					identity++;
+					similarity++;
+				} else if(scores[c1][c2] > 0) {
+					reversed3[len++] = Markups.SIMILARITY;
+					similarity++;
+				} else {
+					reversed3[len++] = Markups.MISMATCH;
+				}
+				break;
+			case Directions.LEFT:
+				for(int c = 0, size = gapLength(k + j, EXTENDS_HORIZONTAL_GAP, 1); c < size; c++) {
+					reversed1[len] = Alignment.GAP;
+					reversed2[len] = a2[--j];
+					reversed3[len++] = Markups.GAP;
+					gaps++;
+				}
+				break;
+			default:
+				stillGoing = false;
+			}
+		}
+		Alignment alignment = new Alignment();
+		alignment.setSequence1(reverse(reversed1, len));
+		alignment.setStart1(i);
+		alignment.setSequence2(reverse(reversed2, len));
+		alignment.setStart2(j);
+		alignment.setMarkupLine(reverse(reversed3, len));
+		alignment.setIdentity(identity);
+		alignment.setGaps(gaps);
+		alignment.setSimilarity(similarity);
+		return alignment;
+	}
+
+	private static float maximum(float a, float b, float c, float d) {
+		if(a > b) {
+			if(a > c) {
+				return a > d ? a : d;
+			}
+			return c > d ? c : d;
+		} else if(b > c) {
+			return b > d ? b : d;
+		}
+		return c > d ? c : d;
+	}
+
+	private static char[] reverse(char[] a, int len) {
+		char[] rtrn = new char[len];
+		for(int i = len - 1, j = 0; i >= 0; i--, j++) {
+			rtrn[j] = a[i];
+		}
+		return rtrn;
+	}
+
+}
@@ -8,15 +8,24 @@ import jaligner.SmithWatermanGotoh;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
 import broad.core.sequence.FastaSequenceIO;
 import broad.core.sequence.Sequence;
+import broad.core.sequence.TwoBitGenome;
 import broad.pda.annotation.BEDFileParser;
 
 import nextgen.core.annotation.Annotation;
@@ -38,6 +47,14 @@ public class FeatureSequenceAlignment {
 	private static Logger logger = Logger.getLogger(FeatureSequenceAlignment.class.getName());
 	private TreeMap<UnorderedGenePair, jaligner.Alignment> senseAlignments;
 	private TreeMap<UnorderedGenePair, jaligner.Alignment> antisenseAlignments;
+	private boolean seedAndExtend = false;
+	private int numThreads = 1;
+	
+	// k-mer seeds are indexed as the high bits of a hash packed with the index of the feature they come from
+	private static final long KMER_HASH_BASE = 0x9E3779B97F4A7C15L;
+	private static final int OWNER_BITS = 24;
+	private static final long OWNER_MASK = (1L << OWNER_BITS) - 1;
+	private static final long KMER_HASH_MASK = ~OWNER_MASK;
 	
 	/**
 	 * Default match score for Smith Waterman
@@ -107,11 +124,37 @@ public class FeatureSequenceAlignment {
 		// Store genes and sequences
 		sequences = new TreeMap<Gene, jaligner.Sequence>();
 		for(Gene gene : genes) {
-			broad.core.sequence.Sequence broadSeq = chromosomes.get(gene.getChr()).getSubsequence(gene);
-			jaligner.Sequence jSeq = new jaligner.Sequence(broadSeq.getSequenceBases());
-			jSeq.setId(gene.getName());
-			sequences.put(gene, jSeq);
+			addSequence(gene, chromosomes.get(gene.getChr()).getSubsequence(gene));
 		}
+		initialize(genes, matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty);
+	}
+	
+	/**
+	 * @param genes The features
+	 * @param genome Genome read from a .2bit file, so only the sequences of the features are loaded
+	 * @param matchScore Match score for Smith Waterman
+	 * @param mismatchScore Mismatch score for Smith Waterman
+	 * @param gapOpenPenalty Gap open penalty for Smith Waterman
+	 * @param gapExtendPenalty Gap extend penalty for Smith Waterman
+	 */
+	public FeatureSequenceAlignment(Collection<Gene> genes, TwoBitGenome genome, float matchScore, float mismatchScore, float gapOpenPenalty, float gapExtendPenalty) {
+		sequences = new TreeMap<Gene, jaligner.Sequence>();
+		for(Gene gene : genes) {
+			addSequence(gene, genome.getSubsequence(gene));
+		}
+		initialize(genes, matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty);
+	}
+	
+	private void addSequence(Gene gene, broad.core.sequence.Sequence broadSeq) {
+		jaligner.Sequence jSeq = new jaligner.Sequence(broadSeq.getSequenceBases());
+		jSeq.setId(gene.getName());
+		sequences.put(gene, jSeq);
+	}
+	
+	/**
+	 * Store the feature pairs and scoring parameters, once the sequences are loaded
+	 */
+	private void initialize(Collection<Gene> genes, float matchScore, float mismatchScore, float gapOpenPenalty, float gapExtendPenalty) {
 		logger.info("Loaded " + sequences.size() + " features with sequences.");
 		
 		// Store unordered pairs of genes
@@ -139,7 +182,7 @@ public class FeatureSequenceAlignment {
 	
 	/**
 	 * @param genes Set of features
-	 * @param genomeFasta Genome fasta file
+	 * @param genomeFasta Genome fasta file, or .2bit file to read only the sequences of the features
 	 * @param matchScore Match score for Smith Waterman
 	 * @param mismatchScore Mismatch score for Smith Waterman
 	 * @param gapOpenPenalty Gap open penalty for Smith Waterman
@@ -147,7 +190,20 @@ public class FeatureSequenceAlignment {
 	 * @throws IOException
 	 */
 	public FeatureSequenceAlignment(Collection<Gene> genes, String genomeFasta, float matchScore, float mismatchScore, float gapOpenPenalty, float gapExtendPenalty) throws IOException {
-		this(genes, FastaSequenceIO.getChrSequencesFromFasta(genomeFasta), matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty);
+		sequences = new TreeMap<Gene, jaligner.Sequence>();
+		if(TwoBitGenome.isTwoBit(genomeFasta)) {
+			TwoBitGenome genome = TwoBitGenome.open(genomeFasta);
+			for(Gene gene : genes) {
+				addSequence(gene, genome.getSubsequence(gene));
+			}
+			genome.close();
+		} else {
+			chromosomes = FastaSequenceIO.getChrSequencesFromFasta(genomeFasta);
+			for(Gene gene : genes) {
+				addSequence(gene, chromosomes.get(gene.getChr()).getSubsequence(gene));
+			}
+		}
+		initialize(genes, matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty);
 	}
 	
 	
@@ -198,15 +254,218 @@ public class FeatureSequenceAlignment {
 		Gene gene1 = genes.getFirstGene();
 		Gene gene2 = genes.getSecondGene();
 		jaligner.Sequence seq1 = sequences.get(gene1);
-		jaligner.Sequence seq2 = sequences.get(gene2);
-		String seq2bases = seq2.getSequence();
-		String seq2antisenseBases = Sequence.reverseSequence(seq2bases);
-		jaligner.Sequence seq2antisense = new jaligner.Sequence(seq2antisenseBases);
-		seq2antisense.setId(seq2.getId() + "_antisense");
+		jaligner.Sequence seq2antisense = getAntisenseSequence(sequences.get(gene2));
 		jaligner.Alignment antisenseAlign = SmithWatermanGotoh.align(seq1, seq2antisense, scoringMatrix, gapOpen, gapExtend);
+		correctAntisenseStart(antisenseAlign, seq2antisense);
+		antisenseAlignments.put(genes, antisenseAlign);
+	}
+	
+	/**
+	 * @param seq Sequence
+	 * @return The reverse complement of the sequence
+	 */
+	private static jaligner.Sequence getAntisenseSequence(jaligner.Sequence seq) {
+		jaligner.Sequence rtrn = new jaligner.Sequence(Sequence.reverseSequence(seq.getSequence()));
+		rtrn.setId(seq.getId() + "_antisense");
+		return rtrn;
+	}
+	
+	/**
+	 * Express the start of the second sequence of an antisense alignment in the coordinates of the sense sequence
+	 * @param antisenseAlign Alignment against the reverse complement of the second sequence
+	 * @param seq2antisense The reverse complement of the second sequence
+	 */
+	private static void correctAntisenseStart(jaligner.Alignment antisenseAlign, jaligner.Sequence seq2antisense) {
 		int correctedStart2 = seq2antisense.length() - antisenseAlign.getStart2() - antisenseAlign.getLength() + antisenseAlign.getGaps2();
 		antisenseAlign.setStart2(correctedStart2);
-		antisenseAlignments.put(genes, antisenseAlign);
+	}
+	
+	/**
+	 * Only align the pairs of features that share a seed in antisense direction, on several threads, rather than all pairs
+	 * The seed length is derived from the thresholds so that no pair passing them is missed
+	 * @param seedAndExtend Whether to use seeds
+	 */
+	public void setSeedAndExtend(boolean seedAndExtend) {
+		this.seedAndExtend = seedAndExtend;
+	}
+	
+	/**
+	 * @param numThreads Number of threads to align seeded pairs with
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * Every alignment of length at least minAlignLength with at least minPctIdentity identities has at most (1 - minPctIdentity) * length
+	 * mismatches and gaps, so one of its runs of identities is at least this long
+	 * @param minAlignLength Min alignment length
+	 * @param minPctIdentity Min percent identity, as a fraction of the alignment length
+	 * @return The length of the identical run every passing alignment contains, or 0 if every pair can pass
+	 */
+	static int getSeedLength(float minAlignLength, float minPctIdentity) {
+		double length = Math.ceil(minAlignLength);
+		double identity = Math.min(1, minPctIdentity);
+		if(length <= 0 || identity <= 0) {
+			return 0;
+		}
+		double run = identity * length / ((1 - identity) * length + 1);
+		// round down a hair to stay on the safe side of floating point error
+		return Math.max(0, (int) Math.ceil(run - 1e-6));
+	}
+	
+	/**
+	 * Hashes of the k-mers of a sequence
+	 * Equal k-mers have equal hashes; unequal k-mers rarely do, which only costs an extra alignment
+	 * @param seq The sequence
+	 * @param k K-mer length
+	 * @return Sorted distinct hashes
+	 */
+	private static long[] getKmerHashes(char[] seq, int k) {
+		if(seq.length < k) {
+			return new long[0];
+		}
+		long power = 1;
+		for(int i = 0; i < k; i++) {
+			power *= KMER_HASH_BASE;
+		}
+		long[] rtrn = new long[seq.length - k + 1];
+		long hash = 0;
+		for(int i = 0; i < seq.length; i++) {
+			hash = hash * KMER_HASH_BASE + seq[i];
+			if(i >= k) {
+				hash -= power * seq[i - k];
+			}
+			if(i >= k - 1) {
+				rtrn[i - k + 1] = hash & KMER_HASH_MASK;
+			}
+		}
+		Arrays.sort(rtrn);
+		int distinct = 0;
+		for(int i = 0; i < rtrn.length; i++) {
+			if(distinct == 0 || rtrn[i] != rtrn[distinct - 1]) {
+				rtrn[distinct++] = rtrn[i];
+			}
+		}
+		return Arrays.copyOf(rtrn, distinct);
+	}
+	
+	/**
+	 * Find the pairs of features where the first feature shares a k-mer with the reverse complement of the second
+	 * @param genes Features in sorted order
+	 * @param antisense Reverse complements of the feature sequences
+	 * @param k Seed length
+	 * @return Candidate pairs as indices into genes
+	 */
+	private List<int[]> getAntisenseSeedPairs(List<Gene> genes, jaligner.Sequence[] antisense, int k) {
+		// Index the antisense k-mers of all features as one sorted array of hash | owner
+		long[][] antisenseKmers = new long[genes.size()][];
+		int total = 0;
+		for(int i = 0; i < genes.size(); i++) {
+			antisenseKmers[i] = getKmerHashes(antisense[i].toArray(), k);
+			total += antisenseKmers[i].length;
+		}
+		long[] index = new long[total];
+		int pos = 0;
+		for(int i = 0; i < genes.size(); i++) {
+			for(long hash : antisenseKmers[i]) {
+				index[pos++] = hash | i;
+			}
+		}
+		Arrays.sort(index);
+		
+		List<int[]> rtrn = new ArrayList<int[]>();
+		int[] lastSeen = new int[genes.size()];
+		Arrays.fill(lastSeen, -1);
+		for(int i = 0; i < genes.size(); i++) {
+			for(long hash : getKmerHashes(sequences.get(genes.get(i)).toArray(), k)) {
+				int from = Arrays.binarySearch(index, hash);
+				from = from < 0 ? -from - 1 : from;
+				for(int j = from; j < index.length && (index[j] & KMER_HASH_MASK) == hash; j++) {
+					int other = (int) (index[j] & OWNER_MASK);
+					// The alignment of an unordered pair is the first feature against the antisense of the second
+					if(other > i && lastSeen[other] != i) {
+						lastSeen[other] = i;
+						rtrn.add(new int[] {i, other});
+					}
+				}
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Align the pairs of features that share a seed on numThreads threads and store the alignments
+	 * @param minAlignLength Min alignment length
+	 * @param minPctIdentity Min percent identity
+	 */
+	private void alignSeededAntisensePairs(float minAlignLength, float minPctIdentity) {
+		final List<Gene> genes = new ArrayList<Gene>(sequences.keySet());
+		final jaligner.Sequence[] antisense = new jaligner.Sequence[genes.size()];
+		for(int i = 0; i < genes.size(); i++) {
+			antisense[i] = getAntisenseSequence(sequences.get(genes.get(i)));
+		}
+		int k = getSeedLength(minAlignLength, minPctIdentity);
+		List<int[]> seeded;
+		if(k > 0 && genes.size() <= OWNER_MASK) {
+			seeded = getAntisenseSeedPairs(genes, antisense, k);
+		} else {
+			seeded = new ArrayList<int[]>();
+			for(int i = 0; i < genes.size(); i++) {
+				for(int j = i + 1; j < genes.size(); j++) {
+					seeded.add(new int[] {i, j});
+				}
+			}
+		}
+		logger.info(seeded.size() + " of " + featurePairs.size() + " pairs share an antisense seed of length " + k + ".");
+		final List<int[]> candidates = new ArrayList<int[]>(seeded.size());
+		for(int[] pair : seeded) {
+			if(!antisenseAlignments.containsKey(new UnorderedGenePair(genes.get(pair[0]), genes.get(pair[1])))) {
+				candidates.add(pair);
+			}
+		}
+		
+		final jaligner.Alignment[] aligned = new jaligner.Alignment[candidates.size()];
+		int threads = Math.max(1, Math.min(numThreads, candidates.size()));
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(threads);
+		for(int t = 0; t < threads; t++) {
+			final int first = t;
+			final int stride = threads;
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					CompactSmithWaterman aligner = new CompactSmithWaterman(scoringMatrix, gapOpen, gapExtend);
+					for(int c = first; c < aligned.length; c += stride) {
+						int[] pair = candidates.get(c);
+						jaligner.Alignment align = aligner.align(sequences.get(genes.get(pair[0])), antisense[pair[1]]);
+						correctAntisenseStart(align, antisense[pair[1]]);
+						aligned[c] = align;
+					}
+					return null;
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for(Future<Object> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		
+		for(int c = 0; c < aligned.length; c++) {
+			int[] pair = candidates.get(c);
+			antisenseAlignments.put(new UnorderedGenePair(genes.get(pair[0]), genes.get(pair[1])), aligned[c]);
+		}
 	}
 
 	/**
@@ -252,6 +511,16 @@ public class FeatureSequenceAlignment {
 	 */
 	public Map<UnorderedGenePair, jaligner.Alignment> getAllPairwiseAntisenseAlignments(float minAlignLength, float minPctIdentity) {
 		Map<UnorderedGenePair, jaligner.Alignment> rtrn = new TreeMap<UnorderedGenePair, jaligner.Alignment>();
+		if(seedAndExtend) {
+			alignSeededAntisensePairs(minAlignLength, minPctIdentity);
+			for(UnorderedGenePair genes : antisenseAlignments.keySet()) {
+				jaligner.Alignment align = antisenseAlignments.get(genes);
+				if(align.getLength() >= minAlignLength && align.getPercentIdentity() >= minPctIdentity) {
+					rtrn.put(genes, align);
+				}
+			}
+			return rtrn;
+		}
 		for(UnorderedGenePair genes : featurePairs) {
 			jaligner.Alignment align = getAntisenseAlignment(genes);
 			if(align.getLength() >= minAlignLength && align.getPercentIdentity() >= minPctIdentity) {
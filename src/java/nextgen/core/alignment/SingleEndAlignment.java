@@ -282,15 +282,26 @@ public class SingleEndAlignment extends BasicAnnotation implements Alignment,jav
 	public Collection<Integer> getFragmentSize(CoordinateSpace C) {
 		Collection<Integer> rtrn=new ArrayList<Integer>();
 		
-		Collection<? extends Window> fragments = this.getFragment(C);
+		if(C==null){
+			rtrn.add(Integer.valueOf(getEnd() - getStart()));
+			return rtrn;
+		}
+		
+		//Sizes come from the coordinate space without building the fragment windows
+		int[] sizes=new int[4];
+		int numFragments=C.getFragmentSizes(getReferenceName(), getStart(), getEnd(), sizes);
+		if(numFragments > sizes.length){
+			sizes=new int[numFragments];
+			numFragments=C.getFragmentSizes(getReferenceName(), getStart(), getEnd(), sizes);
+		}
 		
-		if (fragments == null) {
+		if (numFragments < 0) {
 			rtrn.add(Integer.valueOf(this.getEnd() - this.getStart()));
 			return rtrn;
 		}
 		
-		for(Window w: fragments){
-			rtrn.add(w.getSize());
+		for(int i=0; i<numFragments; i++){
+			rtrn.add(Integer.valueOf(sizes[i]));
 		}
 		
 		return rtrn;
@@ -17,7 +17,7 @@ import org.apache.commons.collections15.Predicate;
  * @author engreitz
  * Interface to allow for counting over both AnnotationReader and ReadCollection. 
  */
-public interface AnnotationCollection<T extends Annotation> {
+public interface AnnotationCollection<T extends Annotation> extends AnnotationCounts {
 	
 	/**
 	 * @return Total number of annotations.  Considers filters.
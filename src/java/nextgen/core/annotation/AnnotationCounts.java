@@ -0,0 +1,19 @@
+package nextgen.core.annotation;
+
+/**
+ * Counts of annotations over regions, for scores that need nothing else from a collection
+ * Every AnnotationCollection provides them; ReadSpans provides only these
+ */
+public interface AnnotationCounts {
+
+	/**
+	 * @return Global count, possibly weighted
+	 */
+	public double getGlobalCount();
+
+	/**
+	 * @param region The reference region to count overlapping elements
+	 * @return Count, possibly weighted, of the elements overlapping the region (not necessarily fully contained)
+	 */
+	public double getCount(Annotation region);
+}
@@ -3,6 +3,7 @@ package nextgen.core.coordinatesystem;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
 import java.io.File;
 import java.io.IOException;
 
@@ -14,6 +15,7 @@ import nextgen.core.feature.Window;
 import broad.core.annotation.ShortBEDReader;
 import broad.core.datastructures.IntervalTree;
 import broad.core.error.ParseException;
+import broad.core.math.SplitRandom;
 
 /**
  * This interface represents the coordinate space in which we analyze the models
@@ -38,6 +40,33 @@ public interface CoordinateSpace {
 	 */
 	Collection<? extends Window> getFragment(Annotation annotation);
 	
+	/**
+	 * Sizes of the fragments getFragment(chr, start, end) would return, without building the Windows
+	 * Writes at most sizes.length values; if the return value is larger, call again with a larger array
+	 * @param chr
+	 * @param start
+	 * @param end
+	 * @param sizes Array to fill with one size per fragment
+	 * @return The number of fragments, or -1 where getFragment would return null
+	 */
+	public int getFragmentSizes(String chr, int start, int end, int[] sizes);
+	
+	/**
+	 * Position of a genomic coordinate in one of the references of the space
+	 * @param referenceName A name from getReferenceNames()
+	 * @param genomicPosition 0-based position on the chromosome of the reference
+	 * @return 0-based position in the reference, counting from its 5' end, or -1 if the reference does not contain the coordinate
+	 */
+	public int getReferencePosition(String referenceName, int genomicPosition);
+	
+	/**
+	 * Genomic coordinate of a position in one of the references of the space
+	 * @param referenceName A name from getReferenceNames()
+	 * @param referencePosition 0-based position in the reference, counting from its 5' end
+	 * @return 0-based position on the chromosome of the reference, or -1 if the position is outside the reference
+	 */
+	public int getGenomicPosition(String referenceName, int referencePosition);
+	
 	/**
 	 * Get the size of the annotation with respect to the coordinate space
 	 * @param region
@@ -128,6 +157,23 @@ public interface CoordinateSpace {
 	 */
 	public Annotation permuteAnnotation(Annotation a, Annotation bounds);
 	
+	/**
+	 * Permutes an annotation within the given bounds as permuteAnnotation(a, bounds) does, drawing positions from the given generator
+	 * @param a Annotation to permute.  Will be modified.
+	 * @param bounds Boundaries within which the annotation will be permuted
+	 * @param random Random generator, e.g. a stream from newRandomStream() used by a single thread
+	 * @return The permuted Annotation
+	 * @throws PermutationNotFoundException if a permuted location cannot be found
+	 */
+	public Annotation permuteAnnotation(Annotation a, Annotation bounds, Random random);
+	
+	/**
+	 * Split an independent random stream from the generator of the coordinate space.  Streams are deterministic
+	 * once the space's seed is set, given the order in which they are split, and are not shared between threads
+	 * @return A new random stream for permuting annotations
+	 */
+	public SplitRandom newRandomStream();
+	
 	
 	/**
 	 * @return A list of reference names contained in the coordinate space (e.g. chr1, chr2, etc.)
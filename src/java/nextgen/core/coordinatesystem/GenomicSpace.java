@@ -3,20 +3,28 @@ package nextgen.core.coordinatesystem;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
+import net.sf.samtools.util.CloseableIterator;
+
 import nextgen.core.annotation.*;
 import nextgen.core.annotation.filter.FullyContainedFilter;
 import nextgen.core.feature.GenomeWindow;
 import nextgen.core.feature.Window;
 import broad.core.annotation.ShortBEDReader;
+import broad.core.math.SplitRandom;
 import broad.pda.annotation.BEDFileParser;
 
 import org.apache.commons.collections15.Predicate;
@@ -39,7 +47,10 @@ public class GenomicSpace implements CoordinateSpace {
 	static Logger logger = Logger.getLogger(GenomicSpace.class.getName());
 	
 	static final public int PERMUTATION_ATTEMPTS = 10;
-	static private Random generator = new Random();
+	static final private int MAX_PLACEMENT_TABLES = 64;
+	static private SplitRandom generator = new SplitRandom();
+	
+	private final Map<String, Placement> placements = new ConcurrentHashMap<String, Placement>();
 	
 
 	/**
@@ -313,6 +324,40 @@ public class GenomicSpace implements CoordinateSpace {
 	public long getUnmaskedLength(String chr){
 		return (this.getLength(chr) - maskedRegions.getBasesCovered(this.getReferenceAnnotation(chr)));
 	}
+
+	/**
+	 * Masked bases of a chromosome as primitive intervals, for callers that test many positions against the mask
+	 * @param chr Chromosome name
+	 * @return Start and end of each masked interval, sorted and merged: start0, end0, start1, end1, ...
+	 */
+	public int[] getMaskedIntervals(String chr) {
+		List<int[]> blocks = new ArrayList<int[]>();
+		if (maskedRegions.size() > 0) {
+			CloseableIterator<Annotation> itr = maskedRegions.getOverlappingAnnotations(getReferenceAnnotation(chr));
+			while (itr.hasNext()) {
+				for (Annotation block : itr.next().getBlocks()) {
+					blocks.add(new int[] {block.getStart(), block.getEnd()});
+				}
+			}
+			itr.close();
+		}
+		Collections.sort(blocks, new Comparator<int[]>() {
+			public int compare(int[] o1, int[] o2) {
+				return o1[0] != o2[0] ? (o1[0] < o2[0] ? -1 : 1) : (o1[1] < o2[1] ? -1 : (o1[1] == o2[1] ? 0 : 1));
+			}
+		});
+		int[] rtrn = new int[2 * blocks.size()];
+		int n = 0;
+		for (int[] block : blocks) {
+			if (n > 0 && block[0] <= rtrn[n - 1]) {
+				rtrn[n - 1] = Math.max(rtrn[n - 1], block[1]);
+			} else {
+				rtrn[n++] = block[0];
+				rtrn[n++] = block[1];
+			}
+		}
+		return Arrays.copyOf(rtrn, n);
+	}
 	@Override
 	public Annotation permuteAnnotation(Annotation a) {
 		return permuteAnnotation(a, new BasicAnnotation(a.getChr(), 0, chromosomeSizes.get(a.getChr())));
@@ -324,15 +369,36 @@ public class GenomicSpace implements CoordinateSpace {
 		
 	@Override
 	public Annotation permuteAnnotation(Annotation a, Annotation bounds) {
-		MaskFilter<Annotation> filter = new MaskFilter<Annotation>();
-		
-		int permutationSpace = bounds.size() - a.getLengthOnReference();
+		synchronized (generator) {
+			return permuteAnnotation(a, bounds, generator);
+		}
+	}
+	
+	/**
+	 * Annotations with a single block are placed directly at a uniformly drawn start that avoids the mask when no masked bases are allowed.
+	 * Otherwise positions are drawn until the annotation passes the mask filter, up to PERMUTATION_ATTEMPTS times
+	 */
+	@Override
+	public Annotation permuteAnnotation(Annotation a, Annotation bounds, Random random) {
 		Annotation newAnnotation = a.copy();
 		newAnnotation.setReferenceName(bounds.getReferenceName());
+		
+		if (!overlapAllowed && a.numBlocks() == 1) {
+			int newStart = getRandomUnmaskedStart(bounds, a.getLengthOnReference(), random);
+			if (newStart < 0) {
+				throw new PermutationNotFoundException("No unmasked position for " + a.getLengthOnReference() + " bases in " + bounds.toUCSC());
+			}
+			newAnnotation.moveToCoordinate(newStart);
+			a.moveToCoordinate(newStart);
+			return newAnnotation;
+		}
+		
+		MaskFilter<Annotation> filter = new MaskFilter<Annotation>();
+		int permutationSpace = bounds.size() - a.getLengthOnReference();
 
 		boolean found = true;
 		for (int i = 0; i < PERMUTATION_ATTEMPTS; i++) {
-			int newStart = generator.nextInt(permutationSpace) + bounds.getStart();
+			int newStart = random.nextInt(permutationSpace) + bounds.getStart();
 			newAnnotation.moveToCoordinate(newStart);
 			if (filter.evaluate(newAnnotation)) {
 				found = true;
@@ -345,6 +411,178 @@ public class GenomicSpace implements CoordinateSpace {
 		return newAnnotation;
 	}
 	
+	/**
+	 * Draw the start of a span that overlaps no masked base, uniformly over all such spans within the bounds
+	 * As in permuteAnnotation, the span ends before the end of the bounds
+	 * @param bounds Region to place the span in
+	 * @param length Length of the span
+	 * @param random Random generator
+	 * @return Start of the span, or -1 if no span of this length fits in the unmasked bases of the bounds
+	 */
+	public int getRandomUnmaskedStart(Annotation bounds, int length, Random random) {
+		int permutationSpace = bounds.size() - length;
+		if (permutationSpace <= 0) return -1;
+		if (maskedRegions.size() == 0) {
+			return random.nextInt(permutationSpace) + bounds.getStart();
+		}
+		Placement placement = placements.get(bounds.getChr());
+		if (placement == null) {
+			placement = new Placement(getMaskedIntervals(bounds.getChr()), (int) getLength(bounds.getChr()));
+			placements.put(bounds.getChr(), placement);
+		}
+		return placement.getRandomStart(Math.max(1, length), bounds.getStart(), bounds.getStart() + permutationSpace, random);
+	}
+	
+	/**
+	 * @return A new stream split from the generator seeded by setSeed
+	 */
+	@Override
+	public SplitRandom newRandomStream() {
+		synchronized (generator) {
+			return generator.split();
+		}
+	}
+	
+	/**
+	 * Unmasked segments of a chromosome, to place spans away from the mask without rejection
+	 * A span of length L fits in a segment if it starts in the first (size - L + 1) bases of the segment.  A table of the cumulative
+	 * number of such starts over the segments maps a uniform draw to a start by bisection.  Tables are kept for up to
+	 * MAX_PLACEMENT_TABLES lengths; other lengths draw an unmasked base and keep it if the span fits
+	 */
+	private static final class Placement {
+		private final int[] segmentStarts;
+		private final int[] segmentEnds;
+		private final Map<Integer, int[]> tables = new HashMap<Integer, int[]>();
+		
+		Placement(int[] mask, int chrLength) {
+			int[] starts = new int[mask.length / 2 + 1];
+			int[] ends = new int[starts.length];
+			int n = 0;
+			int position = 0;
+			for (int i = 0; i < mask.length; i += 2) {
+				if (mask[i] > position && position < chrLength) {
+					starts[n] = position;
+					ends[n++] = Math.min(mask[i], chrLength);
+				}
+				position = Math.max(position, mask[i + 1]);
+			}
+			if (position < chrLength) {
+				starts[n] = position;
+				ends[n++] = chrLength;
+			}
+			segmentStarts = Arrays.copyOf(starts, n);
+			segmentEnds = Arrays.copyOf(ends, n);
+			getTable(1);
+		}
+		
+		/**
+		 * @return Cumulative number of starts of spans of the length in the segments, null if too many lengths have tables
+		 */
+		private int[] getTable(int length) {
+			synchronized (tables) {
+				int[] table = tables.get(Integer.valueOf(length));
+				if (table == null && tables.size() < MAX_PLACEMENT_TABLES) {
+					table = buildTable(length);
+					tables.put(Integer.valueOf(length), table);
+				}
+				return table;
+			}
+		}
+		
+		private int[] buildTable(int length) {
+			int[] table = new int[segmentStarts.length + 1];
+			for (int k = 0; k < segmentStarts.length; k++) {
+				table[k + 1] = table[k] + Math.max(0, segmentEnds[k] - segmentStarts[k] - length + 1);
+			}
+			return table;
+		}
+		
+		/**
+		 * @param length Span length, at least 1
+		 * @param low First start allowed
+		 * @param high Starts must be less than high
+		 * @return A uniform start among those whose span fits in a segment, -1 if there is none
+		 */
+		int getRandomStart(int length, int low, int high, Random random) {
+			int[] table = getTable(length);
+			if (table == null) {
+				int[] unitTable = getTable(1);
+				for (int i = 0; i < PERMUTATION_ATTEMPTS; i++) {
+					int start = draw(unitTable, 1, low, high, random);
+					if (start < 0) return -1;
+					int k = lowerBound(segmentStarts, start + 1) - 1;
+					if (start + length <= segmentEnds[k]) return start;
+				}
+				table = buildTable(length);
+			}
+			return draw(table, length, low, high, random);
+		}
+		
+		private int draw(int[] table, int length, int low, int high, Random random) {
+			int first = lowerBound(segmentEnds, low + length);
+			int last = lowerBound(segmentStarts, high) - 1;
+			if (first > last) return -1;
+			int firstCount = getCount(first, length, low, high);
+			if (first == last) {
+				return firstCount > 0 ? Math.max(segmentStarts[first], low) + random.nextInt(firstCount) : -1;
+			}
+			// Segments strictly between first and last are entirely within [low, high)
+			int middleCount = table[last] - table[first + 1];
+			int total = firstCount + middleCount + getCount(last, length, low, high);
+			if (total == 0) return -1;
+			int draw = random.nextInt(total);
+			if (draw < firstCount) {
+				return Math.max(segmentStarts[first], low) + draw;
+			}
+			draw -= firstCount;
+			if (draw < middleCount) {
+				int target = table[first + 1] + draw;
+				int k = upperBound(table, first + 1, last, target) - 1;
+				return segmentStarts[k] + target - table[k];
+			}
+			return segmentStarts[last] + draw - middleCount;
+		}
+		
+		/**
+		 * @return Number of starts in [low, high) of spans of the length that fit in segment k
+		 */
+		private int getCount(int k, int length, int low, int high) {
+			return Math.max(0, Math.min(segmentEnds[k] - length + 1, high) - Math.max(segmentStarts[k], low));
+		}
+		
+		/**
+		 * @return Number of values less than key
+		 */
+		private static int lowerBound(int[] values, int key) {
+			int low = 0;
+			int high = values.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[mid] < key) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+		
+		/**
+		 * @return First index in [low, high] whose value is greater than key, high if none before it
+		 */
+		private static int upperBound(int[] values, int low, int high, int key) {
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[mid] <= key) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+	
 
 	private class MaskFilter<T extends Annotation> implements Predicate<T> {
 		public boolean evaluate(T w) {
@@ -410,7 +648,9 @@ public class GenomicSpace implements CoordinateSpace {
 	 * Set the seed for the random generator (used for permuting regions).
 	 */
 	public static void setSeed(long seed) {
-		generator.setSeed(seed);
+		synchronized (generator) {
+			generator.setSeed(seed);
+		}
 	}
 
 
@@ -447,6 +687,39 @@ public class GenomicSpace implements CoordinateSpace {
 		return rtrn;
 	}
 
+	@Override
+	public int getFragmentSizes(String chr, int start, int end, int[] sizes) {
+		if(this.chromosomeSizes.containsKey(chr)){
+			int size = chromosomeSizes.get(chr).intValue();
+			if (start > size || end < 0) {
+				throw new AnnotationOutOfBoundsException("Requested " + chr + ":" + start + "-" + end + " is entirely out of bounds. \n" + 
+						"Chromosome bounds: " + chr + ":0-" + size);
+			}
+			start = Math.max(start, 0);
+			end = Math.min(end, size);
+		}
+		if(sizes.length > 0) {
+			sizes[0] = end - start;
+		}
+		return 1;
+	}
+	
+	/**
+	 * The references of a genomic space are the chromosomes
+	 */
+	@Override
+	public int getReferencePosition(String referenceName, int genomicPosition) {
+		if(!chromosomeSizes.containsKey(referenceName)) {
+			throw new IllegalArgumentException("Chromosome name " + referenceName + " not recognized.");
+		}
+		return genomicPosition >= 0 && genomicPosition < chromosomeSizes.get(referenceName).intValue() ? genomicPosition : -1;
+	}
+	
+	@Override
+	public int getGenomicPosition(String referenceName, int referencePosition) {
+		return getReferencePosition(referenceName, referencePosition);
+	}
+
 	
 	@Override
 	public Collection<? extends Window> getFragment(Annotation annotation) {
@@ -7,6 +7,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -16,6 +17,7 @@ import broad.core.annotation.ShortBEDReader;
 import broad.core.datastructures.IntervalTree;
 import broad.core.datastructures.IntervalTree.Node;
 import broad.core.error.ParseException;
+import broad.core.math.SplitRandom;
 import broad.pda.datastructures.Alignments;
 
 import nextgen.core.alignment.Alignment;
@@ -33,6 +35,7 @@ public class MaskedGenomicSpace implements CoordinateSpace{
 	private TranscriptomeSpace gappedSpace;
 	private GenomicSpace continuousSpace;
 	private Map<String, Collection<Gene>> genes;
+	static private SplitRandom generator = new SplitRandom();
 	//private Map<String, Annotation> excluded;
 	//private Map<String, IntervalTree<Annotation>> excludedRegions;
 	
@@ -139,6 +142,24 @@ public class MaskedGenomicSpace implements CoordinateSpace{
 		return this.continuousSpace.getFragment(chr, start, end);
 	}
 
+	@Override
+	public int getFragmentSizes(String chr, int start, int end, int[] sizes) {
+		return this.continuousSpace.getFragmentSizes(chr, start, end, sizes);
+	}
+
+	/**
+	 * References are the genes of the gapped space
+	 */
+	@Override
+	public int getReferencePosition(String referenceName, int genomicPosition) {
+		return this.gappedSpace.getReferencePosition(referenceName, genomicPosition);
+	}
+
+	@Override
+	public int getGenomicPosition(String referenceName, int referencePosition) {
+		return this.gappedSpace.getGenomicPosition(referenceName, referencePosition);
+	}
+
 	/**
 	 * Will return the overlapping regions in gapped space
 	 */
@@ -419,12 +440,41 @@ public class MaskedGenomicSpace implements CoordinateSpace{
 
 	@Override
 	public Annotation permuteAnnotation(Annotation a) {
-		throw new UnsupportedOperationException("TODO");
+		return permuteAnnotation(a, this.continuousSpace.getEntireChromosome(a.getChr()));
 	}
 	
 	@Override
 	public Annotation permuteAnnotation(Annotation a, Annotation bounds) {
-		throw new UnsupportedOperationException("TODO");
+		synchronized(generator) {
+			return permuteAnnotation(a, bounds, generator);
+		}
+	}
+	
+	/**
+	 * Places the annotation within the bounds as the underlying genomic space does, drawing from the given generator
+	 */
+	@Override
+	public Annotation permuteAnnotation(Annotation a, Annotation bounds, Random random) {
+		return this.continuousSpace.permuteAnnotation(a, bounds, random);
+	}
+	
+	/**
+	 * @return A new stream split from the generator seeded by setSeed
+	 */
+	@Override
+	public SplitRandom newRandomStream() {
+		synchronized(generator) {
+			return generator.split();
+		}
+	}
+	
+	/**
+	 * Set the seed for the random generator (used for permuting regions).
+	 */
+	public static void setSeed(long seed) {
+		synchronized(generator) {
+			generator.setSeed(seed);
+		}
 	}
 	
 	@Override
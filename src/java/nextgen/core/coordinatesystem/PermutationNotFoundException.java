@@ -5,4 +5,9 @@ public class PermutationNotFoundException extends RuntimeException {
     {
        super("Unable to find a permutation match after " + n + " tries.");
     }
+
+    public PermutationNotFoundException(String message)
+    {
+       super(message);
+    }
 }
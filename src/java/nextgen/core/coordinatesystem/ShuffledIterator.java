@@ -1,5 +1,7 @@
 package nextgen.core.coordinatesystem;
 
+import java.util.Random;
+
 import net.sf.samtools.util.CloseableIterator;
 import nextgen.core.annotation.Annotation;
 
@@ -7,16 +9,25 @@ public class ShuffledIterator<T extends Annotation> implements CloseableIterator
 	protected CloseableIterator<T> itr;
 	protected Annotation region;
 	protected CoordinateSpace cs;
-	
+	protected Random random;
+
+	/**
+	 * Permute with a random stream split from the coordinate space's generator
+	 */
 	public ShuffledIterator(CloseableIterator<T> itr, CoordinateSpace cs, Annotation region) {
+		this(itr, cs, region, cs.newRandomStream());
+	}
+
+	public ShuffledIterator(CloseableIterator<T> itr, CoordinateSpace cs, Annotation region, Random random) {
 		this.itr = itr;
 		this.cs = cs;
 		this.region = region;
+		this.random = random;
 	}
 	public boolean hasNext() { return itr.hasNext(); }
 	public T next() {
 		T next = itr.next();
-		cs.permuteAnnotation(next, region);
+		cs.permuteAnnotation(next, region, random);
 		return next;
 	}
 	public void remove() { throw new UnsupportedOperationException(); }
@@ -17,6 +17,7 @@ import nextgen.core.annotation.filter.FullyContainedFilter;
 import nextgen.core.feature.GenomeWindow;
 import nextgen.core.feature.Window;
 import broad.core.annotation.ShortBEDReader;
+import broad.core.math.SplitRandom;
 import broad.pda.annotation.BEDFileParser;
 
 import org.apache.commons.collections15.Predicate;
@@ -39,7 +40,7 @@ public class TranscriptInGenomicSpace implements CoordinateSpace {
 	static Logger logger = Logger.getLogger(TranscriptInGenomicSpace.class.getName());
 	
 	static final public int PERMUTATION_ATTEMPTS = 10;
-	static private Random generator = new Random();
+	static private SplitRandom generator = new SplitRandom();
 	
 
 	/**
@@ -324,6 +325,13 @@ public class TranscriptInGenomicSpace implements CoordinateSpace {
 		
 	@Override
 	public Annotation permuteAnnotation(Annotation a, Annotation bounds) {
+		synchronized (generator) {
+			return permuteAnnotation(a, bounds, generator);
+		}
+	}
+	
+	@Override
+	public Annotation permuteAnnotation(Annotation a, Annotation bounds, Random random) {
 		MaskFilter<Annotation> filter = new MaskFilter<Annotation>();
 		
 		int permutationSpace = bounds.size() - a.getLengthOnReference();
@@ -332,7 +340,7 @@ public class TranscriptInGenomicSpace implements CoordinateSpace {
 
 		boolean found = true;
 		for (int i = 0; i < PERMUTATION_ATTEMPTS; i++) {
-			int newStart = generator.nextInt(permutationSpace) + bounds.getStart();
+			int newStart = random.nextInt(permutationSpace) + bounds.getStart();
 			newAnnotation.moveToCoordinate(newStart);
 			if (filter.evaluate(newAnnotation)) {
 				found = true;
@@ -410,7 +418,16 @@ public class TranscriptInGenomicSpace implements CoordinateSpace {
 	 * Set the seed for the random generator (used for permuting regions).
 	 */
 	public static void setSeed(long seed) {
-		generator.setSeed(seed);
+		synchronized (generator) {
+			generator.setSeed(seed);
+		}
+	}
+	
+	@Override
+	public SplitRandom newRandomStream() {
+		synchronized (generator) {
+			return generator.split();
+		}
 	}
 
 
@@ -447,6 +464,39 @@ public class TranscriptInGenomicSpace implements CoordinateSpace {
 		return rtrn;
 	}
 
+	@Override
+	public int getFragmentSizes(String chr, int start, int end, int[] sizes) {
+		if(this.chromosomeSizes.containsKey(chr)){
+			int size = chromosomeSizes.get(chr).intValue();
+			if (start > size || end < 0) {
+				throw new AnnotationOutOfBoundsException("Requested " + chr + ":" + start + "-" + end + " is entirely out of bounds. \n" + 
+						"Chromosome bounds: " + chr + ":0-" + size);
+			}
+			start = Math.max(start, 0);
+			end = Math.min(end, size);
+		}
+		if(sizes.length > 0) {
+			sizes[0] = end - start;
+		}
+		return 1;
+	}
+	
+	/**
+	 * The references of a genomic space are the chromosomes
+	 */
+	@Override
+	public int getReferencePosition(String referenceName, int genomicPosition) {
+		if(!chromosomeSizes.containsKey(referenceName)) {
+			throw new IllegalArgumentException("Chromosome name " + referenceName + " not recognized.");
+		}
+		return genomicPosition >= 0 && genomicPosition < chromosomeSizes.get(referenceName).intValue() ? genomicPosition : -1;
+	}
+	
+	@Override
+	public int getGenomicPosition(String referenceName, int referencePosition) {
+		return getReferencePosition(referenceName, referencePosition);
+	}
+
 	
 	@Override
 	public Collection<? extends Window> getFragment(Annotation annotation) {
@@ -0,0 +1,249 @@
+package nextgen.core.coordinatesystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+
+/**
+ * The exons of a transcript compiled once into arrays of starts, ends and cumulative offsets
+ * Maps between genomic coordinates and transcript positions, and measures the exonic part of a genomic interval,
+ * with binary searches that do not allocate
+ * Exons that overlap or touch are merged
+ */
+public final class TranscriptOffsets {
+
+	private final Annotation transcript;
+	private final String name;
+	private final String chr;
+	private final boolean negative;
+	private final int[] starts;
+	private final int[] ends;
+	// offsets[i] is the number of exonic bases before exon i in genomic order; offsets[numExons] is the length
+	private final int[] offsets;
+
+	/**
+	 * @param transcript The transcript to compile
+	 */
+	public TranscriptOffsets(Annotation transcript) {
+		this.transcript = transcript;
+		this.name = transcript.getName();
+		this.chr = transcript.getChr();
+		this.negative = transcript.getOrientation() == Strand.NEGATIVE;
+
+		List<Annotation> blocks = new ArrayList<Annotation>(transcript.getBlocks());
+		Collections.sort(blocks, new Comparator<Annotation>() {
+			@Override
+			public int compare(Annotation a, Annotation b) {
+				return a.getStart() < b.getStart() ? -1 : (a.getStart() == b.getStart() ? 0 : 1);
+			}
+		});
+		int[] s = new int[blocks.size()];
+		int[] e = new int[blocks.size()];
+		int n = 0;
+		for(Annotation block : blocks) {
+			if(block.getEnd() <= block.getStart()) {
+				continue;
+			}
+			if(n > 0 && block.getStart() <= e[n-1]) {
+				e[n-1] = Math.max(e[n-1], block.getEnd());
+			} else {
+				s[n] = block.getStart();
+				e[n] = block.getEnd();
+				n++;
+			}
+		}
+		this.starts = Arrays.copyOf(s, n);
+		this.ends = Arrays.copyOf(e, n);
+		this.offsets = new int[n + 1];
+		for(int i=0; i<n; i++) {
+			offsets[i+1] = offsets[i] + ends[i] - starts[i];
+		}
+	}
+
+	/**
+	 * @return The annotation the table was compiled from
+	 */
+	public Annotation getTranscript() {
+		return transcript;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getChr() {
+		return chr;
+	}
+
+	/**
+	 * @return Start of the first exon, or 0 if there are no exons
+	 */
+	public int getStart() {
+		return starts.length == 0 ? 0 : starts[0];
+	}
+
+	/**
+	 * @return End of the last exon, or 0 if there are no exons
+	 */
+	public int getEnd() {
+		return ends.length == 0 ? 0 : ends[ends.length - 1];
+	}
+
+	public boolean isNegativeStrand() {
+		return negative;
+	}
+
+	public int getNumExons() {
+		return starts.length;
+	}
+
+	/**
+	 * @return Number of exonic bases
+	 */
+	public int length() {
+		return offsets[starts.length];
+	}
+
+	/**
+	 * @param genomicPosition 0-based position on the chromosome
+	 * @return Index of the last exon starting at or before the position, or -1 if there is none
+	 */
+	private int floorExon(int genomicPosition) {
+		int lo = 0;
+		int hi = starts.length - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(starts[mid] <= genomicPosition) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return hi;
+	}
+
+	/**
+	 * @param genomicPosition 0-based position on the chromosome
+	 * @return Number of exonic bases before the position
+	 */
+	private int exonicBasesBefore(int genomicPosition) {
+		int i = floorExon(genomicPosition - 1);
+		if(i < 0) {
+			return 0;
+		}
+		return offsets[i] + Math.min(genomicPosition, ends[i]) - starts[i];
+	}
+
+	/**
+	 * @param genomicPosition 0-based position on the chromosome
+	 * @return 0-based position in the transcript counting from the 5' end, or -1 if the position is not exonic
+	 */
+	public int getPosition(int genomicPosition) {
+		int i = floorExon(genomicPosition);
+		if(i < 0 || genomicPosition >= ends[i]) {
+			return -1;
+		}
+		int rtrn = offsets[i] + genomicPosition - starts[i];
+		return negative ? length() - 1 - rtrn : rtrn;
+	}
+
+	/**
+	 * @param position 0-based position in the transcript counting from the 5' end
+	 * @return 0-based position on the chromosome, or -1 if the position is outside the transcript
+	 */
+	public int getGenomicPosition(int position) {
+		if(position < 0 || position >= length()) {
+			return -1;
+		}
+		int offset = negative ? length() - 1 - position : position;
+		// last exon whose offset is at or before the requested one
+		int lo = 0;
+		int hi = starts.length - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(offsets[mid] <= offset) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return starts[hi] + offset - offsets[hi];
+	}
+
+	/**
+	 * @param start 0-based start on the chromosome
+	 * @param end End on the chromosome, exclusive
+	 * @return Number of exonic bases between start and end, which is the size of the fragment projected on the transcript
+	 */
+	public int getOverlap(int start, int end) {
+		if(end <= start) {
+			return 0;
+		}
+		return exonicBasesBefore(end) - exonicBasesBefore(start);
+	}
+
+	/**
+	 * @param start 0-based start on the chromosome
+	 * @param end End on the chromosome, exclusive
+	 * @return Genomic start of the fragment projected on the transcript, or -1 if no exonic base lies between start and end
+	 */
+	public int getProjectedStart(int start, int end) {
+		if(getOverlap(start, end) == 0) {
+			return -1;
+		}
+		int i = floorExon(start);
+		if(i < 0 || start >= ends[i]) {
+			return starts[i + 1];
+		}
+		return start;
+	}
+
+	/**
+	 * @param start 0-based start on the chromosome
+	 * @param end End on the chromosome, exclusive
+	 * @return Genomic end of the fragment projected on the transcript, exclusive, or -1 if no exonic base lies between start and end
+	 */
+	public int getProjectedEnd(int start, int end) {
+		if(getOverlap(start, end) == 0) {
+			return -1;
+		}
+		int i = floorExon(end - 1);
+		return Math.min(end, ends[i]);
+	}
+
+	/**
+	 * @param other Another transcript on the same chromosome
+	 * @param start 0-based start on the chromosome
+	 * @param end End on the chromosome, exclusive
+	 * @return True if both transcripts are on the same strand and have the same exonic blocks between start and end
+	 */
+	public boolean hasSameProjection(TranscriptOffsets other, int start, int end) {
+		if(negative != other.negative) {
+			return false;
+		}
+		int i = floorExon(start);
+		if(i < 0 || start >= ends[i]) {
+			i++;
+		}
+		int j = other.floorExon(start);
+		if(j < 0 || start >= other.ends[j]) {
+			j++;
+		}
+		while(i < starts.length && starts[i] < end && j < other.starts.length && other.starts[j] < end) {
+			if(Math.max(start, starts[i]) != Math.max(start, other.starts[j]) || Math.min(end, ends[i]) != Math.min(end, other.ends[j])) {
+				return false;
+			}
+			i++;
+			j++;
+		}
+		boolean moreHere = i < starts.length && starts[i] < end;
+		boolean moreThere = j < other.starts.length && other.starts[j] < end;
+		return !moreHere && !moreThere;
+	}
+
+}
@@ -3,7 +3,9 @@ package nextgen.core.coordinatesystem;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -23,6 +25,8 @@ import nextgen.core.model.score.WindowScoreIterator;
 import nextgen.core.scripture.BuildScriptureCoordinateSpace;
 import broad.core.datastructures.IntervalTree;
 import broad.core.datastructures.IntervalTree.Node;
+import broad.core.datastructures.StaticIntervalIndex;
+import broad.core.math.SplitRandom;
 import broad.pda.annotation.BEDFileParser;
 import broad.pda.datastructures.Alignments;
 
@@ -33,7 +37,7 @@ public class TranscriptomeSpace implements CoordinateSpace{
 	GeneTree geneTree;
 	static Logger logger = Logger.getLogger(TranscriptomeSpace.class.getName());
 	static final public int PERMUTATION_ATTEMPTS = 10;
-	static private Random generator = new Random();
+	static private SplitRandom generator = new SplitRandom();
 	private Collection<String> chrNames;
 
 	public TranscriptomeSpace(Map<String,Collection<Gene>> chrToGenesMap){
@@ -109,6 +113,37 @@ public class TranscriptomeSpace implements CoordinateSpace{
 		return regions;
 	}
 	
+	/**
+	 * One size per distinct isoform projection between start and end, from the precomputed exon offsets
+	 */
+	@Override
+	public int getFragmentSizes(String chr, int start, int end, int[] sizes) {
+		return this.geneTree.getFragmentSizes(chr, start, end, sizes);
+	}
+	
+	/**
+	 * @param name Gene name
+	 * @return The exon offset table of the gene
+	 * @throws IllegalArgumentException if the gene is not in the space
+	 */
+	public TranscriptOffsets getTranscriptOffsets(String name) {
+		TranscriptOffsets rtrn=this.geneTree.getOffsetsByName().get(name);
+		if(rtrn==null){
+			throw new IllegalArgumentException("Gene name " + name + " not recognized.");
+		}
+		return rtrn;
+	}
+	
+	@Override
+	public int getReferencePosition(String referenceName, int genomicPosition) {
+		return getTranscriptOffsets(referenceName).getPosition(genomicPosition);
+	}
+	
+	@Override
+	public int getGenomicPosition(String referenceName, int referencePosition) {
+		return getTranscriptOffsets(referenceName).getGenomicPosition(referencePosition);
+	}
+	
 	/**
 	 * Returns an interval tree over the specified transcriptome region
 	 */
@@ -295,11 +330,17 @@ protected class GeneTree {
 		Map<String, IntervalTree<Gene>> tree;
 		Map<String, Annotation> metaAnnotation; //This is the collapsed exons of the each chromosome	
 		Map<String, Gene> genesByName;
+		Map<String, StaticIntervalIndex<TranscriptOffsets>> isoformOffsets; //Every isoform in the tree compiled to exon offsets
+		Map<String, TranscriptOffsets> offsetsByName;
+		Gene[] genesByLength; //Genes sorted by length, to draw genes that can hold an annotation
+		int[] geneLengths;
 		
 		GeneTree(Map<String, Collection<Gene>> geneMap){
 			tree=new TreeMap<String, IntervalTree<Gene>>();
 			metaAnnotation=new TreeMap<String, Annotation>();
 			genesByName = new TreeMap<String, Gene>();
+			isoformOffsets=new TreeMap<String, StaticIntervalIndex<TranscriptOffsets>>();
+			offsetsByName=new TreeMap<String, TranscriptOffsets>();
 			
 			for(String chr: geneMap.keySet()){
 				Collection<Gene> genes=geneMap.get(chr);
@@ -310,8 +351,37 @@ protected class GeneTree {
 				tree.put(chr, t);
 				Annotation meta=makeMetaAnnotation(genes);
 				metaAnnotation.put(chr, meta);
+				isoformOffsets.put(chr, makeOffsets(t));
 			}
-			
+			for(Gene gene : genesByName.values()) {
+				offsetsByName.put(gene.getName(), new TranscriptOffsets(gene));
+			}
+			genesByLength=genesByName.values().toArray(new Gene[genesByName.size()]);
+			Arrays.sort(genesByLength, new Comparator<Gene>() {
+				public int compare(Gene g1, Gene g2) {
+					return g1.length() < g2.length() ? -1 : (g1.length() == g2.length() ? 0 : 1);
+				}
+			});
+			geneLengths=new int[genesByLength.length];
+			for(int i=0; i<genesByLength.length; i++) {
+				geneLengths[i]=genesByLength[i].length();
+			}
+		}
+		
+		Map<String, TranscriptOffsets> getOffsetsByName() {
+			return offsetsByName;
+		}
+		
+		private StaticIntervalIndex<TranscriptOffsets> makeOffsets(IntervalTree<Gene> t) {
+			StaticIntervalIndex.Builder<TranscriptOffsets> rtrn=new StaticIntervalIndex.Builder<TranscriptOffsets>(t.size());
+			Iterator<Node<Gene>> iter=t.iterator();
+			while(iter.hasNext()){
+				Node<Gene> node=iter.next();
+				for(Gene isoform : node.getValue().getIsoforms()){
+					rtrn.add(node.getStart(), node.getEnd(), new TranscriptOffsets(isoform));
+				}
+			}
+			return rtrn.build();
 		}
 		
 		Collection<String> getGeneNames() {
@@ -380,37 +450,38 @@ protected class GeneTree {
 			
 			Collection<GeneWindow> rtrn=new TreeSet<GeneWindow>();
 						
-			//Get overlapping regions.
+			//Get overlapping isoforms.
 			// Note: the blocks in the overlappers do not necessarily intersect with the region
-			Iterator<Node<Gene>> iter=tree.get(region.getChr()).overlappers(region.getStart(), region.getEnd());
+			Iterator<TranscriptOffsets> iter=isoformOffsets.get(region.getChr()).overlappingValueIterator(region.getStart(), region.getEnd());
 						
-			//iterate through and trim ends
+			//iterate through and trim ends, skipping isoforms whose exons miss the region before building anything
 			while(iter.hasNext()){
-				Gene g=iter.next().getValue();
-				Collection<Gene> iso=g.getIsoforms();
-				for(Gene gene: iso){
-					//if start, end exceeds the gene length then skip
-					//if(start>=gene.getStart() && end<= gene.getEnd()){
-					/*GeneWindow newGene = gene.trimGeneNew(gene, region.getStart(), region.getEnd());
-					if(newGene != null && newGene.size() > 0) {
-						if(newGene.overlaps(region)) {
-							rtrn.add(newGene);
-						}
-					}*/ //Rushi Method
-						GeneWindow trimmed=gene.trimAbsolute(region.getStart(), region.getEnd());
-						if(trimmed!=null && trimmed.size() > 0){
-							if(trimmed.overlaps(region)){
-								rtrn.add(trimmed);
-							}
-						} //Old Method
-					//}
-					 //else{logger.error(g.getName()+" was null after trimming isoform " + gene.getName() + ":" + gene.getChr() + ":" + gene.getStart() + "-" + gene.getEnd() + " to absolute coordinates " + g.getChr() + ":" + region.getStart() + "-" + region.getEnd());}
+				TranscriptOffsets offsets=iter.next();
+				if(offsets.getOverlap(region.getStart(), region.getEnd())==0){continue;}
+				Gene gene=(Gene)offsets.getTranscript();
+				GeneWindow trimmed=gene.trimAbsolute(region.getStart(), region.getEnd());
+				if(trimmed!=null && trimmed.size() > 0){
+					if(trimmed.overlaps(region)){
+						rtrn.add(trimmed);
+					}
 				}
 			}
 
 			return rtrn;
 		}
 		
+		/**
+		 * Fills sizes with the number of exonic bases between start and end, once per distinct projection of the isoforms
+		 * @return The number of projections, or -1 if the chromosome is not in the space
+		 */
+		public int getFragmentSizes(String chr, int start, int end, int[] sizes) {
+			StaticIntervalIndex<TranscriptOffsets> index=isoformOffsets.get(chr);
+			if(index==null){return -1;}
+			FragmentSizeVisitor visitor=new FragmentSizeVisitor(start, end, sizes);
+			index.overlappers(start, end, visitor);
+			return visitor.count;
+		}
+		
 		/**
 		 * Returns all genes that have chr
 		 * @param chr
@@ -467,10 +538,61 @@ protected class GeneTree {
 		}
 
 		public Annotation getRandomAnnotation() {
-			int geneIdx = generator.nextInt(genesByName.size());
-			List<Gene> geneList = new ArrayList<Gene>(genesByName.values()); //VERY INNEFICIENT, DON'T know how to make this more efficient 
-																			 // without building a custom map that keeps the list of values
-			return geneList.get(geneIdx);
+			synchronized(generator) {
+				return genesByLength[generator.nextInt(genesByLength.length)];
+			}
+		}
+		
+		/**
+		 * @param minLength Length the gene must exceed
+		 * @param random Random generator
+		 * @return A gene drawn uniformly among the genes longer than minLength, null if there is none
+		 */
+		public Annotation getRandomAnnotation(int minLength, Random random) {
+			// First gene longer than minLength
+			int low=0;
+			int high=geneLengths.length;
+			while(low<high) {
+				int mid=(low+high)>>>1;
+				if(geneLengths[mid]<=minLength) {
+					low=mid+1;
+				} else {
+					high=mid;
+				}
+			}
+			if(low==geneLengths.length) return null;
+			return genesByLength[low+random.nextInt(geneLengths.length-low)];
+		}
+	}
+
+
+	private static class FragmentSizeVisitor implements StaticIntervalIndex.OverlapVisitor<TranscriptOffsets> {
+		
+		int start;
+		int end;
+		int[] sizes;
+		TranscriptOffsets[] visited;
+		int count;
+		
+		FragmentSizeVisitor(int start, int end, int[] sizes) {
+			this.start=start;
+			this.end=end;
+			this.sizes=sizes;
+			this.visited=new TranscriptOffsets[4];
+		}
+		
+		@Override
+		public void visit(int intervalStart, int intervalEnd, TranscriptOffsets offsets) {
+			int overlap=offsets.getOverlap(start, end);
+			if(overlap==0){return;}
+			//getFragment keeps one window per distinct trimmed isoform
+			for(int i=0; i<count; i++){
+				if(visited[i].hasSameProjection(offsets, start, end)){return;}
+			}
+			if(count==visited.length){visited=Arrays.copyOf(visited, 2*count);}
+			if(count<sizes.length){sizes[count]=overlap;}
+			visited[count]=offsets;
+			count++;
 		}
 	}
 
@@ -491,46 +613,49 @@ protected class GeneTree {
 	@Override
 	public Annotation permuteAnnotation(Annotation a) {
 		//1 sample a random gene which is large enough.
-		Annotation context = null;
-		int attempts = 0;
-		boolean found = false;
-		while(!found && attempts < PERMUTATION_ATTEMPTS) {
-			context = geneTree.getRandomAnnotation();
-			attempts++;
-			found = context.length() > a.length();
+		synchronized(generator) {
+			Annotation context = geneTree.getRandomAnnotation(a.length(), generator);
+			if (context == null) throw new PermutationNotFoundException("No gene is longer than " + a.length() + " bases");
+			return permuteAnnotation(a, context, generator);
 		}
-		
-		if (!found) throw new PermutationNotFoundException(PERMUTATION_ATTEMPTS);
-		
-		return permuteAnnotation(a, context);
 	}
 	
 	@Override
 	public Annotation permuteAnnotation(Annotation a, Annotation bounds) {
-		Annotation newAnnotation = null;
-		int permutationSpace=bounds.length();
-		
-		//Annotation newAnnotation = a.copy();
-		//newAnnotation.setReferenceName(bounds.getReferenceName());
-
-		boolean found = true;
-		for (int i = 0; i < PERMUTATION_ATTEMPTS; i++) {
-			//int newStart = bounds.getReferenceCoordinateAtPosition(generator.nextInt(permutationSpace));
-			int newStart = generator.nextInt(permutationSpace);
-			//logger.info(newStart);
-			newAnnotation=this.moveAnnotation(a, newStart, bounds);
-			//newAnnotation.moveToCoordinate(newStart);
-			if (newAnnotation!=null) {
-				found = true;
-				a=newAnnotation;
-				//this.moveAnnotation(a, newStart, bounds);
-				//a.moveToCoordinate(newStart); //TODO Need to account for splice junctions
-				break;
-			}
+		synchronized(generator) {
+			return permuteAnnotation(a, bounds, generator);
+		}
+	}
+	
+	/**
+	 * Draws the new start among the positions where the annotation fits in the bounds, so no position is rejected
+	 */
+	@Override
+	public Annotation permuteAnnotation(Annotation a, Annotation bounds, Random random) {
+		//moveAnnotation places the annotation if it ends before the end of the bounds
+		int permutationSpace=bounds.length()-a.length();
+		if (permutationSpace <= 0) throw new PermutationNotFoundException(a.length() + " bases do not fit in " + bounds.getName());
+		//TODO Need to account for splice junctions
+		return this.moveAnnotation(a, random.nextInt(permutationSpace), bounds);
+	}
+	
+	/**
+	 * @return A new stream split from the generator of the transcriptome
+	 */
+	@Override
+	public SplitRandom newRandomStream() {
+		synchronized(generator) {
+			return generator.split();
+		}
+	}
+	
+	/**
+	 * Set the seed for the random generator (used for permuting regions).
+	 */
+	public static void setSeed(long seed) {
+		synchronized(generator) {
+			generator.setSeed(seed);
 		}
-		if (!found) throw new PermutationNotFoundException(PERMUTATION_ATTEMPTS);
-		
-		return newAnnotation;
 	}
 
 	@Override
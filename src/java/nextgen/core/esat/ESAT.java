@@ -16,6 +16,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
 import nextgen.core.alignment.Alignment;
@@ -77,6 +82,7 @@ public class ESAT {
 			"\n\t\t-out <Output file [Defaults to stdout]> "+
 //			"\n\t\t-maskedRegions <Path to file of masked regions in tab delimited format chr start end> "+
 			"\n\t\t-filterMultimappers <If provided, multimapped reads will NOT be counted. By default: Multimappers are penalized.> "+
+			"\n\t\t-threads <Number of chromosomes to score at once in a multiple file run. Each thread opens every alignment file. DEFAULT: 1>"+
 			
 			"\n\n**************************************************************"+
 			"\n\t\tArguments specific to multiple file run"+
@@ -111,6 +117,7 @@ public class ESAT {
 	static final int ANNOTATION_LENGTH = 5;
 	static final int LOCAL_LAMBDA = 8;
 	static final int STEP = 20;
+	static final int GENES_PER_BATCH = 500;
 	static final double MIN_OVERLAP = 0.4;
 	static final double PVAL_THRESHOLD = 0.05;
 
@@ -135,6 +142,7 @@ public class ESAT {
 	private static boolean oppositeStrand;
 	private static boolean pairedFlag;
 	private static boolean filterMultimappers;
+	private static int numThreads;
 	private static HashMap<Gene, String> duplicateNameMap;
 	private static Map<Gene, Set<Gene>> collapsedGeneMap;
 	private static Map<String, IntervalTree<Gene>> collapsedGenes;
@@ -174,6 +182,7 @@ public class ESAT {
 			//TODO: Check if this works
 			maskedRegionFile = argMap.containsKey("maskedRegions") ? argMap.get("maskedRegions") : null;
 			debugMode = argMap.isPresent("debugMode");
+			numThreads = argMap.isPresent("threads")? argMap.getInteger("threads") : 1;
 			/*
 			 * FLAG for WEIGHING READS BY NH FLAG
 			 * TRUE by default
@@ -820,234 +829,34 @@ public class ESAT {
 		logger.info("Scoring using all reads:");
 
 		// Initialize the AlignmentModels
-		Map<String,AlignmentModel> libDataModels = new HashMap<String,AlignmentModel>();
-		for(String ss: alignmentFiles.keySet()){
-			AlignmentModel model = new AlignmentModel(alignmentFiles.get(ss), null, new ArrayList<Predicate<Alignment>>(), pairedFlag,strand,true,maskedRegionFile);
-			if(removePCRDuplicatesFlag)
-				model.addFilter(new PCRDuplicateFilter());
-			if(filterMultimappers)
-				model.addFilter(new UniqueMappedReadsFilter());
-			libDataModels.put(ss, model);
-		}
+		Map<String,AlignmentModel> libDataModels = getAlignmentModels(alignmentFiles);
 		
 		//To report all peaks - not just the best one
 		Map<Gene,Set<Gene>> geneToPeaksMap = new HashMap<Gene,Set<Gene>>();
-						
-		// For each chromosome
-		for(String chr:annotations.keySet()) {
-			
-			// If the alignment data has data from that chromosome
-			boolean dataForChr = false;
-			for(AlignmentModel model:libDataModels.values()){
-				//If any alignment file has data for the chromosome, 
-				//		set flag to true and exit loop
-				if(model.containsReference(chr)){
-					dataForChr = true;
-					break;
-				}
-			}
-			//If the any alignment file has data from that chromosome
-			if(dataForChr){
-				IntervalTree<Gene> tree = new IntervalTree<Gene>();
-				for(Gene g:annotations.get(chr)){
-					tree.put(g.getStart(), g.getEnd(), g);
-				}
-				logger.info("Processing " + chr);
-				//Parse over all annotations on chromosome
-				for(Gene annotation:annotations.get(chr)){
-					Set<Gene> thisPeaks = new HashSet<Gene>();
-					
-					Gene annotationEnd = new Gene(annotation);					
-					int annotationLength = annotation.getSize();
-					//If the length of the annotated transcript > window size being analyzed,
-					//get sub annotation for window length
-					if(annotationLength>window){
-						annotationEnd = is3p? getSubAnnotationFromEnd(annotation,window,0) : getSubAnnotationFromStart(annotation,window,0);
-
-						if(annotationEnd == null){
-							logger.warn("Annotation end for " + (annotationLength - window) + "-" + annotationLength + " --> " + annotation.toBED() + " was null.");
-						}
-					}
-					
-					Map<String,double[]> bestScores = getScoresForWindow(libDataModels,annotationEnd);
-					double bestEnrichment = getEnrichmentForWindow(libDataModels.keySet(),bestScores);
-
-					Gene bestWindow = annotationEnd;
-
-					//USING ENRICHMENT AS MEANS FOR COMPARISON
-
-					//For all peaks
-					if(isSignificantInAllModels(libDataModels.keySet(),bestScores)){
-						annotationEnd.setScore(bestEnrichment); //set RPKM as score
-						annotationEnd.setName(duplicateNameMap.get(annotation));
-						thisPeaks.add(annotationEnd);
-					}
-					
-					int intoGene = STEP;
-					/*							 
-					 * If upstream extension is allowed, use sliding windows with overlaps of STEP
-					 * while retreat region length is smaller than (annotation - window), i.e. it lies within the annotation
-					 * and it is at distance less than the max region allowed upstream of end of gene
-					 */
-					while((intoGene<(annotationLength - window)) && (intoGene<maxIntoGene)){
-						//get annotation for region of length window, "intoGene" length from end of transcript
-						annotationEnd = is3p? getSubAnnotationFromEnd(annotation, window, intoGene): getSubAnnotationFromStart(annotation, window, intoGene);
-						/*
-						 * calculate score for the window and find max score of windows
-						 * Uses scanPRate(Gene, tree) which adds extension factor in AlignmentDataModelStats.
-						 * Difference between scoregene and scanPRate from above is that this does not include exons.
-						 */ 
-						if(annotationEnd !=null){
-							Map<String,double[]> tmpScores = getScoresForWindow(libDataModels,annotationEnd);
-							double tmpEnrichment = getEnrichmentForWindow(libDataModels.keySet(),tmpScores);
-							//For all peaks
-							//If significant
-							boolean overlaps = false;
-							if(isSignificantInAllModels(libDataModels.keySet(), tmpScores)){
-								//if overlaps any already added peak
-								Set<Gene> tempPeaks = new HashSet<Gene>();
-								tempPeaks.addAll(thisPeaks);
-								for(Gene peak:thisPeaks){
-									if(annotationEnd.overlaps(peak)){
-										overlaps = true;
-										//if better then replace
-										
-										if(tmpEnrichment>peak.getBedScore()){
-											annotationEnd.setBedScore(tmpEnrichment); //set RPKM as score
-											annotationEnd.setName(duplicateNameMap.get(annotation));
-											tempPeaks.remove(peak);
-											tempPeaks.add(annotationEnd);
-										}
-									}
-								}
-								thisPeaks = tempPeaks;
-								if(!overlaps){
-									annotationEnd.setBedScore(tmpEnrichment); //set RPKM as score
-									annotationEnd.setName(duplicateNameMap.get(annotation));
-									//does not overlap. Add
-									thisPeaks.add(annotationEnd);	
-								}
-							}
-							//For best peak
-							if(tmpEnrichment>bestEnrichment){
-								bestEnrichment = tmpEnrichment;
-								bestWindow = annotationEnd;
-								bestScores = tmpScores;
-								geneToWindowMap.put(duplicateNameMap.get(annotation), annotationEnd);
-							}
-						}
-						intoGene += STEP;
-					}
-					
-					int extend = STEP;
-					while(extend < maxExtension) {
-						Annotation end = null;
-						long chrEnd = 0;
-						for(String s:libDataModels.keySet())
-							chrEnd = libDataModels.get(s).getRefSequenceLength(chr);
-						
-						if((is3p && annotation.getOrientation().equals(Strand.NEGATIVE))||(!is3p && annotation.getOrientation().equals(Strand.POSITIVE))){
-							if((annotation.getStart() - extend)<0){
-								logger.info(annotation.getStart()+" - "+extend +" is less than 0");
-								break;
-							}
-							end = new BasicAnnotation(annotation.getChr(), annotation.getStart() - extend, annotation.getStart() - (extend-window),annotation.getOrientation());
-						}else{
-							if((annotation.getEnd() + extend)> chrEnd){
-								logger.info(annotation.getEnd()+" + "+extend +" is more than "+chrEnd);
-								break;
-							}
-							end = new BasicAnnotation(annotation.getChr(), annotation.getEnd() + (extend - window), annotation.getEnd() + extend,annotation.getOrientation());
-						}/*
-						 * Get an interval tree for all/any exons that overlap with the extended region
-						 */
-						Iterator<Gene> endOverlappersIter = tree.overlappingValueIterator(end.getStart(), end.getEnd());
-						/*
-						 * While there is an overlap with a gene
-						 * and gene is same gene
-						 */
-						boolean overlapperIsSameGene = true;
-						while(endOverlappersIter.hasNext() && overlapperIsSameGene){
-							Gene overlapper = endOverlappersIter.next();
-							//compare the end coordiantes of the gene
-							if(is3p){
-								if(!(overlapper.getOrientedEnd() == annotation.getOrientedEnd()) && !overlapper.overlaps(annotation, true))
-									overlapperIsSameGene = false;
-							}
-							else{
-								if(!(overlapper.getOrientedStart() == annotation.getOrientedStart()) && !overlapper.overlaps(annotation, true))
-									overlapperIsSameGene = false;
-							}
-						}
-						if(!overlapperIsSameGene)
-							break;
-						// Because the extended region cannot overlap another annotation
-						
-						//No overlap so continue with scoring the region
-						annotationEnd = new Gene(end);
-						Map<String,double[]> tmpScores = getScoresForWindow(libDataModels,annotationEnd);
-						double tmpEnrichment = getEnrichmentForWindow(libDataModels.keySet(),tmpScores);
-						
-						//For all peaks
-						//If significant
-						boolean overlaps = false;
-						if(isSignificantInAllModels(libDataModels.keySet(), tmpScores)){
-							//if overlaps any already added peak
-							Set<Gene> tempPeaks = new HashSet<Gene>();
-							tempPeaks.addAll(thisPeaks);
-							for(Gene peak:thisPeaks){
-								if(annotationEnd.overlaps(peak)){
-									overlaps = true;
-									//if better then replace
-									
-									if(tmpEnrichment>peak.getBedScore()){
-										annotationEnd.setBedScore(tmpEnrichment); //set RPKM as score
-										annotationEnd.setName(duplicateNameMap.get(annotation));
-										tempPeaks.remove(peak);
-										tempPeaks.add(annotationEnd);
-									}
-								}
-							}
-							thisPeaks = tempPeaks;
-							if(!overlaps){
-								annotationEnd.setBedScore(tmpEnrichment); //set RPKM as score
-								annotationEnd.setName(duplicateNameMap.get(annotation));
-								//does not overlap. Add
-								thisPeaks.add(annotationEnd);	
-							}
-						}
-						if(tmpEnrichment>bestEnrichment){
-							bestEnrichment = tmpEnrichment;
-							bestWindow = annotationEnd;
-							bestScores = tmpScores;
-						}
-						extend += (STEP);
-					}
-					
-					
-					String rowName = duplicateNameMap.get(annotation);
-/*					if(fullGeneScoreFlag){
-						if(is3p)
-							fullGeneResultMatrix = getScoreFromWindowToGeneStart(libDataModels,bestWindow,annotation,bestWindowEnd,insideGene,fullGeneResultMatrix,rowName);
-						else
-							fullGeneResultMatrix = getScoreFromWindowToGeneEnd(libDataModels,bestWindow,annotation,bestWindowEnd,insideGene,fullGeneResultMatrix,rowName);
-					}
-*/					
+		
+		// Score every chromosome, then fill the matrices in chromosome order
+		for(ChromosomeScores chrScores : scoreChromosomes(annotations, alignmentFiles, libDataModels, is3p)) {
+			if(chrScores.dataForChr){
+				for(int g=0;g<chrScores.rowNames.size();g++){
+					String rowName = chrScores.rowNames.get(g);
+					Map<String,double[]> bestScores = chrScores.bestScores.get(g);
+					double[] counts = new double[cols.size()];
+					double[] pvalues = new double[cols.size()];
 					for(int i=0;i<cols.size();i++){
-						//resultMatrix.set(duplicateNameMap.get(annotation), cols.get(i), scores[i]);
-						resultMatrix.set(rowName, cols.get(i), bestScores.get(cols.get(i))[COUNT_SCORE]);
-						pvalueMatrix.set(rowName, cols.get(i), bestScores.get(cols.get(i))[PVAL_SCORE]);
+						counts[i] = bestScores.get(cols.get(i))[COUNT_SCORE];
+						pvalues[i] = bestScores.get(cols.get(i))[PVAL_SCORE];
 					}
-					//SET THE NAME FOR THE WINDOW
-					bestWindow.setName(duplicateNameMap.get(annotation));
-					geneToWindowMap.put(duplicateNameMap.get(annotation), bestWindow);
-					logger.debug("Added peak to geneToWindowMap as in the end "+duplicateNameMap.get(annotation)+" "+geneToWindowMap.containsKey(duplicateNameMap.get(annotation)));
+					resultMatrix.setRow(rowName, counts);
+					pvalueMatrix.setRow(rowName, pvalues);
+					Gene bestWindow = chrScores.bestWindows.get(g);
+					geneToWindowMap.put(rowName, bestWindow);
+					logger.debug("Added peak to geneToWindowMap as in the end "+rowName+" "+geneToWindowMap.containsKey(rowName));
 					windows.add(bestWindow);
 				}
 			}
 			else{
-				logger.info("No data for " + chr);
-				for(Gene annotation:annotations.get(chr)){
+				logger.info("No data for " + chrScores.chr);
+				for(Gene annotation:annotations.get(chrScores.chr)){
 					for(int i=0;i<cols.size();i++){
 						resultMatrix.set(duplicateNameMap.get(annotation), cols.get(i), 0.0);
 						pvalueMatrix.set(duplicateNameMap.get(annotation), cols.get(i), 1.0);
@@ -1093,6 +902,341 @@ public class ESAT {
 		}*/
 	}
 	
+	/**
+	 * Opens one alignment model per sample with the read filters requested on the command line
+	 * @param alignmentFiles Map of sample name to alignment file
+	 * @return Map of sample name to alignment model
+	 */
+	private static Map<String,AlignmentModel> getAlignmentModels(Map<String, String> alignmentFiles){
+		Map<String,AlignmentModel> libDataModels = new HashMap<String,AlignmentModel>();
+		for(String ss: alignmentFiles.keySet()){
+			AlignmentModel model = new AlignmentModel(alignmentFiles.get(ss), null, new ArrayList<Predicate<Alignment>>(), pairedFlag,strand,true,maskedRegionFile);
+			if(removePCRDuplicatesFlag)
+				model.addFilter(new PCRDuplicateFilter());
+			if(filterMultimappers)
+				model.addFilter(new UniqueMappedReadsFilter());
+			libDataModels.put(ss, model);
+		}
+		return libDataModels;
+	}
+	
+	/**
+	 * Scores the genes of every chromosome, on numThreads threads if more than one.
+	 * Each thread opens its own alignment models, so the global stats of each sample are computed first and
+	 * saved next to its alignment file where the other models read them back.
+	 * @param annotations Genes by chromosome
+	 * @param alignmentFiles Map of sample name to alignment file
+	 * @param libDataModels Alignment models of the calling thread
+	 * @param is3p Score 3' ends if true, 5' ends otherwise
+	 * @return The scores of each chromosome in the order of annotations
+	 * @throws IOException
+	 */
+	private static List<ChromosomeScores> scoreChromosomes(final Map<String, Collection<Gene>> annotations, final Map<String, String> alignmentFiles, 
+			Map<String,AlignmentModel> libDataModels, final boolean is3p) throws IOException{
+		
+		List<ChromosomeScores> rtrn = new ArrayList<ChromosomeScores>();
+		if(numThreads == 1 || annotations.size() < 2){
+			for(String chr:annotations.keySet()){
+				rtrn.add(scoreChromosome(chr, annotations.get(chr), libDataModels, is3p));
+			}
+			return rtrn;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try{
+			List<Future<Double>> stats = new ArrayList<Future<Double>>();
+			for(final AlignmentModel model:libDataModels.values()){
+				stats.add(executor.submit(new Callable<Double>() {
+					@Override
+					public Double call() {
+						return Double.valueOf(model.getGlobalLength());
+					}
+				}));
+			}
+			for(Future<Double> future:stats){
+				getResult(future);
+			}
+			
+			final ThreadLocal<Map<String,AlignmentModel>> workerModels = new ThreadLocal<Map<String,AlignmentModel>>() {
+				@Override
+				protected Map<String,AlignmentModel> initialValue() {
+					return getAlignmentModels(alignmentFiles);
+				}
+			};
+			List<Future<ChromosomeScores>> futures = new ArrayList<Future<ChromosomeScores>>();
+			for(final String chr:annotations.keySet()){
+				futures.add(executor.submit(new Callable<ChromosomeScores>() {
+					@Override
+					public ChromosomeScores call() throws IOException {
+						return scoreChromosome(chr, annotations.get(chr), workerModels.get(), is3p);
+					}
+				}));
+			}
+			for(Future<ChromosomeScores> future:futures){
+				rtrn.add(getResult(future));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return rtrn;
+	}
+	
+	private static <T> T getResult(Future<T> future) throws IOException{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Interrupted while scoring chromosomes", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Failed to score chromosome", e.getCause());
+		}
+	}
+	
+	/**
+	 * Finds the best window of each gene on the chromosome.
+	 * The candidate windows of GENES_PER_BATCH genes at a time are scored together by a MultiSampleWindowScorer,
+	 * then each gene picks its window exactly as if the windows had been scored one by one.
+	 * @param chr Chromosome name
+	 * @param genes Genes on the chromosome
+	 * @param libDataModels Alignment models by sample name, only used by the calling thread
+	 * @param is3p Score 3' ends if true, 5' ends otherwise
+	 * @return Row name, best scores and best window of each gene
+	 * @throws IOException
+	 */
+	private static ChromosomeScores scoreChromosome(String chr, Collection<Gene> genes, Map<String,AlignmentModel> libDataModels, boolean is3p) throws IOException{
+		
+		ChromosomeScores rtrn = new ChromosomeScores(chr);
+		// If the alignment data has data from that chromosome
+		for(AlignmentModel model:libDataModels.values()){
+			//If any alignment file has data for the chromosome, 
+			//		set flag to true and exit loop
+			if(model.containsReference(chr)){
+				rtrn.dataForChr = true;
+				break;
+			}
+		}
+		if(!rtrn.dataForChr){
+			return rtrn;
+		}
+		
+		IntervalTree<Gene> tree = new IntervalTree<Gene>();
+		for(Gene g:genes){
+			tree.put(g.getStart(), g.getEnd(), g);
+		}
+		logger.info("Processing " + chr);
+		MultiSampleWindowScorer scorer = new MultiSampleWindowScorer(libDataModels);
+		List<Gene> batch = new ArrayList<Gene>();
+		for(Gene annotation:genes){
+			batch.add(annotation);
+			if(batch.size() == GENES_PER_BATCH){
+				scoreGenes(batch, tree, libDataModels, scorer, is3p, rtrn);
+				batch.clear();
+			}
+		}
+		scoreGenes(batch, tree, libDataModels, scorer, is3p, rtrn);
+		return rtrn;
+	}
+	
+	private static void scoreGenes(List<Gene> genes, IntervalTree<Gene> tree, Map<String,AlignmentModel> libDataModels, 
+			MultiSampleWindowScorer scorer, boolean is3p, ChromosomeScores rtrn) throws IOException{
+		
+		List<List<Gene>> candidates = new ArrayList<List<Gene>>();
+		List<Gene> allWindows = new ArrayList<Gene>();
+		for(Gene annotation:genes){
+			List<Gene> geneWindows = getCandidateWindows(annotation, tree, libDataModels, is3p);
+			candidates.add(geneWindows);
+			allWindows.addAll(geneWindows);
+		}
+		if(oppositeStrand){
+			for(Gene w:allWindows)
+				reverseStrand(w);
+		}
+		List<Map<String,double[]>> allScores = scorer.score(allWindows);
+		int next = 0;
+		for(int g=0;g<genes.size();g++){
+			List<Gene> geneWindows = candidates.get(g);
+			pickBestWindow(genes.get(g), geneWindows, allScores.subList(next, next + geneWindows.size()), libDataModels.keySet(), rtrn);
+			next += geneWindows.size();
+		}
+	}
+	
+	/**
+	 * Returns the windows scoreMultipleSamples compares for a gene: the window at the annotated end, 
+	 * windows every STEP bases into the gene up to maxIntoGene, then windows every STEP bases past the end up to maxExtension
+	 * until one runs off the chromosome or overlaps a different gene
+	 */
+	private static List<Gene> getCandidateWindows(Gene annotation, IntervalTree<Gene> tree, Map<String,AlignmentModel> libDataModels, boolean is3p){
+		
+		List<Gene> rtrn = new ArrayList<Gene>();
+		Gene annotationEnd = new Gene(annotation);					
+		int annotationLength = annotation.getSize();
+		//If the length of the annotated transcript > window size being analyzed,
+		//get sub annotation for window length
+		if(annotationLength>window){
+			annotationEnd = is3p? getSubAnnotationFromEnd(annotation,window,0) : getSubAnnotationFromStart(annotation,window,0);
+
+			if(annotationEnd == null){
+				logger.warn("Annotation end for " + (annotationLength - window) + "-" + annotationLength + " --> " + annotation.toBED() + " was null.");
+			}
+		}
+		rtrn.add(annotationEnd);
+		
+		int intoGene = STEP;
+		/*							 
+		 * If upstream extension is allowed, use sliding windows with overlaps of STEP
+		 * while retreat region length is smaller than (annotation - window), i.e. it lies within the annotation
+		 * and it is at distance less than the max region allowed upstream of end of gene
+		 */
+		while((intoGene<(annotationLength - window)) && (intoGene<maxIntoGene)){
+			//get annotation for region of length window, "intoGene" length from end of transcript
+			annotationEnd = is3p? getSubAnnotationFromEnd(annotation, window, intoGene): getSubAnnotationFromStart(annotation, window, intoGene);
+			if(annotationEnd !=null){
+				rtrn.add(annotationEnd);
+			}
+			intoGene += STEP;
+		}
+		
+		int extend = STEP;
+		String chr = annotation.getChr();
+		while(extend < maxExtension) {
+			Annotation end = null;
+			long chrEnd = 0;
+			for(String s:libDataModels.keySet())
+				chrEnd = libDataModels.get(s).getRefSequenceLength(chr);
+			
+			if((is3p && annotation.getOrientation().equals(Strand.NEGATIVE))||(!is3p && annotation.getOrientation().equals(Strand.POSITIVE))){
+				if((annotation.getStart() - extend)<0){
+					logger.info(annotation.getStart()+" - "+extend +" is less than 0");
+					break;
+				}
+				end = new BasicAnnotation(annotation.getChr(), annotation.getStart() - extend, annotation.getStart() - (extend-window),annotation.getOrientation());
+			}else{
+				if((annotation.getEnd() + extend)> chrEnd){
+					logger.info(annotation.getEnd()+" + "+extend +" is more than "+chrEnd);
+					break;
+				}
+				end = new BasicAnnotation(annotation.getChr(), annotation.getEnd() + (extend - window), annotation.getEnd() + extend,annotation.getOrientation());
+			}/*
+			 * Get an interval tree for all/any exons that overlap with the extended region
+			 */
+			Iterator<Gene> endOverlappersIter = tree.overlappingValueIterator(end.getStart(), end.getEnd());
+			/*
+			 * While there is an overlap with a gene
+			 * and gene is same gene
+			 */
+			boolean overlapperIsSameGene = true;
+			while(endOverlappersIter.hasNext() && overlapperIsSameGene){
+				Gene overlapper = endOverlappersIter.next();
+				//compare the end coordiantes of the gene
+				if(is3p){
+					if(!(overlapper.getOrientedEnd() == annotation.getOrientedEnd()) && !overlapper.overlaps(annotation, true))
+						overlapperIsSameGene = false;
+				}
+				else{
+					if(!(overlapper.getOrientedStart() == annotation.getOrientedStart()) && !overlapper.overlaps(annotation, true))
+						overlapperIsSameGene = false;
+				}
+			}
+			if(!overlapperIsSameGene)
+				break;
+			// Because the extended region cannot overlap another annotation
+			
+			//No overlap so continue with scoring the region
+			rtrn.add(new Gene(end));
+			extend += (STEP);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Picks the best window of a gene from the scores of its candidate windows, in the order getCandidateWindows returns them
+	 * Windows significant in all samples are kept as peaks, the best window is the one with the highest enrichment
+	 */
+	private static void pickBestWindow(Gene annotation, List<Gene> geneWindows, List<Map<String,double[]>> windowScores, 
+			Collection<String> sampleNames, ChromosomeScores rtrn) throws IOException{
+		
+		Set<Gene> thisPeaks = new HashSet<Gene>();
+		Gene annotationEnd = geneWindows.get(0);
+		Map<String,double[]> bestScores = windowScores.get(0);
+		double bestEnrichment = getEnrichmentForWindow(sampleNames,bestScores);
+
+		Gene bestWindow = annotationEnd;
+
+		//USING ENRICHMENT AS MEANS FOR COMPARISON
+
+		//For all peaks
+		if(isSignificantInAllModels(sampleNames,bestScores)){
+			annotationEnd.setScore(bestEnrichment); //set RPKM as score
+			annotationEnd.setName(duplicateNameMap.get(annotation));
+			thisPeaks.add(annotationEnd);
+		}
+		
+		for(int w=1;w<geneWindows.size();w++){
+			annotationEnd = geneWindows.get(w);
+			Map<String,double[]> tmpScores = windowScores.get(w);
+			double tmpEnrichment = getEnrichmentForWindow(sampleNames,tmpScores);
+			
+			//For all peaks
+			//If significant
+			boolean overlaps = false;
+			if(isSignificantInAllModels(sampleNames, tmpScores)){
+				//if overlaps any already added peak
+				Set<Gene> tempPeaks = new HashSet<Gene>();
+				tempPeaks.addAll(thisPeaks);
+				for(Gene peak:thisPeaks){
+					if(annotationEnd.overlaps(peak)){
+						overlaps = true;
+						//if better then replace
+						
+						if(tmpEnrichment>peak.getBedScore()){
+							annotationEnd.setBedScore(tmpEnrichment); //set RPKM as score
+							annotationEnd.setName(duplicateNameMap.get(annotation));
+							tempPeaks.remove(peak);
+							tempPeaks.add(annotationEnd);
+						}
+					}
+				}
+				thisPeaks = tempPeaks;
+				if(!overlaps){
+					annotationEnd.setBedScore(tmpEnrichment); //set RPKM as score
+					annotationEnd.setName(duplicateNameMap.get(annotation));
+					//does not overlap. Add
+					thisPeaks.add(annotationEnd);	
+				}
+			}
+			//For best peak
+			if(tmpEnrichment>bestEnrichment){
+				bestEnrichment = tmpEnrichment;
+				bestWindow = annotationEnd;
+				bestScores = tmpScores;
+			}
+		}
+		
+		//SET THE NAME FOR THE WINDOW
+		bestWindow.setName(duplicateNameMap.get(annotation));
+		rtrn.rowNames.add(duplicateNameMap.get(annotation));
+		rtrn.bestScores.add(bestScores);
+		rtrn.bestWindows.add(bestWindow);
+	}
+	
+	/**
+	 * Best window and its scores in every sample for each gene of a chromosome, in gene order
+	 */
+	private static class ChromosomeScores {
+		String chr;
+		boolean dataForChr;
+		List<String> rowNames = new ArrayList<String>();
+		List<Map<String,double[]>> bestScores = new ArrayList<Map<String,double[]>>();
+		List<Gene> bestWindows = new ArrayList<Gene>();
+		
+		ChromosomeScores(String chr) {
+			this.chr = chr;
+		}
+	}
+	
 	/**
 	 * Calculates the scaling factor for each column of the specified matrix, using the normalization method used by DESeq.
 	 * @param mat
@@ -0,0 +1,98 @@
+package nextgen.core.esat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.SlidingWindowCounter;
+import nextgen.core.model.score.ScanStatisticScore;
+
+/**
+ * Scores a batch of candidate windows against every sample with one sweep over each sample's reads
+ * The windows are visited in genomic order (by strand first for stranded data) with a SlidingWindowCounter per sample,
+ * so each read is loaded once instead of once for every window and sample it overlaps
+ * Counters are kept between batches, so batches of windows in increasing position continue the same sweep
+ *
+ * Not thread safe: use one scorer, with its own alignment models, per thread
+ */
+public class MultiSampleWindowScorer {
+
+	private final Map<String, AlignmentModel> models;
+	private final Map<String, SlidingWindowCounter> counters = new HashMap<String, SlidingWindowCounter>();
+
+	/**
+	 * @param models Alignment models by sample name
+	 */
+	public MultiSampleWindowScorer(Map<String, AlignmentModel> models) {
+		this.models = models;
+		for(String sample : models.keySet()) {
+			counters.put(sample, models.get(sample).getSlidingWindowCounter());
+		}
+	}
+
+	/**
+	 * Score each window in every sample whose coordinate space contains the window's chromosome
+	 * @param windows The windows
+	 * @return For each window, in the same order, the scores of ScanStatisticScore.getScores() by sample name
+	 */
+	public List<Map<String, double[]>> score(final List<? extends Annotation> windows) {
+		List<Map<String, double[]>> rtrn = new ArrayList<Map<String, double[]>>(windows.size());
+		for(int i=0; i<windows.size(); i++) {
+			rtrn.add(new HashMap<String, double[]>());
+		}
+		for(String sample : models.keySet()) {
+			AlignmentModel model = models.get(sample);
+			SlidingWindowCounter counter = counters.get(sample);
+			for(int i : getOrder(windows, !TranscriptionRead.UNSTRANDED.equals(model.getStrand()))) {
+				Annotation window = windows.get(i);
+				if(!model.containsReference(window.getChr())) {
+					continue;
+				}
+				double count = counter.getCount(window);
+				rtrn.get(i).put(sample, new ScanStatisticScore(model, window, count).getScores());
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Indices of the windows by chromosome, orientation if stranded, then start and end
+	 */
+	private static List<Integer> getOrder(final List<? extends Annotation> windows, final boolean stranded) {
+		List<Integer> order = new ArrayList<Integer>(windows.size());
+		for(int i=0; i<windows.size(); i++) {
+			order.add(Integer.valueOf(i));
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				Annotation x = windows.get(a.intValue());
+				Annotation y = windows.get(b.intValue());
+				int cmp = x.getChr().compareTo(y.getChr());
+				if(cmp != 0) {
+					return cmp;
+				}
+				if(stranded) {
+					cmp = x.getOrientation().compareTo(y.getOrientation());
+					if(cmp != 0) {
+						return cmp;
+					}
+				}
+				if(x.getStart() != y.getStart()) {
+					return x.getStart() < y.getStart() ? -1 : 1;
+				}
+				if(x.getEnd() != y.getEnd()) {
+					return x.getEnd() < y.getEnd() ? -1 : 1;
+				}
+				return a.compareTo(b);
+			}
+		});
+		return order;
+	}
+}
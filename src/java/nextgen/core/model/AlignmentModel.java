@@ -3,9 +3,11 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -19,6 +21,7 @@ import broad.core.math.Statistics;
 import broad.pda.annotation.BEDFileParser;
 import broad.pda.datastructures.Alignments;
 
+import net.sf.samtools.SAMRecord;
 import net.sf.samtools.util.CloseableIterator;
 import nextgen.core.alignment.Alignment;
 import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
@@ -34,6 +37,7 @@ import nextgen.core.readFilters.PairedEndFilter;
 import nextgen.core.readFilters.SameOrientationFilter;
 import nextgen.core.readFilters.SplicedReadFilter;
 import nextgen.core.readers.PairedEndReader;
+import nextgen.core.utils.Metrics;
 import nextgen.core.writers.PairedEndWriter;
 import nextgen.core.exception.RuntimeIOException;
 import org.apache.commons.collections15.Predicate;
@@ -68,6 +72,13 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	//private double globalRpkmConstant = -99;
 	private Cache cache;
 	int cacheSize=500000;
+	private static final Metrics.CounterGroup filterRejections=Metrics.counterGroup("AlignmentModel.filterRejections");
+	private static final Metrics.Counter cacheHits=Metrics.counter("AlignmentModel.cache.hits");
+	private static final Metrics.Counter cacheMisses=Metrics.counter("AlignmentModel.cache.misses");
+	private static final Metrics.Counter cacheEvictions=Metrics.counter("AlignmentModel.cache.evictions");
+	private static final Metrics.Counter cacheBypasses=Metrics.counter("AlignmentModel.cache.bypasses");
+	private static final Metrics.Counter cacheUpdatesAborted=Metrics.counter("AlignmentModel.cache.updatesAborted");
+	private static final Metrics.Counter troubleRegionFallbacks=Metrics.counter("AlignmentModel.cache.troubleRegionFallbacks");
 	private boolean hasGlobalStats = false;
 	private SortedMap<String, Double> refSequenceCounts=new TreeMap<String, Double>();
 	private TranscriptionRead strand;
@@ -194,6 +205,17 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	public AlignmentModel(String bamFile, CoordinateSpace coordinateSpace, TranscriptionRead transcriptionRead) {
 		this(bamFile, coordinateSpace, true, transcriptionRead);
 	}
+
+	/**
+	 * Set the size of the region held in the read cache and empty the cache
+	 * Windows larger than the cache are read directly from the BAM file, so 0 turns the cache off
+	 * @param cacheSize Cache size in bp
+	 */
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize=cacheSize;
+		this.cache=new Cache(this.reader,this.cacheSize);
+	}
+
 	/**
 	 * Check whether the global stats file is valid
 	 * Compare the names of the reference sequences
@@ -590,6 +612,22 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	}
 
 	
+	/**
+	 * Get a counter that reuses the reads of the previous window when scoring overlapping windows in order
+	 * @return A new counter, use one per scan
+	 */
+	public SlidingWindowCounter getSlidingWindowCounter() {
+		return new SlidingWindowCounter(this);
+	}
+	
+	/**
+	 * Return the cached read groups overlapping the genomic region that pass the read filters
+	 * No coordinate space or strand filtering is applied
+	 */
+	CloseableIterator<AlignmentCount> getValidReadCounts(Annotation region) {
+		return new FilteredIterator(this.cache.query(region, false));
+	}
+	
 	/**
 	 * Return the reads that overlap with this region in coordinate space
 	 */
@@ -686,7 +724,10 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		
 		for(Predicate<Alignment> filter: this.readFilters){
 			boolean passes=filter.evaluate(read);
-			if(!passes){return false;}
+			if(!passes){
+				filterRejections.get(filter).increment();
+				return false;
+			}
 		}
 		
 		return true;
@@ -784,6 +825,53 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		public void close() {}*/
 	}
 	
+	/**
+	 * Iterates over the reads of a CompactReadStore that overlap a window
+	 * Reads with identical start and end are grouped into one AlignmentCount, as the nodes of an IntervalTree are
+	 * The alignments are decoded from the store the first time they are asked for and reused by later queries
+	 */
+	public class ReadStoreIterator implements CloseableIterator<AlignmentCount>{
+		CompactReadStore store;
+		int start;
+		int end;
+		int next;
+
+		ReadStoreIterator (CompactReadStore store, int start, int end) {
+			this.store=store;
+			this.start=start;
+			this.end=end;
+			this.next=store.firstOverlapper(start, end);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next<store.size();
+		}
+
+		@Override
+		public AlignmentCount next() {
+			if(!hasNext()){throw new NoSuchElementException();}
+			int groupStart=store.getStart(next);
+			int groupEnd=store.getEnd(next);
+			Alignment read=null;
+			Collection<Alignment> containedReads=new HashSet<Alignment>();
+			int i=next;
+			for(; i<store.size() && store.getStart(i)==groupStart && store.getEnd(i)==groupEnd; i++){
+				Alignment alignment=store.getAlignment(i, reader);
+				if(read==null){read=alignment;}
+				containedReads.add(alignment);
+			}
+			next=store.nextOverlapper(i, start, end);
+			return new AlignmentCount(read, containedReads);
+		}
+
+		@Override
+		public void remove() {}
+
+		@Override
+		public void close() {}
+	}
+	
 	public class AlignmentCount{
 		Alignment read;
 		int numReplicates;
@@ -925,7 +1013,7 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		}
 		public Alignment next() {
 			Alignment next = itr.next();
-			Annotation perm=coordinateSpace.permuteAnnotation(next, region);
+			Annotation perm=coordinateSpace.permuteAnnotation(next, region, random);
 			next.moveToCoordinate(perm.getStart());
 			return next;
 		}
@@ -939,7 +1027,7 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		int cacheEnd = 0;
 		boolean fullyContained = false;
 		int cacheSize;
-		IntervalTree<Alignment> cachedTree;
+		CompactReadStore cachedReads;
 		IntervalTree<Alignment> plusCacheTree;
 		IntervalTree<Alignment> minusCacheTree;
 		
@@ -965,32 +1053,42 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		
 		private CloseableIterator<AlignmentCount> query(Annotation window, boolean fullyContained) {
 			//if larger than the cache size then just return the query directly
-			if(window.getSize()>this.cacheSize || isTroubleRegion(window)){
+			if(window.getSize()>this.cacheSize){
 				//logger.info("Get reads for the entire window of size "+window.getSize()+" for "+window.toUCSC());
+				cacheBypasses.increment();
+				return getReads(window, fullyContained);
+			}
+			if(isTroubleRegion(window)){
+				troubleRegionFallbacks.increment();
 				return getReads(window, fullyContained);
 			}
 			//else if doesnt contain the window then update cache and query again
 			else if (!contains(window) || this.fullyContained != fullyContained) {
 				//logger.info("Updating cache for "+window.getSize()+" for "+window.toUCSC());
+				cacheMisses.increment();
+				if(this.cachedReads!=null){cacheEvictions.increment();}
 				updateCache(window.getReferenceName(), window.getStart(), window.getEnd(), fullyContained);
 				//IF UPDATE CACHE FAILED, GET READS WITHOUT CACHE
 				if(this.updateCacheFailed){
 					logger.info("Tried updating cache. Update cache aborted.");
+					cacheUpdatesAborted.increment();
 					return getReads(window, fullyContained);
 				}
 			}
-			if(this.updateCacheFailed){
+			else if(this.updateCacheFailed){
 				//logger.info("Update cache failed for "+window.toUCSC());
+				troubleRegionFallbacks.increment();
 				return getReads(window, fullyContained);
 			}
+			else{
+				cacheHits.increment();
+			}
 			//pull reads from cache
 			return getReadsFromCache(window);
 		}
 		
 		private CloseableIterator<AlignmentCount> getReadsFromCache(Annotation window) {
-			// TODO:  Can't we just call cachedTree.overlappersValueIterator(window.getStart(), window.getEnd()) and get rid of the NodeIterator?
-			//  it looks like overlappingValueIterator can handle multiple values per node
-			return new NodeIterator(this.cachedTree.overlappers(window.getStart(), window.getEnd()));
+			return new ReadStoreIterator(this.cachedReads, window.getStart(), window.getEnd());
 		}
 		
 		/**
@@ -1047,16 +1145,18 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 
 			Window update=new GenomeWindow(this.cacheChr, this.cacheStart, this.cacheEnd);
 			//logger.info("CACHE UPDATED FOR "+update.toUCSC());
-			this.cachedTree=getIntervalTree(update, fullyContained);
+			//Release the old reads before building the new store
+			this.cachedReads=null;
+			this.cachedReads=getReadStore(update, fullyContained);
 		}
 		
 		/**
-		 * Returns an interval tree of reads over the specified window
+		 * Returns a compact store of the valid reads over the specified window
 		 * @param w
 		 * @param fullyContained
 		 * @return
 		 */
-		private IntervalTree<Alignment> getIntervalTree(Window w, boolean fullyContained) {
+		private CompactReadStore getReadStore(Window w, boolean fullyContained) {
 			int counter=0;
 			// 80%
 			double memoryThreshold = Runtime.getRuntime().maxMemory()*0.2;
@@ -1064,18 +1164,22 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 			updateCacheFailed = false;
 			//Set at 2 million reads
 			double threshold = 500000;
-		 	IntervalTree<Alignment> tree=new IntervalTree<Alignment>();
-			CloseableIterator<AlignmentCount> iterReadsOverlappingRegion=getReads(w, fullyContained);
-			while(iterReadsOverlappingRegion.hasNext()){
-				Alignment record=iterReadsOverlappingRegion.next().getRead();
+			CompactReadStore store=new CompactReadStore(reader.getHeader());
+			CloseableIterator<SAMRecord> iterRecordsOverlappingRegion=reader.queryRecords(w, fullyContained);
+			while(iterRecordsOverlappingRegion.hasNext()){
+				SAMRecord samRecord=iterRecordsOverlappingRegion.next();
+				//Encode before converting since the conversion modifies the record
+				store.stage(samRecord);
+				Alignment record=reader.toAlignment(samRecord);
+				if(record==null){continue;}
 				if (isValid(record)) {
-					tree.put(record.getAlignmentStart(), record.getAlignmentEnd(), record);
+					store.commit(record.getAlignmentStart(), record.getAlignmentEnd());
 				}	
 				counter++;
 				if(counter>threshold){
 					if(Runtime.getRuntime().freeMemory()<memoryThreshold){
-						logger.info("Update cache aborted because "+w.toUCSC()+" has "+counter+" reads which is more than "+threshold+" and memory used is more than 80%");
-						tree = null;
+						logger.info("Update cache aborted because "+w.toUCSC()+" has "+counter+" reads ("+store.getSizeInBytes()+" bytes cached) which is more than "+threshold+" and memory used is more than 80%");
+						store = null;
 						updateCacheFailed = true;
 						//Add region to troubleRegions
 						if(!troubleRegions.containsKey(w.getChr())){
@@ -1085,12 +1189,10 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 						break;
 					}
 				}
-				/*Node<Alignment> node=tree.find(record.getAlignmentStart(), record.getAlignmentEnd());			
-				if(node!=null){node.incrementCount();}
-				else{tree.put(record.getAlignmentStart(), record.getAlignmentEnd(), record);}*/
 			}			
-			iterReadsOverlappingRegion.close();
-			return tree;
+			iterRecordsOverlappingRegion.close();
+			if(store!=null){store.seal();}
+			return store;
 		}
 		
 		
@@ -1186,6 +1288,15 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 			addFilter(filter);
 	}
 	
+	/**
+	 * Read and convert the BAM file on several threads for queries that bypass the cache,
+	 * such as the whole chromosome passes of computeGlobalStats
+	 * @param numThreads Number of threads, 1 reads on the calling thread
+	 */
+	public void setNumReaderThreads(int numThreads) {
+		this.reader.setNumThreads(numThreads);
+	}
+	
 	
 	/**
 	 * Scan windows over a Collection<GeneWindow> and score
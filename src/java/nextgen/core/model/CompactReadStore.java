@@ -0,0 +1,339 @@
+package nextgen.core.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.readers.PairedEndReader;
+
+/**
+ * Struct-of-arrays store for the reads held by the AlignmentModel cache
+ * Interval coordinates live in parallel int arrays and each read is kept as its BAM encoded record
+ * (packed cigar blocks, 4-bit bases, flags and tags) in a single byte pool,
+ * instead of a SAMRecord plus Alignment object graph per read
+ * Records are decoded back into SAMRecords only when they are asked for, and the alignments converted from them
+ * are kept once the store is sealed so later queries over the same reads do not decode them again
+ *
+ * Usage: stage() each record, commit() the ones that should be kept, then seal() before querying
+ */
+public class CompactReadStore {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int INITIAL_POOL_SIZE = 64 * 1024;
+
+	private final BAMRecordCodec codec;
+	private final Pool pool;
+	private int size;
+	private int[] starts;
+	private int[] ends;
+	private int[] offsets;
+	private int[] maxEnds;
+	private boolean sealed;
+	// Alignments decoded so far, released by the garbage collector when memory runs low
+	private SoftReference<Alignment[]> alignments;
+
+	/**
+	 * @param header The header of the file the records come from, used to encode and decode reference names
+	 */
+	public CompactReadStore(SAMFileHeader header) {
+		this.codec = new BAMRecordCodec(header);
+		this.pool = new Pool();
+		this.codec.setOutputStream(pool);
+		this.starts = new int[INITIAL_CAPACITY];
+		this.ends = new int[INITIAL_CAPACITY];
+		this.offsets = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Encode the record into the pool without keeping it yet
+	 * The record must be staged before anything mutates it
+	 * A later stage() call overwrites a staged record that was not committed
+	 * @param record The record as read from the file
+	 */
+	public void stage(SAMRecord record) {
+		if(sealed) {
+			throw new IllegalStateException("Cannot add records to a sealed store");
+		}
+		pool.rewind();
+		codec.encode(record);
+	}
+
+	/**
+	 * Keep the last staged record
+	 * @param start Start of the interval the record covers
+	 * @param end End of the interval the record covers
+	 */
+	public void commit(int start, int end) {
+		if(start > end) {
+			throw new IllegalArgumentException("Start cannot exceed end. Start=" + start + "; end=" + end);
+		}
+		if(size == starts.length) {
+			int capacity = 2 * size;
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+		}
+		starts[size] = start;
+		ends[size] = end;
+		offsets[size] = pool.committed;
+		size++;
+		pool.commit();
+	}
+
+	/**
+	 * Sort the records by (start, end) keeping insertion order for ties and build the overlap index
+	 * No records can be added after this
+	 */
+	public void seal() {
+		if(sealed) {
+			return;
+		}
+		sealed = true;
+		pool.rewind();
+		pool.trim();
+		starts = Arrays.copyOf(starts, size);
+		ends = Arrays.copyOf(ends, size);
+		offsets = Arrays.copyOf(offsets, size);
+		if(!isSorted()) {
+			int[] order = new int[size];
+			for(int i=0; i<size; i++) {
+				order[i] = i;
+			}
+			mergeSort(order, new int[size], 0, size);
+			starts = permute(starts, order);
+			ends = permute(ends, order);
+			offsets = permute(offsets, order);
+		}
+		maxEnds = new int[size];
+		int max = Integer.MIN_VALUE;
+		for(int i=0; i<size; i++) {
+			max = Math.max(max, ends[i]);
+			maxEnds[i] = max;
+		}
+	}
+
+	/**
+	 * @param start Query start
+	 * @param end Query end
+	 * @return The index of the first record overlapping [start, end) or size() if there is none
+	 * Overlap follows IntervalTree: record start < end and start < record end
+	 */
+	public int firstOverlapper(int start, int end) {
+		checkSealed();
+		// maxEnds is non-decreasing so every record before this index ends at or before start
+		int lo = 0;
+		int hi = size;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(maxEnds[mid] > start) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return nextOverlapper(lo, start, end);
+	}
+
+	/**
+	 * @param from Index to start looking from
+	 * @param start Query start
+	 * @param end Query end
+	 * @return The index of the first record at or after from that overlaps [start, end) or size() if there is none
+	 */
+	public int nextOverlapper(int from, int start, int end) {
+		checkSealed();
+		for(int i=from; i<size && starts[i] < end; i++) {
+			if(start < ends[i]) {
+				return i;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @param i Record index
+	 * @return A fresh SAMRecord decoded from the pool
+	 */
+	public SAMRecord getRecord(int i) {
+		int offset = offsets[i];
+		codec.setInputStream(new ByteArrayInputStream(pool.buf, offset, pool.committed - offset));
+		return codec.decode();
+	}
+
+	/**
+	 * The alignment is decoded on the first call and the same object is returned afterwards, as the IntervalTree cache did
+	 * @param i Record index
+	 * @param reader Reader the records were read with, the same one for every call
+	 * @return The alignment of the record
+	 */
+	public Alignment getAlignment(int i, PairedEndReader reader) {
+		checkSealed();
+		Alignment[] decoded = alignments == null ? null : alignments.get();
+		if(decoded == null) {
+			decoded = new Alignment[size];
+			alignments = new SoftReference<Alignment[]>(decoded);
+		}
+		if(decoded[i] == null) {
+			decoded[i] = reader.toAlignment(getRecord(i));
+		}
+		return decoded[i];
+	}
+
+	public int getStart(int i) {
+		return starts[i];
+	}
+
+	public int getEnd(int i) {
+		return ends[i];
+	}
+
+	/**
+	 * @return Number of committed records
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Approximate number of bytes held by the arrays and the record pool
+	 */
+	public long getSizeInBytes() {
+		int arrays = sealed ? 4 : 3;
+		return (long) pool.buf.length + 4L * arrays * starts.length;
+	}
+
+	/**
+	 * Copy the sealed store into a direct buffer outside the Java heap, to be read back with ReadSlab
+	 * Layout: the number of records, then the starts, ends, running maximum ends and pool offsets as ints, then the record pool
+	 * @return The buffer
+	 */
+	public ByteBuffer toDirectBuffer() {
+		checkSealed();
+		long length = 4L + 16L * size + pool.committed;
+		if(length > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Store of " + length + " bytes is too large for a direct buffer");
+		}
+		ByteBuffer rtrn = ByteBuffer.allocateDirect((int) length);
+		rtrn.putInt(size);
+		for(int[] values : new int[][] {starts, ends, maxEnds, offsets}) {
+			for(int i=0; i<size; i++) {
+				rtrn.putInt(values[i]);
+			}
+		}
+		rtrn.put(pool.buf, 0, pool.committed);
+		rtrn.clear();
+		return rtrn;
+	}
+
+	private void checkSealed() {
+		if(!sealed) {
+			throw new IllegalStateException("Store must be sealed before it is queried");
+		}
+	}
+
+	private boolean isSorted() {
+		for(int i=1; i<size; i++) {
+			if(compare(i-1, i) > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int compare(int a, int b) {
+		if(starts[a] != starts[b]) {
+			return starts[a] < starts[b] ? -1 : 1;
+		}
+		if(ends[a] != ends[b]) {
+			return ends[a] < ends[b] ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Stable sort of the index array so reads at the same position keep their file order
+	 */
+	private void mergeSort(int[] order, int[] tmp, int from, int to) {
+		if(to - from < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(order, tmp, from, mid);
+		mergeSort(order, tmp, mid, to);
+		if(compare(order[mid-1], order[mid]) <= 0) {
+			return;
+		}
+		System.arraycopy(order, from, tmp, from, to - from);
+		int i = from;
+		int j = mid;
+		for(int k=from; k<to; k++) {
+			if(j >= to || (i < mid && compare(tmp[i], tmp[j]) <= 0)) {
+				order[k] = tmp[i++];
+			} else {
+				order[k] = tmp[j++];
+			}
+		}
+	}
+
+	private static int[] permute(int[] values, int[] order) {
+		int[] rtrn = new int[order.length];
+		for(int i=0; i<order.length; i++) {
+			rtrn[i] = values[order[i]];
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Growable byte pool that the codec writes into
+	 * Bytes past the committed mark belong to the staged record
+	 */
+	private static class Pool extends OutputStream {
+		byte[] buf = new byte[INITIAL_POOL_SIZE];
+		int count;
+		int committed;
+
+		void rewind() {
+			count = committed;
+		}
+
+		void commit() {
+			committed = count;
+		}
+
+		void trim() {
+			buf = Arrays.copyOf(buf, committed);
+		}
+
+		private void ensureCapacity(int needed) {
+			if(needed > buf.length) {
+				long capacity = Math.max((long) needed, 2L * buf.length);
+				if(capacity > Integer.MAX_VALUE - 8) {
+					capacity = Integer.MAX_VALUE - 8;
+				}
+				if(needed > capacity) {
+					throw new IllegalStateException("Compact read store cannot hold more than " + capacity + " bytes");
+				}
+				buf = Arrays.copyOf(buf, (int) capacity);
+			}
+		}
+
+		@Override
+		public void write(int b) {
+			ensureCapacity(count + 1);
+			buf[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensureCapacity(count + len);
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,921 @@
+package nextgen.core.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import org.apache.commons.collections15.Predicate;
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.exception.RuntimeIOException;
+import nextgen.core.feature.GenomeWindow;
+import nextgen.core.model.AlignmentModel.AlignmentCount;
+
+/**
+ * Binary coverage index (".cov") stored next to a BAM file, like the .GenomicSpaceStats file
+ * Built in one pass over the reads of an AlignmentModel and memory mapped when read back,
+ * so read counts and coverage over any genomic interval come from a few lookups instead of decoding the BAM
+ *
+ * Each read is reduced to its aligned blocks, mates of a fragment merged where they share bases, and weighted by 1/NH as AlignmentModel counts it
+ * (identical reads take the weight of the one the model keeps)
+ * For every chromosome, and separately for reads on the + and - strand, the file holds
+ * the positions where blocks start or end with the weight starting and ending there,
+ * the weight started, the weight ended and the coverage summed up to every CHECKPOINT-th of these positions,
+ * and the introns (gaps between consecutive blocks of a read) sorted by start with the weight of their read
+ * So the index grows with the number of reads rather than with the length of the genome
+ *
+ * A read overlaps an interval when one of its blocks does. The blocks of a read overlapping an interval are consecutive,
+ * so the weight of the overlapping reads is the weight of the overlapping blocks less the weight of the introns strictly inside the interval
+ * Reads with unknown orientation are put on the + strand
+ * The read filters of the model are applied when the index is built and recorded in the file with the values of their fields,
+ * changing them triggers a rebuild. Filters holding values that cannot be recorded get an index in a temporary file that is not reused
+ */
+public class CoverageIndex {
+
+	static Logger logger = Logger.getLogger(CoverageIndex.class.getName());
+
+	public static final String EXTENSION = ".cov";
+
+	static final int MAGIC = 0x434f5631;
+	static final int VERSION = 2;
+	/** Number of events between stored running totals, a lookup adds up at most this many events */
+	static final int CHECKPOINT = 64;
+
+	/** Position, weight of the blocks starting there, weight of the blocks ending there */
+	private static final int EVENT_BYTES = 4 + 8 + 8;
+	/** Weight started, weight ended and coverage summed before the event */
+	private static final int CHECKPOINT_BYTES = 8 + 8 + 8;
+	/** Start, end, weight of the read */
+	private static final int INTRON_BYTES = 4 + 4 + 8;
+	/** Records per mapped segment, keeps every mapping under the 2GB limit of FileChannel.map */
+	private static final int SEGMENT_RECORDS = 1 << 24;
+	/** Depths are differences of running sums of weights, anything smaller is an uncovered base */
+	private static final double EPSILON = 1e-9;
+
+	private final File file;
+	private final String key;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final Map<String, Chromosome> chromosomes = new LinkedHashMap<String, Chromosome>();
+
+	private CoverageIndex(File file) throws IOException {
+		this.file = file;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a version " + VERSION + " coverage index");
+			}
+			this.key = in.readUTF();
+			int numChromosomes = in.readInt();
+			for(int i=0; i<numChromosomes; i++) {
+				ChromosomeHeader header = ChromosomeHeader.read(in);
+				chromosomes.put(header.name, new Chromosome(header));
+			}
+		} finally {
+			in.close();
+		}
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+	}
+
+	/**
+	 * Open the index of the model's BAM file, building it first if it is missing, out of date or was built with other settings
+	 * @param model The alignment model
+	 * @return The coverage index
+	 */
+	public static CoverageIndex getOrBuild(AlignmentModel model) {
+		File file = new File(model.getBamFile() + EXTENSION);
+		String key = getKey(model);
+		try {
+			if(key == null) {
+				logger.warn("The read filters of " + model.getBamFile() + " cannot be recorded in a coverage index, building one that will not be reused.");
+				File tmp = File.createTempFile("coverage", EXTENSION);
+				tmp.deleteOnExit();
+				build(model, tmp);
+				return new CoverageIndex(tmp);
+			}
+			if(file.exists()) {
+				CoverageIndex index = null;
+				try {
+					index = new CoverageIndex(file);
+				} catch(IOException e) {
+					logger.warn(e.getMessage());
+				}
+				if(index != null && index.key.equals(key) && index.chromosomes.keySet().containsAll(model.getCoordinateSpace().getReferenceNames())) {
+					return index;
+				}
+				logger.warn("Coverage index " + file + " does not match the current reads or filters and will be overwritten.");
+				if(index != null) {
+					index.close();
+				}
+			}
+			build(model, file);
+			return new CoverageIndex(file);
+		} catch(IOException e) {
+			throw new RuntimeIOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Open an existing index without checking it against a BAM file
+	 * @param file The .cov file
+	 * @throws IOException
+	 */
+	public static CoverageIndex open(File file) throws IOException {
+		return new CoverageIndex(file);
+	}
+
+	/**
+	 * Write the index for all reference sequences of the model's coordinate space
+	 * @param model The alignment model, its read filters decide which reads are indexed
+	 * @param file The file to write
+	 * @throws IOException
+	 */
+	public static void build(AlignmentModel model, File file) throws IOException {
+		logger.info("Building coverage index " + file + "...");
+		List<String> names = new ArrayList<String>(model.getCoordinateSpace().getReferenceNames());
+		Collections.sort(names);
+		List<ChromosomeHeader> headers = new ArrayList<ChromosomeHeader>();
+		for(String name : names) {
+			headers.add(new ChromosomeHeader(name, (int) model.getCoordinateSpace().getLength(name)));
+		}
+
+		// The header has a fixed size, it is written first and again once the offsets and totals are known
+		String key = getKey(model);
+		if(key == null) {
+			key = "";
+		}
+		byte[] header = header(key, headers);
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+		try {
+			out.write(header);
+			long offset = header.length;
+			for(ChromosomeHeader chromosome : headers) {
+				offset = writeChromosome(model, chromosome, offset, out, tmp.getAbsoluteFile().getParentFile());
+			}
+		} finally {
+			out.close();
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.write(header(key, headers));
+		} finally {
+			raf.close();
+		}
+		if(file.exists() && !file.delete()) {
+			throw new IOException("Could not replace " + file);
+		}
+		if(!tmp.renameTo(file)) {
+			throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+		logger.info("Done building coverage index.");
+	}
+
+	private static byte[] header(String key, List<ChromosomeHeader> headers) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(key);
+		out.writeInt(headers.size());
+		for(ChromosomeHeader header : headers) {
+			header.write(out);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Identifies the reads and filters the index was built from
+	 * @return The key, or null if a filter cannot be described
+	 */
+	private static String getKey(AlignmentModel model) {
+		File bam = new File(model.getBamFile());
+		StringBuilder key = new StringBuilder();
+		key.append(bam.length()).append(":").append(bam.lastModified()).append(":").append(model.getStrand());
+		for(Predicate<Alignment> filter : model.readFilters) {
+			String description = describe(filter, model);
+			if(description == null) {
+				return null;
+			}
+			key.append(":").append(description);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Describe a filter by its class and the values of its fields, so filters of one class with other parameters differ
+	 * @return The description, or null if a field holds a value that cannot be described
+	 */
+	private static String describe(Predicate<Alignment> filter, AlignmentModel model) {
+		StringBuilder rtrn = new StringBuilder(filter.getClass().getName());
+		for(Class<?> c = filter.getClass(); c != null && !Object.class.equals(c); c = c.getSuperclass()) {
+			for(Field field : c.getDeclaredFields()) {
+				if(Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) {
+					continue;
+				}
+				Object value;
+				try {
+					field.setAccessible(true);
+					value = field.get(filter);
+				} catch(IllegalAccessException e) {
+					return null;
+				}
+				String text = describeValue(value, model);
+				if(text == null) {
+					return null;
+				}
+				rtrn.append("[").append(field.getName()).append("=").append(text).append("]");
+			}
+		}
+		return rtrn.toString();
+	}
+
+	/**
+	 * Plain values describe themselves, annotations by their blocks, the model's own coordinate space by name
+	 */
+	private static String describeValue(Object value, AlignmentModel model) {
+		if(value == null) {
+			return "null";
+		}
+		if(value == model.getCoordinateSpace()) {
+			return "coordinateSpace";
+		}
+		if(value instanceof Number || value instanceof String || value instanceof Boolean || value instanceof Character || value instanceof Enum) {
+			return value.toString();
+		}
+		if(value instanceof Annotation) {
+			return ((Annotation) value).toBED();
+		}
+		return null;
+	}
+
+	/**
+	 * Stream the records of one chromosome, each strand is written to temporary files and then appended to out
+	 * Reads are loaded a stretch at a time and events falling past the current stretch are kept until it is reached
+	 * @return The offset following the records of the chromosome
+	 */
+	private static long writeChromosome(AlignmentModel model, ChromosomeHeader chromosome, long offset, DataOutputStream out, File tmpDir) throws IOException {
+		String chr = chromosome.name;
+		int length = chromosome.length;
+		int chunkSize = model.cacheSize;
+		// Per strand: weight of the blocks starting and ending at each position of the stretch
+		double[][] events = new double[4][chunkSize];
+		TreeMap<Integer, double[]> pending = new TreeMap<Integer, double[]>();
+		PriorityQueue<Intron> introns = new PriorityQueue<Intron>();
+		TrackWriter[] tracks = new TrackWriter[2];
+
+		try {
+			for(int t=0; t<2; t++) {
+				tracks[t] = new TrackWriter(tmpDir);
+			}
+			for(int chunkStart=0; chunkStart<=length; chunkStart+=chunkSize) {
+				int chunkEnd = (int) Math.min((long) chunkStart + chunkSize, (long) length + 1);
+				for(double[] field : events) {
+					Arrays.fill(field, 0);
+				}
+				while(!pending.isEmpty() && pending.firstKey() < chunkEnd) {
+					Entry<Integer, double[]> entry = pending.pollFirstEntry();
+					for(int f=0; f<events.length; f++) {
+						events[f][entry.getKey() - chunkStart] += entry.getValue()[f];
+					}
+				}
+
+				if(chunkStart < length) {
+					CloseableIterator<AlignmentCount> iter = model.getValidReadCounts(new GenomeWindow(chr, chunkStart, Math.min(chunkEnd, length)));
+					while(iter.hasNext()) {
+						// Identical reads share the blocks and the weight the model gives them, each keeps its strand
+						AlignmentCount alignmentCount = iter.next();
+						Alignment read = alignmentCount.getRead();
+						int start = Math.max(0, read.getAlignmentStart());
+						// Each read belongs to the stretch it starts in, the first stretch also takes reads hanging off the chromosome start
+						if(start >= chunkEnd || (start < chunkStart && chunkStart > 0)) {
+							continue;
+						}
+						List<int[]> blocks = getMergedBlocks(read, length);
+						if(blocks.isEmpty()) {
+							continue;
+						}
+						double weight = read.getWeight();
+						for(Alignment replicate : alignmentCount.containedReads) {
+							int strand = Strand.NEGATIVE.equals(replicate.getOrientation()) ? 1 : 0;
+							for(int b=0; b<blocks.size(); b++) {
+								addEvent(events, pending, chunkStart, chunkEnd, 2 * strand, blocks.get(b)[0], weight);
+								addEvent(events, pending, chunkStart, chunkEnd, 2 * strand + 1, blocks.get(b)[1], weight);
+								if(b > 0) {
+									introns.add(new Intron(strand, blocks.get(b - 1)[1], blocks.get(b)[0], weight));
+								}
+							}
+							chromosome.reads++;
+							chromosome.weight += weight;
+						}
+					}
+					iter.close();
+				}
+
+				for(int x=chunkStart; x<chunkEnd; x++) {
+					int i = x - chunkStart;
+					for(int t=0; t<2; t++) {
+						if(events[2 * t][i] != 0 || events[2 * t + 1][i] != 0) {
+							tracks[t].addEvent(x, events[2 * t][i], events[2 * t + 1][i]);
+						}
+					}
+				}
+				// Reads of later stretches start, and so have their introns, past this one
+				while(!introns.isEmpty() && introns.peek().start < chunkEnd) {
+					Intron intron = introns.poll();
+					tracks[intron.strand].addIntron(intron.start, intron.end, intron.weight);
+				}
+			}
+
+			for(int t=0; t<2; t++) {
+				chromosome.offsets[t] = offset;
+				chromosome.numEvents[t] = tracks[t].numEvents;
+				chromosome.numIntrons[t] = tracks[t].numIntrons;
+				offset += tracks[t].copyTo(out);
+			}
+		} finally {
+			for(TrackWriter track : tracks) {
+				if(track != null) {
+					track.delete();
+				}
+			}
+		}
+		logger.info("Indexed " + chromosome.reads + " reads on " + chr);
+		return offset;
+	}
+
+	private static void addEvent(double[][] events, TreeMap<Integer, double[]> pending, int chunkStart, int chunkEnd, int field, int pos, double weight) {
+		if(pos < chunkEnd) {
+			events[field][pos - chunkStart] += weight;
+		} else {
+			double[] entry = pending.get(Integer.valueOf(pos));
+			if(entry == null) {
+				entry = new double[events.length];
+				pending.put(Integer.valueOf(pos), entry);
+			}
+			entry[field] += weight;
+		}
+	}
+
+	private static final Comparator<int[]> BY_START = new Comparator<int[]>() {
+		@Override
+		public int compare(int[] a, int[] b) {
+			return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Blocks of the read clipped to the chromosome, in order, with the blocks that overlap or touch merged
+	 * Mates of a fragment can share bases, these are counted once
+	 */
+	private static List<int[]> getMergedBlocks(Alignment read, int length) {
+		List<int[]> blocks = new ArrayList<int[]>();
+		for(Annotation block : read.getBlocks()) {
+			int start = clip(block.getStart(), 0, length);
+			int end = clip(block.getEnd(), 0, length);
+			if(start < end) {
+				blocks.add(new int[] {start, end});
+			}
+		}
+		Collections.sort(blocks, BY_START);
+		List<int[]> rtrn = new ArrayList<int[]>();
+		for(int[] block : blocks) {
+			int[] last = rtrn.isEmpty() ? null : rtrn.get(rtrn.size() - 1);
+			if(last != null && block[0] <= last[1]) {
+				last[1] = Math.max(last[1], block[1]);
+			} else {
+				rtrn.add(block);
+			}
+		}
+		return rtrn;
+	}
+
+	private static int clip(int pos, int min, int max) {
+		return Math.max(min, Math.min(max, pos));
+	}
+
+	/**
+	 * @param chr Reference name
+	 * @return Whether the index has the reference sequence
+	 */
+	public boolean containsReference(String chr) {
+		return chromosomes.containsKey(chr);
+	}
+
+	/**
+	 * @param chr Reference name
+	 * @return Length of the reference sequence as indexed
+	 */
+	public int getLength(String chr) {
+		return getChromosome(chr).length;
+	}
+
+	/**
+	 * @param chr Reference name
+	 * @return Number of reads indexed on the reference sequence
+	 */
+	public long getReadCount(String chr) {
+		return getChromosome(chr).reads;
+	}
+
+	/**
+	 * @return Number of reads indexed on all reference sequences
+	 */
+	public long getReadCount() {
+		long rtrn = 0;
+		for(Chromosome chromosome : chromosomes.values()) {
+			rtrn += chromosome.reads;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param chr Reference name
+	 * @return Summed weight of the reads indexed on the reference sequence
+	 */
+	public double getReadWeight(String chr) {
+		return getChromosome(chr).weight;
+	}
+
+	/**
+	 * Summed weight of the reads with a block overlapping [start, end)
+	 * @param chr Reference name
+	 * @param start Interval start
+	 * @param end Interval end
+	 * @param strand Count reads on this strand, or on both strands if it is neither POSITIVE nor NEGATIVE
+	 */
+	public double getOverlapCount(String chr, int start, int end, Strand strand) {
+		Chromosome chromosome = getChromosome(chr);
+		start = clip(start, 0, chromosome.length);
+		end = clip(end, 0, chromosome.length);
+		if(start >= end) {
+			return 0;
+		}
+		double[] totals = new double[3];
+		double rtrn = 0;
+		for(int t : getTracks(strand)) {
+			Track track = chromosome.tracks[t];
+			track.getTotals(end - 1, totals);
+			double started = totals[0];
+			track.getTotals(start, totals);
+			rtrn += started - totals[1] - track.getIntronWeight(start, end);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Sum of the weighted per base coverage over [start, end)
+	 * @param chr Reference name
+	 * @param start Interval start
+	 * @param end Interval end
+	 * @param strand Count reads on this strand, or on both strands if it is neither POSITIVE nor NEGATIVE
+	 */
+	public double getCoverage(String chr, int start, int end, Strand strand) {
+		Chromosome chromosome = getChromosome(chr);
+		start = clip(start, 0, chromosome.length);
+		end = clip(end, 0, chromosome.length);
+		if(start >= end) {
+			return 0;
+		}
+		double[] totals = new double[3];
+		double rtrn = 0;
+		for(int t : getTracks(strand)) {
+			Track track = chromosome.tracks[t];
+			track.getTotals(end, totals);
+			rtrn += totals[2];
+			track.getTotals(start, totals);
+			rtrn -= totals[2];
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Summed weight of the reads covering the base at pos
+	 */
+	public double getDepth(String chr, int pos, Strand strand) {
+		return getCoverage(chr, pos, pos + 1, strand);
+	}
+
+	/**
+	 * The covered bases of [start, end) as blocks, in order
+	 * @param chr Reference name
+	 * @param start Interval start
+	 * @param end Interval end
+	 * @param strand Use reads on this strand, or on both strands if it is neither POSITIVE nor NEGATIVE
+	 */
+	public List<Annotation> getCoveredBlocks(String chr, int start, int end, Strand strand) {
+		Chromosome chromosome = getChromosome(chr);
+		start = clip(start, 0, chromosome.length);
+		end = clip(end, 0, chromosome.length);
+		List<int[]> intervals = new ArrayList<int[]>();
+		if(start < end) {
+			for(int t : getTracks(strand)) {
+				chromosome.tracks[t].addCoveredIntervals(start, end, intervals);
+			}
+		}
+		Collections.sort(intervals, BY_START);
+		List<Annotation> rtrn = new ArrayList<Annotation>();
+		int[] last = null;
+		for(int[] interval : intervals) {
+			if(last != null && interval[0] <= last[1]) {
+				last[1] = Math.max(last[1], interval[1]);
+				continue;
+			}
+			if(last != null) {
+				rtrn.add(new BasicAnnotation(chr, last[0], last[1]));
+			}
+			last = interval;
+		}
+		if(last != null) {
+			rtrn.add(new BasicAnnotation(chr, last[0], last[1]));
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Release the file, mapped segments stay valid until they are garbage collected
+	 */
+	public void close() {
+		try {
+			channel.close();
+			raf.close();
+		} catch(IOException e) {
+			throw new RuntimeIOException(e.getMessage());
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private static final int[] BOTH = {0, 1};
+	private static final int[] PLUS = {0};
+	private static final int[] MINUS = {1};
+
+	private static int[] getTracks(Strand strand) {
+		if(Strand.POSITIVE.equals(strand)) {
+			return PLUS;
+		}
+		if(Strand.NEGATIVE.equals(strand)) {
+			return MINUS;
+		}
+		return BOTH;
+	}
+
+	private Chromosome getChromosome(String chr) {
+		Chromosome chromosome = chromosomes.get(chr);
+		if(chromosome == null) {
+			throw new IllegalArgumentException(chr + " is not in coverage index " + file);
+		}
+		return chromosome;
+	}
+
+	/**
+	 * Header entry of one reference sequence: totals and where the records of each strand are
+	 */
+	private static class ChromosomeHeader {
+		final String name;
+		final int length;
+		long reads;
+		double weight;
+		final long[] offsets = new long[2];
+		final int[] numEvents = new int[2];
+		final int[] numIntrons = new int[2];
+
+		ChromosomeHeader(String name, int length) {
+			this.name = name;
+			this.length = length;
+		}
+
+		static ChromosomeHeader read(DataInputStream in) throws IOException {
+			ChromosomeHeader rtrn = new ChromosomeHeader(in.readUTF(), in.readInt());
+			rtrn.reads = in.readLong();
+			rtrn.weight = in.readDouble();
+			for(int t=0; t<2; t++) {
+				rtrn.offsets[t] = in.readLong();
+				rtrn.numEvents[t] = in.readInt();
+				rtrn.numIntrons[t] = in.readInt();
+			}
+			return rtrn;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeUTF(name);
+			out.writeInt(length);
+			out.writeLong(reads);
+			out.writeDouble(weight);
+			for(int t=0; t<2; t++) {
+				out.writeLong(offsets[t]);
+				out.writeInt(numEvents[t]);
+				out.writeInt(numIntrons[t]);
+			}
+		}
+	}
+
+	private static int getNumCheckpoints(int numEvents) {
+		return (numEvents + CHECKPOINT - 1) / CHECKPOINT;
+	}
+
+	/**
+	 * Gap between consecutive blocks of a read, ordered by start
+	 */
+	private static class Intron implements Comparable<Intron> {
+		final int strand;
+		final int start;
+		final int end;
+		final double weight;
+
+		Intron(int strand, int start, int end, double weight) {
+			this.strand = strand;
+			this.start = start;
+			this.end = end;
+			this.weight = weight;
+		}
+
+		@Override
+		public int compareTo(Intron other) {
+			return start < other.start ? -1 : (start == other.start ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Writes the events, checkpoints and introns of one strand to separate temporary files, in the order they are added
+	 */
+	private static class TrackWriter {
+		private final File[] files = new File[3];
+		private final DataOutputStream[] outs = new DataOutputStream[3];
+		int numEvents;
+		int numIntrons;
+		private double started;
+		private double ended;
+		private double coverage;
+		private int lastPosition;
+
+		TrackWriter(File dir) throws IOException {
+			for(int i=0; i<files.length; i++) {
+				files[i] = File.createTempFile("coverage", EXTENSION, dir);
+				outs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i]), 1 << 16));
+			}
+		}
+
+		void addEvent(int position, double start, double end) throws IOException {
+			coverage += (position - lastPosition) * (started - ended);
+			lastPosition = position;
+			if(numEvents % CHECKPOINT == 0) {
+				outs[1].writeDouble(started);
+				outs[1].writeDouble(ended);
+				outs[1].writeDouble(coverage);
+			}
+			outs[0].writeInt(position);
+			outs[0].writeDouble(start);
+			outs[0].writeDouble(end);
+			started += start;
+			ended += end;
+			numEvents++;
+		}
+
+		void addIntron(int start, int end, double weight) throws IOException {
+			outs[2].writeInt(start);
+			outs[2].writeInt(end);
+			outs[2].writeDouble(weight);
+			numIntrons++;
+		}
+
+		/**
+		 * Append the events, checkpoints and introns to out
+		 * @return Number of bytes written
+		 */
+		long copyTo(DataOutputStream out) throws IOException {
+			long rtrn = 0;
+			byte[] buffer = new byte[1 << 16];
+			for(int i=0; i<files.length; i++) {
+				outs[i].close();
+				InputStream in = new FileInputStream(files[i]);
+				try {
+					int n;
+					while((n = in.read(buffer)) > 0) {
+						out.write(buffer, 0, n);
+						rtrn += n;
+					}
+				} finally {
+					in.close();
+				}
+			}
+			return rtrn;
+		}
+
+		void delete() throws IOException {
+			for(int i=0; i<files.length; i++) {
+				if(outs[i] != null) {
+					outs[i].close();
+				}
+				if(files[i] != null) {
+					files[i].delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mapped data of one reference sequence
+	 */
+	private class Chromosome {
+		final int length;
+		final long reads;
+		final double weight;
+		final Track[] tracks = new Track[2];
+
+		Chromosome(ChromosomeHeader header) {
+			this.length = header.length;
+			this.reads = header.reads;
+			this.weight = header.weight;
+			for(int t=0; t<2; t++) {
+				tracks[t] = new Track(header.offsets[t], header.numEvents[t], header.numIntrons[t]);
+			}
+		}
+	}
+
+	/**
+	 * Mapped records of the reads on one strand of a reference sequence
+	 */
+	private class Track {
+		final int numEvents;
+		final int numIntrons;
+		private final Section events;
+		private final Section checkpoints;
+		private final Section introns;
+
+		Track(long offset, int numEvents, int numIntrons) {
+			this.numEvents = numEvents;
+			this.numIntrons = numIntrons;
+			this.events = new Section(offset, numEvents, EVENT_BYTES);
+			offset += (long) numEvents * EVENT_BYTES;
+			this.checkpoints = new Section(offset, getNumCheckpoints(numEvents), CHECKPOINT_BYTES);
+			offset += (long) getNumCheckpoints(numEvents) * CHECKPOINT_BYTES;
+			this.introns = new Section(offset, numIntrons, INTRON_BYTES);
+		}
+
+		/**
+		 * @return Number of events at positions up to and including x
+		 */
+		int getNumEventsUpTo(int x) {
+			int low = 0;
+			int high = numEvents;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(events.getInt(mid, 0) <= x) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Weight of the blocks starting at or before x, weight of the blocks ending at or before x, and coverage summed over the bases before x
+		 * @param x Position
+		 * @param rtrn Filled with the three totals
+		 */
+		void getTotals(int x, double[] rtrn) {
+			int n = getNumEventsUpTo(x);
+			if(n == 0) {
+				Arrays.fill(rtrn, 0);
+				return;
+			}
+			// Add up the events since the last checkpoint, the depth is constant between events
+			int first = (n - 1) / CHECKPOINT * CHECKPOINT;
+			double started = checkpoints.getDouble(first / CHECKPOINT, 0);
+			double ended = checkpoints.getDouble(first / CHECKPOINT, 8);
+			double coverage = checkpoints.getDouble(first / CHECKPOINT, 16);
+			int position = events.getInt(first, 0);
+			for(int i=first; i<n; i++) {
+				int next = events.getInt(i, 0);
+				coverage += (next - position) * (started - ended);
+				position = next;
+				started += events.getDouble(i, 4);
+				ended += events.getDouble(i, 12);
+			}
+			rtrn[0] = started;
+			rtrn[1] = ended;
+			rtrn[2] = coverage + (x - position) * (started - ended);
+		}
+
+		/**
+		 * @return Weight of the introns strictly inside [start, end), the reads with blocks on both sides of them
+		 */
+		double getIntronWeight(int start, int end) {
+			int low = 0;
+			int high = numIntrons;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(introns.getInt(mid, 0) <= start) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			double rtrn = 0;
+			for(int i=low; i<numIntrons && introns.getInt(i, 0) < end; i++) {
+				if(introns.getInt(i, 4) < end) {
+					rtrn += introns.getDouble(i, 8);
+				}
+			}
+			return rtrn;
+		}
+
+		/**
+		 * Add the covered stretches of [start, end) to rtrn
+		 */
+		void addCoveredIntervals(int start, int end, List<int[]> rtrn) {
+			double[] totals = new double[3];
+			getTotals(start, totals);
+			double depth = totals[0] - totals[1];
+			int from = depth > EPSILON ? start : -1;
+			for(int i=getNumEventsUpTo(start); i<numEvents; i++) {
+				int position = events.getInt(i, 0);
+				if(position >= end) {
+					break;
+				}
+				depth += events.getDouble(i, 4) - events.getDouble(i, 12);
+				if(depth > EPSILON && from < 0) {
+					from = position;
+				} else if(depth <= EPSILON && from >= 0) {
+					rtrn.add(new int[] {from, position});
+					from = -1;
+				}
+			}
+			if(from >= 0) {
+				rtrn.add(new int[] {from, end});
+			}
+		}
+	}
+
+	/**
+	 * Fixed size records, mapped in segments the first time they are used
+	 */
+	private class Section {
+		private final long offset;
+		private final int size;
+		private final int recordBytes;
+		private final MappedByteBuffer[] segments;
+
+		Section(long offset, int size, int recordBytes) {
+			this.offset = offset;
+			this.size = size;
+			this.recordBytes = recordBytes;
+			this.segments = new MappedByteBuffer[size / SEGMENT_RECORDS + 1];
+		}
+
+		int getInt(int record, int field) {
+			return getSegment(record / SEGMENT_RECORDS).getInt((record % SEGMENT_RECORDS) * recordBytes + field);
+		}
+
+		double getDouble(int record, int field) {
+			return getSegment(record / SEGMENT_RECORDS).getDouble((record % SEGMENT_RECORDS) * recordBytes + field);
+		}
+
+		private synchronized MappedByteBuffer getSegment(int i) {
+			if(segments[i] == null) {
+				long first = (long) i * SEGMENT_RECORDS;
+				long records = Math.min(SEGMENT_RECORDS, size - first);
+				try {
+					segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first * recordBytes, records * recordBytes);
+				} catch(IOException e) {
+					throw new RuntimeIOException(e.getMessage());
+				}
+			}
+			return segments[i];
+		}
+	}
+}
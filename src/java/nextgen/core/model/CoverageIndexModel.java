@@ -0,0 +1,196 @@
+package nextgen.core.model;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.collections15.Predicate;
+
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.AbstractAnnotationCollection;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.coordinatesystem.CoordinateSpace;
+import nextgen.core.coordinatesystem.GenomicSpace;
+
+/**
+ * Annotation collection that answers counts and coverage of an AlignmentModel from its CoverageIndex instead of the BAM file
+ * Can stand in for the model in a GenomicSpace, e.g. scanning windows, each window costs a few lookups in the mapped index
+ *
+ * Counts match AlignmentModel.getCount(region, false): reads are weighted by 1/NH and a spliced read counts only if one of its blocks overlaps the region
+ * Fully contained counts and the reads themselves are not in the index and come from the model
+ */
+public class CoverageIndexModel extends AbstractAnnotationCollection<Alignment> {
+
+	private final AlignmentModel model;
+	private final boolean stranded;
+	private CoverageIndex index;
+
+	/**
+	 * Use the index of the model's BAM file, building it if needed
+	 * @param model Alignment model in a GenomicSpace
+	 */
+	public CoverageIndexModel(AlignmentModel model) {
+		if(!(model.getCoordinateSpace() instanceof GenomicSpace)) {
+			throw new IllegalArgumentException("Coverage index counts are only defined in a GenomicSpace");
+		}
+		this.model = model;
+		this.stranded = !TranscriptionRead.UNSTRANDED.equals(model.getStrand());
+		this.index = CoverageIndex.getOrBuild(model);
+	}
+
+	public CoverageIndex getIndex() {
+		return index;
+	}
+
+	public AlignmentModel getModel() {
+		return model;
+	}
+
+	@Override
+	public int size() {
+		return (int) index.getReadCount();
+	}
+
+	@Override
+	public double getGlobalCount() {
+		double rtrn = 0;
+		for(String chr : getCoordinateSpace().getReferenceNames()) {
+			if(index.containsReference(chr)) {
+				rtrn += index.getReadWeight(chr);
+			}
+		}
+		return rtrn;
+	}
+
+	@Override
+	public double getRefSequenceLambda(String refname) {
+		if(!index.containsReference(refname)) return 0.0;
+		return index.getReadWeight(refname) / getCoordinateSpace().getLength(refname);
+	}
+
+	@Override
+	public double getCount(Annotation region, boolean fullyContained) {
+		if(fullyContained) {
+			return model.getCount(region, true);
+		}
+		if(!index.containsReference(region.getChr())) return 0;
+		return index.getOverlapCount(region.getChr(), region.getStart(), region.getEnd(), getStrand(region));
+	}
+
+	@Override
+	public double getCountExcludingRegion(Annotation region, Annotation excluded) {
+		if(!isAdjacent(region, excluded)) {
+			return model.getCountExcludingRegion(region, excluded);
+		}
+		return getCountExcluding(region, excluded, Strand.UNKNOWN);
+	}
+
+	@Override
+	public double getCountStrandedExcludingRegion(Annotation region, Annotation excluded) {
+		if(!isAdjacent(region, excluded)) {
+			return model.getCountStrandedExcludingRegion(region, excluded);
+		}
+		return getCountExcluding(region, excluded, getStrand(region));
+	}
+
+	/**
+	 * Whether the regions overlap or touch, so they make a single interval
+	 */
+	private static boolean isAdjacent(Annotation region, Annotation excluded) {
+		return region.getChr().equals(excluded.getChr()) && excluded.getStart() <= region.getEnd() && region.getStart() <= excluded.getEnd();
+	}
+
+	/**
+	 * Reads overlapping region but not excluded, the reads overlapping both follow from counting over the single interval they make
+	 */
+	private double getCountExcluding(Annotation region, Annotation excluded, Strand strand) {
+		String chr = region.getChr();
+		if(!index.containsReference(chr)) return 0;
+		int spanStart = Math.min(region.getStart(), excluded.getStart());
+		int spanEnd = Math.max(region.getEnd(), excluded.getEnd());
+		return index.getOverlapCount(chr, spanStart, spanEnd, strand) - index.getOverlapCount(chr, excluded.getStart(), excluded.getEnd(), strand);
+	}
+
+	@Override
+	public double getTotalCoverage(Annotation region) {
+		if(!index.containsReference(region.getChr())) return 0;
+		return index.getCoverage(region.getChr(), region.getStart(), region.getEnd(), getStrand(region));
+	}
+
+	@Override
+	public int getBasesCovered(Annotation region, boolean fullyContained) {
+		Annotation collapsed = collapse(region, fullyContained);
+		return collapsed == null ? 0 : collapsed.getSize();
+	}
+
+	/**
+	 * @return The covered bases of the region as blocks, or null if no base is covered
+	 */
+	@Override
+	public Annotation collapse(Annotation region, boolean fullyContained) {
+		if(fullyContained) {
+			return model.collapse(region, true);
+		}
+		if(!index.containsReference(region.getChr())) return null;
+		List<Annotation> blocks = index.getCoveredBlocks(region.getChr(), region.getStart(), region.getEnd(), getStrand(region));
+		if(blocks.isEmpty()) return null;
+		return new BasicAnnotation(blocks);
+	}
+
+	@Override
+	public CloseableIterator<Alignment> getOverlappingAnnotations(Annotation region, boolean fullyContained) {
+		return model.getOverlappingAnnotations(region, fullyContained);
+	}
+
+	@Override
+	public CloseableIterator<Alignment> iterator() {
+		return model.iterator();
+	}
+
+	@Override
+	public CloseableIterator<Alignment> getPermutedAnnotations(Annotation region) {
+		return model.getPermutedAnnotations(region);
+	}
+
+	/**
+	 * Add the filter to the model and rebuild the index with it
+	 */
+	@Override
+	public void addFilter(Predicate<Alignment> filter) {
+		model.addFilter(filter);
+		reopen();
+	}
+
+	/**
+	 * Add the filters to the model and rebuild the index with them
+	 */
+	@Override
+	public void addFilters(Collection<Predicate<Alignment>> filters) {
+		model.addFilters(filters);
+		reopen();
+	}
+
+	private void reopen() {
+		index.close();
+		index = CoverageIndex.getOrBuild(model);
+	}
+
+	@Override
+	public CoordinateSpace getCoordinateSpace() {
+		return model.getCoordinateSpace();
+	}
+
+	/**
+	 * Release the index file
+	 */
+	public void close() {
+		index.close();
+	}
+
+	private Strand getStrand(Annotation region) {
+		return stranded ? region.getOrientation() : Strand.UNKNOWN;
+	}
+}
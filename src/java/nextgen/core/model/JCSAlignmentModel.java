@@ -3,18 +3,20 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
 import broad.core.datastructures.IntervalTree;
 import broad.core.datastructures.IntervalTree.Node;
-import broad.core.datastructures.JCSCache;
 //import broad.core.datastructures.CachedIntervalTree.Node;
 import broad.core.math.EmpiricalDistribution;
 import broad.core.math.Statistics;
@@ -24,6 +26,7 @@ import broad.pda.annotation.BEDFileParser;
 import broad.pda.datastructures.Alignments;
 
 import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
 import net.sf.samtools.util.CloseableIterator;
 import nextgen.core.alignment.Alignment;
 import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
@@ -65,14 +68,15 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	String bamFile;
 	//boolean hasSize=false;
 	int size;
-	Collection<Predicate<Alignment>> readFilters = new ArrayList<Predicate<Alignment>>();
+	// Read by the prefetch thread while the filters may change
+	Collection<Predicate<Alignment>> readFilters = new CopyOnWriteArrayList<Predicate<Alignment>>();
 	private double globalLength = -99;
 	private double globalCount = -99;
 	private double globalCountReferenceSeqs = -99;
 	private double globalLambda = -99;
 //	private double globalPairedFragments = -99;
 	//private double globalRpkmConstant = -99;
-	private JCSCache cache;
+	private RegionSlabCache cache;
 	int cacheSize=500000;
 	private boolean hasGlobalStats = false;
 	private SortedMap<String, Double> refSequenceCounts=new TreeMap<String, Double>();
@@ -161,8 +165,9 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		// Set the coordinate space
 		this.coordinateSpace=coordinateSpace;
 		
-		// Initialize the cache
-		this.cache=new JCSCache(this.reader,this.cacheSize,this);
+		// Initialize the cache, prefetching reads through a second reader of the same file
+		this.cache=new RegionSlabCache(new SlabLoader(this.reader), new SlabLoader(new File(this.bamFile), transcriptionRead, fragment), this.cacheSize, RegionSlabCache.DEFAULT_MAX_BYTES);
+		this.cache.setReferenceLengths(reader.getRefSequenceLengths());
 		
 		// Initialize the readFilters
 		this.readFilters.addAll(readFilters);
@@ -321,11 +326,11 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 
 
 	public CloseableIterator<Alignment> getReadIterator() {
-		return new UnpackingIterator(cache.getReads());
+		return new UnpackingIterator(getReads());
 	}
 		
 	public CloseableIterator<Alignment> getReadIterator(Annotation region) {
-		return new UnpackingIterator(cache.getReads(region, false));
+		return new UnpackingIterator(getReads(region, false));
 	}
 
 	/**
@@ -403,7 +408,7 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	 * @return
 	 */
 	public double getCount() {
-		CloseableIterator<AlignmentCount> iter=this.cache.getReads();
+		CloseableIterator<AlignmentCount> iter=getReads();
 		double rtrn = getCount(iter);
 		iter.close();
 		return rtrn;
@@ -569,12 +574,12 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	public CloseableIterator<AlignmentCount> getOverlappingReadCounts(Annotation region, boolean fullyContained) {
 		//get Alignments over the whole region
 		if(strand.equals(TranscriptionRead.UNSTRANDED)){
-			return this.cache.query(region, fullyContained, this.coordinateSpace);
+			return query(region, fullyContained);
 		}
 		else{
 			//get Alignments over the whole region
 			Predicate<Alignment> filter=new SameOrientationFilter(region);
-			return new WrapAlignmentCountIterator(new CloseableFilterIterator<Alignment>(new UnpackingIterator(this.cache.query(region, fullyContained, this.coordinateSpace)), filter));
+			return new WrapAlignmentCountIterator(new CloseableFilterIterator<Alignment>(new UnpackingIterator(query(region, fullyContained)), filter));
 		}		
 	}
 	
@@ -584,7 +589,7 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	public CloseableIterator<Alignment> getOverlappingSplicedReads(Annotation region, boolean fullyContained) {
 		//get Alignments over the whole region
 		Predicate<Alignment> filter=new SplicedReadFilter();
-		return new CloseableFilterIterator<Alignment>(new UnpackingIterator(this.cache.query(region, fullyContained, this.coordinateSpace)), filter);
+		return new CloseableFilterIterator<Alignment>(new UnpackingIterator(query(region, fullyContained)), filter);
 	}
 
 	/**
@@ -604,7 +609,7 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	private CloseableIterator<AlignmentCount> getOverlappingReadCounts(String chr) {
 		//get Alignments over the whole region
 		Annotation region=coordinateSpace.getReferenceAnnotation(chr);
-		return this.cache.query(region, false, this.coordinateSpace);
+		return query(region, false);
 	}
 	
 	@Override
@@ -918,13 +923,181 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		}
 		public Alignment next() {
 			Alignment next = itr.next();
-			Annotation perm=coordinateSpace.permuteAnnotation(next, region);
+			Annotation perm=coordinateSpace.permuteAnnotation(next, region, random);
 			next.moveToCoordinate(perm.getStart());
 			return next;
 		}
 	}
 	
 	
+	/**
+	 * Reads overlapping the window, from the cached regions unless the window is larger than the cache size
+	 * or lies in a region with too many reads to cache
+	 */
+	private FilteredIterator query(Annotation window, boolean fullyContained) {
+		ReadSlab slab=null;
+		if(window.getSize()<=this.cacheSize){
+			slab=this.cache.get(window.getReferenceName(), window.getStart(), window.getEnd(), fullyContained);
+		}
+		CloseableIterator<AlignmentCount> iter;
+		if(slab==null){
+			iter=getReads(window, fullyContained);
+		}
+		else{
+			iter=new SlabIterator(slab, window.getStart(), window.getEnd());
+		}
+		return new FilteredIterator(iter, window, this.coordinateSpace, fullyContained);
+	}
+	
+	private CloseableIterator<AlignmentCount> getReads(Annotation w, boolean fullyContained){
+		return new WrapAlignmentCountIterator(this.reader.query(w, fullyContained));
+	}
+	
+	private CloseableIterator<AlignmentCount> getReads(){
+		return new FilteredIterator(new WrapAlignmentCountIterator(reader.iterator()));
+	}
+	
+	/**
+	 * @param maxBytes Bound on the bytes of the cached regions held outside the heap
+	 */
+	public void setCacheMaxBytes(long maxBytes) {
+		this.cache.setMaxBytes(maxBytes);
+	}
+	
+	/**
+	 * Load the next regions in the background when the queries move left to right along a chromosome
+	 * @param numRegions Number of regions to load ahead, 0 turns prefetching off
+	 */
+	public void setPrefetchRegions(int numRegions) {
+		this.cache.setPrefetchDepth(numRegions);
+	}
+	
+	/**
+	 * @return The region cache, for its hit and miss counts
+	 */
+	public RegionSlabCache getCache() {
+		return this.cache;
+	}
+	
+	/**
+	 * Drop the cached regions, turn prefetching off, stop the prefetch thread and close its reader
+	 * The model can still be queried and caches regions again as it is used
+	 */
+	public void closeCache() {
+		this.cache.setPrefetchDepth(0);
+		this.cache.close();
+	}
+	
+	/**
+	 * Iterates over the reads of a cached region that overlap a window
+	 * Reads with identical start and end are grouped into one AlignmentCount, as the nodes of an IntervalTree are
+	 */
+	private class SlabIterator implements CloseableIterator<AlignmentCount>{
+		ReadSlab slab;
+		int start;
+		int end;
+		int next;
+
+		SlabIterator (ReadSlab slab, int start, int end) {
+			this.slab=slab;
+			this.start=start;
+			this.end=end;
+			this.next=slab.firstOverlapper(start, end);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next<slab.size();
+		}
+
+		@Override
+		public AlignmentCount next() {
+			if(!hasNext()){throw new NoSuchElementException();}
+			int groupStart=slab.getStart(next);
+			int groupEnd=slab.getEnd(next);
+			Alignment read=null;
+			Collection<Alignment> containedReads=new HashSet<Alignment>();
+			int i=next;
+			for(; i<slab.size() && slab.getStart(i)==groupStart && slab.getEnd(i)==groupEnd; i++){
+				Alignment alignment=slab.getAlignment(i, reader);
+				if(read==null){read=alignment;}
+				containedReads.add(alignment);
+			}
+			next=slab.nextOverlapper(i, start, end);
+			return new AlignmentCount(read, containedReads);
+		}
+
+		@Override
+		public void remove() {}
+
+		@Override
+		public void close() {}
+	}
+	
+	/**
+	 * Loads the valid reads of a region into a slab with a reader that only this loader uses
+	 * A loader given the model's reader leaves it open, one opening its own reader closes it in close()
+	 */
+	private class SlabLoader implements RegionSlabCache.Loader {
+		PairedEndReader slabReader;
+		File file;
+		TranscriptionRead transcriptionRead;
+		boolean fragment;
+		
+		SlabLoader(PairedEndReader reader) {
+			this.slabReader=reader;
+		}
+		
+		/**
+		 * Opens its own reader of the file on first use
+		 */
+		SlabLoader(File file, TranscriptionRead transcriptionRead, boolean fragment) {
+			this.file=file;
+			this.transcriptionRead=transcriptionRead;
+			this.fragment=fragment;
+		}
+
+		@Override
+		public ReadSlab load(String chr, int start, int end, boolean fullyContained, long maxBytes) {
+			if(slabReader==null){
+				slabReader=new PairedEndReader(file, transcriptionRead, fragment);
+			}
+			CompactReadStore store=new CompactReadStore(slabReader.getHeader());
+			CloseableIterator<SAMRecord> iter=slabReader.queryRecords(new GenomeWindow(chr, start, end), fullyContained);
+			try {
+				while(iter.hasNext()){
+					SAMRecord samRecord=iter.next();
+					//Encode before converting since the conversion modifies the record
+					store.stage(samRecord);
+					Alignment record=slabReader.toAlignment(samRecord);
+					if(isValid(record)){
+						store.commit(record.getAlignmentStart(), record.getAlignmentEnd());
+						if(store.getSizeInBytes()>maxBytes){
+							return null;
+						}
+					}
+				}
+			} finally {
+				iter.close();
+			}
+			store.seal();
+			return new ReadSlab(store.toDirectBuffer(), slabReader.getHeader());
+		}
+
+		@Override
+		public void close() {
+			if(file==null || slabReader==null){
+				return;
+			}
+			try {
+				slabReader.close();
+			} catch (IOException e) {
+				logger.warn("Could not close reader of " + file + ": " + e.getMessage());
+			}
+			slabReader=null;
+		}
+	}
+	
 	private class Cache{
 		String cacheChr = null;
 		int cacheStart = 0;
@@ -1167,6 +1340,8 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	@Override
 	public void addFilter(Predicate<Alignment> filter) {
 		this.readFilters.add(filter);
+		// Cached regions only hold reads that passed the old filters
+		this.cache.clear();
 	}
 	
 	@Override
@@ -1315,6 +1490,7 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	 */
 	public void removeFilter(Predicate<Alignment> readFilter) {
 		readFilters.remove(readFilter);
+		this.cache.clear();
 	}
 
 
@@ -0,0 +1,156 @@
+package nextgen.core.model;
+
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.readers.PairedEndReader;
+
+/**
+ * Read only view of a sealed CompactReadStore copied into a direct buffer outside the Java heap
+ * The layout is written by CompactReadStore.toDirectBuffer(): the number of records, then the starts, ends,
+ * running maximum ends and pool offsets as ints, then the BAM encoded records
+ * Overlap queries follow CompactReadStore, and alignments are decoded once per slab as in CompactReadStore.getAlignment()
+ */
+public class ReadSlab {
+
+	private final ByteBuffer buffer;
+	private final BAMRecordCodec codec;
+	private final int size;
+	private final int startsBase;
+	private final int endsBase;
+	private final int maxEndsBase;
+	private final int offsetsBase;
+	private final int recordsBase;
+	// Alignments decoded so far, released by the garbage collector when memory runs low
+	private SoftReference<Alignment[]> alignments;
+
+	/**
+	 * @param buffer Buffer returned by CompactReadStore.toDirectBuffer()
+	 * @param header The header of the file the records come from
+	 */
+	public ReadSlab(ByteBuffer buffer, SAMFileHeader header) {
+		this.buffer = buffer;
+		this.codec = new BAMRecordCodec(header);
+		this.size = buffer.getInt(0);
+		this.startsBase = 4;
+		this.endsBase = startsBase + 4 * size;
+		this.maxEndsBase = endsBase + 4 * size;
+		this.offsetsBase = maxEndsBase + 4 * size;
+		this.recordsBase = offsetsBase + 4 * size;
+	}
+
+	/**
+	 * @param start Query start
+	 * @param end Query end
+	 * @return The index of the first record overlapping [start, end) or size() if there is none
+	 */
+	public int firstOverlapper(int start, int end) {
+		int lo = 0;
+		int hi = size;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(buffer.getInt(maxEndsBase + 4 * mid) > start) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return nextOverlapper(lo, start, end);
+	}
+
+	/**
+	 * @param from Index to start looking from
+	 * @param start Query start
+	 * @param end Query end
+	 * @return The index of the first record at or after from that overlaps [start, end) or size() if there is none
+	 */
+	public int nextOverlapper(int from, int start, int end) {
+		for(int i=from; i<size && getStart(i) < end; i++) {
+			if(start < getEnd(i)) {
+				return i;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Not safe to call from several threads at once
+	 * @param i Record index
+	 * @return A fresh SAMRecord decoded from the buffer
+	 */
+	public SAMRecord getRecord(int i) {
+		ByteBuffer record = buffer.duplicate();
+		record.position(recordsBase + buffer.getInt(offsetsBase + 4 * i));
+		codec.setInputStream(new ByteBufferInputStream(record));
+		return codec.decode();
+	}
+
+	/**
+	 * The alignment is decoded on the first call and the same object is returned afterwards
+	 * Not safe to call from several threads at once
+	 * @param i Record index
+	 * @param reader Reader the records were read with, the same one for every call
+	 * @return The alignment of the record
+	 */
+	public Alignment getAlignment(int i, PairedEndReader reader) {
+		Alignment[] decoded = alignments == null ? null : alignments.get();
+		if(decoded == null) {
+			decoded = new Alignment[size];
+			alignments = new SoftReference<Alignment[]>(decoded);
+		}
+		if(decoded[i] == null) {
+			decoded[i] = reader.toAlignment(getRecord(i));
+		}
+		return decoded[i];
+	}
+
+	public int getStart(int i) {
+		return buffer.getInt(startsBase + 4 * i);
+	}
+
+	public int getEnd(int i) {
+		return buffer.getInt(endsBase + 4 * i);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Number of bytes held outside the heap
+	 */
+	public long getSizeInBytes() {
+		return buffer.capacity();
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(len == 0) {
+				return 0;
+			}
+			if(!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+	}
+}
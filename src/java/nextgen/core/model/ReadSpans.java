@@ -0,0 +1,250 @@
+package nextgen.core.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.AnnotationCollection;
+import nextgen.core.annotation.AnnotationCounts;
+import nextgen.core.coordinatesystem.CoordinateSpace;
+import nextgen.core.coordinatesystem.GenomicSpace;
+
+/**
+ * Counts over the spans of reads, kept per chromosome in primitive arrays
+ * Loaded once from a model, it stands in for it wherever only counts are needed, e.g. the RatioScore.Processor of each permutation,
+ * and permute() shuffles the reads in memory instead of writing them to a new file
+ *
+ * Counts are the total weight of the reads whose span overlaps the region, found by bisection of the sorted starts and ends.
+ * They match AlignmentModel.getCount(region) except for spliced or paired reads whose gap contains the whole region
+ */
+public class ReadSpans implements AnnotationCounts {
+
+	private final CoordinateSpace coordinateSpace;
+	private final Map<String, Chromosome> chromosomes;
+	private final int size;
+	private final double globalCount;
+
+	private ReadSpans(CoordinateSpace coordinateSpace, Map<String, Chromosome> chromosomes) {
+		this.coordinateSpace = coordinateSpace;
+		this.chromosomes = chromosomes;
+		int n = 0;
+		double total = 0;
+		for(Chromosome chromosome : chromosomes.values()) {
+			n += chromosome.starts.length;
+			total += chromosome.getTotal();
+		}
+		this.size = n;
+		this.globalCount = total;
+	}
+
+	/**
+	 * Read the spans and weights of the reads of the model in the regions
+	 * @param model Reads, with the model's filters applied
+	 * @param regions Regions to load, which should not overlap
+	 * @param fullyContained Only load reads fully contained in a region
+	 * @return The read spans, in the coordinate space of the model
+	 */
+	public static ReadSpans load(AnnotationCollection<? extends Annotation> model, Collection<? extends Annotation> regions, boolean fullyContained) {
+		Map<String, Builder> builders = new TreeMap<String, Builder>();
+		for(Annotation region : regions) {
+			Builder builder = builders.get(region.getChr());
+			if(builder == null) {
+				builder = new Builder();
+				builders.put(region.getChr(), builder);
+			}
+			CloseableIterator<? extends Annotation> itr = model.getOverlappingAnnotations(region, fullyContained);
+			while(itr.hasNext()) {
+				Annotation read = itr.next();
+				builder.add(read.getStart(), read.getEnd() - read.getStart(), read instanceof Alignment ? (float) ((Alignment) read).getWeight() : 1);
+			}
+			itr.close();
+		}
+		Map<String, Chromosome> chromosomes = new TreeMap<String, Chromosome>();
+		for(String chr : builders.keySet()) {
+			chromosomes.put(chr, builders.get(chr).build());
+		}
+		return new ReadSpans(model.getCoordinateSpace(), chromosomes);
+	}
+
+	/**
+	 * Move every read to a position drawn uniformly among those within the bounds of its chromosome where it overlaps no masked base,
+	 * as GenomicSpace.permuteAnnotation does when no masked bases are allowed
+	 * Reads that fit nowhere in the unmasked bases of the bounds are not moved
+	 * @param space Genomic space whose masked bases the reads are moved away from
+	 * @param bounds Region to permute the reads of each chromosome within, reads of chromosomes without bounds are not moved
+	 * @param random Random generator
+	 * @return The permuted reads, with the same weights
+	 */
+	public ReadSpans permute(GenomicSpace space, Map<String, ? extends Annotation> bounds, Random random) {
+		Map<String, Chromosome> permuted = new TreeMap<String, Chromosome>();
+		for(String chr : chromosomes.keySet()) {
+			Chromosome chromosome = chromosomes.get(chr);
+			Annotation region = bounds.get(chr);
+			if(region == null) {
+				permuted.put(chr, chromosome);
+				continue;
+			}
+			int[] starts = new int[chromosome.starts.length];
+			for(int i = 0; i < starts.length; i++) {
+				int newStart = space.getRandomUnmaskedStart(region, chromosome.lengths[i], random);
+				starts[i] = newStart < 0 ? chromosome.starts[i] : newStart;
+			}
+			permuted.put(chr, new Chromosome(starts, chromosome.lengths, chromosome.weights));
+		}
+		return new ReadSpans(coordinateSpace, permuted);
+	}
+
+	/**
+	 * @return Number of reads
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public double getGlobalCount() {
+		return globalCount;
+	}
+
+	/**
+	 * @param refname Reference name
+	 * @return Total weight of the reads on the chromosome per base of the chromosome
+	 */
+	public double getRefSequenceLambda(String refname) {
+		Chromosome chromosome = chromosomes.get(refname);
+		if(chromosome == null) return 0.0;
+		return chromosome.getTotal() / coordinateSpace.getLength(refname);
+	}
+
+	@Override
+	public double getCount(Annotation region) {
+		Chromosome chromosome = chromosomes.get(region.getChr());
+		if(chromosome == null) return 0;
+		return chromosome.count(region.getStart(), region.getEnd());
+	}
+
+	/**
+	 * @return The coordinate space of the model the reads were loaded from
+	 */
+	public CoordinateSpace getCoordinateSpace() {
+		return coordinateSpace;
+	}
+
+	/**
+	 * Reads of one chromosome
+	 * The reads are kept in load order to be permuted, and their starts and ends sorted separately to be counted:
+	 * the reads overlapping [start, end) are those that start before end minus those that end at or before start
+	 */
+	private static final class Chromosome {
+		private final int[] starts;
+		private final int[] lengths;
+		private final float[] weights; // null if all reads have weight 1
+		private final int[] sortedStarts;
+		private final int[] sortedEnds;
+		// Total weight of the first i sorted starts and ends, null if all reads have weight 1
+		private final double[] startWeights;
+		private final double[] endWeights;
+
+		Chromosome(int[] starts, int[] lengths, float[] weights) {
+			this.starts = starts;
+			this.lengths = lengths;
+			this.weights = weights;
+			int n = starts.length;
+			if(weights == null) {
+				sortedStarts = Arrays.copyOf(starts, n);
+				sortedEnds = new int[n];
+				for(int i = 0; i < n; i++) {
+					sortedEnds[i] = starts[i] + lengths[i];
+				}
+				Arrays.sort(sortedStarts);
+				Arrays.sort(sortedEnds);
+				startWeights = null;
+				endWeights = null;
+			} else {
+				sortedStarts = new int[n];
+				sortedEnds = new int[n];
+				startWeights = new double[n + 1];
+				endWeights = new double[n + 1];
+				sortWeighted(starts, null, sortedStarts, startWeights);
+				sortWeighted(starts, lengths, sortedEnds, endWeights);
+			}
+		}
+
+		/**
+		 * Sort positions along with the weights of their reads, as keys of position and read index
+		 */
+		private void sortWeighted(int[] starts, int[] lengths, int[] sorted, double[] prefix) {
+			long[] keys = new long[starts.length];
+			for(int i = 0; i < keys.length; i++) {
+				int position = lengths == null ? starts[i] : starts[i] + lengths[i];
+				keys[i] = ((long) position << 32) | i;
+			}
+			Arrays.sort(keys);
+			for(int i = 0; i < keys.length; i++) {
+				sorted[i] = (int) (keys[i] >> 32);
+				prefix[i + 1] = prefix[i] + weights[(int) keys[i]];
+			}
+		}
+
+		double count(int start, int end) {
+			int started = lowerBound(sortedStarts, end);
+			int ended = lowerBound(sortedEnds, start + 1);
+			if(startWeights == null) {
+				return started - ended;
+			}
+			return startWeights[started] - endWeights[ended];
+		}
+
+		double getTotal() {
+			return startWeights == null ? starts.length : startWeights[starts.length];
+		}
+
+		/**
+		 * @return Number of values less than key
+		 */
+		private static int lowerBound(int[] values, int key) {
+			int low = 0;
+			int high = values.length;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(values[mid] < key) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	private static final class Builder {
+		private int size;
+		private int[] starts = new int[1024];
+		private int[] lengths = new int[1024];
+		private float[] weights = new float[1024];
+		private boolean weighted;
+
+		void add(int start, int length, float weight) {
+			if(size == starts.length) {
+				starts = Arrays.copyOf(starts, 2 * size);
+				lengths = Arrays.copyOf(lengths, 2 * size);
+				weights = Arrays.copyOf(weights, 2 * size);
+			}
+			starts[size] = start;
+			lengths[size] = length;
+			weights[size] = weight;
+			weighted |= weight != 1;
+			size++;
+		}
+
+		Chromosome build() {
+			return new Chromosome(Arrays.copyOf(starts, size), Arrays.copyOf(lengths, size), weighted ? Arrays.copyOf(weights, size) : null);
+		}
+	}
+
+}
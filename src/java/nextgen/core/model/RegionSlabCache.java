@@ -0,0 +1,463 @@
+package nextgen.core.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the reads of recently used regions in ReadSlabs outside the Java heap
+ * Regions are evicted least recently used first once the slabs hold more than maxBytes
+ * A miss loads a region of regionSize starting at the requested window, or ending at it when the queries move backwards
+ * With a prefetch depth above zero, a forward miss or the first hit on a prefetched region also loads the following regions
+ * on a background thread, so a left to right walk over a chromosome finds them ready
+ * Prefetched regions stop at the end of the reference when its length is known
+ */
+public class RegionSlabCache {
+
+	static Logger logger = Logger.getLogger(RegionSlabCache.class.getName());
+
+	/** Default bound on the bytes held by the slabs */
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Loads the reads of a region into a slab
+	 */
+	public interface Loader {
+		/**
+		 * @param chr Reference name
+		 * @param start Region start
+		 * @param end Region end
+		 * @param fullyContained Whether to keep only reads fully contained in the region
+		 * @param maxBytes Give up on regions needing more bytes than this
+		 * @return The slab or null if the region needs more than maxBytes
+		 */
+		public ReadSlab load(String chr, int start, int end, boolean fullyContained, long maxBytes);
+
+		/**
+		 * Release the readers the loader opened, it may be used again afterwards
+		 */
+		public void close();
+	}
+
+	private final Loader loader;
+	private final Loader prefetchLoader;
+	private final int regionSize;
+	private long maxBytes;
+	private int prefetchDepth;
+	private ExecutorService prefetcher;
+	private Map<String, Integer> referenceLengths = new HashMap<String, Integer>();
+
+	private final LinkedHashMap<Region, Entry> slabs = new LinkedHashMap<Region, Entry>(16, 0.75f, true);
+	private final Map<Region, Future<Entry>> pending = new HashMap<Region, Future<Entry>>();
+	private final Map<String, List<Region>> troubleRegions = new HashMap<String, List<Region>>();
+	private Region lastMiss;
+	private long bytes;
+	private int generation;
+
+	private long hits;
+	private long misses;
+	private long prefetchHits;
+	private long prefetches;
+	private long evictions;
+
+	/**
+	 * @param loader Loads regions on the calling thread
+	 * @param prefetchLoader Loads regions on the prefetch thread, must not share a reader with loader
+	 * @param regionSize Size of the regions loaded on a miss
+	 * @param maxBytes Bound on the bytes held by the slabs
+	 */
+	public RegionSlabCache(Loader loader, Loader prefetchLoader, int regionSize, long maxBytes) {
+		this.loader = loader;
+		this.prefetchLoader = prefetchLoader;
+		this.regionSize = regionSize;
+		setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * @param maxBytes Bound on the bytes held by the slabs
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		if(maxBytes < 1) {
+			throw new IllegalArgumentException("Maximum bytes must be positive: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+		evict(null);
+	}
+
+	/**
+	 * @param prefetchDepth Number of regions to load ahead of a forward miss, 0 turns prefetching off
+	 */
+	public synchronized void setPrefetchDepth(int prefetchDepth) {
+		if(prefetchDepth < 0) {
+			throw new IllegalArgumentException("Prefetch depth cannot be negative: " + prefetchDepth);
+		}
+		if(prefetchDepth > 0 && prefetchLoader == null) {
+			throw new IllegalStateException("Cache was built without a prefetch loader");
+		}
+		this.prefetchDepth = prefetchDepth;
+	}
+
+	/**
+	 * @param referenceLengths Length of each reference, prefetched regions are clipped to it
+	 */
+	public synchronized void setReferenceLengths(Map<String, Integer> referenceLengths) {
+		this.referenceLengths = new HashMap<String, Integer>(referenceLengths);
+	}
+
+	/**
+	 * Get the slab of a cached region containing the window, loading one if there is none
+	 * @param chr Reference name
+	 * @param start Window start
+	 * @param end Window end
+	 * @param fullyContained Whether the slab should hold only reads fully contained in its region
+	 * @return The slab or null if the region is too large to cache and the window should be read from the file
+	 */
+	public ReadSlab get(String chr, int start, int end, boolean fullyContained) {
+		Future<Entry> future = null;
+		Region region;
+		synchronized(this) {
+			Entry entry = find(chr, start, end, fullyContained);
+			if(entry != null) {
+				hits++;
+				if(entry.prefetched) {
+					prefetchHits++;
+					entry.prefetched = false;
+					// Keep the walk ahead of the queries
+					prefetchAfter(entry.region);
+				}
+				return entry.slab;
+			}
+			if(isTroubleRegion(chr, start, end)) {
+				return null;
+			}
+			for(Region key : pending.keySet()) {
+				if(key.contains(chr, start, end, fullyContained)) {
+					future = pending.get(key);
+					break;
+				}
+			}
+			region = nextRegion(chr, start, end, fullyContained);
+			if(future == null) {
+				misses++;
+				boolean forward = lastMiss == null || !lastMiss.chr.equals(chr) || lastMiss.start <= region.start;
+				lastMiss = region;
+				if(forward) {
+					prefetchAfter(region);
+				}
+			}
+		}
+		if(future != null) {
+			Entry prefetched = await(future);
+			synchronized(this) {
+				if(prefetched != null && slabs.containsKey(prefetched.region)) {
+					// Count as a hit on a prefetched region
+					hits++;
+					prefetchHits++;
+					prefetched.prefetched = false;
+					slabs.get(prefetched.region);
+					prefetchAfter(prefetched.region);
+					return prefetched.slab;
+				}
+				misses++;
+			}
+		}
+		ReadSlab slab = loader.load(chr, region.start, region.end, fullyContained, maxBytes);
+		synchronized(this) {
+			if(slab == null) {
+				addTroubleRegion(region);
+				return null;
+			}
+			put(new Entry(region, slab, false));
+		}
+		return slab;
+	}
+
+	/**
+	 * Drop all slabs, for example when the read filters change
+	 * Regions being prefetched are discarded when they complete
+	 */
+	public synchronized void clear() {
+		generation++;
+		for(Future<Entry> future : pending.values()) {
+			future.cancel(false);
+		}
+		pending.clear();
+		slabs.clear();
+		troubleRegions.clear();
+		lastMiss = null;
+		bytes = 0;
+	}
+
+	/**
+	 * Drop all slabs, stop the prefetch thread and close the readers of the loaders
+	 * The cache can still be used and the loaders open their readers again
+	 */
+	public void close() {
+		ExecutorService stopped;
+		synchronized(this) {
+			clear();
+			stopped = prefetcher;
+			prefetcher = null;
+		}
+		if(stopped != null) {
+			// Wait outside the lock, a running prefetch needs it to finish
+			stopped.shutdownNow();
+			try {
+				stopped.awaitTermination(60, TimeUnit.SECONDS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		loader.close();
+		if(prefetchLoader != null) {
+			prefetchLoader.close();
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return Number of hits on regions loaded by the prefetch thread, counted once per region
+	 */
+	public synchronized long getPrefetchHits() {
+		return prefetchHits;
+	}
+
+	/**
+	 * @return Number of regions submitted to the prefetch thread
+	 */
+	public synchronized long getPrefetches() {
+		return prefetches;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return Bytes held by the cached slabs
+	 */
+	public synchronized long getSizeInBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return Number of cached regions
+	 */
+	public synchronized int getNumRegions() {
+		return slabs.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		long queries = hits + misses;
+		double hitRate = queries == 0 ? 0 : (double) hits / queries;
+		return "hits=" + hits + " misses=" + misses + " hitRate=" + String.format("%.3f", hitRate) + " prefetches=" + prefetches + " prefetchHits=" + prefetchHits + " evictions=" + evictions + " regions=" + slabs.size() + " bytes=" + bytes;
+	}
+
+	private Entry find(String chr, int start, int end, boolean fullyContained) {
+		for(Region key : slabs.keySet()) {
+			if(key.contains(chr, start, end, fullyContained)) {
+				// Touch the entry so it becomes the most recently used
+				return slabs.get(key);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The region to load for a window, following the old single region cache
+	 */
+	private Region nextRegion(String chr, int start, int end, boolean fullyContained) {
+		if(end - start > regionSize) {
+			return new Region(chr, start, end, fullyContained);
+		}
+		if(lastMiss != null && lastMiss.chr.equals(chr) && start < lastMiss.start) {
+			// Scanning backwards, so end the region at the window
+			return new Region(chr, Math.max(0, end - regionSize), end, fullyContained);
+		}
+		return new Region(chr, start, start + regionSize, fullyContained);
+	}
+
+	/**
+	 * Submit the regions following region to the prefetch thread
+	 * Consecutive regions overlap by a quarter so windows crossing a boundary are still hits
+	 */
+	private void prefetchAfter(Region region) {
+		if(prefetchDepth == 0) {
+			return;
+		}
+		int step = regionSize - regionSize / 4;
+		int start = region.end - regionSize / 4;
+		Integer length = referenceLengths.get(region.chr);
+		int lastEnd = region.end;
+		for(int i=0; i<prefetchDepth; i++, start += step) {
+			if(length != null && lastEnd >= length) {
+				// The previous region already reaches the end of the reference
+				break;
+			}
+			lastEnd = length == null ? start + regionSize : Math.min(start + regionSize, length);
+			final Region next = new Region(region.chr, start, lastEnd, region.fullyContained);
+			if(pending.containsKey(next) || slabs.containsKey(next) || isTroubleRegion(next.chr, next.start, next.end)) {
+				continue;
+			}
+			final int submittedGeneration = generation;
+			if(prefetcher == null) {
+				prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "RegionSlabCache-prefetch");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			prefetches++;
+			pending.put(next, prefetcher.submit(new Callable<Entry>() {
+				@Override
+				public Entry call() {
+					ReadSlab slab = prefetchLoader.load(next.chr, next.start, next.end, next.fullyContained, maxBytes);
+					synchronized(RegionSlabCache.this) {
+						if(generation != submittedGeneration) {
+							return null;
+						}
+						pending.remove(next);
+						if(slab == null) {
+							addTroubleRegion(next);
+							return null;
+						}
+						Entry entry = new Entry(next, slab, true);
+						put(entry);
+						return entry;
+					}
+				}
+			}));
+		}
+	}
+
+	private Entry await(Future<Entry> future) {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch(ExecutionException e) {
+			logger.warn("Prefetch failed: " + e.getCause());
+			return null;
+		} catch(CancellationException e) {
+			return null;
+		}
+	}
+
+	private void put(Entry entry) {
+		Entry old = slabs.put(entry.region, entry);
+		if(old != null) {
+			bytes -= old.slab.getSizeInBytes();
+		}
+		bytes += entry.slab.getSizeInBytes();
+		evict(entry);
+	}
+
+	/**
+	 * Evict least recently used slabs until the bound is met, keeping the one just added
+	 */
+	private void evict(Entry keep) {
+		Iterator<Entry> iter = slabs.values().iterator();
+		while(bytes > maxBytes && iter.hasNext()) {
+			Entry eldest = iter.next();
+			if(eldest == keep) {
+				continue;
+			}
+			iter.remove();
+			bytes -= eldest.slab.getSizeInBytes();
+			evictions++;
+		}
+	}
+
+	private boolean isTroubleRegion(String chr, int start, int end) {
+		if(troubleRegions.containsKey(chr)) {
+			for(Region region : troubleRegions.get(chr)) {
+				if(region.start < end && start < region.end) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void addTroubleRegion(Region region) {
+		logger.info("Not caching " + region + " because its reads need more than " + maxBytes + " bytes");
+		if(!troubleRegions.containsKey(region.chr)) {
+			troubleRegions.put(region.chr, new ArrayList<Region>());
+		}
+		troubleRegions.get(region.chr).add(region);
+	}
+
+	static class Region {
+		final String chr;
+		final int start;
+		final int end;
+		final boolean fullyContained;
+
+		Region(String chr, int start, int end, boolean fullyContained) {
+			this.chr = chr;
+			this.start = start;
+			this.end = end;
+			this.fullyContained = fullyContained;
+		}
+
+		boolean contains(String chr, int start, int end, boolean fullyContained) {
+			return this.fullyContained == fullyContained && this.chr.equalsIgnoreCase(chr) && this.start <= start && this.end >= end;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Region)) {
+				return false;
+			}
+			Region other = (Region) o;
+			return chr.equals(other.chr) && start == other.start && end == other.end && fullyContained == other.fullyContained;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((chr.hashCode() * 31 + start) * 31 + end) * 2 + (fullyContained ? 1 : 0);
+		}
+
+		@Override
+		public String toString() {
+			return chr + ":" + start + "-" + end;
+		}
+	}
+
+	private static class Entry {
+		final Region region;
+		final ReadSlab slab;
+		boolean prefetched;
+
+		Entry(Region region, ReadSlab slab, boolean prefetched) {
+			this.region = region;
+			this.slab = slab;
+			this.prefetched = prefetched;
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package nextgen.core.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.feature.GenomeWindow;
+import nextgen.core.feature.Window;
+import nextgen.core.model.AlignmentModel.AlignmentCount;
+
+/**
+ * Counts reads in a series of overlapping windows without querying the model for every window
+ * Reads are loaded once per stretch of the chromosome and each window is compared to the previous one:
+ * only reads that overlap the bases entering or leaving the window are touched
+ * Gives the same counts as AlignmentModel.getCount(window, false) for windows in any coordinate space,
+ * since membership is decided on the genomic fragments the coordinate space returns for each window
+ * (stranded models sum fractional weights in HashSet order, so there the counts agree up to rounding)
+ *
+ * Windows should be passed in increasing genomic order, as the window iterators return them
+ * Going backwards or changing chromosome restarts the sweep
+ */
+public class SlidingWindowCounter {
+
+	private final AlignmentModel model;
+	private final boolean stranded;
+	private final int chunkSize;
+
+	private String chr;
+	private Strand orientation;
+	private List<Unit> units = new ArrayList<Unit>();
+	private int[] maxEnds = new int[0];
+	private int loadedStart;
+	private int loadedEnd;
+	private int[] windowStarts = new int[0];
+	private int[] windowEnds = new int[0];
+	private long integralCount;
+	private int activeFractional;
+
+	SlidingWindowCounter(AlignmentModel model) {
+		this.model = model;
+		this.stranded = !TranscriptionRead.UNSTRANDED.equals(model.getStrand());
+		this.chunkSize = model.cacheSize;
+	}
+
+	/**
+	 * Count the reads overlapping the window
+	 * @param window The window
+	 * @return Same value as AlignmentModel.getCount(window, false)
+	 */
+	public double getCount(Annotation window) {
+		Collection<? extends Window> fragments;
+		try {
+			if(window.getSize() > chunkSize || window.equals(model.getCoordinateSpace().getReferenceAnnotation(window.getChr()))) {
+				return model.getCount(window, false);
+			}
+			fragments = model.getCoordinateSpace().getFragment(window);
+		} catch(RuntimeException e) {
+			// Let the model decide how to handle windows outside the coordinate space
+			reset();
+			return model.getCount(window, false);
+		}
+
+		int[][] blocks = mergeBlocks(fragments, window.getChr());
+		int[] newStarts = blocks[0];
+		int[] newEnds = blocks[1];
+		if(newStarts.length == 0) {
+			// Nothing in coordinate space so nothing is counted
+			return 0;
+		}
+
+		int spanStart = newStarts[0];
+		int spanEnd = newEnds[newEnds.length - 1];
+		if(chr == null || !chr.equalsIgnoreCase(window.getChr()) || spanStart < loadedStart) {
+			reset();
+			chr = window.getChr();
+			loadedStart = spanStart;
+			loadedEnd = spanStart;
+		}
+		if(stranded && orientation != window.getOrientation()) {
+			orientation = window.getOrientation();
+			recount();
+		}
+
+		while(loadedEnd < spanEnd) {
+			loadChunk();
+		}
+
+		// Bases leaving the window first, then bases entering it
+		update(windowStarts, windowEnds, newStarts, newEnds, -1);
+		update(newStarts, newEnds, windowStarts, windowEnds, 1);
+		windowStarts = newStarts;
+		windowEnds = newEnds;
+		evict(spanStart);
+
+		return currentCount();
+	}
+
+	/**
+	 * Forget all loaded reads
+	 */
+	public void reset() {
+		chr = null;
+		orientation = null;
+		units = new ArrayList<Unit>();
+		maxEnds = new int[0];
+		loadedStart = 0;
+		loadedEnd = 0;
+		windowStarts = new int[0];
+		windowEnds = new int[0];
+		integralCount = 0;
+		activeFractional = 0;
+	}
+
+	/**
+	 * @return Number of reads currently held in memory
+	 */
+	public int getNumLoaded() {
+		return units.size();
+	}
+
+	private double currentCount() {
+		if(activeFractional == 0) {
+			return integralCount;
+		}
+		// Sum in query order so the floating point result matches the model exactly
+		double counter = 0;
+		for(Unit unit : units) {
+			if(isActive(unit)) {
+				counter += unit.count;
+			}
+		}
+		return counter;
+	}
+
+	private boolean isActive(Unit unit) {
+		return unit.overlap > 0 && (!stranded || unit.orientation == orientation);
+	}
+
+	private void activate(Unit unit, int sign) {
+		if(unit.integral) {
+			integralCount += sign * (long) unit.count;
+		} else {
+			activeFractional += sign;
+		}
+	}
+
+	/**
+	 * Recompute the running totals from scratch, needed when the orientation of the windows changes
+	 */
+	private void recount() {
+		integralCount = 0;
+		activeFractional = 0;
+		for(Unit unit : units) {
+			if(isActive(unit)) {
+				activate(unit, 1);
+			}
+		}
+	}
+
+	/**
+	 * Apply the bases that are in (starts, ends) but not in (otherStarts, otherEnds) to the overlapping reads
+	 */
+	private void update(int[] starts, int[] ends, int[] otherStarts, int[] otherEnds, int sign) {
+		int j = 0;
+		for(int i=0; i<starts.length; i++) {
+			int pos = starts[i];
+			int end = ends[i];
+			while(j < otherStarts.length && otherEnds[j] <= pos) {
+				j++;
+			}
+			int k = j;
+			while(pos < end) {
+				if(k < otherStarts.length && otherStarts[k] <= pos) {
+					pos = Math.min(end, otherEnds[k]);
+					k++;
+				} else {
+					int pieceEnd = k < otherStarts.length ? Math.min(end, otherStarts[k]) : end;
+					applyPiece(pos, pieceEnd, sign);
+					pos = pieceEnd;
+				}
+			}
+		}
+	}
+
+	private void applyPiece(int start, int end, int sign) {
+		for(int i=firstCandidate(start); i<units.size(); i++) {
+			Unit unit = units.get(i);
+			if(unit.start >= end) {
+				break;
+			}
+			if(unit.end <= start) {
+				continue;
+			}
+			int overlap = unit.getOverlap(start, end);
+			if(overlap == 0) {
+				continue;
+			}
+			boolean wasActive = isActive(unit);
+			unit.overlap += sign * overlap;
+			boolean active = isActive(unit);
+			if(wasActive != active) {
+				activate(unit, active ? 1 : -1);
+			}
+		}
+	}
+
+	private int firstCandidate(int start) {
+		int lo = 0;
+		int hi = units.size();
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(maxEnds[mid] > start) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Drop reads that end before the current window, they cannot be counted by any later window
+	 */
+	private void evict(int spanStart) {
+		int n = firstCandidate(spanStart);
+		if(n > 4096 && n > units.size() / 2) {
+			units = new ArrayList<Unit>(units.subList(n, units.size()));
+			int[] newMaxEnds = new int[Math.max(units.size(), 16)];
+			System.arraycopy(maxEnds, n, newMaxEnds, 0, units.size());
+			maxEnds = newMaxEnds;
+			// The dropped reads are needed again if a window starts before this point
+			loadedStart = spanStart;
+		}
+	}
+
+	/**
+	 * Load the reads starting in the next stretch of the chromosome
+	 * The first stretch also keeps reads that start before it but reach into it
+	 */
+	private void loadChunk() {
+		boolean first = loadedEnd == loadedStart;
+		int chunkStart = loadedEnd;
+		int chunkEnd = chunkStart + chunkSize;
+		List<Unit> loaded = new ArrayList<Unit>();
+		CloseableIterator<AlignmentCount> iter = model.getValidReadCounts(new GenomeWindow(chr, chunkStart, chunkEnd));
+		while(iter.hasNext()) {
+			AlignmentCount alignmentCount = iter.next();
+			Alignment read = alignmentCount.getRead();
+			int start = read.getAlignmentStart();
+			if(start >= chunkEnd || (start < chunkStart && !first)) {
+				continue;
+			}
+			if(stranded) {
+				// Stranded counts unpack the group and filter each read on its own orientation
+				for(Alignment contained : alignmentCount.containedReads) {
+					loaded.add(new Unit(read, contained.getWeight(), contained.getOrientation()));
+				}
+			} else {
+				loaded.add(new Unit(read, alignmentCount.getCount(), null));
+			}
+		}
+		iter.close();
+		loadedEnd = chunkEnd;
+
+		// Same order as the cache returns them
+		Collections.sort(loaded, new Comparator<Unit>() {
+			@Override
+			public int compare(Unit a, Unit b) {
+				if(a.start != b.start) {
+					return a.start < b.start ? -1 : 1;
+				}
+				if(a.end != b.end) {
+					return a.end < b.end ? -1 : 1;
+				}
+				return 0;
+			}
+		});
+
+		int offset = units.size();
+		if(maxEnds.length < offset + loaded.size()) {
+			int[] newMaxEnds = new int[Math.max(2 * maxEnds.length, offset + loaded.size())];
+			System.arraycopy(maxEnds, 0, newMaxEnds, 0, offset);
+			maxEnds = newMaxEnds;
+		}
+		int max = offset > 0 ? maxEnds[offset - 1] : Integer.MIN_VALUE;
+		for(Unit unit : loaded) {
+			// Bring the new read up to date with the current window
+			for(int i=0; i<windowStarts.length; i++) {
+				unit.overlap += unit.getOverlap(windowStarts[i], windowEnds[i]);
+			}
+			if(isActive(unit)) {
+				activate(unit, 1);
+			}
+			max = Math.max(max, unit.end);
+			maxEnds[units.size()] = max;
+			units.add(unit);
+		}
+	}
+
+	/**
+	 * Sorted, merged blocks of all fragments on the chromosome
+	 */
+	private static int[][] mergeBlocks(Collection<? extends Window> fragments, String chr) {
+		List<Annotation> blocks = new ArrayList<Annotation>();
+		for(Window fragment : fragments) {
+			if(fragment.getChr().equalsIgnoreCase(chr)) {
+				blocks.addAll(fragment.getBlocks());
+			}
+		}
+		Collections.sort(blocks, new Comparator<Annotation>() {
+			@Override
+			public int compare(Annotation a, Annotation b) {
+				return a.getStart() < b.getStart() ? -1 : (a.getStart() == b.getStart() ? 0 : 1);
+			}
+		});
+		int[] starts = new int[blocks.size()];
+		int[] ends = new int[blocks.size()];
+		int n = 0;
+		for(Annotation block : blocks) {
+			if(block.getEnd() <= block.getStart()) {
+				continue;
+			}
+			if(n > 0 && block.getStart() <= ends[n - 1]) {
+				ends[n - 1] = Math.max(ends[n - 1], block.getEnd());
+			} else {
+				starts[n] = block.getStart();
+				ends[n] = block.getEnd();
+				n++;
+			}
+		}
+		int[][] rtrn = new int[2][];
+		rtrn[0] = Arrays.copyOf(starts, n);
+		rtrn[1] = Arrays.copyOf(ends, n);
+		return rtrn;
+	}
+
+	/**
+	 * One counted unit: an AlignmentCount group, or a single read of a group for stranded models
+	 * overlap is the number of read bases inside the current window
+	 */
+	private static class Unit {
+		final int start;
+		final int end;
+		final int[] blockStarts;
+		final int[] blockEnds;
+		final double count;
+		final boolean integral;
+		final Strand orientation;
+		int overlap;
+
+		Unit(Alignment read, double count, Strand orientation) {
+			this.start = read.getAlignmentStart();
+			this.end = read.getAlignmentEnd();
+			List<? extends Annotation> blocks = read.getBlocks();
+			this.blockStarts = new int[blocks.size()];
+			this.blockEnds = new int[blocks.size()];
+			for(int i=0; i<blocks.size(); i++) {
+				blockStarts[i] = blocks.get(i).getStart();
+				blockEnds[i] = blocks.get(i).getEnd();
+			}
+			this.count = count;
+			this.integral = count == Math.rint(count) && Math.abs(count) < (1L << 52);
+			this.orientation = orientation;
+		}
+
+		int getOverlap(int start, int end) {
+			int rtrn = 0;
+			for(int i=0; i<blockStarts.length; i++) {
+				int s = Math.max(start, blockStarts[i]);
+				int e = Math.min(end, blockEnds[i]);
+				if(s < e) {
+					rtrn += e - s;
+				}
+			}
+			return rtrn;
+		}
+	}
+}
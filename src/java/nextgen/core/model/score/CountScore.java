@@ -5,6 +5,8 @@ import org.apache.log4j.Logger;
 import nextgen.core.annotation.Annotation;
 import nextgen.core.annotation.AnnotationCollection;
 import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.SlidingWindowCounter;
 
 /**
  * @author engreitz
@@ -166,6 +168,7 @@ public class CountScore extends WindowScore.AbstractWindowScore implements Compa
 		protected double regionTotal = DEFAULT_REGION_TOTAL;
 		protected boolean skipInit = false;
 		private boolean fullyContainedReads;
+		private SlidingWindowCounter counter;
 		
 		public Processor(AnnotationCollection<? extends Annotation> model) {
 			this(model, false);
@@ -188,23 +191,15 @@ public class CountScore extends WindowScore.AbstractWindowScore implements Compa
 		}
 		
 		public CountScore processWindow(Annotation annotation, CountScore previousScore) {
-			// This previousScore method is broken because getCountExcludingRegion filters out reads
+			// The previousScore is not used to update the count because getCountExcludingRegion filters out reads
 			// that overlap both the requested interval as well as the excluded interval (which should be counted)
-			// Also, it ends up using twice as many cache updates.  
-			// Fix these before re-applying. -JE
-			
-			return processWindow(annotation);
-			
-			/*
-			//if the previous score is null or they don't overlap by a significant amount (or at all)
-			if (previousScore==null || annotation.intersect(previousScore.getAnnotation()).length() <= annotation.size()/2){
-				//compute the score directly
+			// Instead, scans over an AlignmentModel keep a SlidingWindowCounter that tracks the reads entering and leaving the window
+			if(counter == null) {
 				return processWindow(annotation);
-			} 
-	
-			double newScore=computeCount(annotation, previousScore);
-			return new CountScore(previousScore, annotation, newScore);
-			*/
+			}
+			CountScore score = new CountScore(annotation, counter.getCount(annotation), regionTotal, model.getGlobalCount());
+			score.getAnnotation().setScore(score.getCount());
+			return score;
 		}
 		
 		/**
@@ -235,6 +230,13 @@ public class CountScore extends WindowScore.AbstractWindowScore implements Compa
 			if (region != null && !skipInit) {
 				regionTotal = model.getCount(region);
 			}
+			if (!fullyContainedReads && model instanceof AlignmentModel) {
+				counter = ((AlignmentModel) model).getSlidingWindowCounter();
+			}
+		}
+		
+		public void finishedRegion() {
+			counter = null;
 		}
 		
 	}
@@ -3,7 +3,7 @@ package nextgen.core.model.score;
 import java.util.Iterator;
 
 import nextgen.core.annotation.Annotation;
-import nextgen.core.annotation.AnnotationCollection;
+import nextgen.core.annotation.AnnotationCounts;
 
 import org.apache.commons.math3.distribution.BinomialDistribution;
 
@@ -44,14 +44,16 @@ public class RatioScore extends CountScore {
 		dRegionTotal = denominator.getRegionTotal();
 	}
 	
-	public RatioScore(AnnotationCollection<? extends Annotation> numerator, AnnotationCollection<? extends Annotation> denominator, Annotation annotation) {
-		super(numerator, annotation);
+	public RatioScore(AnnotationCounts numerator, AnnotationCounts denominator, Annotation annotation) {
+		super(annotation);
+		setNumeratorCount(numerator.getCount(annotation));
+		setNumeratorTotal(numerator.getGlobalCount());
 		setDenominatorCount(denominator.getCount(annotation));
 		setDenominatorTotal(denominator.getGlobalCount());
 		getAnnotation().setScore(getRatio());
 	}
 	
-	public RatioScore(AnnotationCollection<? extends Annotation> numerator, AnnotationCollection<? extends Annotation> denominator, Annotation annotation, double numeratorRegionTotal, double denominatorRegionTotal) {
+	public RatioScore(AnnotationCounts numerator, AnnotationCounts denominator, Annotation annotation, double numeratorRegionTotal, double denominatorRegionTotal) {
 		this(numerator, denominator, annotation);
 		setNumeratorRegionTotal(numeratorRegionTotal);
 		setDenominatorRegionTotal(denominatorRegionTotal);
@@ -149,11 +151,11 @@ public class RatioScore extends CountScore {
 	}
 	
 	public static class Processor extends WindowProcessor.AbstractProcessor<RatioScore> {
-		protected AnnotationCollection<? extends Annotation> numerator, denominator;
+		protected AnnotationCounts numerator, denominator;
 		protected double numeratorRegionTotal = DEFAULT_REGION_TOTAL;
 		protected double denominatorRegionTotal = DEFAULT_REGION_TOTAL;
 		
-		public Processor(AnnotationCollection<? extends Annotation> numerator, AnnotationCollection<? extends Annotation> denominator) {
+		public Processor(AnnotationCounts numerator, AnnotationCounts denominator) {
 			this.numerator = numerator;
 			this.denominator = denominator;
 		}
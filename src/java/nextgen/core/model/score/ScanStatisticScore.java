@@ -1,12 +1,13 @@
 package nextgen.core.model.score;
 
-import broad.core.math.ScanStatistics;
+import broad.core.math.ScanStatisticsTable;
 import net.sf.samtools.util.CloseableIterator;
 import nextgen.core.alignment.Alignment;
 import nextgen.core.annotation.Annotation;
 import nextgen.core.annotation.Gene;
 import nextgen.core.coordinatesystem.CoordinateSpace;
 import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.SlidingWindowCounter;
 
 public class ScanStatisticScore extends CountScore {
 
@@ -31,7 +32,7 @@ public class ScanStatisticScore extends CountScore {
 		coordSpace = model.getCoordinateSpace();
 		setGlobalLength(model.getGlobalLength());
 		try {
-			setScanPvalue(ScanStatistics.calculatePVal(new Double(getCount()).intValue(), model.getGlobalLambda(), model.getCoordinateSpace().getSize(annotation), getGlobalLength()));
+			setScanPvalue(ScanStatisticsTable.getDefault().calculatePVal(new Double(getCount()).intValue(), model.getGlobalLambda(), model.getCoordinateSpace().getSize(annotation), getGlobalLength()));
 		} catch(Exception e) {
 			logger.info("Could not set scan P value for annotation " + annotation.getName());
 			logger.info(e.toString());
@@ -45,6 +46,28 @@ public class ScanStatisticScore extends CountScore {
 		
 	}
 	
+	/**
+	 * Score an annotation whose count is already known, for example from a SlidingWindowCounter
+	 * Same scores as ScanStatisticScore(model, annotation, false) when count is model.getCount(annotation, false)
+	 * @param model Alignment data
+	 * @param annotation Annotation
+	 * @param count Number of reads overlapping the annotation
+	 */
+	public ScanStatisticScore(AlignmentModel model, Annotation annotation, double count) {
+		super(annotation, count, model.getRefSequenceCounts(annotation.getChr()), model.getGlobalCount());
+		getAnnotation().setScore(getCount());
+		coordSpace = model.getCoordinateSpace();
+		setGlobalLength(model.getGlobalLength());
+		try {
+			setScanPvalue(ScanStatisticsTable.getDefault().calculatePVal(new Double(getCount()).intValue(), model.getGlobalLambda(), model.getCoordinateSpace().getSize(annotation), getGlobalLength()));
+		} catch(Exception e) {
+			logger.info("Could not set scan P value for annotation " + annotation.getName());
+			logger.info(e.toString());
+		}
+		getAnnotation().setScore(getScanPvalue());
+		setRegionLength(model.getRefSequenceLength(annotation.getChr()));
+	}
+
 	public ScanStatisticScore(AlignmentModel model, Annotation annotation, ScanStatisticScore previousScore, double newScore) {
 		super(previousScore, annotation, newScore); //Set the new score without computing
 		coordSpace = model.getCoordinateSpace();
@@ -52,7 +75,7 @@ public class ScanStatisticScore extends CountScore {
 		setRegionTotal(previousScore.getRegionTotal());
 		setGlobalLength(model.getGlobalLength());
 		try {
-			setScanPvalue(ScanStatistics.calculatePVal(new Double(getCount()).intValue(), model.getGlobalLambda(), model.getCoordinateSpace().getSize(annotation), model.getGlobalLength()));
+			setScanPvalue(ScanStatisticsTable.getDefault().calculatePVal(new Double(getCount()).intValue(), model.getGlobalLambda(), model.getCoordinateSpace().getSize(annotation), model.getGlobalLength()));
 		} catch(Exception e) {
 			logger.info("Could not set scan P value for annotation " + annotation.getName());
 		}
@@ -101,7 +124,7 @@ public class ScanStatisticScore extends CountScore {
 		setTotal(globalTotal);
 		setRegionLength(regionLength);
 		setGlobalLength(globalLength);
-		setScanPvalue(ScanStatistics.calculatePVal(new Double(getCount()).intValue(), getGlobalLambda(), model.getCoordinateSpace().getSize(annotation), getGlobalLength()));
+		setScanPvalue(ScanStatisticsTable.getDefault().calculatePVal(new Double(getCount()).intValue(), getGlobalLambda(), model.getCoordinateSpace().getSize(annotation), getGlobalLength()));
 	}
 	
 	public CoordinateSpace getCoordinateSpace() {
@@ -109,7 +132,7 @@ public class ScanStatisticScore extends CountScore {
 	}
 	
 	public void refreshScanPvalue(AlignmentModel model) {
-		setScanPvalue(ScanStatistics.calculatePVal(new Double(getCount()).intValue(), getTotal() / globalLength, model.getCoordinateSpace().getSize(annotation), globalLength));
+		setScanPvalue(ScanStatisticsTable.getDefault().calculatePVal(new Double(getCount()).intValue(), getTotal() / globalLength, model.getCoordinateSpace().getSize(annotation), globalLength));
 	}
 	
 	public double getAverageCoverage(AlignmentModel data) { 
@@ -224,6 +247,7 @@ public class ScanStatisticScore extends CountScore {
 		protected double regionTotal = DEFAULT_REGION_TOTAL;
 		protected double regionLength = DEFAULT_REGION_TOTAL;
 		private boolean fullyContainedReads;
+		private SlidingWindowCounter counter;
 		
 		public Processor(AlignmentModel model) {
 			this(model, false);
@@ -243,6 +267,13 @@ public class ScanStatisticScore extends CountScore {
 				regionTotal = model.getCount(region);
 				regionLength = region.length();
 			}
+			if (!fullyContainedReads) {
+				counter = model.getSlidingWindowCounter();
+			}
+		}
+		
+		public void finishedRegion() {
+			counter = null;
 		}
 
 		/**
@@ -261,6 +292,11 @@ public class ScanStatisticScore extends CountScore {
 		
 		@Override
 		public ScanStatisticScore processWindow(Annotation annotation, ScanStatisticScore previousScore) {
+			//within a scan, count the window by sweeping the reads that entered and left since the previous window
+			if(previousScore!=null && counter!=null){
+				return new ScanStatisticScore(model, annotation, previousScore, counter.getCount(annotation));
+			}
+			
 			//if the previous score is null or they don't overlap
 			if(previousScore==null || !annotation.overlaps(previousScore.getAnnotation())){
 				//compute the score directly
@@ -7,6 +7,7 @@ import org.apache.log4j.Logger;
 import nextgen.core.annotation.Annotation;
 import nextgen.core.annotation.Gene;
 import nextgen.core.feature.Window;
+import nextgen.core.utils.Metrics;
 import net.sf.samtools.util.CloseableIterator;
 
 public class WindowScoreIterator<T extends WindowScore> implements CloseableIterator<T> {
@@ -15,10 +16,14 @@ public class WindowScoreIterator<T extends WindowScore> implements CloseableIter
 	WindowProcessor<T> processor;
 	T previousScore = null;
 	static Logger logger = Logger.getLogger(Gene.class.getName());
+	private static final Metrics.Counter windowsScored = Metrics.counter("WindowScoreIterator.windowsScored");
+	// Time spent scoring windows on the chromosome of the region, or under "all" when the whole space is scanned
+	private Metrics.Timer chrTimer;
 
 	public WindowScoreIterator(Iterator<? extends Annotation> windowIterator, WindowProcessor<T> processor, Annotation region){
 		this.itr = windowIterator;
 		this.processor = processor;
+		this.chrTimer = Metrics.timer("WindowScoreIterator.time." + (region == null ? "all" : region.getChr()));
 		
 		// Don't bother initializing the region if the iterator is empty
 		try {
@@ -35,10 +40,13 @@ public class WindowScoreIterator<T extends WindowScore> implements CloseableIter
 
 	@Override
 	public T next() {
+		long start = System.nanoTime();
 		Annotation w = this.itr.next();
 		T score= processor.processWindow(w, previousScore);
 		//T score= processor.processWindow(w);
 		previousScore=score;
+		windowsScored.increment();
+		chrTimer.recordSince(start);
 		return score;
 	}
 
@@ -14,8 +14,9 @@ import broad.pda.seq.segmentation.GeneScore;
 import nextgen.core.coordinatesystem.GenomicSpace;
 import nextgen.core.coordinatesystem.TranscriptomeSpace;
 import nextgen.core.feature.Window;
+import nextgen.core.model.CoverageIndexModel;
 import nextgen.core.model.ScanStatisticDataAlignmentModel;
-import nextgen.core.model.score.ScanStatisticScore;
+import nextgen.core.model.score.CountScore;
 
 //Convert a BAM File to a coverage profile
 public class BAMToCoverage {
@@ -35,20 +36,20 @@ public class BAMToCoverage {
 		makeBigWig(save, sizes);
 	}
 	
-	//TODO This is not memory efficient, seems that the jump to new gene is screwing up
+	//Windows are counted from the coverage index of the BAM file, built on the first run, rather than by decoding the reads again
 	private void windowSlider(ScanStatisticDataAlignmentModel data, String save, String chr) throws IOException {
 		FileWriter writer=new FileWriter(save);
 		
-		Runtime run=Runtime.getRuntime();
+		CoverageIndexModel index=new CoverageIndexModel(data);
 		
 		logger.info("Created the iterator");
 		//Iterator<Window> iter=data.getCoordinateSpace().getWindowIterator(windowSize);
-		Iterator<ScanStatisticScore> iter=data.scan(chr, this.windowSize, this.windowSize-1);
+		Iterator<CountScore> iter=index.scan(data.getCoordinateSpace().getReferenceAnnotation(chr), this.windowSize, this.windowSize-1);
 		
 		logger.info("starting the iterations and scoring");
 		int counter=0;
 		while(iter.hasNext()){
-			ScanStatisticScore score=iter.next();
+			CountScore score=iter.next();
 			writer.write(score.getAnnotation().getChr()+"\t"+score.getAnnotation().getStart()+"\t"+score.getAnnotation().getEnd()+"\t"+score.getCount()/windowSize+"\n");
 			//if(counter%1000 ==0){logger.info("At iteration "+counter+" "+score.getAlignment().toUCSC()+" "+score.getNumberOfReads());}
 			counter++;
@@ -56,6 +57,7 @@ public class BAMToCoverage {
 		
 		logger.info("done writing");
 		writer.close();
+		index.close();
 	}
 
 	private void makeBigWig(String save, String sizes) throws IOException, InterruptedException {
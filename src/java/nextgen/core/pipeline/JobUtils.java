@@ -18,7 +18,7 @@ public class JobUtils {
 	 * @throws InterruptedException
 	 * @throws DrmaaException
 	 */
-	public static void waitForAll(Collection<Job> jobs) throws IOException, InterruptedException, DrmaaException {
+	public static void waitForAll(Collection<? extends Job> jobs) throws IOException, InterruptedException, DrmaaException {
 		for(Job job : jobs) {
 			job.waitFor();
 		}
@@ -32,7 +32,7 @@ public class JobUtils {
 	 * @throws InterruptedException
 	 * @throws DrmaaException
 	 */
-	public static void waitForAll(Collection<Job> jobs, int interval) throws IOException, InterruptedException, DrmaaException {
+	public static void waitForAll(Collection<? extends Job> jobs, int interval) throws IOException, InterruptedException, DrmaaException {
 		for(Job job : jobs) {
 			job.waitFor(interval);
 		}
@@ -45,7 +45,7 @@ public class JobUtils {
 	 * @throws InterruptedException
 	 * @throws DrmaaException
 	 */
-	public static boolean allCompleted(Collection<Job> jobs) throws IOException, InterruptedException, DrmaaException {
+	public static boolean allCompleted(Collection<? extends Job> jobs) throws IOException, InterruptedException, DrmaaException {
 		for(Job job : jobs) {
 			if(!job.completed()) return false;
 		}
@@ -59,7 +59,7 @@ public class JobUtils {
 	 * @throws InterruptedException
 	 * @throws DrmaaException
 	 */
-	public static boolean allSucceeded(Collection<Job> jobs) throws IOException, InterruptedException, DrmaaException {
+	public static boolean allSucceeded(Collection<? extends Job> jobs) throws IOException, InterruptedException, DrmaaException {
 		for(Job job : jobs) {
 			if(!job.succeeded()) return false;
 		}
@@ -71,7 +71,7 @@ public class JobUtils {
 	 * @throws IOException
 	 * @throws DrmaaException
 	 */
-	public static void killAll(Collection<Job> jobs) throws IOException, DrmaaException {
+	public static void killAll(Collection<? extends Job> jobs) throws IOException, DrmaaException {
 		for(Job job : jobs) {
 			job.kill();
 		}
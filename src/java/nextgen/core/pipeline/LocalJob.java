@@ -0,0 +1,249 @@
+package nextgen.core.pipeline;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A job that runs on this machine in a LocalJobPool
+ * The job is either a command, run as a subprocess with its output written to a file, or a Callable run in this JVM
+ * In process jobs avoid starting a new JVM for every shard of a fan out
+ */
+public class LocalJob implements Job {
+
+	private static Logger logger = Logger.getLogger(LocalJob.class.getName());
+
+	private final LocalJobPool pool;
+	private final String jobId;
+	private final String cmmd;
+	private final String outFile;
+	private final Callable<?> task;
+	private final int memory;
+	private Future<Object> future;
+	private Process process;
+	private boolean started;
+	private boolean killed;
+
+	/**
+	 * @param jobID Job ID
+	 * @param command Command
+	 * @param outputFile File to write the standard output and error of the command to, or null to discard them
+	 */
+	public LocalJob(String jobID, String command, String outputFile) {
+		this(LocalJobPool.getDefault(), jobID, command, outputFile, 1);
+	}
+
+	/**
+	 * @param jobPool Pool to run the job in
+	 * @param jobID Job ID
+	 * @param command Command
+	 * @param outputFile File to write the standard output and error of the command to, or null to discard them
+	 * @param memoryRequestGb Memory request in Gb
+	 */
+	public LocalJob(LocalJobPool jobPool, String jobID, String command, String outputFile, int memoryRequestGb) {
+		this(jobPool, jobID, command, outputFile, null, memoryRequestGb);
+	}
+
+	/**
+	 * @param jobID Job ID
+	 * @param callable Task to run in this JVM
+	 */
+	public LocalJob(String jobID, Callable<?> callable) {
+		this(LocalJobPool.getDefault(), jobID, callable, 1);
+	}
+
+	/**
+	 * @param jobPool Pool to run the job in
+	 * @param jobID Job ID
+	 * @param callable Task to run in this JVM
+	 * @param memoryRequestGb Memory request in Gb
+	 */
+	public LocalJob(LocalJobPool jobPool, String jobID, Callable<?> callable, int memoryRequestGb) {
+		this(jobPool, jobID, null, null, callable, memoryRequestGb);
+	}
+
+	private LocalJob(LocalJobPool jobPool, String jobID, String command, String outputFile, Callable<?> callable, int memoryRequestGb) {
+		pool = jobPool;
+		jobId = jobID;
+		cmmd = command;
+		outFile = outputFile;
+		task = callable;
+		memory = memoryRequestGb;
+	}
+
+	@Override
+	public String getID() {
+		return jobId;
+	}
+
+	@Override
+	public synchronized void submit() {
+		if(future != null) {
+			throw new IllegalStateException("Job " + jobId + " was already submitted.");
+		}
+		future = pool.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				synchronized(LocalJob.this) {
+					if(killed) {
+						throw new CancellationException("Job " + jobId + " was killed.");
+					}
+					started = true;
+				}
+				if(task != null) {
+					return task.call();
+				}
+				runCommand();
+				return null;
+			}
+		}, memory);
+	}
+
+	private void runCommand() throws IOException, InterruptedException {
+		List<String> tokens = new ArrayList<String>();
+		StringTokenizer st = new StringTokenizer(cmmd);
+		while(st.hasMoreTokens()) {
+			tokens.add(st.nextToken());
+		}
+		ProcessBuilder builder = new ProcessBuilder(tokens);
+		builder.redirectErrorStream(true);
+		Process p;
+		synchronized(this) {
+			if(killed) {
+				throw new CancellationException("Job " + jobId + " was killed.");
+			}
+			p = builder.start();
+			process = p;
+		}
+		OutputStream out = outFile == null ? null : new FileOutputStream(outFile);
+		try {
+			InputStream in = p.getInputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while((n = in.read(buf)) != -1) {
+				if(out != null) {
+					out.write(buf, 0, n);
+				}
+			}
+			in.close();
+		} finally {
+			if(out != null) {
+				out.close();
+			}
+		}
+		int exitVal = p.waitFor();
+		if(exitVal != 0) {
+			throw new IOException("Job " + jobId + " exited with status " + exitVal + ": " + cmmd);
+		}
+	}
+
+	@Override
+	public void waitFor() throws InterruptedException {
+		Future<Object> f = getFuture();
+		try {
+			f.get();
+		} catch(ExecutionException e) {
+			logger.warn("Job " + jobId + " failed: " + e.getCause());
+		} catch(CancellationException e) {
+			logger.warn("Job " + jobId + " was killed.");
+		}
+	}
+
+	/**
+	 * Same as waitFor(); the interval is not needed to follow a local job
+	 */
+	@Override
+	public void waitFor(int interval) throws InterruptedException {
+		waitFor();
+	}
+
+	@Override
+	public synchronized boolean isPending() {
+		return future != null && !started && !future.isDone();
+	}
+
+	@Override
+	public boolean isSuspended() {
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isRunning() {
+		return future != null && started && !future.isDone();
+	}
+
+	@Override
+	public boolean completed() {
+		return future != null && future.isDone();
+	}
+
+	@Override
+	public boolean succeeded() {
+		return completed() && getFailure() == null;
+	}
+
+	@Override
+	public boolean failed() {
+		return completed() && getFailure() != null;
+	}
+
+	/**
+	 * @return The exception the job failed with, or null if it has not completed or succeeded
+	 */
+	public Throwable getFailure() {
+		if(!completed()) {
+			return null;
+		}
+		try {
+			future.get();
+			return null;
+		} catch(ExecutionException e) {
+			return e.getCause();
+		} catch(CancellationException e) {
+			return e;
+		} catch(InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return The value returned by the callable, or null for a command
+	 * @throws ExecutionException if the job failed
+	 * @throws InterruptedException
+	 */
+	public Object getResult() throws ExecutionException, InterruptedException {
+		return getFuture().get();
+	}
+
+	/**
+	 * Remove the job from the queue, or interrupt it and destroy its process if it is running
+	 */
+	@Override
+	public synchronized void kill() {
+		killed = true;
+		if(future != null) {
+			future.cancel(true);
+		}
+		if(process != null) {
+			process.destroy();
+		}
+	}
+
+	private synchronized Future<Object> getFuture() {
+		if(future == null) {
+			throw new IllegalStateException("Job " + jobId + " has not been submitted.");
+		}
+		return future;
+	}
+
+}
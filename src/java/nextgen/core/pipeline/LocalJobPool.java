@@ -0,0 +1,114 @@
+package nextgen.core.pipeline;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded pool that runs LocalJobs on this machine
+ * At most numThreads jobs run at once, and the memory requests of the running jobs add up to at most the memory budget
+ * A job requesting more than the whole budget runs alone
+ * Pool threads are daemon threads so an unfinished pool does not keep the program alive
+ */
+public class LocalJobPool {
+
+	private static Logger logger = Logger.getLogger(LocalJobPool.class.getName());
+	private static LocalJobPool defaultPool;
+
+	private final ExecutorService executor;
+	private final Semaphore memory;
+	private final int numThreads;
+	private final int memoryBudget;
+
+	/**
+	 * @param numThreads Maximum number of jobs running at once
+	 * @param memoryBudgetGb Total memory in Gb that running jobs may request
+	 */
+	public LocalJobPool(int numThreads, int memoryBudgetGb) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		if(memoryBudgetGb < 1) {
+			throw new IllegalArgumentException("Memory budget must be at least 1Gb: " + memoryBudgetGb);
+		}
+		this.numThreads = numThreads;
+		memoryBudget = memoryBudgetGb;
+		memory = new Semaphore(memoryBudgetGb, true);
+		final AtomicInteger threadNumber = new AtomicInteger(0);
+		executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "LocalJobPool-" + threadNumber.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		logger.info("Local job pool with " + numThreads + " threads and " + memoryBudgetGb + "Gb memory budget");
+	}
+
+	/**
+	 * @return A shared pool with one thread per available processor and the maximum heap size of this JVM as memory budget
+	 */
+	public static synchronized LocalJobPool getDefault() {
+		if(defaultPool == null) {
+			defaultPool = new LocalJobPool(Runtime.getRuntime().availableProcessors(), getMaxHeapGb());
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * @return Maximum heap size of this JVM in Gb, at least 1
+	 */
+	public static int getMaxHeapGb() {
+		return (int) Math.max(1, Runtime.getRuntime().maxMemory() / (1024L * 1024L * 1024L));
+	}
+
+	/**
+	 * @return Maximum number of jobs running at once
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @return Total memory in Gb that running jobs may request
+	 */
+	public int getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Queue a task that runs once a thread is free and the memory it requests is available
+	 * @param task The task
+	 * @param memoryRequestGb Memory request in Gb
+	 * @return Future of the task
+	 */
+	<T> Future<T> submit(final Callable<T> task, int memoryRequestGb) {
+		final int permits = Math.max(0, Math.min(memoryRequestGb, memoryBudget));
+		return executor.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				memory.acquire(permits);
+				try {
+					return task.call();
+				} finally {
+					memory.release(permits);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop accepting jobs; jobs already submitted still run
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+}
@@ -21,6 +21,9 @@ public class ConvertBamToPairedEnd extends CommandLineProgram {
     @Option(doc="Maximum insert length allowed")
     Integer MAX_INSERT = 1000000;
     
+    @Option(doc="Records held in memory by each buffer of the streaming conversion of coordinate sorted input before spilling to disk")
+    Integer MAX_RECORDS_IN_RAM = 500000;
+    
 	/**
 	 * Stock main method.
 	 *
@@ -38,6 +41,7 @@ public class ConvertBamToPairedEnd extends CommandLineProgram {
 			long timeStart = System.currentTimeMillis();
 			PairedEndWriter writer = new PairedEndWriter(new File(INPUT));
 			writer.setMaxAllowableInsert(MAX_INSERT);
+			writer.setMaxRecordsInRam(MAX_RECORDS_IN_RAM);
 			writer.convertInputToPairedEnd();
 			log.info("Total time; " + (System.currentTimeMillis() - timeStart));
 		} catch (Exception e) {
@@ -16,6 +16,7 @@ import org.apache.log4j.Logger;
 
 import broad.core.sequence.FastaSequenceIO;
 import broad.core.sequence.Sequence;
+import broad.core.sequence.TwoBitGenome;
 import broad.pda.annotation.BEDFileParser;
 
 import nextgen.core.annotation.Gene;
@@ -28,15 +29,21 @@ public class FastaAnnotationExtractor {
 
 	private Map<String, Collection<Gene>> genes;
 	private Map<String, Sequence> chromosomes;
+	private TwoBitGenome twoBitGenome;
 	private static Logger logger = Logger.getLogger(FastaAnnotationExtractor.class.getName());
 	
 	/**
-	 * @param genomeFasta Fasta file of sequences
+	 * @param genomeFasta Fasta file of sequences, or .2bit file to read only the gene sequences
 	 * @param bedFile Bed file
 	 * @throws IOException
 	 */
 	public FastaAnnotationExtractor(String genomeFasta, String bedFile) throws IOException {
-		this(FastaSequenceIO.getChrSequencesFromFasta(genomeFasta), bedFile);
+		loadGenes(bedFile);
+		if(TwoBitGenome.isTwoBit(genomeFasta)) {
+			twoBitGenome = TwoBitGenome.open(genomeFasta);
+		} else {
+			chromosomes = FastaSequenceIO.getChrSequencesFromFasta(genomeFasta);
+		}
 	}
 	
 	/**
@@ -46,7 +53,11 @@ public class FastaAnnotationExtractor {
 	 * @throws IOException
 	 */
 	public FastaAnnotationExtractor(Map<String, Sequence> chrsByName, String bedFile) throws IOException {
-		
+		loadGenes(bedFile);
+		chromosomes = chrsByName;
+	}
+	
+	private void loadGenes(String bedFile) throws IOException {
 		logger.info("Loading genes from file " + bedFile + "...");
 		
 		genes = BEDFileParser.loadDataByChr(new File(bedFile));
@@ -55,14 +66,17 @@ public class FastaAnnotationExtractor {
 			numGenes += genes.get(chr).size();
 		}
 		logger.info("Loaded " + numGenes + " genes.");
-		
-		chromosomes = chrsByName;
-		
 	}
 	
 	private void maskChromosomes(String bedRegions, boolean softmask) throws IOException {
 		logger.info("Masking sequences in " + bedRegions + ". Softmask: " + softmask);
 		Map<String, Collection<Gene>> regionsToMask = BEDFileParser.loadDataByChr(new File(bedRegions));
+		if(twoBitGenome != null) {
+			// Masking edits the sequences, so load them all
+			chromosomes = twoBitGenome.getSequences();
+			twoBitGenome.close();
+			twoBitGenome = null;
+		}
 		for(String chr : regionsToMask.keySet()) {
 			Sequence chrSeq = chromosomes.get(chr);
 			for(Gene gene : regionsToMask.get(chr)) {
@@ -78,6 +92,9 @@ public class FastaAnnotationExtractor {
 	 */
 	private Sequence getGeneSequence(Gene gene) {
 		String chr = gene.getReferenceName();
+		if(twoBitGenome != null) {
+			return twoBitGenome.hasSequence(chr) ? twoBitGenome.getSubsequence(gene) : null;
+		}
 		return chromosomes.get(chr).getSubsequence(gene);
 	}
 	
@@ -105,6 +122,16 @@ public class FastaAnnotationExtractor {
 		logger.info("Done writing sequences.");
 	}
 	
+	/**
+	 * Close the .2bit file if the sequences are read from one
+	 */
+	public void close() {
+		if(twoBitGenome != null) {
+			twoBitGenome.close();
+			twoBitGenome = null;
+		}
+	}
+	
 	/**
 	 * @param args
 	 * @throws IOException 
@@ -113,7 +140,7 @@ public class FastaAnnotationExtractor {
 		
 		CommandLineParser p = new CommandLineParser();
 		p.addStringArg("-b", "Bed file of regions to extract", true);
-		p.addStringArg("-f", "Fasta file of chromosomes", true);
+		p.addStringArg("-f", "Fasta or .2bit file of chromosomes", true);
 		p.addStringArg("-m", "Bed file of regions to mask", false, null);
 		p.addBooleanArg("-s", "If masking, mask to lower case (else Ns)", false, true);
 		p.addStringArg("-o", "Output fasta file of sequences", true);
@@ -131,6 +158,7 @@ public class FastaAnnotationExtractor {
 		}
 		
 		f.writeFasta(outFile);
+		f.close();
 
 	}
 
@@ -5,27 +5,30 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sf.picard.util.Log;
 import net.sf.samtools.BAMFileWriter;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileHeader.SortOrder;
 import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMProgramRecord;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.stat.regression.SimpleRegression;
 
-import broad.core.datastructures.IntervalTree;
-import broad.core.datastructures.IntervalTree.Node;
 import broad.core.math.Statistics;
 import broad.core.util.CLUtil;
 import broad.core.util.CLUtil.ArgumentMap;
@@ -58,6 +61,9 @@ public class MarkDuplicatesFromNameUMI {
 			"\n\t-numToIncrement<Optional postive integer, model parameter, default 5>" +
 			"\n\t-revisedBCCountsFile <Optional file name to record revised counts by position for positions with number of barcodes duplicated above minNumBCsToApplyModel>" +
 			"\n\t-revisedBCStatsFile<Optional file name to write revised stats on total dups by adjusted number unique bcs when  number of barcodes duplicated above minNumBCsToApplyModel>" +
+			"\n\t-threads<Optional number of chromosomes to mark at once, requires an indexed BAM, default 1>" +
+			"\n\t-meanNumDup<Optional mean number of duplicates per duplicated barcode (the slope reported by a two pass run). With -dupStdDevPerBC, markings are adjusted in a single pass, using initialThreshold2, and written to -out>" +
+			"\n\t-dupStdDevPerBC<Optional standard deviation of duplicates per duplicated barcode reported by a two pass run, required with -meanNumDup>" +
 			"\n";
 	
 	
@@ -130,12 +136,22 @@ public class MarkDuplicatesFromNameUMI {
 		if(argMap.containsKey("bcCountsFile")) {
 			exportCounts = true;
 		}
+		boolean singlePass = argMap.containsKey("meanNumDup");
+		int numThreads = argMap.getInteger("threads", 1);
 
 		
 		try {
-			result = markDuplicates(bcSize, reader, writer, exportCounts, threshold1, threshold2, allowedFracOfMean, numToIncrement);
+			if(singlePass) {
+				result = markDuplicatesSinglePass(bcSize, reader, writer, exportCounts, threshold2, argMap.getDouble("meanNumDup"), argMap.getDouble("dupStdDevPerBC"));
+			} else if(numThreads > 1) {
+				result = markDuplicatesByChromosome(bcSize, new File(alnFile), writer, exportCounts, threshold1, threshold2, allowedFracOfMean, numThreads);
+			} else {
+				result = markDuplicates(bcSize, reader, writer, exportCounts, threshold1, threshold2, allowedFracOfMean, numToIncrement);
+			}
 			
-			if (calcThreshold1){
+			if (singlePass){
+				log.info("Markings adjusted in a single pass with threshold2 " + threshold2 + " and mean number of duplicates " + result.meanNumDup);
+			} else if (calcThreshold1){
 				result.setThreshold1AndMeanNumDup(numBCs);
 			} else {
 				result.calcMeanNumDup();
@@ -179,6 +195,20 @@ public class MarkDuplicatesFromNameUMI {
 				result.writeBCStats(bw);
 				bw.close();
 			}
+			
+			if(singlePass) {
+				System.out.println("Number of aligned first marked, then changed back to unmarked " + result.numRemovedMark);
+				if(argMap.containsKey("revisedBCCountsFile")) {
+					BufferedWriter bw = new BufferedWriter(new FileWriter(argMap.getMandatory("revisedBCCountsFile")));
+					result.writeRevisedCounts(bw, threshold2);
+					bw.close();
+				}
+				if(argMap.containsKey("revisedBCStatsFile") && result.revisedStatsByAdjustedNumBCDup != null) {
+					BufferedWriter bw = new BufferedWriter(new FileWriter(argMap.getMandatory("revisedBCStatsFile")));
+					result.writeRevisedBCStats(bw, threshold2);
+					bw.close();
+				}
+			}
 	
 			
 		}finally {
@@ -186,7 +216,11 @@ public class MarkDuplicatesFromNameUMI {
 			writer.close();
 		}
 		
-		if(!argMap.containsKey("out2")){
+		if(singlePass){
+			
+			log.info("Markings were adjusted in the first pass, out2 is not written.");
+			
+		} else if(!argMap.containsKey("out2")){
 		
 			log.info("No out2 file.  Adjustments to initial markings are not performed.");
 		
@@ -240,126 +274,537 @@ public class MarkDuplicatesFromNameUMI {
 	public static MarkDuplicatesResults markDuplicates(int bcSize, SAMFileReader reader, BAMFileWriter writer, 
 			boolean exportCounts, int threshold1, int threshold2, double allowedFracOfMean, int numToIncrement) {
 
-		MarkDuplicatesResults result = new MarkDuplicatesResults(threshold1, threshold2, allowedFracOfMean);
-		StringBuilder degenerateBC = new StringBuilder();
-		for (int i = 0; i < bcSize; i++) {
-			degenerateBC.append("N");
+		MarkDuplicatesResults result = newResults(bcSize, threshold1, threshold2, allowedFracOfMean);
+		PositionMarker marker = new PositionMarker(bcSize, result, writer, exportCounts, threshold2, false);
+		marker.mark(reader.iterator());
+		return result;
+
+	}
+	
+	/**
+	 * Mark duplicates and adjust the markings of deep positions in a single pass, with a model of duplicates per barcode
+	 * from an earlier two pass run (the slope and the standard deviation it reports), rather than fitting it on this library.
+	 * Only the alignments of the current start position are held in memory.
+	 * @param meanNumDup Mean number of duplicates per duplicated barcode
+	 * @param dupStdDevPerBC Standard deviation of the number of duplicates per duplicated barcode
+	 */
+	public static MarkDuplicatesResults markDuplicatesSinglePass(int bcSize, SAMFileReader reader, BAMFileWriter writer, 
+			boolean exportCounts, int threshold2, double meanNumDup, double dupStdDevPerBC) {
+		MarkDuplicatesResults result = newResults(bcSize, threshold2, threshold2, 0);
+		result.meanNumDup = meanNumDup;
+		PositionMarker marker = new PositionMarker(bcSize, result, writer, exportCounts, threshold2, false);
+		marker.setAdjustment(meanNumDup, dupStdDevPerBC);
+		marker.mark(reader.iterator());
+		result.tallyRevisedStats();
+		return result;
+	}
+	
+	/**
+	 * Mark duplicates of each chromosome of an indexed BAM file on its own thread, then write the chromosomes in header order.
+	 * Positions are grouped by chromosome and start, and the last position of each chromosome is counted like the others.
+	 * @param bam Indexed BAM file
+	 * @param numThreads Number of chromosomes to mark at once
+	 */
+	public static MarkDuplicatesResults markDuplicatesByChromosome(final int bcSize, final File bam, BAMFileWriter writer, 
+			final boolean exportCounts, final int threshold1, final int threshold2, final double allowedFracOfMean, int numThreads) throws IOException {
+		SAMFileReader indexReader = new SAMFileReader(bam);
+		final SAMFileHeader header = indexReader.getFileHeader();
+		boolean hasIndex = indexReader.hasIndex();
+		indexReader.close();
+		if(!hasIndex) {
+			throw new IllegalArgumentException("Marking chromosomes in parallel needs an index for " + bam);
 		}
-		int currentStart = 0;
-		IntervalTree<Set<String>> currentBarcodeTree = new IntervalTree<Set<String>>();
-		HashMap<String, Integer>  currentBarcodeDuplicates = new HashMap<String, Integer>(); 
-		int numBCs = (int) Math.pow(4, bcSize) + 1; //the +1 is for degenerate (containing N barcodes).
-		int curAlnNum = 0;
-		int lastStart = 0;
+		List<String> chromosomes = new ArrayList<String>();
+		for(SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+			chromosomes.add(sequence.getSequenceName());
+		}
+		chromosomes.add(null); // unmapped reads
 		
+		List<Callable<Object[]>> tasks = new ArrayList<Callable<Object[]>>();
+		for(final String chr : chromosomes) {
+			tasks.add(new Callable<Object[]>() {
+				@Override
+				public Object[] call() throws IOException {
+					SAMFileReader chrReader = new SAMFileReader(bam);
+					File chrFile = File.createTempFile("markdup", ".bam");
+					BAMFileWriter chrWriter = new BAMFileWriter(chrFile);
+					chrWriter.setSortOrder(SortOrder.coordinate, true);
+					chrWriter.setHeader(header);
+					MarkDuplicatesResults partial = newResults(bcSize, threshold1, threshold2, allowedFracOfMean);
+					partial.deferStatistics();
+					try {
+						PositionMarker marker = new PositionMarker(bcSize, partial, chrWriter, exportCounts, threshold2, true);
+						marker.mark(chr == null ? chrReader.queryUnmapped() : chrReader.query(chr, 0, 0, false));
+					} finally {
+						chrReader.close();
+						chrWriter.close();
+					}
+					return new Object[] {partial, chrFile};
+				}
+			});
+		}
 		
+		MarkDuplicatesResults result = newResults(bcSize, threshold1, threshold2, allowedFracOfMean);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		try {
+			int alnOffset = 0;
+			for(Future<Object[]> future : executor.invokeAll(tasks)) {
+				Object[] chrResult = future.get();
+				MarkDuplicatesResults partial = (MarkDuplicatesResults) chrResult[0];
+				File chrFile = (File) chrResult[1];
+				result.merge(partial, alnOffset);
+				alnOffset += partial.alnNum;
+				SAMFileReader chrReader = new SAMFileReader(chrFile);
+				try {
+					SAMRecordIterator sri = chrReader.iterator();
+					while(sri.hasNext()) {
+						writer.addAlignment(sri.next());
+					}
+				} finally {
+					chrReader.close();
+					chrFile.delete();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		return result;
+	}
+	
+	private static MarkDuplicatesResults newResults(int bcSize, int threshold1, int threshold2, double allowedFracOfMean) {
+		if(bcSize < 1 || bcSize > MAX_BC_SIZE) {
+			throw new IllegalArgumentException("Barcode size must be between 1 and " + MAX_BC_SIZE + " but was " + bcSize);
+		}
+		MarkDuplicatesResults result = new MarkDuplicatesResults(threshold1, threshold2, allowedFracOfMean);
+		result.bcSize = bcSize;
+		int numBCs = (int) Math.pow(4, bcSize) + 1; //the +1 is for degenerate (containing N barcodes).
 		result.initHistNumUniqueBC(numBCs);
 		result.initHistNumDupBC(numBCs);
 		result.initStatsByNumDistinctBCSeen(numBCs);
 		result.initStatsByNumBCDup(numBCs);
-		int start = 0;
-		int end = 0;
+		return result;
+	}
+	
+	/**
+	 * Longest barcode that packs into a long at 2 bits per base
+	 */
+	static final int MAX_BC_SIZE = 31;
+	
+	/**
+	 * Code of barcodes that contain a base other than A, C, G or T
+	 */
+	static final long DEGENERATE_BC = -1;
+	
+	/**
+	 * @param readName Read name ending with the barcode
+	 * @param bcSize Barcode length
+	 * @return The barcode packed 2 bits per base, or DEGENERATE_BC if it has a base other than A, C, G or T
+	 */
+	static long encodeBarcode(String readName, int bcSize) {
+		long rtrn = 0;
+		for(int i = readName.length() - bcSize; i < readName.length(); i++) {
+			switch(readName.charAt(i)) {
+			case 'A': rtrn = rtrn << 2; break;
+			case 'C': rtrn = (rtrn << 2) | 1; break;
+			case 'G': rtrn = (rtrn << 2) | 2; break;
+			case 'T': rtrn = (rtrn << 2) | 3; break;
+			default: return DEGENERATE_BC;
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @param code Packed barcode
+	 * @param bcSize Barcode length
+	 * @return The barcode, all Ns if degenerate
+	 */
+	static String decodeBarcode(long code, int bcSize) {
+		char[] rtrn = new char[bcSize];
+		if(code == DEGENERATE_BC) {
+			Arrays.fill(rtrn, 'N');
+			return new String(rtrn);
+		}
+		for(int i = bcSize - 1; i >= 0; i--) {
+			rtrn[i] = "ACGT".charAt((int) (code & 3));
+			code = code >>> 2;
+		}
+		return new String(rtrn);
+	}
+	
+	/**
+	 * Marks duplicates in a coordinate sorted stream of alignments, one start position at a time:
+	 * an alignment is a duplicate of an earlier one with the same start, end and barcode
+	 */
+	static final class PositionMarker {
+		private final int bcSize;
+		private final MarkDuplicatesResults result;
+		private final SAMFileWriter writer;
+		private final boolean exportCounts;
+		private final int threshold2;
+		private final boolean perChromosome;
+		private final PositionGroup group = new PositionGroup();
+		private final List<SAMRecord> buffer = new ArrayList<SAMRecord>();
+		private boolean adjust = false;
+		private double meanNumDup;
+		private double dupStdDevPerBC;
+		private int currentStart;
+		private int curAlnNum = 0;
 		
-
-		SAMRecordIterator sri = reader.iterator();
-		while(sri.hasNext()) {
-			SAMRecord samR = sri.next();
-			String readName = samR.getReadName();
-			String bc = readName.substring(readName.length() - bcSize);
-			if(bc.contains("N")) { //Only one degenerate barcode allowed. May revisit later.
-				bc = degenerateBC.toString();
-				result.addToDegenerateBCs();
+		/**
+		 * @param perChromosome The stream is one chromosome: the last position is counted like the others,
+		 * 		rather than the last alignment being left unmarked as the single file pass does
+		 */
+		PositionMarker(int bcSize, MarkDuplicatesResults result, SAMFileWriter writer, boolean exportCounts, int threshold2, boolean perChromosome) {
+			this.bcSize = bcSize;
+			this.result = result;
+			this.writer = writer;
+			this.exportCounts = exportCounts;
+			this.threshold2 = threshold2;
+			this.perChromosome = perChromosome;
+			this.currentStart = perChromosome ? -1 : 0;
+		}
+		
+		/**
+		 * Adjust the markings of each position above threshold2 as the second pass does, before writing it
+		 */
+		void setAdjustment(double meanNumDup, double dupStdDevPerBC) {
+			this.adjust = true;
+			this.meanNumDup = meanNumDup;
+			this.dupStdDevPerBC = dupStdDevPerBC;
+		}
+		
+		void mark(SAMRecordIterator sri) {
+			try {
+				while(sri.hasNext()) {
+					SAMRecord samR = sri.next();
+					long bc = encodeBarcode(samR.getReadName(), bcSize);
+					if(bc == DEGENERATE_BC) { //Only one degenerate barcode allowed. May revisit later.
+						result.addToDegenerateBCs();
+					}
+					int start = samR.getAlignmentStart();
+					int end   = samR.getAlignmentEnd();
+					result.alnNum++;
+					curAlnNum++;
+					if(currentStart != start || (!perChromosome && !sri.hasNext())) { //Its OK if we do not mark the last alignment as duplicated ... we'll leave
+						int lastStart = currentStart;
+						currentStart = start;
+						flush(lastStart, true);
+						curAlnNum = 0;
+					}
+					markRecord(samR, end, bc);
+				}
+				flush(currentStart, perChromosome);
+			} finally {
+				sri.close();
 			}
-			
-			start = samR.getAlignmentStart();
-			end   = samR.getAlignmentEnd();
-			result.alnNum++;
-			curAlnNum++;
-			if(currentStart != start || !sri.hasNext()) { //Its OK if we do not mark the last alignment as duplicated ... we'll leave
-				lastStart = currentStart;
-				currentStart = start;
-				currentBarcodeTree.clear();
+		}
+		
+		private void markRecord(SAMRecord samR, int end, long bc) {
+			if(group.addEnd(end)) {
+				group.increment(end, bc);
+				result.numUnmarked++;
+				result.addBarcode(bc);
+			} else if(group.increment(end, bc) > 1) {
+				samR.setDuplicateReadFlag(true);
+				result.numAlignedMarked++;
+			} else {
+				result.numUnmarked++;
+			}
+			if(adjust) {
+				buffer.add(samR);
+			} else {
+				writer.addAlignment(samR);
+			}
+		}
+		
+		/**
+		 * Tally the position that just ended, adjust and write its buffered alignments
+		 * @param lastStart Start of the position
+		 * @param count False to only write the alignments
+		 */
+		private void flush(int lastStart, boolean count) {
+			if(count) {
 				int currentNumDup = 0;
 				int currentNumUnique = 0;
-
-				for (String seenBC : currentBarcodeDuplicates.keySet()) {
-					int numOfSeenBC = currentBarcodeDuplicates.get(seenBC);
-					
-			
+				for(int i = 0; i < group.size(); i++) {
+					if(group.getBarcode(i) == PositionGroup.END_SEEN) {
+						continue;
+					}
+					int numOfSeenBC = group.getCount(i);
 					if( numOfSeenBC == 1) {
 						result.numUnique++;
 						currentNumUnique++;
 					} else {
-						result.duplicationStats.addValue(numOfSeenBC);
+						result.addDuplication(numOfSeenBC);
 						result.numDup += numOfSeenBC;
 						currentNumDup += numOfSeenBC;
 					}
 				}
-				int currentNumBCDup = currentBarcodeDuplicates.size() - currentNumUnique;
+				int numDistinct = group.getNumBarcodes();
+				int currentNumBCDup = numDistinct - currentNumUnique;
 				
-				if (currentBarcodeDuplicates.size() != 0){
+				if (numDistinct != 0){
 					if (exportCounts){
 						result.addCountsByPosition(currentNumUnique, currentNumBCDup,currentNumDup);
 					}
-					result.histNumUniqueBC[currentBarcodeDuplicates.size()-1] += 1;	
-					result.updateStatsByNumDistinctBCSeen(currentBarcodeDuplicates.size(), currentNumBCDup);
-					
-					if (currentBarcodeDuplicates.size() != currentNumUnique){
-			
+					result.histNumUniqueBC[numDistinct-1] += 1;	
+					result.updateStatsByNumDistinctBCSeen(numDistinct, currentNumBCDup);
+					if (numDistinct != currentNumUnique){
 						result.updateStatsByNumBCDup(currentNumBCDup, currentNumDup);
-						
 					}
 				}
 				
-				
 				if (currentNumBCDup != 0){
 					result.histNumDupBC[currentNumBCDup - 1] += 1;
 					if (currentNumBCDup >= threshold2){
 						result.addStartToEvalList(result.alnNum - curAlnNum, lastStart);
 						result.addRevisedCountsByPosition(currentNumUnique, currentNumBCDup,currentNumDup);  //these initial counts  used in adjusting marking and corrected on 2nd pass
+						if(adjust) {
+							adjustBuffered(currentNumUnique, currentNumBCDup, currentNumDup);
+						}
 					}
 				}
-
-				curAlnNum = 0;
-				currentBarcodeDuplicates.clear();
 			}
-
-			String compositeBCName = getCompositeBC(bc, start, end);
-			Node<Set<String>> intervalBarcodeNode = currentBarcodeTree.find(start, end);
-			if(intervalBarcodeNode == null) {
-				Set<String> intervalBarcodes = new TreeSet<String>();
-				intervalBarcodes.add(bc);
-				currentBarcodeTree.put(start, end, intervalBarcodes);
-				currentBarcodeDuplicates.put(compositeBCName, 1);
-				result.numUnmarked++;
-				result.addBarcode(bc);
-			} else {
-				Set<String> intervalBarcodes = intervalBarcodeNode.getValue();
-				if (intervalBarcodes.contains(bc) ) {
-					samR.setDuplicateReadFlag(true);
-					result.numAlignedMarked++;
-					currentBarcodeDuplicates.put(compositeBCName, currentBarcodeDuplicates.get(compositeBCName)+1);
-				} else {
-					currentBarcodeDuplicates.put(compositeBCName, 1);
-					intervalBarcodes.add(bc);
+			for(SAMRecord samR : buffer) {
+				writer.addAlignment(samR);
+			}
+			buffer.clear();
+			group.clear();
+		}
+		
+		/**
+		 * Unmark duplicates of the buffered position as adjustNumFlagged does for a position it evaluates
+		 */
+		private void adjustBuffered(int currentNumUnique, int currentNumBCDup, int currentNumDup) {
+			if(currentNumBCDup <= threshold2 || currentNumDup <= meanNumDup*currentNumBCDup + 3*Math.sqrt(currentNumBCDup)*dupStdDevPerBC) {
+				return;
+			}
+			double dupScore = meanNumDup/2 - currentNumBCDup*meanNumDup - currentNumUnique;
+			int currentAdjustedNumBCDup = currentNumBCDup;
+			for(SAMRecord samR : buffer) {
+				dupScore++;
+				if(samR.getDuplicateReadFlag() && dupScore >= meanNumDup) {
+					samR.setDuplicateReadFlag(false);
+					dupScore = dupScore - meanNumDup;
+					result.numRemovedMark++;
+					result.numAlignedMarked--;
 					result.numUnmarked++;
+					currentAdjustedNumBCDup++;
 				}
 			}
-
-			writer.addAlignment(samR);
+			int e[] = {currentNumUnique, currentAdjustedNumBCDup, currentNumDup};
+			result.revisedPositionCounts.set(result.revisedPositionCounts.size() - 1, e);
+			if (currentAdjustedNumBCDup > result.maxAdjustedNumBCDup) {
+				result.maxAdjustedNumBCDup = currentAdjustedNumBCDup;
+			}
 		}
+	}
+	
+	/**
+	 * Counts of (alignment end, barcode) among the alignments at one start position, in an open addressing table
+	 * that is cleared rather than rebuilt between positions
+	 */
+	static final class PositionGroup {
 		
+		/**
+		 * Barcode of the entry recording that an end was seen
+		 */
+		static final long END_SEEN = -2;
 		
-		return result;
-
+		private int[] ends = new int[64];
+		private long[] barcodes = new long[64];
+		private int[] counts = new int[64]; // 0 for free slots
+		private int[] usedSlots = new int[32];
+		private int size;
+		private int numBarcodes;
+		
+		/**
+		 * @return True if no alignment with this end was seen at the position before
+		 */
+		boolean addEnd(int end) {
+			return increment(end, END_SEEN) == 1;
+		}
+		
+		/**
+		 * @return The number of alignments with this end and barcode, including this one
+		 */
+		int increment(int end, long barcode) {
+			int slot = find(end, barcode);
+			if(counts[slot] == 0) {
+				ends[slot] = end;
+				barcodes[slot] = barcode;
+				if(size == usedSlots.length) {
+					usedSlots = Arrays.copyOf(usedSlots, 2 * size);
+				}
+				usedSlots[size++] = slot;
+				if(barcode != END_SEEN) {
+					numBarcodes++;
+				}
+				counts[slot] = 1;
+				if(2 * size > counts.length) {
+					grow();
+				}
+				return 1;
+			}
+			return ++counts[slot];
+		}
+		
+		private int find(int end, long barcode) {
+			int mask = counts.length - 1;
+			long h = (barcode * 0x9E3779B97F4A7C15L) ^ end;
+			h ^= h >>> 31;
+			int slot = (int) h & mask;
+			while(counts[slot] != 0 && (ends[slot] != end || barcodes[slot] != barcode)) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		private void grow() {
+			int[] oldEnds = ends;
+			long[] oldBarcodes = barcodes;
+			int[] oldCounts = counts;
+			ends = new int[2 * oldCounts.length];
+			barcodes = new long[2 * oldCounts.length];
+			counts = new int[2 * oldCounts.length];
+			for(int i = 0; i < size; i++) {
+				int old = usedSlots[i];
+				int slot = find(oldEnds[old], oldBarcodes[old]);
+				ends[slot] = oldEnds[old];
+				barcodes[slot] = oldBarcodes[old];
+				counts[slot] = oldCounts[old];
+				usedSlots[i] = slot;
+			}
+		}
+		
+		/**
+		 * @return Number of entries, including those recording ends
+		 */
+		int size() {
+			return size;
+		}
+		
+		/**
+		 * @return Number of distinct (end, barcode) pairs
+		 */
+		int getNumBarcodes() {
+			return numBarcodes;
+		}
+		
+		long getBarcode(int i) {
+			return barcodes[usedSlots[i]];
+		}
+		
+		int getCount(int i) {
+			return counts[usedSlots[i]];
+		}
+		
+		void clear() {
+			for(int i = 0; i < size; i++) {
+				counts[usedSlots[i]] = 0;
+			}
+			size = 0;
+			numBarcodes = 0;
+		}
 	}
-
-	private static String getCompositeBC(String bc, int start, int end) {
-		return bc+start+"."+end;
+	
+	/**
+	 * Counts by long key in an open addressing table
+	 */
+	static final class LongCounts {
+		
+		private static final long EMPTY = Long.MIN_VALUE;
+		
+		private long[] keys = newKeys(64);
+		private long[] counts = new long[64];
+		private int size;
+		
+		private static long[] newKeys(int capacity) {
+			long[] rtrn = new long[capacity];
+			Arrays.fill(rtrn, EMPTY);
+			return rtrn;
+		}
+		
+		void add(long key, long count) {
+			int slot = find(keys, key);
+			if(keys[slot] == EMPTY) {
+				keys[slot] = key;
+				size++;
+				counts[slot] = count;
+				if(2 * size > keys.length) {
+					grow();
+				}
+				return;
+			}
+			counts[slot] += count;
+		}
+		
+		long get(long key) {
+			int slot = find(keys, key);
+			return keys[slot] == EMPTY ? 0 : counts[slot];
+		}
+		
+		void addAll(LongCounts other) {
+			for(int i = 0; i < other.keys.length; i++) {
+				if(other.keys[i] != EMPTY) {
+					add(other.keys[i], other.counts[i]);
+				}
+			}
+		}
+		
+		/**
+		 * @return The keys in increasing order
+		 */
+		long[] getSortedKeys() {
+			long[] rtrn = new long[size];
+			int n = 0;
+			for(long key : keys) {
+				if(key != EMPTY) {
+					rtrn[n++] = key;
+				}
+			}
+			Arrays.sort(rtrn);
+			return rtrn;
+		}
+		
+		private static int find(long[] keys, long key) {
+			int mask = keys.length - 1;
+			long h = key * 0x9E3779B97F4A7C15L;
+			int slot = (int) (h ^ (h >>> 32)) & mask;
+			while(keys[slot] != EMPTY && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		private void grow() {
+			long[] oldKeys = keys;
+			long[] oldCounts = counts;
+			keys = newKeys(2 * oldKeys.length);
+			counts = new long[2 * oldKeys.length];
+			for(int i = 0; i < oldKeys.length; i++) {
+				if(oldKeys[i] != EMPTY) {
+					int slot = find(keys, oldKeys[i]);
+					keys[slot] = oldKeys[i];
+					counts[slot] = oldCounts[i];
+				}
+			}
+		}
 	}
 
-	
-	
+
 	private static void adjustNumFlagged(int bcSize, SAMFileReader reader2, BAMFileWriter writer2, MarkDuplicatesResults result){	
 
 		int currentStart = 0;
@@ -377,6 +822,7 @@ public class MarkDuplicatesFromNameUMI {
 		int alnNum = 0;
 		// using depth of 10 as estimate, lower should be better estimate as all dups expected to be pcr dups, but lowest depth numbers are a little funky.
 		double estStDevDupPerBC = result.statsByNumBCDup[9].getStandardDeviation()/Math.sqrt(10);  
+		log.info("Standard deviation of duplicates per barcode (use with -meanNumDup in a single pass run): " + estStDevDupPerBC);
 		SAMRecordIterator sri = reader2.iterator();
 		while(sri.hasNext()) {
 			SAMRecord samR = sri.next();
@@ -465,7 +911,10 @@ public class MarkDuplicatesFromNameUMI {
 		private int numUnique = 0;
 		private int numDup = 0;
 		private int alnNum = 0;
-		private HashMap<String, Integer> bcOccurrences = new HashMap<String, Integer>();
+		private int bcSize;
+		private LongCounts bcOccurrences = new LongCounts(); // by packed barcode
+		// Values of the summary statistics, when they are kept to be merged into another result later
+		private LongCounts deferredValues = null;
 		private List<int[]> positionCounts = new ArrayList<int[]>(); // currentNumUnique, currentNumBCdup, currentNumDup
 		private List<int[]> revisedPositionCounts = new ArrayList<int[]>(); // currentNumUnique, currentNumBCdup, currentNumDup
 		private int[] histNumUniqueBC;  // eliminate? tracking but no longer using...add option to export?
@@ -503,13 +952,96 @@ public class MarkDuplicatesFromNameUMI {
 			return this.degenerateBCs;
 		}
 
+		public int getNumAlignments() {
+			return this.alnNum;
+		}
+
 		public void addBarcode(String bc) {
-			if(!bcOccurrences.containsKey(bc)) {
-				this.bcOccurrences.put(bc, 1);
+			if(bcSize == 0) {
+				bcSize = bc.length();
+			}
+			addBarcode(encodeBarcode(bc, bc.length()));
+		}
+		
+		void addBarcode(long bc) {
+			bcOccurrences.add(bc, 1);
+		}
+		
+		private static final int DUPLICATION_STATS = 0;
+		private static final int STATS_BY_NUM_BC_DUP = 1;
+		private static final int STATS_BY_NUM_DISTINCT_BC_SEEN = 2;
+		
+		/**
+		 * Count the values of the summary statistics instead of adding them, so that they can be merged into another result
+		 */
+		void deferStatistics() {
+			deferredValues = new LongCounts();
+		}
+		
+		/**
+		 * @param statistic Which statistics
+		 * @param index Index in the array of statistics
+		 * @param value Integer value
+		 * @return Key of a deferred value
+		 */
+		private static long deferredKey(int statistic, int index, int value) {
+			return ((long) statistic << 60) | ((long) index << 32) | (value & 0xFFFFFFFFL);
+		}
+		
+		private SummaryStatistics getStatistics(int statistic, int index) {
+			switch(statistic) {
+			case DUPLICATION_STATS: return duplicationStats;
+			case STATS_BY_NUM_BC_DUP: return statsByNumBCDup[index];
+			default: return statsByNumDistinctBCSeen[index];
+			}
+		}
+		
+		void addDuplication(int numOfSeenBC) {
+			if(deferredValues != null) {
+				deferredValues.add(deferredKey(DUPLICATION_STATS, 0, numOfSeenBC), 1);
 			} else {
-				this.bcOccurrences.put(bc, bcOccurrences.get(bc) + 1);
+				duplicationStats.addValue(numOfSeenBC);
+			}
+		}
+		
+		/**
+		 * Add the counts of the alignments that follow those already counted
+		 * @param other Results of the following alignments, with deferred statistics
+		 * @param alnOffset Number of alignments before those of other
+		 */
+		void merge(MarkDuplicatesResults other, int alnOffset) {
+			numUnmarked += other.numUnmarked;
+			numAlignedMarked += other.numAlignedMarked;
+			numUnique += other.numUnique;
+			numDup += other.numDup;
+			alnNum += other.alnNum;
+			numRemovedMark += other.numRemovedMark;
+			degenerateBCs += other.degenerateBCs;
+			maxAdjustedNumBCDup = Math.max(maxAdjustedNumBCDup, other.maxAdjustedNumBCDup);
+			bcOccurrences.addAll(other.bcOccurrences);
+			positionCounts.addAll(other.positionCounts);
+			revisedPositionCounts.addAll(other.revisedPositionCounts);
+			for(int[] e : other.startsToEval) {
+				addStartToEvalList(e[0] + alnOffset, e[1]);
+			}
+			for(int i = 0; i < histNumUniqueBC.length; i++) {
+				histNumUniqueBC[i] += other.histNumUniqueBC[i];
+				histNumDupBC[i] += other.histNumDupBC[i];
+			}
+			for(long key : other.deferredValues.getSortedKeys()) {
+				int statistic = (int) (key >>> 60);
+				int index = (int) ((key >>> 32) & 0x0FFFFFFF);
+				int value = (int) key;
+				long count = other.deferredValues.get(key);
+				if(deferredValues != null) {
+					deferredValues.add(key, count);
+				} else {
+					SummaryStatistics stats = getStatistics(statistic, index);
+					for(long c = 0; c < count; c++) {
+						stats.addValue(value);
+					}
+				}
 			}
-
 		}
 		
 		public void addCountsByPosition(int currentNumUnique, int currentNumBCDup, int currentNumDup){
@@ -554,6 +1086,10 @@ public class MarkDuplicatesFromNameUMI {
 		
 		public void updateStatsByNumBCDup(int currentNumBCDup, int currentNumDup){
 			
+			if(deferredValues != null) {
+				deferredValues.add(deferredKey(STATS_BY_NUM_BC_DUP, currentNumBCDup - 1, currentNumDup), 1);
+				return;
+			}
 			statsByNumBCDup[currentNumBCDup - 1].addValue(currentNumDup);
 			
 		}
@@ -723,6 +1259,10 @@ public class MarkDuplicatesFromNameUMI {
 		
 		public void updateStatsByNumDistinctBCSeen(int currentNumDistinctBC, int currentNumDup){
 			
+			if(deferredValues != null) {
+				deferredValues.add(deferredKey(STATS_BY_NUM_DISTINCT_BC_SEEN, currentNumDistinctBC - 1, currentNumDup), 1);
+				return;
+			}
 			statsByNumDistinctBCSeen[currentNumDistinctBC - 1].addValue((double)currentNumDup);
 				
 		}
@@ -786,25 +1326,29 @@ public class MarkDuplicatesFromNameUMI {
 			bw.write("Barcode\tCounts\tFraction");
 			bw.newLine();
 
-			List<String> bcs = new ArrayList<String>(bcOccurrences.keySet());
-			List<Double> bcsCounts = new ArrayList<Double>(bcOccurrences.keySet().size());
+			List<Long> bcs = new ArrayList<Long>();
+			List<Double> bcsCounts = new ArrayList<Double>();
 
-			for( String bc : bcs) {
+			for(long bc : bcOccurrences.getSortedKeys()) {
+				bcs.add(Long.valueOf(bc));
 				bcsCounts.add((double)bcOccurrences.get(bc));
 			}
-			Collections.sort(bcs, new Comparator<String>() {
-				public int compare(String o1, String o2) {
-					return bcOccurrences.get(o2) - bcOccurrences.get(o1);
+			Collections.sort(bcs, new Comparator<Long>() {
+				public int compare(Long o1, Long o2) {
+					long c1 = bcOccurrences.get(o1.longValue());
+					long c2 = bcOccurrences.get(o2.longValue());
+					return c1 > c2 ? -1 : (c1 == c2 ? 0 : 1);
 				}
 			});
 
 			double sum = Statistics.sum(bcsCounts);
-			for(String bc : bcs)  {
-				bw.write(bc);
+			for(Long bc : bcs)  {
+				long count = bcOccurrences.get(bc.longValue());
+				bw.write(decodeBarcode(bc.longValue(), bcSize));
 				bw.write("\t");
-				bw.write(String.valueOf(bcOccurrences.get(bc)));
+				bw.write(String.valueOf(count));
 				bw.write("\t");
-				bw.write(String.valueOf(bcOccurrences.get(bc)/(double)sum));
+				bw.write(String.valueOf(count/sum));
 				bw.newLine();
 			}
 		}
@@ -2,11 +2,21 @@ package nextgen.core.readers;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.broad.igv.Globals;
@@ -30,6 +40,7 @@ import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
 import nextgen.core.alignment.PairedEndAlignmentFactory;
 import nextgen.core.alignment.SingleEndAlignment;
 import nextgen.core.annotation.Annotation;
+import nextgen.core.utils.Metrics;
 import nextgen.core.writers.PairedEndWriter;
 
 
@@ -41,10 +52,20 @@ public class PairedEndReader {
 	public static enum AlignmentType { PAIRED_END, SINGLE_END };
     private boolean warned = false;
     private static Logger logger = Logger.getLogger(PairedEndIterator.class.getName());
+    private static final Metrics.Counter readsDecoded = Metrics.counter("PairedEndReader.readsDecoded");
 
 	private CloseableIterator<Alignment> mCurrentIterator = null;
+	private File bamFile;
 	private SAMFileReader reader;
 	private SAMFileHeader header;
+	private int numThreads = 1;
+	private int shardSize = 1000000;
+	private int minParallelQuerySize = 2000000;
+	// Thread pool and one reader per thread, opened on the first parallel read and kept until close()
+	private ExecutorService executor;
+	private final BlockingQueue<SAMFileReader> shardReaders = new LinkedBlockingQueue<SAMFileReader>();
+	private final List<SAMFileReader> allShardReaders = new ArrayList<SAMFileReader>();
+	private ParallelIterator parallelIterator;
 	
 	private AlignmentType alignmentType;
 	private TranscriptionRead strand;
@@ -62,6 +83,7 @@ public class PairedEndReader {
 
 	public PairedEndReader(File bam,TranscriptionRead read,boolean fra){
 		//We are going to read the .pebam files with special attribute flags and create a new "Alignment" object
+		this.bamFile=bam;
 		this.reader=new SAMFileReader(bam);
 		this.header=reader.getFileHeader();
 		alignmentType = getAlignmentType(this.header);
@@ -90,8 +112,50 @@ public class PairedEndReader {
 		fragment = fra;
 	}
 	
+	/**
+	 * Decode and convert records on several threads in iterator() and query()
+	 * The file is split into regions of shardSize bases that are read by separate readers,
+	 * alignments are still returned in file order
+	 * Only used for coordinate sorted files with an index, other files are read on the calling thread
+	 * The threads and their readers are opened once and kept until close()
+	 * @param numThreads Number of threads, 1 reads on the calling thread
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		if(numThreads != this.numThreads) {
+			closeShardReaders();
+		}
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * @param shardSize Number of bases each thread reads at a time when reading in parallel
+	 */
+	public void setShardSize(int shardSize) {
+		if(shardSize < 1) {
+			throw new IllegalArgumentException("Shard size must be at least 1: " + shardSize);
+		}
+		this.shardSize = shardSize;
+	}
+	
+	/**
+	 * @param minParallelQuerySize Queries over fewer bases than this are read on the calling thread
+	 */
+	public void setMinParallelQuerySize(int minParallelQuerySize) {
+		this.minParallelQuerySize = minParallelQuerySize;
+	}
+	
+	private boolean isParallel() {
+		return numThreads > 1 && reader.hasIndex() && header.getSortOrder() == SAMFileHeader.SortOrder.coordinate;
+	}
+	
 	public void close() throws IOException {
-		mCurrentIterator.close();
+		if (mCurrentIterator != null) {
+			mCurrentIterator.close();
+		}
+		closeShardReaders();
 		reader.close();
 	}
 	
@@ -127,19 +191,133 @@ public class PairedEndReader {
         return reader.hasIndex();
     }
 
+	/**
+	 * Start the thread pool and open one reader per thread if they are not open yet
+	 */
+	private ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PairedEndReader-" + bamFile.getName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			for (int i = 0; i < numThreads; i++) {
+				SAMFileReader shardReader = new SAMFileReader(bamFile);
+				allShardReaders.add(shardReader);
+				shardReaders.add(shardReader);
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Stop the thread pool and close the readers of the threads
+	 */
+	private void closeShardReaders() {
+		if (parallelIterator != null) {
+			parallelIterator.close();
+		}
+		if (executor == null) return;
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(60, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (SAMFileReader shardReader : allShardReaders) {
+			shardReader.close();
+		}
+		allShardReaders.clear();
+		shardReaders.clear();
+		executor = null;
+	}
+
+	/**
+	 * The shard readers are shared, so only one parallel iteration can be open at a time
+	 */
+	private ParallelIterator startParallelIterator(List<Shard> shards) {
+		if (parallelIterator != null) {
+			throw new IllegalStateException("Iteration in progress");
+		}
+		return new ParallelIterator(shards);
+	}
+
 	public CloseableIterator<Alignment> iterator() {
 		if (mCurrentIterator != null) {
             throw new IllegalStateException("Iteration in progress");
         }
-		mCurrentIterator = new PairedEndIterator();
+		if (isParallel()) {
+			List<Shard> shards = new ArrayList<Shard>();
+			for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+				addShards(shards, sequence.getSequenceName(), 1, sequence.getSequenceLength(), false);
+			}
+			shards.add(new Shard(null, 0, 0, 0, true, false));
+			mCurrentIterator = startParallelIterator(shards);
+		} else {
+			mCurrentIterator = new PairedEndIterator();
+		}
 		return mCurrentIterator;
 	}
 
+	/**
+	 * Alignments overlapping or contained in the region
+	 * Only one query can be open at a time, an open iterator from a previous query is closed
+	 * @param a The region
+	 * @param contained Whether alignments must be fully contained in the region
+	 * @return Iterator over the alignments
+	 */
 	public CloseableIterator<Alignment> query(Annotation a, boolean contained) {
+		if (mCurrentIterator != null) {
+			mCurrentIterator.close();
+		}
+		if (isParallel() && (long) a.getSAMEnd() - a.getSAMStart() + 1 >= minParallelQuerySize) {
+			List<Shard> shards = new ArrayList<Shard>();
+			addShards(shards, a.getReferenceName(), a.getSAMStart(), a.getSAMEnd(), contained);
+			mCurrentIterator = startParallelIterator(shards);
+			return mCurrentIterator;
+		}
 		SAMRecordIterator query = null;
 	    query = reader.query(a.getReferenceName(), a.getSAMStart(), a.getSAMEnd(), contained);
 	    mCurrentIterator = new PairedEndIterator(query);
-	    return mCurrentIterator;	     
+	    return mCurrentIterator;
+	}
+	
+	/**
+	 * Split the 1-based closed interval [start, end] into shards
+	 */
+	private void addShards(List<Shard> shards, String chr, int start, int end, boolean contained) {
+		for (long pieceStart = start; pieceStart <= end; pieceStart += shardSize) {
+			int pieceEnd = (int) Math.min((long) end, pieceStart + shardSize - 1);
+			shards.add(new Shard(chr, (int) pieceStart, pieceEnd, end, pieceStart == start, contained));
+			if (pieceEnd == end) break;
+		}
+		if (start > end) {
+			shards.add(new Shard(chr, start, end, end, true, contained));
+		}
+	}
+
+	/**
+	 * Query the raw records in the file without converting them to alignments
+	 * Use toAlignment() to get the alignment the other iterators would have returned
+	 * @param a The region
+	 * @param contained Whether records must be fully contained in the region
+	 * @return Iterator over the records as stored in the file
+	 */
+	public CloseableIterator<SAMRecord> queryRecords(Annotation a, boolean contained) {
+		return reader.query(a.getReferenceName(), a.getSAMStart(), a.getSAMEnd(), contained);
+	}
+
+	/**
+	 * Convert a record from this file into an alignment using the reader's strand and fragment settings
+	 * Note that the record may be modified
+	 * @param record A record from this file
+	 * @return The alignment or null if the record cannot be converted
+	 */
+	public Alignment toAlignment(SAMRecord record) {
+		return samRecordToAlignment(record, strand, fragment);
 	}
 	 	 
 	
@@ -159,11 +337,10 @@ public class PairedEndReader {
         
 		public void close() {
 			if (!isClosed) {
-				if (mCurrentIterator == null) {
-					throw new IllegalStateException("Attempt to close non-current iterator");
-				}
 				itr.close();
-				mCurrentIterator = null;
+				if (mCurrentIterator == this) {
+					mCurrentIterator = null;
+				}
 				isClosed = true;
 			}
 		}
@@ -202,6 +379,216 @@ public class PairedEndReader {
         }
 	}
 
+	/**
+	 * Piece of a query read by one thread
+	 * A record belongs to the shard its alignment start falls in; the first shard of a query also takes the records starting before it
+	 */
+	private class Shard {
+		final String chr;
+		final int start;
+		final int end;
+		final int queryEnd;
+		final boolean first;
+		final boolean contained;
+
+		/**
+		 * @param chr Reference name, null for the unmapped reads at the end of the file
+		 * @param start First base of the shard
+		 * @param end Last base of the shard
+		 * @param queryEnd Last base of the whole query
+		 */
+		Shard(String chr, int start, int end, int queryEnd, boolean first, boolean contained) {
+			this.chr = chr;
+			this.start = start;
+			this.end = end;
+			this.queryEnd = queryEnd;
+			this.first = first;
+			this.contained = contained;
+		}
+
+		CloseableIterator<SAMRecord> query(SAMFileReader shardReader) {
+			if (chr == null) {
+				return shardReader.queryUnmapped();
+			}
+			// Containment is tested against the end of the whole query
+			return shardReader.query(chr, start, contained ? queryEnd : end, contained);
+		}
+
+		/**
+		 * Records come in order of start, so nothing after this record belongs to the shard
+		 */
+		boolean isPast(SAMRecord record) {
+			return chr != null && record.getAlignmentStart() > end;
+		}
+
+		boolean owns(SAMRecord record) {
+			return chr == null || first || record.getAlignmentStart() >= start;
+		}
+	}
+	
+	/**
+	 * Reads shards on the thread pool of the reader, each into its own bounded queue, and returns their alignments shard by shard
+	 * At most numThreads shards are in flight so every unfinished shard has a thread working on it
+	 */
+	private class ParallelIterator implements CloseableIterator<Alignment> {
+		private static final int QUEUE_SIZE = 10000;
+		private final Object END = new Object();
+		private final List<Shard> shards;
+		private final ExecutorService executor;
+		private final List<Future<?>> tasks = new ArrayList<Future<?>>();
+		private final LinkedList<BlockingQueue<Object>> inFlight = new LinkedList<BlockingQueue<Object>>();
+		// Number of shards a thread is working on, so the shard readers are all back when the iterator stops
+		private int running = 0;
+		private boolean isFinished = false;
+		private int nextShard = 0;
+		private BlockingQueue<Object> current;
+		private Alignment mNextRecord;
+		private boolean isClosed = false;
+
+		ParallelIterator(List<Shard> shards) {
+			this.shards = shards;
+			this.executor = getExecutor();
+			parallelIterator = this;
+			while (inFlight.size() < numThreads && nextShard < shards.size()) {
+				submit();
+			}
+			advance();
+		}
+
+		private void submit() {
+			final Shard shard = shards.get(nextShard++);
+			final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+			inFlight.add(queue);
+			tasks.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (tasks) {
+						running++;
+					}
+					try {
+						SAMFileReader shardReader = shardReaders.take();
+						try {
+							CloseableIterator<SAMRecord> iter = shard.query(shardReader);
+							try {
+								while (iter.hasNext()) {
+									SAMRecord record = iter.next();
+									if (shard.isPast(record)) break;
+									if (!shard.owns(record)) continue;
+									Alignment alignment = samRecordToAlignment(record, strand, fragment);
+									if (alignment != null) {
+										queue.put(alignment);
+									} else {
+										log.debug("samRecordToAlignment returned null for this record" + record.getSAMString());
+									}
+								}
+							} finally {
+								iter.close();
+							}
+						} finally {
+							shardReaders.offer(shardReader);
+						}
+						queue.put(END);
+					} catch (InterruptedException e) {
+						// Iterator was closed
+					} catch (Throwable t) {
+						// Hand the failure to the consumer, it is waiting on this queue
+						queue.clear();
+						queue.offer(t instanceof RuntimeException ? t : new RuntimeException(t));
+					} finally {
+						synchronized (tasks) {
+							running--;
+							tasks.notifyAll();
+						}
+					}
+				}
+			}));
+		}
+
+		private void advance() {
+			mNextRecord = null;
+			try {
+				while (true) {
+					if (current == null) {
+						if (inFlight.isEmpty()) {
+							shutdown();
+							return;
+						}
+						current = inFlight.removeFirst();
+						if (nextShard < shards.size()) {
+							submit();
+						}
+					}
+					Object next = current.take();
+					if (next == END) {
+						current = null;
+					} else if (next instanceof RuntimeException) {
+						close();
+						throw (RuntimeException) next;
+					} else {
+						mNextRecord = (Alignment) next;
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+				close();
+				throw new IllegalStateException("Interrupted while reading " + bamFile, e);
+			}
+		}
+
+		public boolean hasNext() {
+			if (isClosed) throw new IllegalStateException("Iterator has been closed");
+			return (mNextRecord != null);
+		}
+
+		public Alignment next() {
+			if (isClosed) throw new IllegalStateException("Iterator has been closed");
+			final Alignment result = mNextRecord;
+			advance();
+			return result;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("Not supported: remove");
+		}
+
+		public void close() {
+			if (!isClosed) {
+				isClosed = true;
+				shutdown();
+				if (mCurrentIterator == this) {
+					mCurrentIterator = null;
+				}
+			}
+		}
+
+		/**
+		 * Cancel the shards still being read and wait for their threads to give back the shard readers
+		 */
+		private void shutdown() {
+			if (isFinished) return;
+			isFinished = true;
+			for (Future<?> task : tasks) {
+				task.cancel(true);
+			}
+			boolean interrupted = false;
+			synchronized (tasks) {
+				while (running > 0) {
+					try {
+						tasks.wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (parallelIterator == this) {
+				parallelIterator = null;
+			}
+		}
+	}
+
 	/**
 	 * Parse the record
 	 * Either it is our modified record with the mate information or a standard single end read
@@ -211,6 +598,7 @@ public class PairedEndReader {
 	 */
 	private Alignment samRecordToAlignment(SAMRecord record,TranscriptionRead transcriptionRead,boolean fragment) {
 		Alignment rtrn;
+		readsDecoded.increment();
 		
 		try {
 			if (alignmentType == AlignmentType.PAIRED_END) {
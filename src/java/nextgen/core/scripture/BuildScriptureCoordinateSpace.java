@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -14,6 +15,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.collections15.Predicate;
 import org.apache.log4j.Logger;
@@ -24,7 +30,7 @@ import broad.core.annotation.MaximumContiguousSubsequence;
 import broad.core.datastructures.IntervalTree;
 import broad.core.datastructures.IntervalTree.Node;
 import broad.core.datastructures.Pair;
-import broad.core.math.ScanStatistics;
+import broad.core.math.ScanStatisticsTable;
 import broad.core.math.Statistics;
 import broad.core.util.CLUtil;
 import broad.core.util.CLUtil.ArgumentMap;
@@ -73,7 +79,12 @@ public class BuildScriptureCoordinateSpace {
 	private double minSpliceReads = MIN_SPLICE_READS;
 	private double minSplicePercent = MIN_SPLICE_PERCENT;
 	int counter = 1000;
-	int globalCounter = 1000;
+	private static final int ASSEMBLY_COUNTER_START = 1000;
+	int globalCounter = ASSEMBLY_COUNTER_START;
+	private String assemblyChr = "";
+	private static final int DEFAULT_THREADS = 1;
+	private static final int PREFETCH_REGIONS = 2;
+	private int numThreads = DEFAULT_THREADS;
 	File bamFileName;
 	private int constant = 10000;
 //	private double globalPairedLambda=0.0;
@@ -86,6 +97,28 @@ public class BuildScriptureCoordinateSpace {
 	public BuildScriptureCoordinateSpace(File bamFile,String genomeDir){
 		this(bamFile,genomeDir,bamFile.getName()+".reconstructions",true,DEFAULT_TXN_READ,null);
 	}
+	
+	/**
+	 * Copies the parameters of another instance so a chromosome can be assembled on its own thread
+	 * with its own alignment model and assembly counter
+	 * @param other
+	 */
+	private BuildScriptureCoordinateSpace(BuildScriptureCoordinateSpace other){
+		this.graphs=new TreeMap<String, ChromosomeTranscriptGraph>();
+		genomeSeq = other.genomeSeq;
+		windowSize = other.windowSize;
+		coveragePercentThreshold = other.coveragePercentThreshold;
+		outName = other.outName;
+		alpha = other.alpha;
+		THRESHOLD_SPURIOUS = other.THRESHOLD_SPURIOUS;
+		minSpliceReads = other.minSpliceReads;
+		minSplicePercent = other.minSplicePercent;
+		bamFileName = other.bamFileName;
+		bamfile = other.bamfile;
+		strand = other.strand;
+		isSingleEnd = other.isSingleEnd;
+		numThreads = DEFAULT_THREADS;
+	}
 	/**
 	 * 
 	 * @param bamFile
@@ -122,7 +155,8 @@ public class BuildScriptureCoordinateSpace {
 				"\nSplice junction Filter : "+
 				"\n\tNumber of spliced reads : "+minSpliceReads+
 				"\n\tPercentage of total spliced reads: "+minSplicePercent+
-				"\nAlpha for single exon assemblies : "+alpha
+				"\nAlpha for single exon assemblies : "+alpha+
+				"\nThreads : "+numThreads
 				);
 		
 		assemble(strand);
@@ -226,22 +260,85 @@ public class BuildScriptureCoordinateSpace {
 			alpha = argMap.getDouble("alpha", DEFAULT_ALPHA);
 			minSpliceReads = argMap.getDouble("minSpliceReads", MIN_SPLICE_READS);
 			minSplicePercent = argMap.getDouble("percentSpliceReads", MIN_SPLICE_PERCENT);
+			numThreads = Math.max(1, argMap.getInteger("threads", DEFAULT_THREADS));
 		}
 	}
 
 	private void assemble(TranscriptionRead strand) {
 		//Iterate over all chromosomes
+		List<String> expressed = new ArrayList<String>();
 		for(String chr: space.getReferenceNames()){
-			logger.info("Reference name: "+chr);
 			if(model.getRefSequenceLambda(chr)==0.0){
 				logger.info(chr+" is not expressed in the alignment file");
 			}
 			else{
+				expressed.add(chr);
+			}
+		}
+		
+		if(numThreads>1 && expressed.size()>1){
+			assembleInParallel(expressed, strand);
+		}
+		else{
+			for(String chr: expressed){
+				logger.info("Reference name: "+chr);
 				ChromosomeTranscriptGraph graph=assemble(chr,strand);
 				this.graphs.put(chr, graph);
 			}
 		}
 	}
+	
+	/**
+	 * Assembles each chromosome on a pool of numThreads workers.
+	 * Every chromosome is assembled by its own copy of this object, so each worker has its own alignment model
+	 * and assembly names only depend on the chromosome. The graphs are identical to the serial path.
+	 * @param chromosomes Expressed chromosomes
+	 * @param strand
+	 */
+	private void assembleInParallel(List<String> chromosomes, final TranscriptionRead strand) {
+		int poolSize = Math.min(numThreads, chromosomes.size());
+		logger.info("Assembling "+chromosomes.size()+" chromosomes on "+poolSize+" threads");
+		
+		//Start with the largest chromosomes so the idle workers pick up the small ones at the end
+		List<String> ordered = new ArrayList<String>(chromosomes);
+		final Map<String, Integer> lengths = model.getRefSequenceLengths();
+		Collections.sort(ordered, new Comparator<String>() {
+			@Override
+			public int compare(String chr1, String chr2) {
+				return lengths.get(chr2).compareTo(lengths.get(chr1));
+			}
+		});
+		
+		ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+		Map<String, Future<ChromosomeTranscriptGraph>> futures = new TreeMap<String, Future<ChromosomeTranscriptGraph>>();
+		for(final String chr: ordered){
+			futures.put(chr, executor.submit(new Callable<ChromosomeTranscriptGraph>() {
+				@Override
+				public ChromosomeTranscriptGraph call() {
+					logger.info("Reference name: "+chr);
+					BuildScriptureCoordinateSpace worker = new BuildScriptureCoordinateSpace(BuildScriptureCoordinateSpace.this);
+					return worker.assemble(chr, strand);
+				}
+			}));
+		}
+		executor.shutdown();
+		
+		try {
+			for(String chr: futures.keySet()){
+				this.graphs.put(chr, futures.get(chr).get());
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			throw new IllegalStateException("Interrupted while assembling chromosomes", e);
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			throw new IllegalStateException("Assembly failed", e.getCause());
+		}
+		
+		//The serial path leaves the filtered reconstruction model in place for scoring
+		model = getReconstructionModel(strand);
+		space = model.getCoordinateSpace();
+	}
 
 	private void postProcess(Map<String, Collection<Gene>> oldGenes) throws IOException{
 		
@@ -350,10 +447,16 @@ public class BuildScriptureCoordinateSpace {
 	
 	private ChromosomeTranscriptGraph assemble(String chr,TranscriptionRead strand) {
 		
-		//Option 1: Scan through the space and collapse into compatible edges and nodes
-		ChromosomeTranscriptGraph graph=assembleDirectly(chr,strand);
-		
-		return graph;
+		try{
+			//Option 1: Scan through the space and collapse into compatible edges and nodes
+			ChromosomeTranscriptGraph graph=assembleDirectly(chr,strand);
+			
+			return graph;
+		}
+		finally{
+			//Release the cached regions and the prefetch thread of this chromosome's model
+			model.closeCache();
+		}
 	}
 	
 	/**
@@ -380,12 +483,8 @@ public class BuildScriptureCoordinateSpace {
 			}
 		}
 		
-		double a=((k-lambdaW)/k)*(lambdaTw*ScanStatistics.poisson(k-1, lambdaW));     // poisson function = Poisson PDF
-		double result=ScanStatistics.Fp(k-1, lambdaW)*Math.exp(-a);					   // Fp = Poisson CDF
-		double p=1-result;
-		p=Math.abs(p);
-		p=Math.min(1, p);
-		//p=Math.max(0, p);
+		// Poisson PDF and CDF come from the shared memoized tables
+		double p=ScanStatisticsTable.getDefault().calculatePVal(k, lambdaW, lambdaTw);
 		//logger.info("Count = "+k+" Window = "+w+"LambdaW = "+lambdaW+" Pvalue = "+p);
 		return p;
 	}
@@ -836,13 +935,13 @@ public class BuildScriptureCoordinateSpace {
 	 */
 	private ChromosomeTranscriptGraph assembleDirectly(String chr,TranscriptionRead strand){
 		
-		JCSAlignmentModel libmodel=new JCSAlignmentModel(bamfile.getAbsolutePath(), null, new ArrayList<Predicate<Alignment>>(),!isSingleEnd,strand,false);
-		
-		model=new JCSAlignmentModel(bamfile.getAbsolutePath(), new TranscriptInGenomicSpace(libmodel.getRefSequenceLengths()), new ArrayList<Predicate<Alignment>>(),!isSingleEnd,strand,false);
-		model.addFilter(new UniqueMappedReadsFilter());
-		model.addFilter(new ReadsToReconstructFilter());
-		model.addFilter(new GenomicSpanFilter(20000000));
+		model=getReconstructionModel(strand);
+		//Assembly walks each chromosome left to right, so read the next regions ahead
+		model.setPrefetchRegions(PREFETCH_REGIONS);
 		this.space=model.getCoordinateSpace();
+		//Assembly names only depend on the chromosome so the result does not depend on the order chromosomes are assembled in
+		assemblyChr = chr;
+		globalCounter = ASSEMBLY_COUNTER_START;
 
 		long S = System.currentTimeMillis();	
 //		logger.info("Assembling spliced reads");
@@ -928,6 +1027,33 @@ public class BuildScriptureCoordinateSpace {
 		return graph;
 	}
 
+	/**
+	 * Returns a new alignment model with the read filters used for reconstruction
+	 * @param strand
+	 * @return
+	 */
+	private JCSAlignmentModel getReconstructionModel(TranscriptionRead strand){
+		JCSAlignmentModel libmodel=new JCSAlignmentModel(bamfile.getAbsolutePath(), null, new ArrayList<Predicate<Alignment>>(),!isSingleEnd,strand,false);
+		
+		JCSAlignmentModel rtrn=new JCSAlignmentModel(bamfile.getAbsolutePath(), new TranscriptInGenomicSpace(libmodel.getRefSequenceLengths()), new ArrayList<Predicate<Alignment>>(),!isSingleEnd,strand,false);
+		libmodel.closeCache();
+		rtrn.addFilter(new UniqueMappedReadsFilter());
+		rtrn.addFilter(new ReadsToReconstructFilter());
+		rtrn.addFilter(new GenomicSpanFilter(20000000));
+		return rtrn;
+	}
+	
+	/**
+	 * Returns the next assembly name for the chromosome being assembled
+	 * @param prefix
+	 * @return
+	 */
+	private String nextAssemblyName(String prefix){
+		String rtrn = prefix+assemblyChr+"_"+globalCounter;
+		globalCounter++;
+		return rtrn;
+	}
+
 	private void extendAssembly(IntervalTree<Assembly> tree) {
 		//We have a set of assemblies that are all incompatible
 		//We want to link up parts
@@ -1025,8 +1151,7 @@ public class BuildScriptureCoordinateSpace {
 		}
 		if(compatible(portionToConsiderAdding,intron)){
 			rtrn = mergeToAssembly(portionToConsiderAdding, intron);
-			rtrn.setName("gene_v_"+globalCounter);
-			globalCounter++;
+			rtrn.setName(nextAssemblyName("gene_v_"));
 			//System.out.println(merged);
 		}
 		return rtrn;
@@ -1193,7 +1318,7 @@ public class BuildScriptureCoordinateSpace {
 		iter.close();
 		//logger.info("Count = "+scores[0]+" Int version "+new Double(scores[0]).intValue()+" global paired lambda = "+globalPairedLambda+" gene size = "+model.getCoordinateSpace().getSize(gene)+ " or "+gene.size()+" global length = "+model.getGlobalLength()+" global lambda = "+model.getGlobalLambda());
 		//TODO: REPLACE GLOBAL LAMBDA
-		scores[1] = ScanStatistics.calculatePVal(new Double(scores[0]).intValue(), model.getGlobalLambda(),gene.size(), model.getGlobalLength());
+		scores[1] = ScanStatisticsTable.getDefault().calculatePVal(new Double(scores[0]).intValue(), model.getGlobalLambda(),gene.size(), model.getGlobalLength());
 		//logger.info("Pvalue = "+scores[1]);
 //		scores[1] = ScanStatistics.calculatePVal(new Double(scores[0]).intValue(), model.getGlobalLambda(), model.getCoordinateSpace().getSize(gene), model.getGlobalLength());
 		
@@ -1797,8 +1922,7 @@ public class BuildScriptureCoordinateSpace {
 					//add the read as an annotation
 					//Flag this as likely premature
 					Assembly readAssembly=new Assembly(read, false);
-					readAssembly.setName(linc+globalCounter);
-					globalCounter++;
+					readAssembly.setName(nextAssemblyName(linc));
 					if(flagPremature){
 						readAssembly.setPossiblePremature(true);
 					}
@@ -1826,8 +1950,7 @@ public class BuildScriptureCoordinateSpace {
 					
 					if(!hasCompatible){
 							Assembly readAssembly=new Assembly(read, false);
-							readAssembly.setName(linc+globalCounter);
-							globalCounter++;
+							readAssembly.setName(nextAssemblyName(linc));
 							if(flagPremature){
 								readAssembly.setPossiblePremature(true);
 							}
@@ -2889,6 +3012,7 @@ public class BuildScriptureCoordinateSpace {
 			"\n\t\t-minSpliceReads <The minimum number of splice reads allowed to support a single intron transcript. DEFAULT: 3> "+
 			"\n\t\t-percentSpliceReads <The minimum percentage of the average splice counts for a transcript, that an intron can be supported by. DEFAULT: 0.05> "+
 			"\n\t\t-alpha <The significance p-value threshold for reconstructions. DEFAULT: 0.01> "+
+			"\n\t\t-threads <Number of chromosomes to assemble concurrently. Each thread opens its own alignment reader. DEFAULT: 1> "+
 			"\n";
 	
 	//static String usage=" args[0]=bam file \n\t args[1]=minimum percentage threshold for coverage \n\t args[2]: Fasta file with Genome sequence"
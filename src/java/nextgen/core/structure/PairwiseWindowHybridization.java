@@ -15,6 +15,7 @@ import java.util.TreeSet;
 import org.apache.log4j.Logger;
 
 import broad.core.sequence.FastaSequenceIO;
+import broad.core.sequence.TwoBitGenome;
 import broad.pda.annotation.BEDFileParser;
 
 import nextgen.core.alignment.FeatureSequenceAlignment;
@@ -87,13 +88,34 @@ public class PairwiseWindowHybridization {
 		gene = transcript;
 		window = windowSize;
 		step = stepSize;
+		alignments = new FeatureSequenceAlignment(getWindowsAsGenes(), chrs, matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty);
+	}
+	
+	/**
+	 * @param transcript The gene
+	 * @param genome Genome read from a .2bit file
+	 * @param windowSize Window size
+	 * @param stepSize Step size
+	 * @param matchScore Match score for Smith Waterman
+	 * @param mismatchScore Mismatch score for Smith Waterman
+	 * @param gapOpenPenalty Gap open penalty for Smith Waterman
+	 * @param gapExtendPenalty Gap extend penalty for Smith Waterman
+	 */
+	public PairwiseWindowHybridization(Gene transcript, TwoBitGenome genome, int windowSize, int stepSize, float matchScore, float mismatchScore, float gapOpenPenalty, float gapExtendPenalty) {
+		gene = transcript;
+		window = windowSize;
+		step = stepSize;
+		alignments = new FeatureSequenceAlignment(getWindowsAsGenes(), genome, matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty);
+	}
+	
+	private Collection<Gene> getWindowsAsGenes() {
 		Collection<GeneWindow> windows = gene.getWindows(window, step, 0);
 		Collection<Gene> windowsAsGenes = new TreeSet<Gene>();
 		for(GeneWindow w : windows) {
 			windowsAsGenes.add(new Gene(w));
 		}
 		logger.info("Gene " + gene.getName() + " has " + windowsAsGenes.size() + " windows with window size " + window + " and step size " + step + ".");
-		alignments = new FeatureSequenceAlignment(windowsAsGenes, chrs, matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty);
+		return windowsAsGenes;
 	}
 	
 	/**
@@ -106,6 +128,17 @@ public class PairwiseWindowHybridization {
 		return alignments.getAllPairwiseAntisenseAlignments(minAlignLength, minPctIdentity);
 	}
 	
+	/**
+	 * Only align pairs of windows that share an antisense k-mer seed, on several threads
+	 * The seed length follows from the min alignment length and percent identity, so the hybridizing pairs are the same as when all pairs are aligned
+	 * @param seedAndExtend Whether to use seeds
+	 * @param numThreads Number of threads to align seeded pairs with
+	 */
+	public void setSeedAndExtend(boolean seedAndExtend, int numThreads) {
+		alignments.setSeedAndExtend(seedAndExtend);
+		alignments.setNumThreads(numThreads);
+	}
+	
 	/**
 	 * Get the midpoint of the window in transcript coordinates of the gene
 	 * @param region The window
@@ -227,7 +260,7 @@ public class PairwiseWindowHybridization {
 		
 		CommandLineParser p = new CommandLineParser();
 		p.addStringArg("-b", "Bed file of genes", true);
-		p.addStringArg("-g", "Genome fasta file", true);
+		p.addStringArg("-g", "Genome fasta file, or .2bit file to read the windows without loading the genome", true);
 		p.addStringArg("-ob", "Output bed file", false, null);
 		p.addStringArg("-ot", "Prefix for output table of coordinate pairs", false, null);
 		p.addStringArg("-bo", "Bed file of regions to test for overlap. Requires -ot.", false, null);
@@ -239,13 +272,16 @@ public class PairwiseWindowHybridization {
 		p.addFloatArg("-ge", "Gap extend penalty for Smith Waterman", false, FeatureSequenceAlignment.DEFAULT_GAP_EXTEND_PENALTY);
 		p.addIntArg("-ml", "Min alignment length", true);
 		p.addFloatArg("-mp", "Min percent identity", true);
+		p.addBooleanArg("-se", "Only align pairs of windows sharing an antisense k-mer seed", false, false);
+		p.addIntArg("-t", "Number of threads for seeded alignments", false, Runtime.getRuntime().availableProcessors());
 		p.parse(args);
 		String bedFile = p.getStringArg("-b");
 		Collection<Gene> genes = BEDFileParser.loadData(new File(bedFile));
 		String genomeFasta = p.getStringArg("-g");
 		String outBed = p.getStringArg("-ob");
 		String outTable = p.getStringArg("-ot");
-		Map<String, broad.core.sequence.Sequence> chromosomes = FastaSequenceIO.getChrSequencesFromFasta(genomeFasta);
+		TwoBitGenome twoBit = TwoBitGenome.isTwoBit(genomeFasta) ? TwoBitGenome.open(genomeFasta) : null;
+		Map<String, broad.core.sequence.Sequence> chromosomes = twoBit == null ? FastaSequenceIO.getChrSequencesFromFasta(genomeFasta) : null;
 		int windowSize = p.getIntArg("-w");
 		int stepSize = p.getIntArg("-s");
 		float matchScore = p.getFloatArg("-ma");
@@ -255,10 +291,15 @@ public class PairwiseWindowHybridization {
 		int minAlignLength = p.getIntArg("-ml");
 		float minPctIdentity = p.getFloatArg("-mp");
 		String bedOverlap = p.getStringArg("-bo");
+		boolean seedAndExtend = p.getBooleanArg("-se");
+		int numThreads = p.getIntArg("-t");
 
 		boolean first = true;
 		for(Gene gene : genes) {
-			PairwiseWindowHybridization pwh = new PairwiseWindowHybridization(gene, chromosomes, windowSize, stepSize, matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty);
+			PairwiseWindowHybridization pwh = twoBit != null
+					? new PairwiseWindowHybridization(gene, twoBit, windowSize, stepSize, matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty)
+					: new PairwiseWindowHybridization(gene, chromosomes, windowSize, stepSize, matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty);
+			pwh.setSeedAndExtend(seedAndExtend, numThreads);
 			logger.info("Writing hybridizing pairs for gene " + gene.getName() + " to file " + outBed);
 			if(outBed != null) {
 				pwh.writeAllHybridizingPairsToBed(outBed, !first, minAlignLength, minPctIdentity);
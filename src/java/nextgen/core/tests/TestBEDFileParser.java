@@ -0,0 +1,140 @@
+package nextgen.core.tests;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+import nextgen.core.annotation.Gene;
+import broad.core.datastructures.IntervalTree;
+import broad.core.datastructures.IntervalTree.Node;
+import broad.pda.annotation.BEDFileParser;
+
+/**
+ * Checks that broad.pda.annotation.BEDFileParser.loadDataByChr and loadDataByChrToTree load the same genes
+ * as parsing every line with the Gene constructor, on one and on several threads
+ *
+ */
+public class TestBEDFileParser extends TestCase {
+
+	private File bed;
+	private List<String> lines = new ArrayList<String>();
+
+	@Override
+	protected void setUp() throws IOException {
+		bed = File.createTempFile("TestBEDFileParser", ".bed");
+		Random random = new Random(17);
+		lines.add("track name=test");
+		lines.add("# comment");
+		for(int i=0; i<3000; i++) {
+			String chr = "chr" + (1 + random.nextInt(6));
+			int start = random.nextInt(100000);
+			int numBlocks = 1 + random.nextInt(5);
+			StringBuilder sizes = new StringBuilder();
+			StringBuilder starts = new StringBuilder();
+			int offset = 0;
+			for(int b=0; b<numBlocks; b++) {
+				int size = 10 + random.nextInt(200);
+				sizes.append(size).append(",");
+				starts.append(offset).append(",");
+				offset += size + 50 + random.nextInt(500);
+			}
+			int end = start + offset;
+			String strand = random.nextBoolean() ? "+" : "-";
+			String line = chr + "\t" + start + "\t" + end + "\tgene" + (i % 2500) + "\t" + random.nextInt(1000) + "\t" + strand + "\t" + start + "\t" + end + "\t0,0,0\t" + numBlocks + "\t" + sizes + "\t" + starts;
+			if(i % 7 == 0) {
+				line += "\textra" + i + "\t" + i;
+			}
+			if(i % 500 == 0) {
+				// Same gene twice
+				lines.add(line);
+			}
+			if(i % 300 == 0) {
+				// Six column line
+				line = chr + "\t" + start + "\t" + end + "\tshort" + i + "\t0\t" + strand;
+			}
+			if(i % 450 == 0) {
+				// Quoted blocks go through the Gene constructor
+				line = line.replace("\t" + sizes, "\t\"" + sizes.substring(0, sizes.length() - 1) + "\"");
+			}
+			lines.add(line);
+		}
+		BufferedWriter writer = new BufferedWriter(new FileWriter(bed));
+		for(String line : lines) {
+			writer.write(line + "\n");
+		}
+		writer.close();
+	}
+
+	@Override
+	protected void tearDown() {
+		bed.delete();
+	}
+
+	public void testLoadDataByChr() throws IOException {
+		Map<String, Collection<Gene>> expected = new TreeMap<String, Collection<Gene>>();
+		for(String line : lines) {
+			if(line.startsWith("#") || line.startsWith("track")) continue;
+			Gene gene = new Gene(line, false);
+			if(!expected.containsKey(gene.getChr())) {
+				expected.put(gene.getChr(), new TreeSet<Gene>());
+			}
+			expected.get(gene.getChr()).add(gene);
+		}
+		assertSameGenes(expected, BEDFileParser.loadDataByChr(bed));
+		assertSameGenes(expected, BEDFileParser.loadDataByChr(bed, 4));
+	}
+
+	public void testLoadDataByChrToTree() throws IOException {
+		Map<String, IntervalTree<Gene>> expected = new TreeMap<String, IntervalTree<Gene>>();
+		for(String line : lines) {
+			if(line.startsWith("#") || line.startsWith("track")) continue;
+			Gene gene = new Gene(line, false);
+			if(!expected.containsKey(gene.getChr())) {
+				expected.put(gene.getChr(), new IntervalTree<Gene>());
+			}
+			expected.get(gene.getChr()).put(gene.getStart(), gene.getEnd(), gene);
+		}
+		for(int numThreads : new int[] {1, 3}) {
+			Map<String, IntervalTree<Gene>> trees = BEDFileParser.loadDataByChrToTree(bed, numThreads);
+			assertEquals(expected.keySet(), trees.keySet());
+			for(String chr : expected.keySet()) {
+				Iterator<Node<Gene>> expectedNodes = expected.get(chr).iterator();
+				Iterator<Node<Gene>> nodes = trees.get(chr).iterator();
+				while(expectedNodes.hasNext()) {
+					Node<Gene> expectedNode = expectedNodes.next();
+					Node<Gene> node = nodes.next();
+					assertEquals(expectedNode.getStart(), node.getStart());
+					assertEquals(expectedNode.getEnd(), node.getEnd());
+					assertEquals(describe(expectedNode.getContainedValues()), describe(node.getContainedValues()));
+				}
+				assertFalse(nodes.hasNext());
+			}
+		}
+	}
+
+	private static void assertSameGenes(Map<String, Collection<Gene>> expected, Map<String, Collection<Gene>> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for(String chr : expected.keySet()) {
+			assertEquals(describe(expected.get(chr)), describe(actual.get(chr)));
+		}
+	}
+
+	private static List<String> describe(Collection<Gene> genes) {
+		List<String> rtrn = new ArrayList<String>();
+		for(Gene gene : genes) {
+			rtrn.add(gene.toBED() + " " + gene.getBedScore() + " " + gene.getScore() + " " + Arrays.toString(gene.getExtraFields()));
+		}
+		return rtrn;
+	}
+}
@@ -0,0 +1,170 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.datastructures.IntervalTree.Node;
+import junit.framework.TestCase;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.model.CompactReadStore;
+import nextgen.core.readers.PairedEndReader;
+
+/**
+ * Checks that nextgen.core.model.CompactReadStore returns the same reads as the IntervalTree the AlignmentModel cache used to build
+ *
+ */
+public class TestCompactReadStore extends TestCase {
+
+	private SAMFileHeader header;
+
+	@Override
+	protected void setUp() {
+		SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+		dictionary.addSequence(new SAMSequenceRecord("chr1", 1000000));
+		dictionary.addSequence(new SAMSequenceRecord("chr2", 1000000));
+		header = new SAMFileHeader();
+		header.setSequenceDictionary(dictionary);
+	}
+
+	public void testRoundTrip() {
+		SAMRecord record = makeRecord("read1", 1001, "20M300N30M");
+		record.setReadNegativeStrandFlag(true);
+		record.setMappingQuality(37);
+		record.setAttribute("NH", Integer.valueOf(3));
+		String sam = record.getSAMString();
+
+		CompactReadStore store = new CompactReadStore(header);
+		store.stage(record);
+		store.commit(record.getAlignmentStart() - 1, record.getAlignmentEnd());
+		store.seal();
+
+		SAMRecord decoded = store.getRecord(0);
+		assertEquals(sam, decoded.getSAMString());
+		assertEquals(3, ((Number) decoded.getAttribute("NH")).intValue());
+		assertEquals("20M300N30M", decoded.getCigarString());
+		assertTrue(decoded.getReadNegativeStrandFlag());
+	}
+
+	public void testUncommittedRecordsAreDropped() {
+		CompactReadStore store = new CompactReadStore(header);
+		store.stage(makeRecord("kept1", 101, "50M"));
+		store.commit(100, 150);
+		store.stage(makeRecord("dropped", 201, "50M"));
+		store.stage(makeRecord("kept2", 301, "50M"));
+		store.commit(300, 350);
+		store.seal();
+
+		assertEquals(2, store.size());
+		assertEquals("kept1", store.getRecord(0).getReadName());
+		assertEquals("kept2", store.getRecord(1).getReadName());
+	}
+
+	public void testOverlapsMatchIntervalTree() {
+		Random random = new Random(17);
+		CompactReadStore store = new CompactReadStore(header);
+		IntervalTree<String> tree = new IntervalTree<String>();
+		for(int i=0; i<3000; i++) {
+			// Mostly sorted like a BAM, with some fragments starting before the previous read
+			int start = i * 10 + random.nextInt(400) - 200;
+			start = Math.max(0, start);
+			int end = start + 1 + random.nextInt(i % 50 == 0 ? 5000 : 120);
+			if(i % 7 == 0) {
+				// Pile up reads at identical positions
+				start = (start / 100) * 100;
+				end = start + 50;
+			}
+			String name = "read" + i;
+			store.stage(makeRecord(name, start + 1, (end - start) + "M"));
+			store.commit(start, end);
+			tree.put(start, end, name);
+		}
+		store.seal();
+
+		for(int q=0; q<500; q++) {
+			int start = random.nextInt(31000);
+			int end = start + 1 + random.nextInt(q % 10 == 0 ? 3000 : 200);
+			List<String> expected = new ArrayList<String>();
+			Iterator<Node<String>> nodes = tree.overlappers(start, end);
+			while(nodes.hasNext()) {
+				Node<String> node = nodes.next();
+				expected.add(node.getStart() + "-" + node.getEnd() + ":" + node.getContainedValues().size() + ":" + node.getValue());
+			}
+
+			List<String> observed = new ArrayList<String>();
+			int i = store.firstOverlapper(start, end);
+			while(i < store.size()) {
+				int groupStart = store.getStart(i);
+				int groupEnd = store.getEnd(i);
+				String first = store.getRecord(i).getReadName();
+				int count = 0;
+				int j = i;
+				for(; j<store.size() && store.getStart(j)==groupStart && store.getEnd(j)==groupEnd; j++) {
+					count++;
+				}
+				observed.add(groupStart + "-" + groupEnd + ":" + count + ":" + first);
+				i = store.nextOverlapper(j, start, end);
+			}
+			assertEquals(expected, observed);
+		}
+	}
+
+	public void testAlignmentsAreDecodedOnce() throws IOException {
+		// The reader only needs a file with the same header to convert records
+		File bam = File.createTempFile("TestCompactReadStore", ".bam");
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, false, bam);
+		writer.close();
+		PairedEndReader reader = new PairedEndReader(bam);
+		CompactReadStore store = new CompactReadStore(header);
+		for(int i=0; i<20; i++) {
+			SAMRecord record = makeRecord("read" + i, 101 + 10 * i, i % 3 == 0 ? "20M300N30M" : "50M");
+			store.stage(record);
+			store.commit(record.getAlignmentStart() - 1, record.getAlignmentEnd());
+		}
+		store.seal();
+		for(int i=0; i<store.size(); i++) {
+			Alignment alignment = store.getAlignment(i, reader);
+			Alignment expected = reader.toAlignment(store.getRecord(i));
+			assertEquals(expected.getName(), alignment.getName());
+			assertEquals(expected.getBlocks().toString(), alignment.getBlocks().toString());
+			assertSame(alignment, store.getAlignment(i, reader));
+		}
+		reader.close();
+		bam.delete();
+	}
+
+	public void testEmptyStore() {
+		CompactReadStore store = new CompactReadStore(header);
+		store.seal();
+		assertEquals(0, store.size());
+		assertEquals(0, store.firstOverlapper(0, 100));
+	}
+
+	private SAMRecord makeRecord(String name, int start, String cigar) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceName("chr1");
+		record.setAlignmentStart(start);
+		record.setCigarString(cigar);
+		int length = record.getCigar().getReadLength();
+		StringBuilder bases = new StringBuilder();
+		StringBuilder qualities = new StringBuilder();
+		for(int i=0; i<length; i++) {
+			bases.append("ACGT".charAt((start + i) % 4));
+			qualities.append('I');
+		}
+		record.setReadString(bases.toString());
+		record.setBaseQualityString(qualities.toString());
+		return record;
+	}
+}
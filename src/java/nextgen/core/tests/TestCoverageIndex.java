@@ -0,0 +1,252 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import org.apache.commons.collections15.Predicate;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.CoverageIndex;
+import nextgen.core.model.CoverageIndexModel;
+import nextgen.core.model.score.CountScore;
+import nextgen.core.model.score.WindowScoreIterator;
+import nextgen.core.readFilters.GenomicSpanFilter;
+
+/**
+ * Checks the counts and coverage of nextgen.core.model.CoverageIndex against the reads written to a small BAM file
+ *
+ */
+public class TestCoverageIndex extends TestCase {
+
+	private static final int CHR_LENGTH = 5000;
+	private static final int NUM_READS = 1500;
+
+	private File bam;
+	private int[] starts = new int[NUM_READS];
+	private int[] ends = new int[NUM_READS];
+	private int[] intronStarts = new int[NUM_READS];
+	private int[] intronEnds = new int[NUM_READS];
+	private boolean[] negative = new boolean[NUM_READS];
+	private double[] weights = new double[NUM_READS];
+
+	@Override
+	protected void setUp() throws IOException {
+		bam = File.createTempFile("TestCoverageIndex", ".bam");
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", CHR_LENGTH));
+		header.addSequence(new SAMSequenceRecord("chr2", 2 * CHR_LENGTH));
+		Random random = new Random(11);
+		SAMFileWriterFactory factory = new SAMFileWriterFactory();
+		factory.setCreateIndex(true);
+		SAMFileWriter writer = factory.makeBAMWriter(header, false, bam);
+		int[] order = new int[NUM_READS];
+		for(int i=0; i<NUM_READS; i++) {
+			// Reads are written sorted by start, so draw the starts first
+			order[i] = 1 + random.nextInt(CHR_LENGTH - 600);
+		}
+		Arrays.sort(order);
+		for(int i=0; i<NUM_READS; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read" + i);
+			record.setReferenceName("chr1");
+			record.setAlignmentStart(order[i]);
+			starts[i] = order[i] - 1;
+			intronStarts[i] = -1;
+			intronEnds[i] = -1;
+			if(i % 4 == 0) {
+				int intron = 1 + random.nextInt(500);
+				record.setCigarString("20M" + intron + "N30M");
+				intronStarts[i] = starts[i] + 20;
+				intronEnds[i] = starts[i] + 20 + intron;
+				ends[i] = intronEnds[i] + 30;
+			} else {
+				record.setCigarString("50M");
+				ends[i] = starts[i] + 50;
+			}
+			record.setReadString(repeat('A', 50));
+			record.setBaseQualityString(repeat('I', 50));
+			negative[i] = random.nextBoolean();
+			record.setReadNegativeStrandFlag(negative[i]);
+			// Multimappers count for a fraction of a read, identical reads have the same number of hits
+			int nh = 1 + order[i] % 3;
+			weights[i] = 1.0 / nh;
+			record.setAttribute("NH", Integer.valueOf(nh));
+			writer.addAlignment(record);
+		}
+		writer.close();
+	}
+
+	@Override
+	protected void tearDown() {
+		bam.delete();
+		new File(bam.getAbsolutePath().replaceAll("\\.bam$", ".bai")).delete();
+		new File(bam.getAbsolutePath() + ".GenomicSpaceStats").delete();
+		new File(bam.getAbsolutePath() + CoverageIndex.EXTENSION).delete();
+	}
+
+	/**
+	 * Whether a block of read i overlaps [start, end)
+	 */
+	private boolean overlaps(int i, int start, int end) {
+		if(intronStarts[i] < 0) {
+			return starts[i] < end && start < ends[i];
+		}
+		return (starts[i] < end && start < intronStarts[i]) || (intronEnds[i] < end && start < ends[i]);
+	}
+
+	public void testCountsAndCoverage() {
+		AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), null, false);
+		CoverageIndex index = CoverageIndex.getOrBuild(model);
+		double total = 0;
+		for(int i=0; i<NUM_READS; i++) {
+			total += weights[i];
+		}
+		assertEquals(NUM_READS, index.getReadCount("chr1"));
+		assertEquals(0, index.getReadCount("chr2"));
+		assertEquals(total, index.getReadWeight("chr1"), 1e-6);
+		assertEquals(model.getCount(new BasicAnnotation("chr1", 0, CHR_LENGTH)), index.getReadWeight("chr1"), 1e-6);
+		// The size follows the reads, not the bases
+		// The size follows the reads, not the bases: chr2 has none and takes no room
+		assertTrue(index.getFile().length() < 64L * NUM_READS);
+
+		Random random = new Random(3);
+		for(int q=0; q<300; q++) {
+			int start = random.nextInt(CHR_LENGTH);
+			int end = Math.min(CHR_LENGTH, start + 1 + random.nextInt(q % 10 == 0 ? 2000 : 150));
+			double overlap = 0;
+			double plusOverlap = 0;
+			double coverage = 0;
+			double minusCoverage = 0;
+			for(int i=0; i<NUM_READS; i++) {
+				if(overlaps(i, start, end)) {
+					overlap += weights[i];
+					if(!negative[i]) plusOverlap += weights[i];
+				}
+				int covered = Math.max(0, Math.min(end, ends[i]) - Math.max(start, starts[i]));
+				if(intronStarts[i] >= 0) {
+					covered -= Math.max(0, Math.min(end, intronEnds[i]) - Math.max(start, intronStarts[i]));
+				}
+				coverage += covered * weights[i];
+				if(negative[i]) minusCoverage += covered * weights[i];
+			}
+			assertEquals(overlap, index.getOverlapCount("chr1", start, end, Strand.UNKNOWN), 1e-6);
+			assertEquals(plusOverlap, index.getOverlapCount("chr1", start, end, Strand.POSITIVE), 1e-6);
+			assertEquals(coverage, index.getCoverage("chr1", start, end, Strand.UNKNOWN), 1e-6);
+			assertEquals(minusCoverage, index.getCoverage("chr1", start, end, Strand.NEGATIVE), 1e-6);
+		}
+		assertEquals(0, index.getOverlapCount("chr2", 0, 2 * CHR_LENGTH, Strand.UNKNOWN), 0);
+		index.close();
+	}
+
+	public void testModelMatchesAlignmentModel() {
+		AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), null, false);
+		CoverageIndexModel indexModel = new CoverageIndexModel(model);
+		assertEquals(model.getGlobalCount(), indexModel.getGlobalCount(), 1e-6);
+
+		// Windows inside introns only count the reads with a block in them
+		for(int start=0; start<CHR_LENGTH; start+=97) {
+			Annotation window = new BasicAnnotation("chr1", start, start + 1 + start % 300);
+			assertEquals(window.toUCSC(), model.getCount(window), indexModel.getCount(window), 1e-6);
+			Annotation next = new BasicAnnotation("chr1", window.getEnd(), window.getEnd() + 50);
+			assertEquals(window.toUCSC(), model.getCountExcludingRegion(window, next), indexModel.getCountExcludingRegion(window, next), 1e-6);
+		}
+		Annotation region = new BasicAnnotation("chr1", 1000, 1300);
+		Annotation distant = new BasicAnnotation("chr1", 1400, 1500);
+		assertEquals(model.getTotalCoverage(region), indexModel.getTotalCoverage(region), 1e-6);
+		assertEquals(model.getBasesCovered(region), indexModel.getBasesCovered(region));
+		List<? extends Annotation> expectedBlocks = model.collapse(region, false).getBlocks();
+		List<? extends Annotation> blocks = indexModel.collapse(region, false).getBlocks();
+		assertEquals(expectedBlocks.size(), blocks.size());
+		for(int i=0; i<blocks.size(); i++) {
+			assertEquals(expectedBlocks.get(i).toUCSC(), blocks.get(i).toUCSC());
+		}
+		// Fully contained reads and excluding regions apart from the counted one use the reads
+		assertEquals(model.getCount(region, true), indexModel.getCount(region, true), 1e-6);
+		assertEquals(model.getCountExcludingRegion(region, distant), indexModel.getCountExcludingRegion(region, distant), 1e-6);
+		int reads = 0;
+		CloseableIterator<Alignment> iter = indexModel.getOverlappingAnnotations(region);
+		while(iter.hasNext()) {
+			iter.next();
+			reads++;
+		}
+		iter.close();
+		assertTrue(reads > 0);
+
+		// Scanning windows gives the model's counts
+		WindowScoreIterator<CountScore> scan = indexModel.scan(new BasicAnnotation("chr1", 2000, 2400), 50, 49);
+		while(scan.hasNext()) {
+			CountScore score = scan.next();
+			assertEquals(model.getCount(score.getAnnotation()), score.getCount(), 1e-6);
+		}
+		indexModel.close();
+	}
+
+	public void testRebuildsOnNewFilter() {
+		AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), null, false);
+		CoverageIndexModel indexModel = new CoverageIndexModel(model);
+		Annotation region = new BasicAnnotation("chr1", 0, CHR_LENGTH);
+		double all = indexModel.getCount(region);
+		indexModel.addFilter(new Predicate<Alignment>() {
+			@Override
+			public boolean evaluate(Alignment read) {
+				return read.getWeight() == 1;
+			}
+		});
+		assertTrue(indexModel.getCount(region) < all);
+		assertEquals(model.getCount(new BasicAnnotation("chr1", 100, 900)), indexModel.getCount(new BasicAnnotation("chr1", 100, 900)), 1e-6);
+		// An anonymous filter cannot be described, its index is not kept next to the BAM file
+		assertFalse(indexModel.getIndex().getFile().equals(new File(bam.getAbsolutePath() + CoverageIndex.EXTENSION)));
+		indexModel.close();
+	}
+
+	public void testKeyHoldsFilterParameters() {
+		File file = new File(bam.getAbsolutePath() + CoverageIndex.EXTENSION);
+		// Most spliced reads span more than 100 bases
+		int[] spans = {100, 10000, 100};
+		long built = 0;
+		for(int k=0; k<spans.length; k++) {
+			double expected = 0;
+			for(int i=0; i<NUM_READS; i++) {
+				if(ends[i] - starts[i] + 1 <= spans[k]) expected += weights[i];
+			}
+			AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), null, false);
+			model.addFilter(new GenomicSpanFilter(spans[k]));
+			CoverageIndex index = CoverageIndex.getOrBuild(model);
+			assertEquals(file, index.getFile());
+			assertEquals(expected, index.getReadWeight("chr1"), 1e-6);
+			assertEquals(expected, index.getOverlapCount("chr1", 0, CHR_LENGTH, Strand.UNKNOWN), 1e-6);
+			index.close();
+			if(k == 0) built = file.lastModified();
+		}
+		// Same parameters again: the index is read back, not rebuilt
+		AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), null, false);
+		model.addFilter(new GenomicSpanFilter(100));
+		file.setLastModified(built);
+		CoverageIndex index = CoverageIndex.getOrBuild(model);
+		assertEquals(built, index.getFile().lastModified());
+		index.close();
+	}
+
+	private static String repeat(char c, int n) {
+		StringBuilder rtrn = new StringBuilder();
+		for(int i=0; i<n; i++) {
+			rtrn.append(c);
+		}
+		return rtrn.toString();
+	}
+}
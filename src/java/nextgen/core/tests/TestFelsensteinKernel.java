@@ -0,0 +1,168 @@
+package nextgen.core.tests;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.forester.phylogeny.Phylogeny;
+
+import Jama.Matrix;
+import broad.core.multiplealignment.MultipleAlignment;
+import broad.core.multiplealignment.MultipleAlignmentFactory;
+import broad.core.siphy.ConservationUtils;
+import broad.core.siphy.EvolutionaryModel;
+import broad.core.siphy.EvolutionaryModel.OmegaFit;
+import broad.core.siphy.EvolutionaryModelParameters;
+import broad.core.siphy.FelsensteinKernel;
+import broad.core.siphy.TreeScaler;
+import junit.framework.TestCase;
+
+/**
+ * Checks broad.core.siphy.FelsensteinKernel and the window scan of TreeScaler against EvolutionaryModel.fitOmega
+ *
+ */
+public class TestFelsensteinKernel extends TestCase {
+
+	private static final String [] SPECIES = {"human", "chimp", "mouse", "rat", "dog", "cow"};
+	private static final String TREE = "(((human:0.01,chimp:0.01):0.12,(mouse:0.08,rat:0.08):0.25):0.02,(dog:0.1,cow:0.12):0.05);";
+	private static final double TOLERANCE = 1e-8;
+
+	private File modelFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		modelFile = File.createTempFile("kernel", ".mod");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(modelFile));
+		bw.write("BACKGROUND: 0.3 0.2 0.2 0.3");
+		bw.newLine();
+		bw.write("KAPPA: 2.5");
+		bw.newLine();
+		bw.write("TREE: " + TREE);
+		bw.newLine();
+		bw.close();
+	}
+
+	@Override
+	protected void tearDown() {
+		modelFile.delete();
+	}
+
+	private EvolutionaryModel createModel() throws Exception {
+		return new EvolutionaryModel(new EvolutionaryModelParameters(modelFile));
+	}
+
+	/**
+	 * Random alignment with gaps in the reference and in the other species
+	 */
+	private MultipleAlignment createAlignment(Random random, int length) throws Exception {
+		String bases = "ACGT";
+		StringBuilder fasta = new StringBuilder();
+		char [] reference = new char[length];
+		for(int i = 0; i < length; i++) {
+			reference[i] = random.nextInt(60) == 0 ? '-' : bases.charAt(random.nextInt(4));
+		}
+		for(String species : SPECIES) {
+			fasta.append(">").append(species).append("\n");
+			for(int i = 0; i < length; i++) {
+				char c = reference[i];
+				if(!"human".equals(species)) {
+					if(random.nextInt(15) == 0) {
+						c = '-';
+					} else if(c == '-' || random.nextInt(4) == 0) {
+						c = bases.charAt(random.nextInt(4));
+					}
+				}
+				fasta.append(c);
+			}
+			fasta.append("\n");
+		}
+		MultipleAlignment alignment = MultipleAlignmentFactory.create(new ByteArrayInputStream(fasta.toString().getBytes()), "FASTA");
+		alignment.setReferenceId("human");
+		alignment.encodeAsMatrix();
+		return alignment;
+	}
+
+	private static void assertSameFit(String message, OmegaFit expected, OmegaFit actual) {
+		assertEquals(message, expected.getOmega(), actual.getOmega(), TOLERANCE);
+		assertEquals(message, expected.getFittedLogLikelihood(), actual.getFittedLogLikelihood(), TOLERANCE);
+		assertEquals(message, expected.getInitialLogLikelihood(), actual.getInitialLogLikelihood(), TOLERANCE);
+		assertEquals(message, expected.getPVal(), actual.getPVal(), TOLERANCE);
+		assertEquals(message, expected.getNumOfIterations(), actual.getNumOfIterations());
+	}
+
+	public void testFitOmegaMatchesModel() throws Exception {
+		Random random = new Random(3);
+		EvolutionaryModel model = createModel();
+		FelsensteinKernel kernel = new FelsensteinKernel(model);
+		Phylogeny tree = model.getTree();
+		FelsensteinKernel.CompiledTree compiled = kernel.compile(tree);
+		FelsensteinKernel.Workspace workspace = kernel.createWorkspace(compiled);
+		MultipleAlignment alignment = createAlignment(random, 400);
+		for(int trial = 0; trial < 30; trial++) {
+			int window = 1 + random.nextInt(12);
+			int start = random.nextInt(alignment.length() - window);
+			Map<String, Matrix> columns = alignment.getColumnsAsVector(start, window);
+			double [][] leafValues = kernel.toLeafValues(columns, compiled);
+			for(int j = 0; j < window; j++) {
+				ConservationUtils.setUninformativeNodes(columns, ConservationUtils.getGappedSeqsInWindowMatrix(1, columns, j), j);
+			}
+			OmegaFit expected = model.fitOmega(columns, tree, window);
+			OmegaFit actual = kernel.fitOmega(compiled, leafValues, 0, window, workspace);
+			assertSameFit("window " + start + "+" + window, expected, actual);
+		}
+	}
+
+	public void testScaleTreeMatchesColumnLoop() throws Exception {
+		Random random = new Random(11);
+		EvolutionaryModel model = createModel();
+		MultipleAlignment alignment = createAlignment(random, 1500);
+		int window = 8;
+		int overlap = window - 2;
+		double minimumTreeLength = 0.5;
+
+		List<OmegaFit> expected = new ArrayList<OmegaFit>();
+		Phylogeny alnTree = ConservationUtils.pruneTree(new ArrayList<String>(), model.getTree());
+		TreeScaler lengths = new TreeScaler();
+		double alignmentTreeLength = lengths.getTotalDistanceFromNode(alnTree.getRoot());
+		for(int [] region : alignment.getUngappedReferenceIslands()) {
+			if(region[1] - region[0] < window) {
+				continue;
+			}
+			for(int i = region[0]; i < region[1] - window + 1; i = i + window - overlap) {
+				Map<String, Matrix> column = alignment.getColumnsAsVector(i + alignment.getReferenceStart(), window);
+				double minTreeLength = alignmentTreeLength;
+				for(int j = 0; j < window; j++) {
+					List<String> gappedSeqs = ConservationUtils.getGappedSeqsInWindowMatrix(1, column, j);
+					ConservationUtils.setUninformativeNodes(column, gappedSeqs, j);
+					minTreeLength = Math.min(alignmentTreeLength, lengths.getTotalDistanceFromNode(ConservationUtils.pruneTree(gappedSeqs, alnTree).getRoot()));
+				}
+				if(minTreeLength > minimumTreeLength) {
+					OmegaFit fit = model.fitOmega(column, alnTree, window);
+					fit.setTreeLength(minTreeLength);
+					expected.add(fit);
+				}
+			}
+		}
+		assertTrue(expected.size() > 100);
+
+		for(int threads : new int[] {1, 3}) {
+			TreeScaler scaler = new TreeScaler();
+			scaler.setNeutralModel(modelFile);
+			scaler.setMinimumTreeLength(minimumTreeLength);
+			scaler.setAlignment(alignment);
+			scaler.setNumThreads(threads);
+			List<OmegaFit> actual = scaler.scaleTree(window, new ArrayList<String>(), overlap);
+			assertEquals(expected.size(), actual.size());
+			for(int k = 0; k < expected.size(); k++) {
+				assertSameFit(threads + " threads, fit " + k, expected.get(k), actual.get(k));
+				assertEquals(expected.get(k).getTreeLength(), actual.get(k).getTreeLength(), TOLERANCE);
+			}
+		}
+	}
+
+}
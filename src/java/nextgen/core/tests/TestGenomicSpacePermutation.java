@@ -0,0 +1,203 @@
+package nextgen.core.tests;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import broad.core.math.SplitRandom;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.coordinatesystem.GenomicSpace;
+import nextgen.core.coordinatesystem.MaskedGenomicSpace;
+import nextgen.core.coordinatesystem.PermutationNotFoundException;
+
+/**
+ * Checks that nextgen.core.coordinatesystem.GenomicSpace places permuted annotations uniformly away from the mask,
+ * and that its random streams and those of MaskedGenomicSpace are reproducible
+ *
+ */
+public class TestGenomicSpacePermutation extends TestCase {
+
+	private static final int CHR_LENGTH = 2000;
+	// Masked intervals as written to the mask file, overlapping and out of order
+	private static final int[][] MASK = {{100, 150}, {140, 400}, {0, 20}, {700, 705}, {1000, 1600}, {1650, 1660}, {1990, 2100}};
+
+	private File mask;
+	private GenomicSpace space;
+
+	@Override
+	protected void setUp() throws IOException {
+		mask = File.createTempFile("TestGenomicSpacePermutation", ".bed");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(mask));
+		for(int[] interval : MASK) {
+			bw.write("chr1\t" + interval[0] + "\t" + interval[1]);
+			bw.newLine();
+		}
+		bw.close();
+		Map<String, Integer> sizes = new TreeMap<String, Integer>();
+		sizes.put("chr1", Integer.valueOf(CHR_LENGTH));
+		space = new GenomicSpace(sizes, mask.getAbsolutePath());
+	}
+
+	@Override
+	protected void tearDown() {
+		mask.delete();
+	}
+
+	private static boolean isMasked(int position) {
+		for(int[] interval : MASK) {
+			if(interval[0] <= position && position < interval[1]) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Starts of spans of the length within the bounds that overlap no masked base, as permuteAnnotation's range of starts allows
+	 */
+	private static boolean[] getValidStarts(Annotation bounds, int length) {
+		boolean[] rtrn = new boolean[CHR_LENGTH];
+		for(int start = bounds.getStart(); start < bounds.getStart() + bounds.size() - length; start++) {
+			boolean valid = true;
+			for(int position = start; position < start + length && valid; position++) {
+				valid = !isMasked(position);
+			}
+			rtrn[start] = valid;
+		}
+		return rtrn;
+	}
+
+	private void assertUniformOverValidStarts(Annotation bounds, int length, Random random) {
+		boolean[] valid = getValidStarts(bounds, length);
+		int numValid = 0;
+		for(boolean v : valid) {
+			if(v) numValid++;
+		}
+		int[] counts = new int[CHR_LENGTH];
+		int draws = 200 * numValid;
+		for(int i = 0; i < draws; i++) {
+			int start = space.getRandomUnmaskedStart(bounds, length, random);
+			assertTrue(bounds.toUCSC() + " " + length + " " + start, start >= 0 && valid[start]);
+			counts[start]++;
+		}
+		// Each valid start is expected 200 times
+		for(int start = 0; start < CHR_LENGTH; start++) {
+			if(valid[start]) {
+				assertTrue(length + " " + start + " " + counts[start], counts[start] > 120 && counts[start] < 290);
+			}
+		}
+	}
+
+	public void testPlacementIsUniformOverUnmaskedStarts() {
+		Random random = new SplitRandom(11);
+		assertUniformOverValidStarts(new BasicAnnotation("chr1", 0, CHR_LENGTH), 1, random);
+		assertUniformOverValidStarts(new BasicAnnotation("chr1", 0, CHR_LENGTH), 50, random);
+		// Bounds that cut unmasked segments
+		assertUniformOverValidStarts(new BasicAnnotation("chr1", 130, 1630), 30, random);
+		assertUniformOverValidStarts(new BasicAnnotation("chr1", 500, 690), 40, random);
+	}
+
+	public void testPlacementOfManyLengths() {
+		// More lengths than the placement tables kept, so some draw an unmasked base and check the span fits
+		Random random = new SplitRandom(12);
+		Annotation bounds = new BasicAnnotation("chr1", 50, 1900);
+		for(int length = 1; length < 300; length++) {
+			boolean[] valid = getValidStarts(bounds, length);
+			for(int i = 0; i < 200; i++) {
+				int start = space.getRandomUnmaskedStart(bounds, length, random);
+				assertTrue(length + " " + start, start >= 0 && valid[start]);
+			}
+		}
+		assertUniformOverValidStarts(bounds, 250, random);
+	}
+
+	public void testPermuteAnnotationAvoidsMask() {
+		Random random = new SplitRandom(13);
+		Annotation bounds = space.getReferenceAnnotation("chr1");
+		for(int i = 0; i < 1000; i++) {
+			Annotation read = new BasicAnnotation("chr1", 1000, 1080);
+			Annotation permuted = space.permuteAnnotation(read, bounds, random);
+			assertEquals(80, permuted.length());
+			assertEquals(permuted.getStart(), read.getStart());
+			for(int position = permuted.getStart(); position < permuted.getEnd(); position++) {
+				assertFalse(permuted.toUCSC(), isMasked(position));
+			}
+		}
+
+		// Nothing unmasked between 1000 and 1600
+		Annotation masked = new BasicAnnotation("chr1", 1000, 1600);
+		assertEquals(-1, space.getRandomUnmaskedStart(masked, 10, random));
+		assertEquals(-1, space.getRandomUnmaskedStart(bounds, 500, random));
+		try {
+			space.permuteAnnotation(new BasicAnnotation("chr1", 0, 10), masked, random);
+			fail();
+		} catch(PermutationNotFoundException e) {
+			// expected
+		}
+	}
+
+	public void testRandomStreamsAreReproducible() {
+		SplitRandom a = new SplitRandom(7);
+		SplitRandom b = new SplitRandom(7);
+		for(int i = 0; i < 100; i++) {
+			assertEquals(a.nextLong(), b.nextLong());
+			assertEquals(a.nextInt(1000), b.nextInt(1000));
+		}
+		SplitRandom splitA = a.split();
+		SplitRandom splitB = b.split();
+		int same = 0;
+		for(int i = 0; i < 100; i++) {
+			long value = splitA.nextLong();
+			assertEquals(value, splitB.nextLong());
+			if(value == a.nextLong()) same++;
+		}
+		assertEquals(0, same);
+		a.setSeed(7);
+		assertEquals(new SplitRandom(7).nextLong(), a.nextLong());
+
+		// Streams split from the space's generator after setting its seed
+		Annotation bounds = space.getReferenceAnnotation("chr1");
+		int[] first = new int[50];
+		GenomicSpace.setSeed(99);
+		Random stream = space.newRandomStream();
+		for(int i = 0; i < first.length; i++) {
+			first[i] = space.getRandomUnmaskedStart(bounds, 20, stream);
+		}
+		GenomicSpace.setSeed(99);
+		stream = space.newRandomStream();
+		for(int i = 0; i < first.length; i++) {
+			assertEquals(first[i], space.getRandomUnmaskedStart(bounds, 20, stream));
+		}
+	}
+
+	public void testMaskedGenomicSpacePermutes() {
+		Map<String, Integer> sizes = new TreeMap<String, Integer>();
+		sizes.put("chr1", Integer.valueOf(CHR_LENGTH));
+		Map<String, Collection<Annotation>> masked = new TreeMap<String, Collection<Annotation>>();
+		masked.put("chr1", new ArrayList<Annotation>());
+		MaskedGenomicSpace maskedSpace = new MaskedGenomicSpace(sizes, masked, 0);
+		Annotation bounds = new BasicAnnotation("chr1", 200, 900);
+
+		// Streams split from the space's generator after setting its seed
+		int[] first = new int[50];
+		MaskedGenomicSpace.setSeed(17);
+		Random stream = maskedSpace.newRandomStream();
+		for(int i = 0; i < first.length; i++) {
+			Annotation permuted = maskedSpace.permuteAnnotation(new BasicAnnotation("chr1", 1000, 1050), bounds, stream);
+			assertEquals(50, permuted.length());
+			assertTrue(permuted.toUCSC(), permuted.getStart() >= 200 && permuted.getEnd() <= 900);
+			first[i] = permuted.getStart();
+		}
+		MaskedGenomicSpace.setSeed(17);
+		stream = maskedSpace.newRandomStream();
+		for(int i = 0; i < first.length; i++) {
+			assertEquals(first[i], maskedSpace.permuteAnnotation(new BasicAnnotation("chr1", 1000, 1050), bounds, stream).getStart());
+		}
+	}
+}
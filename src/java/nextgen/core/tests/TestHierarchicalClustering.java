@@ -0,0 +1,192 @@
+package nextgen.core.tests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+import broad.core.datastructures.MatrixWithHeaders;
+import broad.pda.geneexpression.clustering.AbsolutePearsonFunction;
+import broad.pda.geneexpression.clustering.Cluster;
+import broad.pda.geneexpression.clustering.ClusterDistanceFunction;
+import broad.pda.geneexpression.clustering.EuclideanDistance;
+import broad.pda.geneexpression.clustering.HierarchicalClustering;
+import broad.pda.geneexpression.clustering.PearsonDistance;
+
+/**
+ * Checks broad.pda.geneexpression.clustering.HierarchicalClustering against merging the closest pair of clusters at each level
+ *
+ */
+public class TestHierarchicalClustering extends TestCase {
+
+	private static final String[] LINKAGES = {"single", "complete", "average"};
+
+	private static MatrixWithHeaders makeData(int numRows, int numColumns, long seed) {
+		Random random = new Random(seed);
+		List<String> rows = new ArrayList<String>();
+		List<String> columns = new ArrayList<String>();
+		for(int i = 0; i < numRows; i++) {
+			rows.add("gene" + i);
+		}
+		for(int j = 0; j < numColumns; j++) {
+			columns.add("sample" + j);
+		}
+		MatrixWithHeaders data = new MatrixWithHeaders(rows, columns);
+		for(int i = 0; i < numRows; i++) {
+			// A few groups of rows with shared profiles
+			int group = i % 4;
+			for(int j = 0; j < numColumns; j++) {
+				data.set(i, j, Math.sin(group * j) * 3 + random.nextGaussian());
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Merge the closest pair of clusters at each level, as the clusters are listed, with the linkage of the member distances
+	 */
+	private static Cluster cluster(MatrixWithHeaders data, List<Cluster> initialClusters, ClusterDistanceFunction function, String linkage, boolean columns) {
+		List<Cluster> clusters = new ArrayList<Cluster>(initialClusters);
+		while(clusters.size() > 1) {
+			double minDistance = Double.MAX_VALUE;
+			int iMin = -1;
+			int jMin = -1;
+			for(int i = 0; i < clusters.size(); i++) {
+				for(int j = i + 1; j < clusters.size(); j++) {
+					double dist = linkage.equals("single") ? Double.MAX_VALUE : 0;
+					for(String member1 : clusters.get(i).getMembers()) {
+						for(String member2 : clusters.get(j).getMembers()) {
+							double[] vals1 = columns ? data.getColumn(member1) : data.getRow(member1);
+							double[] vals2 = columns ? data.getColumn(member2) : data.getRow(member2);
+							double d = function.measure(vals1, vals2);
+							if(linkage.equals("single")) {
+								dist = Math.min(dist, d);
+							} else if(linkage.equals("complete")) {
+								dist = Math.max(dist, d);
+							} else {
+								dist += d;
+							}
+						}
+					}
+					if(linkage.equals("average")) {
+						dist /= clusters.get(i).getMembers().size() * clusters.get(j).getMembers().size();
+					}
+					if(dist < minDistance) {
+						minDistance = dist;
+						iMin = i;
+						jMin = j;
+					}
+				}
+			}
+			Cluster cluster1 = clusters.get(iMin);
+			Cluster cluster2 = clusters.get(jMin);
+			clusters.remove(cluster1);
+			clusters.remove(cluster2);
+			Collection<String> members = new TreeSet<String>();
+			members.addAll(cluster1.getMembers());
+			members.addAll(cluster2.getMembers());
+			Cluster merged = new Cluster(members, null);
+			merged.setSubcluster(cluster1, cluster2);
+			merged.setScore(minDistance);
+			clusters.add(merged);
+		}
+		return clusters.get(0);
+	}
+
+	private static List<Cluster> singletons(List<String> names) {
+		List<Cluster> rtrn = new ArrayList<Cluster>();
+		for(String name : names) {
+			Cluster cluster = new Cluster(name);
+			cluster.setScore(0);
+			rtrn.add(cluster);
+		}
+		return rtrn;
+	}
+
+	private static List<Cluster> groups(Map<String, Collection<String>> groups) {
+		List<Cluster> rtrn = new ArrayList<Cluster>();
+		for(String group : groups.keySet()) {
+			Cluster cluster = new Cluster(groups.get(group), group);
+			cluster.setScore(0);
+			rtrn.add(cluster);
+		}
+		return rtrn;
+	}
+
+	private static MatrixWithHeaders copy(MatrixWithHeaders data) {
+		return new MatrixWithHeaders(data, data.getRowNames(), data.getColumnNames());
+	}
+
+	public void testRowsMatchGreedyMerging() {
+		MatrixWithHeaders data = makeData(60, 12, 3);
+		ClusterDistanceFunction[] functions = {new PearsonDistance(), new AbsolutePearsonFunction(), new EuclideanDistance()};
+		String[] functionNames = {"pearson", "abspearson", "euclidean"};
+		for(int f = 0; f < functions.length; f++) {
+			for(String linkage : LINKAGES) {
+				Cluster expected = cluster(data, singletons(data.getRowNames()), functions[f], linkage, false);
+				HierarchicalClustering clustering = new HierarchicalClustering(copy(data));
+				clustering.setClusterDistanceFunction(functionNames[f]);
+				clustering.setLinkage(linkage);
+				clustering.setNumThreads(3);
+				clustering.cluster(true, false);
+				assertEquals(functionNames[f] + " " + linkage, expected.getOrdered(), clustering.getMatrix().getRowNames());
+				assertEquals(data.getColumnNames(), clustering.getMatrix().getColumnNames());
+				for(String row : data.getRowNames()) {
+					assertEquals(data.get(row, "sample5"), clustering.getMatrix().get(row, "sample5"), 0);
+				}
+			}
+		}
+	}
+
+	public void testColumnGroupsMatchGreedyMerging() {
+		MatrixWithHeaders data = makeData(30, 24, 5);
+		Map<String, Collection<String>> columnGroups = new TreeMap<String, Collection<String>>();
+		for(int j = 0; j < data.getColumnNames().size(); j++) {
+			String group = "group" + (j * 7 % 9);
+			if(!columnGroups.containsKey(group)) {
+				columnGroups.put(group, new ArrayList<String>());
+			}
+			columnGroups.get(group).add(data.getColumnNames().get(j));
+		}
+		for(String linkage : LINKAGES) {
+			Cluster expected = cluster(data, groups(columnGroups), new EuclideanDistance(), linkage, true);
+			HierarchicalClustering clustering = new HierarchicalClustering(copy(data), columnGroups, null);
+			clustering.setClusterDistanceFunction("euclidean");
+			clustering.setLinkage(linkage);
+			clustering.cluster(false, true);
+			assertEquals(linkage, expected.getOrdered(), clustering.getMatrix().getColumnNames());
+		}
+	}
+
+	public void testOtherDistanceFunctionMatchesGreedyMerging() {
+		// Cluster with a function that is not computed from precomputed vectors
+		final ClusterDistanceFunction manhattan = new ClusterDistanceFunction() {
+			@Override
+			public String getName() {
+				return "ManhattanDistance";
+			}
+
+			@Override
+			public double measure(double[] a, double[] b) {
+				double sum = 0;
+				for(int k = 0; k < a.length; k++) {
+					sum += Math.abs(a[k] - b[k]);
+				}
+				return sum;
+			}
+		};
+		MatrixWithHeaders data = makeData(45, 6, 7);
+		for(String linkage : LINKAGES) {
+			Cluster expected = cluster(data, singletons(data.getRowNames()), manhattan, linkage, false);
+			HierarchicalClustering clustering = new HierarchicalClustering(copy(data));
+			clustering.setClusterDistanceFunction(manhattan);
+			clustering.setLinkage(linkage);
+			clustering.cluster(true, false);
+			assertEquals(linkage, expected.getOrdered(), clustering.getMatrix().getRowNames());
+		}
+	}
+}
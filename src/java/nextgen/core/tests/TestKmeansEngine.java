@@ -0,0 +1,254 @@
+package nextgen.core.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import broad.core.datastructures.MatrixWithHeaders;
+import broad.pda.geneexpression.clustering.Kmeans;
+import broad.pda.geneexpression.clustering.KmeansEngine;
+
+/**
+ * Checks broad.pda.geneexpression.clustering.KmeansEngine against the distances of Kmeans.distance
+ *
+ */
+public class TestKmeansEngine extends TestCase {
+
+	private static final int NUM_ROWS = 600;
+	private static final int NUM_COLUMNS = 8;
+	private static final int NUM_CLUSTERS = 5;
+
+	/**
+	 * Rows drawn around one of NUM_CLUSTERS well separated positive centers, row i around center i % NUM_CLUSTERS
+	 */
+	private static double[] makeData(long seed) {
+		Random random = new Random(seed);
+		double[][] centers = new double[NUM_CLUSTERS][NUM_COLUMNS];
+		for(int c = 0; c < NUM_CLUSTERS; c++) {
+			for(int j = 0; j < NUM_COLUMNS; j++) {
+				centers[c][j] = 1 + 20 * ((c + j) % NUM_CLUSTERS == 0 ? 1 : 0) + c * (j % 2);
+			}
+		}
+		double[] rtrn = new double[NUM_ROWS * NUM_COLUMNS];
+		for(int i = 0; i < NUM_ROWS; i++) {
+			for(int j = 0; j < NUM_COLUMNS; j++) {
+				rtrn[i * NUM_COLUMNS + j] = centers[i % NUM_CLUSTERS][j] + 0.3 * random.nextDouble();
+			}
+		}
+		return rtrn;
+	}
+
+	private static double[] getRow(double[] data, int row) {
+		return Arrays.copyOfRange(data, row * NUM_COLUMNS, (row + 1) * NUM_COLUMNS);
+	}
+
+	/**
+	 * Rows i and j are in the same cluster exactly when they were drawn around the same center
+	 */
+	private static void assertRecoversCenters(int[] labels) {
+		Map<Integer, Integer> centerToLabel = new HashMap<Integer, Integer>();
+		for(int i = 0; i < NUM_ROWS; i++) {
+			Integer center = Integer.valueOf(i % NUM_CLUSTERS);
+			if(!centerToLabel.containsKey(center)) {
+				assertFalse(centerToLabel.containsValue(Integer.valueOf(labels[i])));
+				centerToLabel.put(center, Integer.valueOf(labels[i]));
+			}
+			assertEquals(centerToLabel.get(center).intValue(), labels[i]);
+		}
+	}
+
+	/**
+	 * Each row is closest to its own centroid and each centroid is the mean of its rows
+	 */
+	private static void assertConverged(KmeansEngine engine, double[] data, String metric) {
+		int[] labels = engine.getLabels();
+		double[] centroids = engine.getCentroids();
+		double[][] means = new double[NUM_CLUSTERS][NUM_COLUMNS];
+		int[] counts = new int[NUM_CLUSTERS];
+		for(int i = 0; i < NUM_ROWS; i++) {
+			double[] row = getRow(data, i);
+			double own = Kmeans.distance(row, Arrays.copyOfRange(centroids, labels[i] * NUM_COLUMNS, (labels[i] + 1) * NUM_COLUMNS), metric);
+			assertEquals(own, engine.rowToCentroid(i, labels[i]), 1e-9);
+			for(int c = 0; c < NUM_CLUSTERS; c++) {
+				double d = Kmeans.distance(row, Arrays.copyOfRange(centroids, c * NUM_COLUMNS, (c + 1) * NUM_COLUMNS), metric);
+				assertTrue(metric + " " + i + " " + c, own <= d + 1e-9);
+			}
+			counts[labels[i]]++;
+			for(int j = 0; j < NUM_COLUMNS; j++) {
+				means[labels[i]][j] += row[j];
+			}
+		}
+		for(int c = 0; c < NUM_CLUSTERS; c++) {
+			assertTrue(counts[c] > 0);
+			for(int j = 0; j < NUM_COLUMNS; j++) {
+				assertEquals(means[c][j] / counts[c], centroids[c * NUM_COLUMNS + j], 1e-9);
+			}
+		}
+	}
+
+	public void testRecoversSeparatedClusters() {
+		double[] data = makeData(3);
+		int[] previous = null;
+		for(int threads : new int[] {1, 4}) {
+			KmeansEngine engine = new KmeansEngine(data, NUM_ROWS, NUM_COLUMNS, "euclidean");
+			engine.setNumThreads(threads);
+			engine.initialize(null, 0, NUM_CLUSTERS, new Random(5));
+			engine.run(new Random(6));
+			assertRecoversCenters(engine.getLabels());
+			assertConverged(engine, data, "euclidean");
+			// Same seeds, same clusters whatever the number of threads
+			if(previous != null) {
+				assertTrue(Arrays.equals(previous, engine.getLabels()));
+			}
+			previous = engine.getLabels().clone();
+		}
+	}
+
+	public void testConvergesWithOtherMetrics() {
+		double[] data = makeData(7);
+		double[] normalized = data.clone();
+		for(int i = 0; i < NUM_ROWS; i++) {
+			double sum = 0;
+			for(int j = 0; j < NUM_COLUMNS; j++) {
+				sum += data[i * NUM_COLUMNS + j];
+			}
+			for(int j = 0; j < NUM_COLUMNS; j++) {
+				normalized[i * NUM_COLUMNS + j] /= sum;
+			}
+		}
+		String[] metrics = {"pearson", "JS"};
+		double[][] matrices = {data, normalized};
+		for(int m = 0; m < metrics.length; m++) {
+			KmeansEngine engine = new KmeansEngine(matrices[m], NUM_ROWS, NUM_COLUMNS, metrics[m]);
+			engine.setNumThreads(3);
+			engine.initialize(null, 0, NUM_CLUSTERS, new Random(11));
+			engine.run(new Random(12));
+			assertConverged(engine, matrices[m], metrics[m]);
+			for(int i = 0; i < 50; i++) {
+				assertEquals(Kmeans.distance(getRow(matrices[m], i), getRow(matrices[m], i + 100), metrics[m]), engine.rowToRow(i, i + 100), 1e-9);
+			}
+		}
+	}
+
+	public void testToleranceAndReuseAfterClose() {
+		double[] data = makeData(47);
+		KmeansEngine engine = new KmeansEngine(data, NUM_ROWS, NUM_COLUMNS, "euclidean");
+		engine.setNumThreads(4);
+		engine.initialize(null, 0, NUM_CLUSTERS, new Random(53));
+		int exact = engine.run(new Random(59));
+		int[] labels = engine.getLabels().clone();
+		// Threads stopped by close() are started again on the next pass
+		engine.close();
+		engine.setTolerance(1e6);
+		engine.initialize(null, 0, NUM_CLUSTERS, new Random(53));
+		assertEquals(1, engine.run(new Random(59)));
+		assertTrue(exact >= 1);
+		engine.setTolerance(0);
+		engine.initialize(null, 0, NUM_CLUSTERS, new Random(53));
+		assertEquals(exact, engine.run(new Random(59)));
+		assertTrue(Arrays.equals(labels, engine.getLabels()));
+		engine.close();
+	}
+
+	public void testMiniBatch() {
+		double[] data = makeData(13);
+		KmeansEngine engine = new KmeansEngine(data, NUM_ROWS, NUM_COLUMNS, "euclidean");
+		engine.setMaxIterations(50);
+		engine.initialize(null, 0, NUM_CLUSTERS, new Random(17));
+		assertEquals(50, engine.runMiniBatch(40, new Random(19)));
+		assertRecoversCenters(engine.getLabels());
+		// Centroids are the means of the final clusters
+		int[] labels = engine.getLabels();
+		double[] centroids = engine.getCentroids();
+		for(int c = 0; c < NUM_CLUSTERS; c++) {
+			double sum = 0;
+			int count = 0;
+			for(int i = 0; i < NUM_ROWS; i++) {
+				if(labels[i] == c) {
+					sum += data[i * NUM_COLUMNS];
+					count++;
+				}
+			}
+			assertEquals(sum / count, centroids[c * NUM_COLUMNS], 1e-9);
+		}
+	}
+
+	public void testSilhouetteMatchesPairwiseDistances() {
+		double[] data = makeData(23);
+		KmeansEngine engine = new KmeansEngine(data, NUM_ROWS, NUM_COLUMNS, "euclidean");
+		engine.initialize(null, 0, NUM_CLUSTERS, new Random(29));
+		engine.run(new Random(31));
+		int[] labels = engine.getLabels();
+		int[] sampled = engine.sampleAssignedRows(40, new Random(37));
+		assertEquals(40, sampled.length);
+		assertEquals(NUM_ROWS, engine.sampleAssignedRows(NUM_ROWS + 10, new Random(37)).length);
+		double[][] scores = engine.getSilhouette(sampled);
+		for(int s = 0; s < sampled.length; s++) {
+			int row = sampled[s];
+			double[] sums = new double[NUM_CLUSTERS];
+			int[] counts = new int[NUM_CLUSTERS];
+			for(int i = 0; i < NUM_ROWS; i++) {
+				if(i == row) continue;
+				sums[labels[i]] += Kmeans.distance(getRow(data, row), getRow(data, i), "euclidean");
+				counts[labels[i]]++;
+			}
+			double a = sums[labels[row]] / counts[labels[row]];
+			double b = Double.MAX_VALUE;
+			for(int c = 0; c < NUM_CLUSTERS; c++) {
+				if(c != labels[row]) b = Math.min(b, sums[c] / counts[c]);
+			}
+			assertEquals(a, scores[s][0], 1e-9);
+			assertEquals(b, scores[s][1], 1e-9);
+			assertEquals((b - a) / Math.max(a, b), scores[s][2], 1e-9);
+			assertTrue(scores[s][2] > 0.5);
+		}
+		double[][] light = engine.getCentroidSilhouette(sampled);
+		for(int s = 0; s < sampled.length; s++) {
+			assertEquals(engine.rowToCentroid(sampled[s], labels[sampled[s]]), light[s][0], 1e-12);
+			assertTrue(light[s][2] > 0.5);
+		}
+	}
+
+	public void testKmeansNamesClusters() {
+		double[] values = makeData(41);
+		List<String> rows = new ArrayList<String>();
+		List<String> columns = new ArrayList<String>();
+		for(int i = 0; i < NUM_ROWS; i++) {
+			rows.add("gene" + i);
+		}
+		for(int j = 0; j < NUM_COLUMNS; j++) {
+			columns.add("sample" + j);
+		}
+		MatrixWithHeaders data = new MatrixWithHeaders(rows, columns);
+		for(int i = 0; i < NUM_ROWS; i++) {
+			for(int j = 0; j < NUM_COLUMNS; j++) {
+				data.set(i, j, values[i * NUM_COLUMNS + j]);
+			}
+		}
+		// A row without a defined distance goes to cluster K+1
+		data.set(7, 3, Double.NaN);
+		List<String> given = new ArrayList<String>();
+		given.add("first");
+		MatrixWithHeaders centroids = new MatrixWithHeaders(given, columns);
+		centroids.setRow("first", data.getRow(0));
+
+		Kmeans kmeans = new Kmeans(data, centroids, NUM_CLUSTERS, "euclidean", 0, 2);
+		Map<String, String> assignment = kmeans.getClusterInfo().getSampleClusterAssignment();
+		assertEquals(NUM_ROWS, assignment.size());
+		assertEquals("first", assignment.get("gene0"));
+		assertEquals("first", assignment.get("gene5"));
+		assertEquals(String.valueOf(NUM_CLUSTERS + 1), assignment.get("gene7"));
+		assertEquals(NUM_ROWS / NUM_CLUSTERS - 1, kmeans.getClusterInfo().getClusterSampleAssignment().get(assignment.get("gene2")).size());
+
+		kmeans.calcSilhouette();
+		assertTrue(kmeans.getSilhouette() > 0.5);
+		kmeans.calcSilhouette(50, new Random(43));
+		assertTrue(kmeans.getSilhouette() > 0.5);
+		kmeans.calcLightSilhouette();
+		assertTrue(kmeans.getSilhouette() > 0.5);
+	}
+}
@@ -0,0 +1,150 @@
+package nextgen.core.tests;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import nextgen.core.pipeline.JobUtils;
+import nextgen.core.pipeline.LocalJob;
+import nextgen.core.pipeline.LocalJobPool;
+import nextgen.core.pipeline.Scheduler;
+
+/**
+ * Checks nextgen.core.pipeline.LocalJob: status of in process and command jobs, killing and the limits of LocalJobPool
+ *
+ */
+public class TestLocalJob extends TestCase {
+
+	public void testScheduler() {
+		assertEquals(Scheduler.LOCAL, Scheduler.fromString(Scheduler.LOCAL.toString()));
+		assertTrue(Scheduler.getCommaSeparatedList().contains("LOCAL"));
+	}
+
+	public void testCallables() throws Exception {
+		LocalJobPool pool = new LocalJobPool(3, 4);
+		List<LocalJob> jobs = new ArrayList<LocalJob>();
+		for(int i=0; i<10; i++) {
+			final int n = i;
+			jobs.add(new LocalJob(pool, "job" + i, new Callable<Integer>() {
+				@Override
+				public Integer call() throws IOException {
+					if(n == 7) {
+						throw new IOException("failed on purpose");
+					}
+					return Integer.valueOf(n * n);
+				}
+			}, 1));
+		}
+		assertFalse(jobs.get(0).completed());
+		for(LocalJob job : jobs) {
+			job.submit();
+		}
+		JobUtils.waitForAll(jobs);
+		assertTrue(JobUtils.allCompleted(jobs));
+		assertFalse(JobUtils.allSucceeded(jobs));
+		for(int i=0; i<10; i++) {
+			LocalJob job = jobs.get(i);
+			assertFalse(job.isRunning());
+			assertFalse(job.isPending());
+			if(i == 7) {
+				assertTrue(job.failed());
+				assertTrue(job.getFailure() instanceof IOException);
+			} else {
+				assertTrue(job.succeeded());
+				assertEquals(Integer.valueOf(i * i), job.getResult());
+			}
+		}
+		pool.shutdown();
+	}
+
+	public void testCommands() throws Exception {
+		File out = File.createTempFile("TestLocalJob", ".out");
+		LocalJobPool pool = new LocalJobPool(2, 2);
+		LocalJob echo = new LocalJob(pool, "echo", "echo hello local job", out.getAbsolutePath(), 1);
+		LocalJob fail = new LocalJob(pool, "fail", "false", null, 1);
+		echo.submit();
+		fail.submit();
+		echo.waitFor();
+		fail.waitFor(1000);
+		assertTrue(echo.succeeded());
+		assertTrue(fail.failed());
+		BufferedReader reader = new BufferedReader(new FileReader(out));
+		assertEquals("hello local job", reader.readLine());
+		reader.close();
+		out.delete();
+		pool.shutdown();
+	}
+
+	public void testKill() throws Exception {
+		LocalJobPool pool = new LocalJobPool(1, 1);
+		final CountDownLatch started = new CountDownLatch(1);
+		LocalJob blocking = new LocalJob(pool, "blocking", new Callable<Object>() {
+			@Override
+			public Object call() throws InterruptedException {
+				started.countDown();
+				Thread.sleep(60000);
+				return null;
+			}
+		}, 1);
+		LocalJob queued = new LocalJob(pool, "queued", "sleep 60", null, 1);
+		blocking.submit();
+		queued.submit();
+		started.await();
+		assertTrue(blocking.isRunning());
+		assertTrue(queued.isPending());
+		queued.kill();
+		blocking.kill();
+		blocking.waitFor();
+		queued.waitFor();
+		assertTrue(blocking.failed());
+		assertTrue(queued.failed());
+
+		LocalJob process = new LocalJob(pool, "process", "sleep 60", null, 1);
+		process.submit();
+		while(!process.isRunning()) {
+			Thread.sleep(10);
+		}
+		long start = System.currentTimeMillis();
+		process.kill();
+		process.waitFor();
+		assertTrue(process.failed());
+		assertTrue(System.currentTimeMillis() - start < 30000);
+		pool.shutdown();
+	}
+
+	public void testMemoryBudget() throws Exception {
+		// Four threads but memory for only two jobs at once
+		LocalJobPool pool = new LocalJobPool(4, 5);
+		final AtomicInteger running = new AtomicInteger(0);
+		final AtomicInteger maxRunning = new AtomicInteger(0);
+		List<LocalJob> jobs = new ArrayList<LocalJob>();
+		for(int i=0; i<8; i++) {
+			LocalJob job = new LocalJob(pool, "job" + i, new Callable<Object>() {
+				@Override
+				public Object call() throws InterruptedException {
+					int now = running.incrementAndGet();
+					synchronized(maxRunning) {
+						maxRunning.set(Math.max(maxRunning.get(), now));
+					}
+					Thread.sleep(50);
+					running.decrementAndGet();
+					return null;
+				}
+			}, 2);
+			jobs.add(job);
+			job.submit();
+		}
+		JobUtils.waitForAll(jobs);
+		assertTrue(JobUtils.allSucceeded(jobs));
+		assertEquals(2, maxRunning.get());
+		pool.shutdown();
+	}
+
+}
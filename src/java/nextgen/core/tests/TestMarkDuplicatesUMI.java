@@ -0,0 +1,243 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.samtools.BAMFileWriter;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.programs.MarkDuplicatesFromNameUMI;
+import nextgen.core.programs.MarkDuplicatesFromNameUMI.MarkDuplicatesResults;
+
+/**
+ * Checks the duplicate flags set by nextgen.core.programs.MarkDuplicatesFromNameUMI in its sequential, per chromosome and single pass modes
+ *
+ */
+public class TestMarkDuplicatesUMI extends TestCase {
+
+	private static final int BC_SIZE = 4;
+	private static final int DEEP_START = 5000;
+	private static final int DEEP_BARCODES = 40;
+	private static final int DEEP_COPIES = 6;
+
+	private File bam;
+	private List<File> outputs = new ArrayList<File>();
+
+	@Override
+	protected void setUp() throws IOException {
+		bam = File.createTempFile("TestMarkDuplicatesUMI", ".bam");
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", 10000));
+		header.addSequence(new SAMSequenceRecord("chr2", 10000));
+		Random random = new Random(23);
+		SAMFileWriterFactory factory = new SAMFileWriterFactory();
+		factory.setCreateIndex(true);
+		SAMFileWriter writer = factory.makeBAMWriter(header, true, bam);
+		int readNum = 0;
+		for(String chr : new String[] {"chr1", "chr2"}) {
+			for(int p = 0; p < 300; p++) {
+				int start = 100 + 13 * p;
+				// a small pool of barcodes and ends per position gives many duplicates
+				String[] pool = new String[1 + random.nextInt(5)];
+				for(int b = 0; b < pool.length; b++) {
+					pool[b] = randomBarcode(random);
+				}
+				int numReads = 1 + random.nextInt(12);
+				for(int r = 0; r < numReads; r++) {
+					writer.addAlignment(createRecord(header, "read" + (readNum++) + ":" + pool[random.nextInt(pool.length)], chr, start, 30 + 5 * random.nextInt(3)));
+				}
+			}
+			if("chr1".equals(chr)) {
+				List<String> deep = new ArrayList<String>();
+				for(int b = 0; b < DEEP_BARCODES; b++) {
+					for(int c = 0; c < DEEP_COPIES; c++) {
+						deep.add(String.format("%04d", Integer.valueOf(b)));
+					}
+				}
+				Collections.shuffle(deep, random);
+				for(String code : deep) {
+					writer.addAlignment(createRecord(header, "read" + (readNum++) + ":" + toBarcode(Integer.parseInt(code)), chr, DEEP_START, 40));
+				}
+			}
+		}
+		// the last alignment of the file is never marked, keep it alone at its position
+		writer.addAlignment(createRecord(header, "read" + (readNum++) + ":ACGT", "chr2", 9000, 40));
+		writer.close();
+	}
+
+	@Override
+	protected void tearDown() {
+		bam.delete();
+		new File(bam.getAbsolutePath().replaceAll("\\.bam$", ".bai")).delete();
+		for(File output : outputs) {
+			output.delete();
+		}
+	}
+
+	private static String randomBarcode(Random random) {
+		StringBuilder rtrn = new StringBuilder();
+		for(int i = 0; i < BC_SIZE; i++) {
+			rtrn.append(random.nextInt(40) == 0 ? 'N' : "ACGT".charAt(random.nextInt(4)));
+		}
+		return rtrn.toString();
+	}
+
+	private static String toBarcode(int code) {
+		StringBuilder rtrn = new StringBuilder();
+		for(int i = 0; i < BC_SIZE; i++) {
+			rtrn.append("ACGT".charAt(code & 3));
+			code = code >> 2;
+		}
+		return rtrn.toString();
+	}
+
+	private static SAMRecord createRecord(SAMFileHeader header, String name, String chr, int start, int length) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceName(chr);
+		record.setAlignmentStart(start);
+		record.setCigarString(length + "M");
+		StringBuilder bases = new StringBuilder();
+		StringBuilder qualities = new StringBuilder();
+		for(int i = 0; i < length; i++) {
+			bases.append('A');
+			qualities.append('I');
+		}
+		record.setReadString(bases.toString());
+		record.setBaseQualityString(qualities.toString());
+		return record;
+	}
+
+	private File newOutput() throws IOException {
+		File rtrn = File.createTempFile("TestMarkDuplicatesUMI", ".out.bam");
+		outputs.add(rtrn);
+		return rtrn;
+	}
+
+	private static BAMFileWriter createWriter(SAMFileReader reader, File out) {
+		BAMFileWriter writer = new BAMFileWriter(out);
+		writer.setSortOrder(SAMFileHeader.SortOrder.coordinate, true);
+		writer.setHeader(reader.getFileHeader());
+		return writer;
+	}
+
+	private static List<SAMRecord> readAll(File file) {
+		SAMFileReader reader = new SAMFileReader(file);
+		List<SAMRecord> rtrn = new ArrayList<SAMRecord>();
+		SAMRecordIterator sri = reader.iterator();
+		while(sri.hasNext()) {
+			rtrn.add(sri.next());
+		}
+		sri.close();
+		reader.close();
+		return rtrn;
+	}
+
+	private static String getKey(SAMRecord record) {
+		String name = record.getReadName();
+		String bc = name.substring(name.length() - BC_SIZE);
+		if(bc.contains("N")) {
+			bc = "NNNN";
+		}
+		return record.getReferenceName() + ":" + record.getAlignmentStart() + "-" + record.getAlignmentEnd() + ":" + bc;
+	}
+
+	private static void assertSameFlags(List<SAMRecord> expected, List<SAMRecord> actual) {
+		assertEquals(expected.size(), actual.size());
+		for(int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getReadName(), actual.get(i).getReadName());
+			assertEquals(expected.get(i).getReadName(), expected.get(i).getDuplicateReadFlag(), actual.get(i).getDuplicateReadFlag());
+		}
+	}
+
+	private List<SAMRecord> markSequentially(int threshold2) throws IOException {
+		File out = newOutput();
+		SAMFileReader reader = new SAMFileReader(bam);
+		BAMFileWriter writer = createWriter(reader, out);
+		MarkDuplicatesFromNameUMI.markDuplicates(BC_SIZE, reader, writer, false, 2, threshold2, 0.02, 5);
+		reader.close();
+		writer.close();
+		return readAll(out);
+	}
+
+	public void testMarksAllButFirstOfEachBarcode() throws IOException {
+		List<SAMRecord> records = markSequentially(20);
+		Map<String, Integer> seen = new HashMap<String, Integer>();
+		int numMarked = 0;
+		for(SAMRecord record : records) {
+			String key = getKey(record);
+			boolean duplicate = seen.containsKey(key);
+			seen.put(key, Integer.valueOf(duplicate ? seen.get(key).intValue() + 1 : 1));
+			assertEquals(record.getReadName(), duplicate, record.getDuplicateReadFlag());
+			if(duplicate) {
+				numMarked++;
+			}
+		}
+		assertTrue(numMarked > 1000);
+		assertEquals(DEEP_COPIES, seen.get("chr1:" + DEEP_START + "-" + (DEEP_START + 39) + ":" + toBarcode(7)).intValue());
+	}
+
+	public void testByChromosomeMatchesSequential() throws IOException {
+		List<SAMRecord> expected = markSequentially(20);
+		File out = newOutput();
+		SAMFileReader reader = new SAMFileReader(bam);
+		BAMFileWriter writer = createWriter(reader, out);
+		reader.close();
+		MarkDuplicatesResults result = MarkDuplicatesFromNameUMI.markDuplicatesByChromosome(BC_SIZE, bam, writer, true, 2, 20, 0.02, 3);
+		writer.close();
+		assertSameFlags(expected, readAll(out));
+		assertEquals(expected.size(), result.getNumAlignments());
+	}
+
+	public void testSinglePassAdjustsDeepPositions() throws IOException {
+		// nothing reaches threshold2: the single pass marks like the first pass
+		File out = newOutput();
+		SAMFileReader reader = new SAMFileReader(bam);
+		BAMFileWriter writer = createWriter(reader, out);
+		MarkDuplicatesFromNameUMI.markDuplicatesSinglePass(BC_SIZE, reader, writer, false, 200, 2, 0);
+		reader.close();
+		writer.close();
+		List<SAMRecord> firstPass = markSequentially(20);
+		assertSameFlags(firstPass, readAll(out));
+
+		// the deep position is above threshold2 and has more duplicates than the model expects
+		double meanNumDup = 2;
+		out = newOutput();
+		reader = new SAMFileReader(bam);
+		writer = createWriter(reader, out);
+		MarkDuplicatesFromNameUMI.markDuplicatesSinglePass(BC_SIZE, reader, writer, false, 20, meanNumDup, 0);
+		reader.close();
+		writer.close();
+		List<SAMRecord> adjusted = readAll(out);
+		assertEquals(firstPass.size(), adjusted.size());
+		double dupScore = meanNumDup / 2 - DEEP_BARCODES * meanNumDup;
+		int numRemoved = 0;
+		for(int i = 0; i < firstPass.size(); i++) {
+			boolean expected = firstPass.get(i).getDuplicateReadFlag();
+			if(firstPass.get(i).getAlignmentStart() == DEEP_START) {
+				dupScore++;
+				if(expected && dupScore >= meanNumDup) {
+					dupScore -= meanNumDup;
+					expected = false;
+					numRemoved++;
+				}
+			}
+			assertEquals(firstPass.get(i).getReadName(), expected, adjusted.get(i).getDuplicateReadFlag());
+		}
+		assertTrue(numRemoved > 0);
+	}
+
+}
@@ -0,0 +1,111 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.ObjectName;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import nextgen.core.utils.CountLogger;
+import nextgen.core.utils.Metrics;
+import junit.framework.TestCase;
+
+/**
+ * Checks nextgen.core.utils.Metrics: counters under contention, the snapshot keys, the JSON dump and the MBean
+ *
+ */
+public class TestMetrics extends TestCase {
+
+	@Override
+	protected void setUp() {
+		Metrics.reset();
+	}
+
+	public void testCounterUnderContention() throws Exception {
+		final Metrics.Counter counter = Metrics.counter("TestMetrics.contended");
+		assertSame(counter, Metrics.counter("TestMetrics.contended"));
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		Future<?>[] futures = new Future<?>[8];
+		for(int t=0; t<futures.length; t++) {
+			futures[t] = executor.submit(new Callable<Object>() {
+				@Override
+				public Object call() {
+					for(int i=0; i<100000; i++) {
+						counter.increment();
+					}
+					counter.add(5);
+					return null;
+				}
+			});
+		}
+		for(Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		assertEquals(8 * 100005, counter.get());
+		Metrics.reset();
+		assertEquals(0, counter.get());
+	}
+
+	public void testSnapshot() {
+		Metrics.counter("TestMetrics.snapshot").add(42);
+		Metrics.Timer timer = Metrics.timer("TestMetrics.timer");
+		timer.record(1500000000L);
+		timer.record(500000000L);
+		assertEquals(2, timer.getCount());
+		assertEquals(2000000000L, timer.getNanos());
+
+		SortedMap<String, Number> snapshot = Metrics.snapshot();
+		assertEquals(Long.valueOf(42), snapshot.get("TestMetrics.snapshot"));
+		assertTrue(snapshot.get("TestMetrics.snapshot.perSecond").doubleValue() > 0);
+		assertEquals(2L, snapshot.get("TestMetrics.timer.count").longValue());
+		assertEquals(2.0, snapshot.get("TestMetrics.timer.seconds").doubleValue(), 1e-9);
+	}
+
+	public void testCounterGroup() {
+		Metrics.CounterGroup group = Metrics.counterGroup("TestMetrics.group");
+		group.get("a string").increment();
+		group.get("another string").increment();
+		group.get(Integer.valueOf(1)).increment();
+		assertEquals(2, Metrics.counter("TestMetrics.group.String").get());
+		assertEquals(1, Metrics.counter("TestMetrics.group.Integer").get());
+	}
+
+	public void testWriteJson() throws Exception {
+		Metrics.counter("TestMetrics.json").add(7);
+		File file = File.createTempFile("metrics", ".json");
+		try {
+			Metrics.writeJson(file);
+			JsonNode root = new ObjectMapper().readTree(file);
+			assertTrue(root.has("timestamp"));
+			assertEquals(7, root.get("metrics").get("TestMetrics.json").getLongValue());
+			assertFalse(new File(file.getPath() + ".tmp").exists());
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testMBean() throws Exception {
+		Metrics.counter("TestMetrics.jmx").add(3);
+		Object value = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(Metrics.MBEAN_NAME), "TestMetrics.jmx");
+		assertEquals(Long.valueOf(3), value);
+	}
+
+	public void testCountLogger() {
+		CountLogger logger = new CountLogger(100, 10, "TestMetrics.countLogger");
+		for(int i=0; i<100; i++) {
+			logger.advance();
+		}
+		Map<String, Number> snapshot = Metrics.snapshot();
+		assertEquals(Long.valueOf(100), snapshot.get("TestMetrics.countLogger"));
+	}
+
+}
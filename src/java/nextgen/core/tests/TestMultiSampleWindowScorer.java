@@ -0,0 +1,139 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.Gene;
+import nextgen.core.esat.MultiSampleWindowScorer;
+import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.score.ScanStatisticScore;
+
+import org.apache.commons.collections15.Predicate;
+
+/**
+ * Checks that nextgen.core.esat.MultiSampleWindowScorer gives every window the same scores as a ScanStatisticScore
+ * computed on its own, for stranded and unstranded samples and windows given in any order
+ *
+ */
+public class TestMultiSampleWindowScorer extends TestCase {
+
+	private static final String[] CHRS = {"chr1", "chr2"};
+	private static final int CHR_LENGTH = 30000;
+
+	private List<File> bams = new ArrayList<File>();
+
+	@Override
+	protected void setUp() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		for(String chr : CHRS) {
+			header.addSequence(new SAMSequenceRecord(chr, CHR_LENGTH));
+		}
+		Random random = new Random(8);
+		for(int s=0; s<3; s++) {
+			File bam = File.createTempFile("TestMultiSampleWindowScorer", ".bam");
+			SAMFileWriterFactory factory = new SAMFileWriterFactory();
+			factory.setCreateIndex(true);
+			SAMFileWriter writer = factory.makeBAMWriter(header, false, bam);
+			for(String chr : CHRS) {
+				int start = 1;
+				for(int i=0; start<CHR_LENGTH-300; i++) {
+					// Dense stretches so some windows are significant
+					start += (start % 5000) < 400 ? random.nextInt(2) : random.nextInt(25);
+					SAMRecord record = new SAMRecord(header);
+					record.setReadName(chr + "_" + s + "_" + i);
+					record.setReferenceName(chr);
+					record.setAlignmentStart(start);
+					record.setCigarString(random.nextInt(5) == 0 ? "20M150N30M" : "50M");
+					record.setReadString("ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTAC");
+					record.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+					record.setReadNegativeStrandFlag(random.nextBoolean());
+					record.setMappingQuality(255);
+					record.setAttribute("NH", Integer.valueOf(random.nextInt(6) == 0 ? 2 : 1));
+					writer.addAlignment(record);
+				}
+			}
+			writer.close();
+			bams.add(bam);
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		for(File bam : bams) {
+			bam.delete();
+			new File(bam.getAbsolutePath().replaceAll("\\.bam$", ".bai")).delete();
+			new File(bam.getAbsolutePath() + ".GenomicSpaceStats").delete();
+		}
+	}
+
+	public void testUnstranded() {
+		checkScores(TranscriptionRead.UNSTRANDED);
+	}
+
+	public void testStranded() {
+		checkScores(TranscriptionRead.FIRST_OF_PAIR);
+	}
+
+	private void checkScores(TranscriptionRead strand) {
+		Map<String, AlignmentModel> models = new HashMap<String, AlignmentModel>();
+		Map<String, AlignmentModel> expectedModels = new HashMap<String, AlignmentModel>();
+		for(int s=0; s<bams.size(); s++) {
+			String path = bams.get(s).getAbsolutePath();
+			models.put("sample" + s, new AlignmentModel(path, null, new ArrayList<Predicate<Alignment>>(), false, strand));
+			expectedModels.put("sample" + s, new AlignmentModel(path, null, new ArrayList<Predicate<Alignment>>(), false, strand));
+		}
+		MultiSampleWindowScorer scorer = new MultiSampleWindowScorer(models);
+		Random random = new Random(21);
+		// Two batches, each with windows in random order
+		for(int batch=0; batch<2; batch++) {
+			List<Gene> windows = new ArrayList<Gene>();
+			for(int i=0; i<150; i++) {
+				String chr = CHRS[random.nextInt(CHRS.length)];
+				int start = batch * CHR_LENGTH / 2 + random.nextInt(CHR_LENGTH / 2 - 2000);
+				int size1 = 50 + random.nextInt(300);
+				int gap = random.nextInt(400);
+				int size2 = 50 + random.nextInt(300);
+				int end = start + size1 + gap + size2;
+				String orientation = random.nextBoolean() ? "+" : "-";
+				windows.add(new Gene(chr + "\t" + start + "\t" + end + "\twindow" + i + "\t0\t" + orientation + "\t" + start + "\t" + end + "\t0,0,0\t2\t" + size1 + "," + size2 + ",\t0," + (size1 + gap) + ",", false));
+			}
+			List<Map<String, double[]>> scores = scorer.score(windows);
+			assertEquals(windows.size(), scores.size());
+			for(int i=0; i<windows.size(); i++) {
+				Gene window = windows.get(i);
+				double score = window.getScore();
+				for(String sample : expectedModels.keySet()) {
+					double[] expected = new ScanStatisticScore(expectedModels.get(sample), new Gene(window), false).getScores();
+					assertTrue(window.toUCSC() + " " + sample + " " + Arrays.toString(expected) + " " + Arrays.toString(scores.get(i).get(sample)),
+							Arrays.equals(expected, scores.get(i).get(sample)));
+				}
+				// The window keeps the p value of the last sample as its score
+				assertEquals(scores.get(i).get(lastKey(models)).length, 10);
+				assertEquals(scores.get(i).get(lastKey(models))[6], score);
+			}
+		}
+	}
+
+	private static String lastKey(Map<String, AlignmentModel> models) {
+		String rtrn = null;
+		for(String key : models.keySet()) {
+			rtrn = key;
+		}
+		return rtrn;
+	}
+}
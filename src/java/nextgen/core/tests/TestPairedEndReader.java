@@ -0,0 +1,205 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.readers.PairedEndReader;
+import nextgen.core.writers.PairedEndWriter;
+
+/**
+ * Checks that the parallel reading in nextgen.core.readers.PairedEndReader returns the same alignments in the same order as reading on one thread
+ *
+ */
+public class TestPairedEndReader extends TestCase {
+
+	private File bam;
+	private File pairedEnd;
+
+	@Override
+	protected void setUp() throws IOException {
+		bam = File.createTempFile("TestPairedEndReader", ".bam");
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", 30000));
+		header.addSequence(new SAMSequenceRecord("chr2", 8000));
+		header.addSequence(new SAMSequenceRecord("chr3", 5000));
+		SAMFileWriterFactory factory = new SAMFileWriterFactory();
+		factory.setCreateIndex(true);
+		SAMFileWriter writer = factory.makeBAMWriter(header, false, bam);
+		Random random = new Random(23);
+		for(int i=0; i<4000; i++) {
+			String chr = random.nextInt(4) == 0 ? "chr2" : "chr1";
+			int start = 1 + random.nextInt(chr.equals("chr1") ? 29000 : 7000);
+			SAMRecord left = makeRecord(header, "read" + i, chr, start, false);
+			if(i % 5 == 0) {
+				// Mate unmapped
+				left.setReadPairedFlag(true);
+				left.setMateUnmappedFlag(true);
+				left.setFirstOfPairFlag(i % 2 == 0);
+				left.setSecondOfPairFlag(i % 2 != 0);
+				writer.addAlignment(left);
+				continue;
+			}
+			SAMRecord right = makeRecord(header, "read" + i, chr, start + random.nextInt(500), true);
+			setMates(left, right, true);
+			setMates(right, left, false);
+			writer.addAlignment(left);
+			writer.addAlignment(right);
+		}
+		writer.close();
+		pairedEnd = new File(bam.getAbsolutePath() + PairedEndWriter.PAIRED_END_EXTENSION);
+		new PairedEndWriter(bam, pairedEnd.getAbsolutePath()).convertInputToPairedEnd(TranscriptionRead.FIRST_OF_PAIR);
+	}
+
+	@Override
+	protected void tearDown() {
+		bam.delete();
+		new File(bam.getAbsolutePath().replaceAll("\\.bam$", ".bai")).delete();
+		pairedEnd.delete();
+		new File(pairedEnd.getAbsolutePath() + ".bai").delete();
+	}
+
+	public void testSingleEndFile() throws IOException {
+		assertSameAlignments(bam);
+	}
+
+	public void testPairedEndFile() throws IOException {
+		assertSameAlignments(pairedEnd);
+	}
+
+	private static void assertSameAlignments(File file) throws IOException {
+		PairedEndReader serial = new PairedEndReader(file, TranscriptionRead.FIRST_OF_PAIR);
+		PairedEndReader parallel = new PairedEndReader(file, TranscriptionRead.FIRST_OF_PAIR);
+		parallel.setNumThreads(4);
+		parallel.setShardSize(700);
+		// Short queries are read on the calling thread
+		parallel.setMinParallelQuerySize(2000);
+
+		List<String> expected = toStrings(serial.iterator());
+		assertTrue(expected.size() > 3000);
+		assertEquals(expected, toStrings(parallel.iterator()));
+
+		Random random = new Random(1);
+		for(int q=0; q<50; q++) {
+			int start = random.nextInt(29000);
+			BasicAnnotation region = new BasicAnnotation(q % 3 == 0 ? "chr2" : "chr1", start, start + 1 + random.nextInt(6000));
+			for(boolean contained : new boolean[] {false, true}) {
+				assertEquals(region.toUCSC(), toStrings(serial.query(region, contained)), toStrings(parallel.query(region, contained)));
+			}
+		}
+		// Empty reference sequence
+		assertEquals(0, toStrings(parallel.query(new BasicAnnotation("chr3", 0, 5000), false)).size());
+		// Threads are kept between queries
+		assertTrue(countThreads(file) <= 4);
+
+		// Stop reading a query half way, the next one still gets every alignment
+		CloseableIterator<Alignment> partial = parallel.query(new BasicAnnotation("chr1", 0, 30000), false);
+		for(int i=0; i<10; i++) {
+			partial.next();
+		}
+		partial.close();
+		assertEquals(toStrings(serial.query(new BasicAnnotation("chr1", 100, 20000), false)), toStrings(parallel.query(new BasicAnnotation("chr1", 100, 20000), false)));
+		serial.close();
+		parallel.close();
+	}
+
+	/**
+	 * A new query closes the iterator of the previous one, reading on one thread or several
+	 */
+	public void testTwoQueriesInARow() throws IOException {
+		PairedEndReader expectedReader = new PairedEndReader(bam, TranscriptionRead.FIRST_OF_PAIR);
+		BasicAnnotation first = new BasicAnnotation("chr1", 0, 30000);
+		BasicAnnotation second = new BasicAnnotation("chr1", 100, 20000);
+		BasicAnnotation shortRegion = new BasicAnnotation("chr1", 5000, 6000);
+		List<String> expected = toStrings(expectedReader.query(second, false));
+		List<String> expectedShort = toStrings(expectedReader.query(shortRegion, false));
+		expectedReader.close();
+
+		for(int numThreads : new int[] {1, 4}) {
+			PairedEndReader reader = new PairedEndReader(bam, TranscriptionRead.FIRST_OF_PAIR);
+			reader.setNumThreads(numThreads);
+			reader.setShardSize(700);
+			reader.setMinParallelQuerySize(2000);
+
+			CloseableIterator<Alignment> open = reader.query(first, false);
+			for(int i=0; i<10; i++) {
+				open.next();
+			}
+			assertEquals(expected, toStrings(reader.query(second, false)));
+			try {
+				open.hasNext();
+				fail("Iterator of the previous query is still open");
+			} catch(IllegalStateException e) {
+				// expected
+			}
+			open.close();
+
+			// Short queries are read on the calling thread, either kind replaces the other
+			open = reader.query(first, false);
+			open.next();
+			assertEquals(expectedShort, toStrings(reader.query(shortRegion, false)));
+			open = reader.query(shortRegion, false);
+			open.next();
+			assertEquals(expected, toStrings(reader.query(second, false)));
+			reader.close();
+		}
+	}
+
+		private static int countThreads(File file) {
+		int rtrn = 0;
+		for(Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.getName().equals("PairedEndReader-" + file.getName())) {
+				rtrn++;
+			}
+		}
+		return rtrn;
+	}
+
+	private static List<String> toStrings(CloseableIterator<Alignment> iter) {
+		List<String> rtrn = new ArrayList<String>();
+		while(iter.hasNext()) {
+			Alignment alignment = iter.next();
+			rtrn.add(alignment.getName() + " " + alignment.toUCSC() + " " + alignment.getOrientation() + " " + alignment.getBlocks());
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	private static SAMRecord makeRecord(SAMFileHeader header, String name, String chr, int start, boolean negative) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceName(chr);
+		record.setAlignmentStart(start);
+		record.setCigarString(start % 7 == 0 ? "20M100N30M" : "50M");
+		record.setReadString("ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTAC");
+		record.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+		record.setReadNegativeStrandFlag(negative);
+		record.setMappingQuality(255);
+		return record;
+	}
+
+	private static void setMates(SAMRecord record, SAMRecord mate, boolean first) {
+		record.setReadPairedFlag(true);
+		record.setProperPairFlag(true);
+		record.setFirstOfPairFlag(first);
+		record.setSecondOfPairFlag(!first);
+		record.setMateReferenceName(mate.getReferenceName());
+		record.setMateAlignmentStart(mate.getAlignmentStart());
+		record.setMateNegativeStrandFlag(mate.getReadNegativeStrandFlag());
+		int insert = Math.max(record.getAlignmentEnd(), mate.getAlignmentEnd()) - Math.min(record.getAlignmentStart(), mate.getAlignmentStart()) + 1;
+		record.setInferredInsertSize(record.getAlignmentStart() <= mate.getAlignmentStart() ? insert : -insert);
+	}
+}
@@ -0,0 +1,136 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.writers.PairedEndWriter;
+
+/**
+ * Checks that the streaming conversion of coordinate sorted input in nextgen.core.writers.PairedEndWriter
+ * writes the same records as the conversion through a query name sort, already in coordinate order
+ *
+ */
+public class TestPairedEndWriter extends TestCase {
+
+	private File bam;
+	private List<File> outputs = new ArrayList<File>();
+
+	@Override
+	protected void setUp() throws IOException {
+		bam = File.createTempFile("TestPairedEndWriter", ".bam");
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", 20000));
+		header.addSequence(new SAMSequenceRecord("chr2", 20000));
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, false, bam);
+		Random random = new Random(7);
+		for(int i=0; i<3000; i++) {
+			String chr = random.nextBoolean() ? "chr1" : "chr2";
+			int start = 1 + random.nextInt(19000);
+			if(i % 10 == 0) {
+				// Unpaired read
+				writer.addAlignment(makeRecord(header, "single" + i, chr, start, random.nextBoolean()));
+				continue;
+			}
+			int mateStart = i % 13 == 0 ? start : start + random.nextInt(600);
+			boolean leftIsFirst = random.nextBoolean();
+			SAMRecord left = makeRecord(header, "pair" + i, chr, start, false);
+			SAMRecord right = makeRecord(header, "pair" + i, chr, mateStart, true);
+			setMates(left, right, leftIsFirst);
+			setMates(right, left, !leftIsFirst);
+			// Some mates are missing from the file
+			if(i % 17 != 0) writer.addAlignment(left);
+			if(i % 19 != 0) writer.addAlignment(right);
+		}
+		writer.close();
+	}
+
+	@Override
+	protected void tearDown() {
+		bam.delete();
+		new File(bam.getAbsolutePath() + ".sortedbyQueryname.bam").delete();
+		for(File output : outputs) {
+			output.delete();
+			new File(output.getAbsolutePath() + ".bai").delete();
+		}
+	}
+
+	public void testStreamingMatchesQuerynameSort() throws IOException {
+		File sorted = convert(false, 500000);
+		File streamed = convert(true, 500000);
+		// Small buffers so the mates and the output spill to disk
+		File spilled = convert(true, 50);
+
+		List<String> expected = readRecords(sorted, false);
+		assertTrue(expected.size() > 2000);
+		assertEquals(expected, readRecords(streamed, true));
+		assertEquals(expected, readRecords(spilled, true));
+	}
+
+	private File convert(boolean streaming, int maxRecordsInRam) throws IOException {
+		File output = File.createTempFile("TestPairedEndWriter", ".PairedEnd.bam");
+		outputs.add(output);
+		PairedEndWriter writer = new PairedEndWriter(bam, output.getAbsolutePath(), streaming);
+		writer.setMaxRecordsInRam(maxRecordsInRam);
+		writer.convertInputToPairedEnd();
+		return output;
+	}
+
+	/**
+	 * @return The SAM lines of the file, sorted so files with different orders of equal positions compare equal
+	 */
+	private static List<String> readRecords(File file, boolean checkOrder) {
+		SAMFileReader reader = new SAMFileReader(file);
+		List<String> rtrn = new ArrayList<String>();
+		int referenceIndex = -1;
+		int start = 0;
+		for(SAMRecord record : reader) {
+			if(checkOrder) {
+				int index = record.getReferenceIndex().intValue();
+				assertTrue(index > referenceIndex || (index == referenceIndex && record.getAlignmentStart() >= start));
+				referenceIndex = index;
+				start = record.getAlignmentStart();
+			}
+			rtrn.add(record.getSAMString());
+		}
+		reader.close();
+		Collections.sort(rtrn);
+		return rtrn;
+	}
+
+	private static SAMRecord makeRecord(SAMFileHeader header, String name, String chr, int start, boolean negative) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceName(chr);
+		record.setAlignmentStart(start);
+		record.setCigarString("50M");
+		record.setReadString("ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTAC");
+		record.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+		record.setReadNegativeStrandFlag(negative);
+		record.setMappingQuality(255);
+		return record;
+	}
+
+	private static void setMates(SAMRecord record, SAMRecord mate, boolean first) {
+		record.setReadPairedFlag(true);
+		record.setProperPairFlag(true);
+		record.setFirstOfPairFlag(first);
+		record.setSecondOfPairFlag(!first);
+		record.setMateReferenceName(mate.getReferenceName());
+		record.setMateAlignmentStart(mate.getAlignmentStart());
+		record.setMateNegativeStrandFlag(mate.getReadNegativeStrandFlag());
+		int insert = Math.max(record.getAlignmentEnd(), mate.getAlignmentEnd()) - Math.min(record.getAlignmentStart(), mate.getAlignmentStart()) + 1;
+		record.setInferredInsertSize(record.getAlignmentStart() <= mate.getAlignmentStart() ? insert : -insert);
+	}
+}
@@ -0,0 +1,99 @@
+package nextgen.core.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import Jama.Matrix;
+import broad.core.datastructures.MatrixWithHeaders;
+import broad.core.math.FDRDistribution;
+import broad.pda.differentialExpression.DifferentialScoring;
+import broad.pda.differentialExpression.FWERDistribution;
+import broad.pda.differentialExpression.PermutationEngine;
+import broad.pda.differentialExpression.Permutations;
+import junit.framework.TestCase;
+
+/**
+ * Checks broad.pda.differentialExpression.PermutationEngine: the streamed null distributions give the same FDR and FWER
+ * as FDRDistribution and FWERDistribution built from the matrix of every permutation
+ *
+ */
+public class TestPermutationEngine extends TestCase {
+
+	private static final double[] FUDGE_FACTORS = {0.01, 0.1};
+	private static final double ALPHA = .05;
+
+	public void testStatisticsMatchDifferentialScoring() {
+		MatrixWithHeaders data = makeData(50, false);
+		List<String> group1 = data.getColumnNames().subList(0, 4);
+		List<String> group2 = data.getColumnNames().subList(4, 8);
+		PermutationEngine engine = new PermutationEngine(data, FUDGE_FACTORS, true, false, 1);
+		List<List<String>> groups = new ArrayList<List<String>>();
+		groups.add(group1);
+		groups.add(group2);
+		MatrixWithHeaders expected = DifferentialScoring.computeTestStatistics(data, group1, group2, FUDGE_FACTORS, true, false);
+		MatrixWithHeaders actual = engine.toMatrix(groups);
+		assertEquals(expected.getColumnNames(), actual.getColumnNames());
+		for(String column : expected.getColumnNames()) {
+			for(String row : expected.getRowNames()) {
+				assertEquals(expected.get(row, column), actual.get(row, column), 0);
+			}
+		}
+	}
+
+	public void testStreamedFDR() {
+		checkAgainstMatrices(makeData(300, false), 1);
+		checkAgainstMatrices(makeData(300, false), 3);
+	}
+
+	public void testStreamedFDRWithNaN() {
+		checkAgainstMatrices(makeData(100, true), 2);
+	}
+
+	private static void checkAgainstMatrices(MatrixWithHeaders data, int numThreads) {
+		List<String> group1 = data.getColumnNames().subList(0, 4);
+		List<String> group2 = data.getColumnNames().subList(4, 8);
+		MatrixWithHeaders observed = DifferentialScoring.computeTestStatistics(data, group1, group2, FUDGE_FACTORS, true, false);
+		List<List<List<String>>> permutations = Permutations.drawPermutations(group1, group2, 40);
+
+		PermutationEngine engine = new PermutationEngine(data, FUDGE_FACTORS, true, false, numThreads);
+		MatrixWithHeaders[] matrices = engine.materialize(permutations);
+		PermutationEngine.Summary summary = engine.summarize(permutations);
+
+		for(String column : observed.getColumnNames()) {
+			Matrix matrix = new Matrix(data.rowDimension(), matrices.length);
+			for(int i=0; i<matrices.length; i++) {matrix.setColumn(i, matrices[i].getColumn(column));}
+			double[] obs = observed.getColumn(column);
+			FDRDistribution expected = new FDRDistribution(obs, matrix, ALPHA);
+			FDRDistribution actual = new FDRDistribution(obs, summary.getFDRNullDistribution(column), ALPHA);
+			FWERDistribution expectedFWER = new FWERDistribution(obs, matrix);
+			FWERDistribution actualFWER = summary.getFWERDistribution(column);
+			for(int i=0; i<obs.length; i++) {
+				assertEquals(column + " " + obs[i], expected.getFDR(obs[i]), actual.getFDR(obs[i]), 1e-12);
+				assertEquals(column + " " + obs[i], expected.getAbsFDR(obs[i]), actual.getAbsFDR(obs[i]), 1e-12);
+				assertEquals(column + " " + obs[i], expectedFWER.getFWER(obs[i]), actualFWER.getFWER(obs[i]), 1e-12);
+			}
+		}
+	}
+
+	private static MatrixWithHeaders makeData(int numGenes, boolean withNaN) {
+		Random random = new Random(numGenes);
+		List<String> rows = new ArrayList<String>();
+		for(int i=0; i<numGenes; i++) {rows.add("gene" + i);}
+		List<String> columns = new ArrayList<String>();
+		for(int j=0; j<8; j++) {columns.add("sample" + j);}
+		MatrixWithHeaders rtrn = new MatrixWithHeaders(rows, columns);
+		for(int i=0; i<numGenes; i++) {
+			double shift = i % 10 == 0 ? 2 : 0;
+			for(int j=0; j<columns.size(); j++) {
+				double val = random.nextGaussian() + (j < 4 ? shift : 0);
+				rtrn.set(rows.get(i), columns.get(j), val);
+			}
+		}
+		if(withNaN) {
+			rtrn.set(rows.get(3), columns.get(5), Double.NaN);
+		}
+		return rtrn;
+	}
+
+}
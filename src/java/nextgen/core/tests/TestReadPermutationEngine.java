@@ -0,0 +1,227 @@
+package nextgen.core.tests;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.AnnotationCounts;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.coordinatesystem.GenomicSpace;
+import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.ReadSpans;
+import nextgen.core.model.score.RatioScore;
+import nextgen.core.model.score.WindowProcessor;
+import nextgen.core.model.score.WindowScoreIterator;
+import broad.core.math.EmpiricalDistribution;
+import broad.pda.seq.rap.BuildRatioNullDistribution;
+import broad.pda.seq.rap.ReadPermutationEngine;
+
+/**
+ * Checks nextgen.core.model.ReadSpans and broad.pda.seq.rap.ReadPermutationEngine against the AlignmentModel and a scan of the permuted reads
+ *
+ */
+public class TestReadPermutationEngine extends TestCase {
+
+	private static final int CHR_LENGTH = 20000;
+	private static final int WINDOW = 500;
+	private static final int OVERLAP = 250;
+
+	private File target;
+	private File control;
+	private File mask;
+	private GenomicSpace space;
+
+	@Override
+	protected void setUp() throws IOException {
+		Random random = new Random(41);
+		target = writeBam(random, 3000, 2000);
+		control = writeBam(random, 2500, 0);
+		mask = File.createTempFile("TestReadPermutationEngine", ".bed");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(mask));
+		bw.write("chr1\t3000\t4000\nchr1\t3500\t5000\nchr1\t12000\t12100\nchr2\t0\t1000\n");
+		bw.close();
+		Map<String, Integer> sizes = new TreeMap<String, Integer>();
+		sizes.put("chr1", Integer.valueOf(CHR_LENGTH));
+		sizes.put("chr2", Integer.valueOf(CHR_LENGTH / 2));
+		space = new GenomicSpace(sizes, mask.getAbsolutePath());
+		space.setPercentMaskedAllowed(50);
+	}
+
+	@Override
+	protected void tearDown() {
+		for(File file : new File[] {target, control}) {
+			file.delete();
+			new File(file.getAbsolutePath().replaceAll("\\.bam$", ".bai")).delete();
+			new File(file.getAbsolutePath() + ".GenomicSpaceStats").delete();
+		}
+		mask.delete();
+	}
+
+	/**
+	 * Unspliced reads, some of them piled up near peakStart
+	 */
+	private static File writeBam(Random random, int numReads, int peakStart) throws IOException {
+		File bam = File.createTempFile("TestReadPermutationEngine", ".bam");
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", CHR_LENGTH));
+		header.addSequence(new SAMSequenceRecord("chr2", CHR_LENGTH / 2));
+		SAMFileWriterFactory factory = new SAMFileWriterFactory();
+		factory.setCreateIndex(true);
+		SAMFileWriter writer = factory.makeBAMWriter(header, false, bam);
+		for(int i = 0; i < numReads; i++) {
+			SAMRecord record = new SAMRecord(header);
+			String chr = i % 3 == 0 ? "chr2" : "chr1";
+			int chrLength = i % 3 == 0 ? CHR_LENGTH / 2 : CHR_LENGTH;
+			int length = 30 + random.nextInt(40);
+			int start = peakStart > 0 && i % 5 == 0 ? peakStart + random.nextInt(300) : random.nextInt(chrLength - 100);
+			record.setReadName("read" + i);
+			record.setReferenceName(chr);
+			record.setAlignmentStart(start + 1);
+			record.setCigarString(length + "M");
+			StringBuilder bases = new StringBuilder();
+			for(int j = 0; j < length; j++) {
+				bases.append('A');
+			}
+			record.setReadString(bases.toString());
+			record.setBaseQualityString(bases.toString().replace('A', 'I'));
+			record.setReadNegativeStrandFlag(random.nextBoolean());
+			writer.addAlignment(record);
+		}
+		writer.close();
+		return bam;
+	}
+
+	private List<Annotation> getRegions() {
+		List<Annotation> regions = new ArrayList<Annotation>();
+		regions.addAll(space.getReferenceAnnotations());
+		return regions;
+	}
+
+	private static ReadPermutationEngine.Scorer<RatioScore> getScorer(final AnnotationCounts control) {
+		return new ReadPermutationEngine.Scorer<RatioScore>() {
+			@Override
+			public WindowProcessor<RatioScore> getProcessor(AnnotationCounts permuted) {
+				return new RatioScore.Processor(permuted, control);
+			}
+
+			@Override
+			public double getValue(RatioScore score) {
+				return score.getLog2RegionRatio();
+			}
+		};
+	}
+
+	public void testCountsMatchAlignmentModel() {
+		AlignmentModel model = new AlignmentModel(target.getAbsolutePath(), space, false);
+		ReadSpans spans = ReadSpans.load(model, getRegions(), false);
+		assertEquals(model.getGlobalCount(), spans.getGlobalCount());
+		Random random = new Random(7);
+		for(int q = 0; q < 300; q++) {
+			String chr = q % 3 == 0 ? "chr2" : "chr1";
+			int start = random.nextInt((int) space.getLength(chr) - 10);
+			Annotation window = new BasicAnnotation(chr, start, start + 1 + random.nextInt(q % 10 == 0 ? 3000 : 200));
+			assertEquals(window.toUCSC(), model.getCount(window), spans.getCount(window));
+		}
+		assertEquals(model.getCount(space.getReferenceAnnotation("chr1")), spans.getCount(space.getReferenceAnnotation("chr1")));
+	}
+
+	public void testPermutationAvoidsMask() {
+		AlignmentModel model = new AlignmentModel(target.getAbsolutePath(), space, false);
+		ReadPermutationEngine engine = new ReadPermutationEngine(model, space, getRegions(), WINDOW, OVERLAP);
+		ReadSpans reads = engine.getReads();
+		ReadSpans permuted = engine.permute(new Random(3));
+		assertEquals(reads.size(), permuted.size());
+		assertEquals(reads.getGlobalCount(), permuted.getGlobalCount());
+		assertEquals(reads.getCount(space.getReferenceAnnotation("chr2")), permuted.getCount(space.getReferenceAnnotation("chr2")));
+		// Drawing the masked chr2:0-1000 ten times in a row is unlikely enough
+		assertEquals(0.0, permuted.getCount(new BasicAnnotation("chr2", 0, 1000)));
+		assertEquals(0.0, permuted.getCount(new BasicAnnotation("chr1", 3000, 5000)));
+		assertTrue(reads.getCount(new BasicAnnotation("chr1", 2000, 2300)) > 3 * permuted.getCount(new BasicAnnotation("chr1", 2000, 2300)));
+
+		// Same seed, same permutation
+		ReadSpans again = engine.permute(new Random(3));
+		for(int start = 0; start < CHR_LENGTH; start += 137) {
+			Annotation window = new BasicAnnotation("chr1", start, start + 100);
+			assertEquals(permuted.getCount(window), again.getCount(window));
+		}
+	}
+
+	public void testDistributionMatchesScanOfPermutedReads() {
+		AlignmentModel model = new AlignmentModel(target.getAbsolutePath(), space, false);
+		List<Annotation> regions = getRegions();
+		ReadPermutationEngine engine = new ReadPermutationEngine(model, space, regions, WINDOW, OVERLAP);
+		ReadSpans controlSpans = ReadSpans.load(new AlignmentModel(control.getAbsolutePath(), space, false), regions, false);
+		ReadPermutationEngine.Scorer<RatioScore> scorer = getScorer(controlSpans);
+
+		int numPermutations = 5;
+		long seed = 19;
+		EmpiricalDistribution expected = BuildRatioNullDistribution.getEmptyEmpiricalDistribution();
+		Random seeds = new Random(seed);
+		for(int p = 0; p < numPermutations; p++) {
+			ReadSpans permuted = engine.permute(new Random(seeds.nextLong()));
+			for(Annotation region : regions) {
+				WindowScoreIterator<RatioScore> itr = new WindowScoreIterator<RatioScore>(space.getWindowIterator(region, WINDOW, OVERLAP), scorer.getProcessor(permuted), region);
+				while(itr.hasNext()) {
+					expected.add(itr.next().getLog2RegionRatio());
+				}
+				itr.close();
+			}
+		}
+		assertTrue(expected.getTotalObservations() > 100);
+
+		for(int threads : new int[] {1, 3}) {
+			EmpiricalDistribution actual = BuildRatioNullDistribution.getEmptyEmpiricalDistribution();
+			engine.setNumThreads(threads);
+			engine.addPermutations(numPermutations, seed, scorer, actual);
+			for(int bin = 0; bin < expected.getBinNumber(); bin++) {
+				assertEquals(expected.getHistogram(bin), actual.getHistogram(bin));
+			}
+			assertTrue(actual.getAllDataValues().isEmpty());
+		}
+	}
+
+	public void testObservationBinsMatchLinearSearch() {
+		EmpiricalDistribution ed = new EmpiricalDistribution(2000, -20, 20);
+		EmpiricalDistribution included = new EmpiricalDistribution(70, -3, 4, true);
+		Random random = new Random(5);
+		for(int i = 0; i < 20000; i++) {
+			double value = i % 4 == 0 ? ed.getBinStart(random.nextInt(2000)) : -25 + 50 * random.nextDouble();
+			if(i == 0) value = 20;
+			if(i == 1) value = Double.NaN;
+			assertEquals(Double.toString(value), linearBin(ed, value), ed.getObservationBin(value));
+			assertEquals(Double.toString(value), linearBin(included, value), included.getObservationBin(value));
+		}
+	}
+
+	/**
+	 * The bin EmpiricalDistribution.add counted an observation in by scanning the bins
+	 */
+	private static int linearBin(EmpiricalDistribution ed, double observation) {
+		int n = ed.getBinNumber();
+		if(observation > ed.getMax()) {
+			return ed.getObservationBin(Double.POSITIVE_INFINITY) < 0 ? -1 : n - 1;
+		} else if(observation < ed.getMin()) {
+			return ed.getObservationBin(Double.NEGATIVE_INFINITY) < 0 ? -1 : 0;
+		}
+		for(int i = 0; i < n; i++) {
+			if((ed.getBinStart(i) <= observation && ed.getBinEnd(i) > observation) || (ed.getBinEnd(i) == ed.getMax() && observation == ed.getMax())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,219 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.CompactReadStore;
+import nextgen.core.model.JCSAlignmentModel;
+import nextgen.core.model.ReadSlab;
+import nextgen.core.model.RegionSlabCache;
+import nextgen.core.readers.PairedEndReader;
+
+import org.apache.commons.collections15.Predicate;
+
+/**
+ * Checks the eviction, counts and prefetching of nextgen.core.model.RegionSlabCache
+ * and that JCSAlignmentModel counts through it the same reads as AlignmentModel
+ *
+ */
+public class TestRegionSlabCache extends TestCase {
+
+	private static final int CHR_LENGTH = 20000;
+
+	private SAMFileHeader header;
+	private File bam;
+
+	@Override
+	protected void setUp() throws IOException {
+		header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", CHR_LENGTH));
+		bam = File.createTempFile("TestRegionSlabCache", ".bam");
+		SAMFileWriterFactory factory = new SAMFileWriterFactory();
+		factory.setCreateIndex(true);
+		SAMFileWriter writer = factory.makeBAMWriter(header, false, bam);
+		Random random = new Random(5);
+		int start = 1;
+		for(int i=0; i<4000; i++) {
+			start += random.nextInt(10);
+			SAMRecord record = makeRecord("read" + i, start, random.nextInt(6) == 0 ? "20M300N30M" : "50M");
+			record.setReadNegativeStrandFlag(random.nextBoolean());
+			writer.addAlignment(record);
+		}
+		writer.close();
+	}
+
+	@Override
+	protected void tearDown() {
+		bam.delete();
+		new File(bam.getAbsolutePath().replaceAll("\\.bam$", ".bai")).delete();
+	}
+
+	public void testEvictionAndCounts() {
+		ReadSlab slab = makeSlab(100);
+		RegionSlabCache cache = new RegionSlabCache(new FixedLoader(slab), null, 1000, 3 * slab.getSizeInBytes());
+		for(int start=0; start<5000; start+=100) {
+			assertSame(slab, cache.get("chr1", start, start + 50, false));
+		}
+		// Windows at 0, 1000, ... 4000 miss and the rest hit
+		assertEquals(5, cache.getMisses());
+		assertEquals(45, cache.getHits());
+		assertEquals(3, cache.getNumRegions());
+		assertEquals(2, cache.getEvictions());
+		assertEquals(3 * slab.getSizeInBytes(), cache.getSizeInBytes());
+
+		// The most recently used regions are kept
+		cache.get("chr1", 2500, 2600, false);
+		assertEquals(45 + 1, cache.getHits());
+		cache.get("chr1", 500, 600, false);
+		assertEquals(6, cache.getMisses());
+
+		// Different containment is a different region
+		cache.get("chr1", 500, 600, true);
+		assertEquals(7, cache.getMisses());
+
+		cache.clear();
+		assertEquals(0, cache.getNumRegions());
+		assertEquals(0, cache.getSizeInBytes());
+	}
+
+	public void testTooLargeRegionIsNotCached() {
+		ReadSlab slab = makeSlab(100);
+		RegionSlabCache cache = new RegionSlabCache(new FixedLoader(null), null, 1000, slab.getSizeInBytes());
+		assertNull(cache.get("chr1", 0, 10, false));
+		assertNull(cache.get("chr1", 500, 600, false));
+		// The second window is in the failed region so nothing is loaded again
+		assertEquals(1, cache.getMisses());
+		assertEquals(0, cache.getNumRegions());
+	}
+
+	public void testPrefetch() {
+		ReadSlab slab = makeSlab(100);
+		RegionSlabCache cache = new RegionSlabCache(new FixedLoader(slab), new FixedLoader(slab), 1000, 100 * slab.getSizeInBytes());
+		cache.setPrefetchDepth(2);
+		for(int start=0; start<10000; start+=100) {
+			assertSame(slab, cache.get("chr1", start, start + 200, false));
+		}
+		// Only the first window is read on the calling thread
+		assertEquals(1, cache.getMisses());
+		assertEquals(99, cache.getHits());
+		assertTrue(cache.getPrefetchHits() > 10);
+		cache.close();
+	}
+
+	public void testPrefetchStopsAtReferenceEnd() {
+		ReadSlab slab = makeSlab(100);
+		FixedLoader prefetchLoader = new FixedLoader(slab);
+		RegionSlabCache cache = new RegionSlabCache(new FixedLoader(slab), prefetchLoader, 1000, 100 * slab.getSizeInBytes());
+		Map<String, Integer> lengths = new HashMap<String, Integer>();
+		lengths.put("chr1", 2500);
+		cache.setReferenceLengths(lengths);
+		cache.setPrefetchDepth(5);
+		// Walk to the end of chr1, waiting for the prefetched regions
+		for(int start=0; start<2300; start+=100) {
+			assertSame(slab, cache.get("chr1", start, start + 200, false));
+		}
+		assertEquals(1, cache.getMisses());
+		cache.close();
+		// Regions from 750 and 1500, the second reaching the end of chr1
+		assertEquals(2, prefetchLoader.loaded.size());
+		for(String region : prefetchLoader.loaded) {
+			assertTrue(region, Integer.parseInt(region.substring(region.indexOf('-') + 1)) <= 2500);
+		}
+		assertEquals("chr1:1500-2500", prefetchLoader.loaded.get(1));
+		// Closing the cache closes the prefetch reader after the thread stops
+		assertTrue(prefetchLoader.closed);
+	}
+
+	public void testModelMatchesAlignmentModel() {
+		AlignmentModel expected = new AlignmentModel(bam.getAbsolutePath(), null, new ArrayList<Predicate<Alignment>>(), false);
+		JCSAlignmentModel model = new JCSAlignmentModel(bam.getAbsolutePath(), null, new ArrayList<Predicate<Alignment>>(), false);
+		model.setPrefetchRegions(2);
+		Random random = new Random(9);
+		for(int start=0; start<CHR_LENGTH; start+=250) {
+			Annotation window = new BasicAnnotation("chr1", start, start + 1 + random.nextInt(1000));
+			assertEquals(window.toUCSC(), expected.getCount(window, false), model.getCount(window, false));
+			assertEquals(window.toUCSC(), expected.getCount(window, true), model.getCount(window, true));
+		}
+		assertTrue(model.getCache().getHits() > 0);
+		model.closeCache();
+		// A closed cache stops prefetching but the model can still be queried
+		long prefetches = model.getCache().getPrefetches();
+		Annotation window = new BasicAnnotation("chr1", 5000, 5600);
+		assertEquals(expected.getCount(window, false), model.getCount(window, false));
+		assertEquals(expected.getCount(window, false), model.getCount(window, false));
+		assertEquals(prefetches, model.getCache().getPrefetches());
+		model.closeCache();
+	}
+
+	public void testAlignmentsAreDecodedOnce() throws IOException {
+		ReadSlab slab = makeSlab(30);
+		PairedEndReader reader = new PairedEndReader(bam);
+		for(int i=0; i<slab.size(); i++) {
+			Alignment alignment = slab.getAlignment(i, reader);
+			assertEquals(reader.toAlignment(slab.getRecord(i)).toUCSC(), alignment.toUCSC());
+			assertSame(alignment, slab.getAlignment(i, reader));
+		}
+		reader.close();
+	}
+
+	private ReadSlab makeSlab(int numReads) {
+		CompactReadStore store = new CompactReadStore(header);
+		for(int i=0; i<numReads; i++) {
+			store.stage(makeRecord("read" + i, 1 + 10 * i, "50M"));
+			store.commit(10 * i, 10 * i + 50);
+		}
+		store.seal();
+		return new ReadSlab(store.toDirectBuffer(), header);
+	}
+
+	private SAMRecord makeRecord(String name, int start, String cigar) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceName("chr1");
+		record.setAlignmentStart(start);
+		record.setCigarString(cigar);
+		record.setReadString("ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTAC");
+		record.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+		record.setMappingQuality(255);
+		record.setAttribute("NH", Integer.valueOf(1));
+		return record;
+	}
+
+	private static class FixedLoader implements RegionSlabCache.Loader {
+		final ReadSlab slab;
+		final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+		volatile boolean closed;
+
+		FixedLoader(ReadSlab slab) {
+			this.slab = slab;
+		}
+
+		@Override
+		public ReadSlab load(String chr, int start, int end, boolean fullyContained, long maxBytes) {
+			loaded.add(chr + ":" + start + "-" + end);
+			return slab;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
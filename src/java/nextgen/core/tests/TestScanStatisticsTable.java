@@ -0,0 +1,110 @@
+package nextgen.core.tests;
+
+import broad.core.math.ScanStatistics;
+import broad.core.math.ScanStatisticsTable;
+import junit.framework.TestCase;
+
+/**
+ * Checks that broad.core.math.ScanStatisticsTable gives the same numbers as ScanStatistics
+ *
+ */
+public class TestScanStatisticsTable extends TestCase {
+
+	private static final double TOLERANCE = 1e-9;
+
+	private static final double[] LAMBDAS = {1e-6, 3.7e-4, 0.01, 0.2, 1.5};
+	private static final double[] WINDOWS = {25, 100, 777, 3705};
+	private static final double T = 2.7e9;
+
+	public void testPoissonTerms() {
+		ScanStatisticsTable table = new ScanStatisticsTable(ScanStatisticsTable.DEFAULT_MAX_ENTRIES);
+		double[] means = {0.001, 0.5, 3.0, 42.0, 800.0};
+		for(double mean : means) {
+			for(int k=0; k<1200; k+=7) {
+				assertClose(ScanStatistics.poisson(k, mean), table.poisson(k, mean));
+				assertClose(ScanStatistics.Fp(k, mean), table.Fp(k, mean));
+			}
+		}
+	}
+
+	public void testPValues() {
+		ScanStatisticsTable table = new ScanStatisticsTable(ScanStatisticsTable.DEFAULT_MAX_ENTRIES);
+		for(double lambda : LAMBDAS) {
+			for(double w : WINDOWS) {
+				for(int k=0; k<400; k+=3) {
+					assertClose(ScanStatistics.calculatePVal(k, lambda, w, T), table.calculatePVal(k, lambda, w, T));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Asking for small counts after large ones (and vice versa) must hit the same numbers
+	 */
+	public void testTableGrowth() {
+		ScanStatisticsTable table = new ScanStatisticsTable(600);
+		double lambda = 0.05;
+		double w = 500;
+		double big = table.calculatePVal(500, lambda, w, T);
+		double small = table.calculatePVal(10, lambda, w, T);
+		assertClose(ScanStatistics.calculatePVal(500, lambda, w, T), big);
+		assertClose(ScanStatistics.calculatePVal(10, lambda, w, T), small);
+		table.calculatePVal(10, 0.1, w, T);
+		table.calculatePVal(10, 0.2, w, T);
+		// The large table for lambda is dropped to stay under the entry bound
+		assertEquals(2, table.size());
+		assertTrue(table.getNumEntries() <= 600);
+		assertClose(ScanStatistics.calculatePVal(250, lambda, w, T), table.calculatePVal(250, lambda, w, T));
+		assertTrue(table.getNumEntries() <= 600);
+	}
+
+	/**
+	 * Counts past the largest table are computed directly and not cached
+	 */
+	public void testCountsPastTableSize() {
+		ScanStatisticsTable table = new ScanStatisticsTable(100);
+		double w = 3705;
+		for(int k=90; k<400; k+=17) {
+			assertClose(ScanStatistics.calculatePVal(k, 0.05, w, T), table.calculatePVal(k, 0.05, w, T));
+			assertClose(ScanStatistics.poisson(k, 150.0), table.poisson(k, 150.0));
+			assertClose(ScanStatistics.Fp(k, 150.0), table.Fp(k, 150.0));
+		}
+		assertTrue(table.getNumEntries() <= 100);
+	}
+
+	public void testConcurrentAccess() throws InterruptedException {
+		final ScanStatisticsTable table = new ScanStatisticsTable(16);
+		final double[] failures = new double[1];
+		Thread[] threads = new Thread[8];
+		for(int t=0; t<threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0; i<2000; i++) {
+						int k = (i * 13 + offset) % 300;
+						double lambda = LAMBDAS[(i + offset) % LAMBDAS.length];
+						double expected = ScanStatistics.calculatePVal(k, lambda, 100, T);
+						double observed = table.calculatePVal(k, lambda, 100, T);
+						if(Math.abs(expected - observed) > TOLERANCE) {
+							synchronized(failures) {
+								failures[0]++;
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0.0, failures[0]);
+	}
+
+	private static void assertClose(double expected, double observed) {
+		double diff = Math.abs(expected - observed);
+		double scale = Math.max(1, Math.abs(expected));
+		assertTrue("expected " + expected + " but was " + observed, diff <= TOLERANCE * scale);
+	}
+}
@@ -0,0 +1,107 @@
+package nextgen.core.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import jaligner.SmithWatermanGotoh;
+import jaligner.matrix.Matrix;
+import jaligner.matrix.MatrixGenerator;
+import broad.core.sequence.Sequence;
+import nextgen.core.alignment.CompactSmithWaterman;
+import nextgen.core.alignment.FeatureSequenceAlignment.UnorderedGenePair;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.annotation.Gene;
+import nextgen.core.structure.PairwiseWindowHybridization;
+import junit.framework.TestCase;
+
+/**
+ * Checks nextgen.core.alignment.CompactSmithWaterman against jaligner and the seeded search of PairwiseWindowHybridization against the exhaustive one
+ *
+ */
+public class TestSeededHybridization extends TestCase {
+
+	private static String randomBases(Random random, int length, String alphabet) {
+		StringBuilder rtrn = new StringBuilder(length);
+		for(int i = 0; i < length; i++) {
+			rtrn.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return rtrn.toString();
+	}
+
+	private static void assertSameAlignment(String message, jaligner.Alignment expected, jaligner.Alignment actual) {
+		assertEquals(message, expected.getScore(), actual.getScore());
+		assertEquals(message, expected.getStart1(), actual.getStart1());
+		assertEquals(message, expected.getStart2(), actual.getStart2());
+		assertEquals(message, new String(expected.getSequence1()), new String(actual.getSequence1()));
+		assertEquals(message, new String(expected.getSequence2()), new String(actual.getSequence2()));
+		assertEquals(message, new String(expected.getMarkupLine()), new String(actual.getMarkupLine()));
+		assertEquals(message, expected.getIdentity(), actual.getIdentity());
+		assertEquals(message, expected.getSimilarity(), actual.getSimilarity());
+		assertEquals(message, expected.getGaps(), actual.getGaps());
+	}
+
+	public void testCompactSmithWatermanMatchesJaligner() {
+		Random random = new Random(17);
+		Matrix matrix = MatrixGenerator.generate(5, -4);
+		CompactSmithWaterman aligner = new CompactSmithWaterman(matrix, 8, 2);
+		for(int trial = 0; trial < 300; trial++) {
+			// small alphabets and lengths give many ties and gaps
+			String alphabet = trial % 3 == 0 ? "ACGTN" : "ACGT";
+			String s1 = randomBases(random, random.nextInt(80), alphabet);
+			String s2 = trial % 2 == 0 ? randomBases(random, random.nextInt(80), alphabet) : Sequence.reverseSequence(s1).substring(0, s1.length() / 2) + randomBases(random, 10, alphabet);
+			jaligner.Alignment expected = SmithWatermanGotoh.align(new jaligner.Sequence(s1), new jaligner.Sequence(s2), matrix, 8, 2);
+			jaligner.Alignment actual = aligner.align(new jaligner.Sequence(s1), new jaligner.Sequence(s2));
+			assertSameAlignment(s1 + " " + s2, expected, actual);
+		}
+	}
+
+	public void testSeededPairsMatchExhaustive() throws Exception {
+		Random random = new Random(29);
+		// A transcript with inverted repeats, some of them mutated, in and across exons
+		StringBuilder chr = new StringBuilder(randomBases(random, 3000, "ACGT"));
+		for(int r = 0; r < 12; r++) {
+			int from = random.nextInt(2900);
+			int to = random.nextInt(2900);
+			int length = 15 + random.nextInt(40);
+			char[] repeat = Sequence.reverseSequence(chr.substring(from, Math.min(chr.length(), from + length))).toCharArray();
+			for(int i = 0; i < repeat.length; i++) {
+				if(random.nextInt(8) == 0) {
+					repeat[i] = "ACGT".charAt(random.nextInt(4));
+				}
+			}
+			chr.replace(to, Math.min(chr.length(), to + repeat.length), new String(repeat));
+		}
+		Sequence chrSeq = new Sequence("chr1");
+		chrSeq.setSequenceBases(chr.toString());
+		Map<String, Sequence> chrs = new TreeMap<String, Sequence>();
+		chrs.put("chr1", chrSeq);
+		List<Annotation> exons = new ArrayList<Annotation>();
+		exons.add(new BasicAnnotation("chr1", 100, 900));
+		exons.add(new BasicAnnotation("chr1", 1000, 1800));
+		exons.add(new BasicAnnotation("chr1", 2000, 2900));
+		Gene gene = new Gene("chr1", "gene", Strand.POSITIVE, exons, 100, 100);
+
+		float[][] thresholds = {{20, 0.8f}, {30, 0.9f}, {12, 0.7f}};
+		for(float[] threshold : thresholds) {
+			PairwiseWindowHybridization exhaustive = new PairwiseWindowHybridization(gene, chrs, 60, 20);
+			Map<UnorderedGenePair, jaligner.Alignment> expected = exhaustive.getAllHybridizingPairs(threshold[0], threshold[1]);
+			PairwiseWindowHybridization seeded = new PairwiseWindowHybridization(gene, chrs, 60, 20);
+			seeded.setSeedAndExtend(true, 3);
+			Map<UnorderedGenePair, jaligner.Alignment> actual = seeded.getAllHybridizingPairs(threshold[0], threshold[1]);
+			assertTrue(expected.size() > 0);
+			assertEquals(expected.size(), actual.size());
+			List<UnorderedGenePair> expectedPairs = new ArrayList<UnorderedGenePair>(expected.keySet());
+			List<UnorderedGenePair> actualPairs = new ArrayList<UnorderedGenePair>(actual.keySet());
+			for(int i = 0; i < expectedPairs.size(); i++) {
+				assertEquals(0, expectedPairs.get(i).compareTo(actualPairs.get(i)));
+				assertSameAlignment(threshold[0] + " " + threshold[1], expected.get(expectedPairs.get(i)), actual.get(actualPairs.get(i)));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.annotation.Gene;
+import nextgen.core.coordinatesystem.TranscriptomeSpace;
+import nextgen.core.feature.Window;
+import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.SlidingWindowCounter;
+import nextgen.core.model.score.CountScore;
+import nextgen.core.model.score.WindowScoreIterator;
+import nextgen.core.utils.Metrics;
+
+/**
+ * Checks that nextgen.core.model.SlidingWindowCounter and the scan processors give the same counts as AlignmentModel.getCount
+ *
+ */
+public class TestSlidingWindowCounter extends TestCase {
+
+	private static final int CHR_LENGTH = 12000;
+
+	private File bam;
+
+	@Override
+	protected void setUp() throws IOException {
+		bam = File.createTempFile("TestSlidingWindowCounter", ".bam");
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", CHR_LENGTH));
+		Random random = new Random(5);
+		SAMFileWriterFactory factory = new SAMFileWriterFactory();
+		factory.setCreateIndex(true);
+		SAMFileWriter writer = factory.makeBAMWriter(header, false, bam);
+		for(int i=0; i<2500; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read" + i);
+			record.setReferenceName("chr1");
+			int start = 1 + random.nextInt(CHR_LENGTH - 1000);
+			if(i % 5 == 0) {
+				// Stack some reads at identical positions
+				start = 1 + (start / 50) * 50;
+			}
+			record.setAlignmentStart(start);
+			record.setCigarString(random.nextInt(4) == 0 ? "20M" + (1 + random.nextInt(500)) + "N30M" : "50M");
+			record.setReadString(repeat('A', 50));
+			record.setBaseQualityString(repeat('I', 50));
+			record.setReadNegativeStrandFlag(random.nextBoolean());
+			record.setAttribute("NH", Integer.valueOf(random.nextInt(6) == 0 ? 2 : 1));
+			writer.addAlignment(record);
+		}
+		writer.close();
+	}
+
+	@Override
+	protected void tearDown() {
+		bam.delete();
+		new File(bam.getAbsolutePath().replaceAll("\\.bam$", ".bai")).delete();
+		new File(bam.getAbsolutePath() + ".GenomicSpaceStats").delete();
+		new File(bam.getAbsolutePath() + ".TranscriptomeSpaceStats").delete();
+	}
+
+	public void testGenomicWindows() {
+		AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), null, false);
+		Annotation chr = new BasicAnnotation("chr1", 0, CHR_LENGTH);
+		assertSameCounts(model, chr, 100, 99);
+		assertSameCounts(model, chr, 400, 250);
+	}
+
+	public void testWholeSpaceScan() {
+		AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), null, false);
+		long timed = Metrics.timer("WindowScoreIterator.time.all").getCount();
+		// Scans of the whole space have no region
+		WindowScoreIterator<CountScore> scores = model.scan(500, 0);
+		Iterator<? extends Window> windows = model.getCoordinateSpace().getWindowIterator(500, 0);
+		int numWindows = 0;
+		while(scores.hasNext()) {
+			CountScore score = scores.next();
+			assertEquals(model.getCount(windows.next(), false), score.getCount());
+			numWindows++;
+		}
+		scores.close();
+		assertFalse(windows.hasNext());
+		assertTrue(numWindows > 0);
+		assertEquals(timed + numWindows, Metrics.timer("WindowScoreIterator.time.all").getCount());
+	}
+
+	public void testTranscriptomeWindows() {
+		List<Annotation> exons = new ArrayList<Annotation>();
+		exons.add(new BasicAnnotation("chr1", 1000, 2000));
+		exons.add(new BasicAnnotation("chr1", 3000, 5000));
+		exons.add(new BasicAnnotation("chr1", 6000, 6300));
+		exons.add(new BasicAnnotation("chr1", 8000, 10000));
+		Gene gene = new Gene("chr1", "gene", Strand.POSITIVE, exons);
+		List<Annotation> otherExons = new ArrayList<Annotation>();
+		otherExons.add(new BasicAnnotation("chr1", 4000, 4600));
+		otherExons.add(new BasicAnnotation("chr1", 9000, 9500));
+		Gene other = new Gene("chr1", "other", Strand.NEGATIVE, otherExons);
+		Collection<Gene> genes = new ArrayList<Gene>();
+		genes.add(gene);
+		genes.add(other);
+		Map<String, Collection<Gene>> genesByChr = new TreeMap<String, Collection<Gene>>();
+		genesByChr.put("chr1", genes);
+
+		AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), new TranscriptomeSpace(genesByChr), false);
+		assertSameCounts(model, gene, 100, 90);
+		assertSameCounts(model, other, 100, 50);
+	}
+
+	private static void assertSameCounts(AlignmentModel model, Annotation region, int windowSize, int overlap) {
+		SlidingWindowCounter counter = model.getSlidingWindowCounter();
+		Iterator<? extends Window> windows = model.getCoordinateSpace().getWindowIterator(region, windowSize, overlap);
+		int numWindows = 0;
+		while(windows.hasNext()) {
+			Window window = windows.next();
+			assertEquals(window.toUCSC(), model.getCount(window, false), counter.getCount(window));
+			numWindows++;
+		}
+		assertTrue(numWindows > 0);
+
+		WindowScoreIterator<CountScore> scores = model.scan(region, windowSize, overlap);
+		windows = model.getCoordinateSpace().getWindowIterator(region, windowSize, overlap);
+		while(scores.hasNext()) {
+			CountScore score = scores.next();
+			assertEquals(model.getCount(windows.next(), false), score.getCount());
+		}
+		scores.close();
+	}
+
+	private static String repeat(char c, int n) {
+		StringBuilder rtrn = new StringBuilder();
+		for(int i=0; i<n; i++) {
+			rtrn.append(c);
+		}
+		return rtrn.toString();
+	}
+}
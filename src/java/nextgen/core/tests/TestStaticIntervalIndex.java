@@ -0,0 +1,120 @@
+package nextgen.core.tests;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.datastructures.IntervalTree.Node;
+import broad.core.datastructures.StaticIntervalIndex;
+import junit.framework.TestCase;
+
+/**
+ * Checks broad.core.datastructures.StaticIntervalIndex against a linear scan and against IntervalTree
+ *
+ */
+public class TestStaticIntervalIndex extends TestCase {
+
+	public void testEmpty() {
+		StaticIntervalIndex<String> index = new StaticIntervalIndex.Builder<String>().build();
+		assertEquals(0, index.size());
+		assertEquals(0, index.numOverlappers(0, 100));
+		assertFalse(index.hasOverlapper(0, 100));
+		assertFalse(index.overlappers(0, 100).hasNext());
+	}
+
+	public void testHalfOpen() {
+		StaticIntervalIndex.Builder<String> builder = new StaticIntervalIndex.Builder<String>();
+		builder.add(10, 20, "a").add(20, 30, "b").add(5, 5, "empty");
+		StaticIntervalIndex<String> index = builder.build();
+		assertEquals(1, index.numOverlappers(15, 20));
+		assertEquals(2, index.numOverlappers(19, 21));
+		assertEquals(0, index.numOverlappers(30, 40));
+		assertEquals(1, index.numOverlappers(0, 10));
+		assertEquals("empty", index.getValue(0));
+	}
+
+	public void testUnsortedInputMatchesLinearScan() {
+		Random random = new Random(7);
+		for(int n=0; n<300; n+=7) {
+			int[] starts = new int[n];
+			int[] ends = new int[n];
+			StaticIntervalIndex.Builder<Integer> builder = new StaticIntervalIndex.Builder<Integer>(4);
+			for(int i=0; i<n; i++) {
+				starts[i] = random.nextInt(2000);
+				ends[i] = starts[i] + (random.nextInt(10) == 0 ? random.nextInt(1000) : random.nextInt(50));
+				builder.add(starts[i], ends[i], Integer.valueOf(i));
+			}
+			StaticIntervalIndex<Integer> index = builder.build();
+			assertEquals(n, index.size());
+			for(int q=0; q<200; q++) {
+				int start = random.nextInt(2200) - 100;
+				int end = start + random.nextInt(100);
+				List<Integer> expected = new ArrayList<Integer>();
+				for(int i=0; i<n; i++) {
+					if(starts[i] < end && start < ends[i]) {expected.add(Integer.valueOf(i));}
+				}
+				assertEquals(expected.size(), index.numOverlappers(start, end));
+				assertEquals(!expected.isEmpty(), index.hasOverlapper(start, end));
+				List<Integer> actual = new ArrayList<Integer>(index.getOverlappingValues(start, end));
+				assertEquals(expected.size(), actual.size());
+				assertTrue(actual.containsAll(expected));
+				for(int i=1; i<actual.size(); i++) {
+					int a = actual.get(i-1).intValue();
+					int b = actual.get(i).intValue();
+					assertTrue(starts[a] < starts[b] || (starts[a] == starts[b] && ends[a] <= ends[b]));
+				}
+			}
+		}
+	}
+
+	public void testFromTree() {
+		Random random = new Random(11);
+		IntervalTree<String> tree = new IntervalTree<String>();
+		for(int i=0; i<1000; i++) {
+			int start = random.nextInt(5000);
+			int end = start + 1 + random.nextInt(100);
+			String name = "r" + i;
+			Node<String> node = tree.find(start, end);
+			if(node == null) {
+				tree.put(start, end, name);
+			} else {
+				node.incrementCount();
+			}
+		}
+		StaticIntervalIndex<String> index = StaticIntervalIndex.fromTree(tree);
+		assertEquals(tree.size(), index.size());
+		for(int q=0; q<500; q++) {
+			int start = random.nextInt(5200);
+			int end = start + random.nextInt(200);
+			assertEquals(tree.numOverlappers(start, end), index.numOverlappers(start, end));
+			Iterator<Node<String>> expected = tree.overlappers(start, end);
+			Iterator<Node<String>> actual = index.overlappers(start, end);
+			while(expected.hasNext()) {
+				Node<String> e = expected.next();
+				Node<String> a = actual.next();
+				assertEquals(e.getStart(), a.getStart());
+				assertEquals(e.getEnd(), a.getEnd());
+				assertEquals(e.getValue(), a.getValue());
+				assertEquals(e.getNumReplicates(), a.getNumReplicates());
+			}
+			assertFalse(actual.hasNext());
+		}
+	}
+
+	public void testFromSortedRejectsUnsorted() {
+		List<String> values = new ArrayList<String>();
+		values.add("a");
+		values.add("b");
+		try {
+			StaticIntervalIndex.fromSorted(new int[] {10, 5}, new int[] {20, 30}, values);
+			fail();
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		StaticIntervalIndex<String> index = StaticIntervalIndex.fromSorted(new int[] {5, 10}, new int[] {30, 20}, values);
+		assertEquals(2, index.numOverlappers(15, 16));
+	}
+
+}
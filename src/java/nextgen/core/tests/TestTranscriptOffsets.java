@@ -0,0 +1,127 @@
+package nextgen.core.tests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.annotation.Gene;
+import nextgen.core.coordinatesystem.TranscriptOffsets;
+import nextgen.core.coordinatesystem.TranscriptomeSpace;
+import nextgen.core.feature.Window;
+import junit.framework.TestCase;
+
+/**
+ * Checks nextgen.core.coordinatesystem.TranscriptOffsets and the fast path of TranscriptomeSpace against the Window based methods
+ *
+ */
+public class TestTranscriptOffsets extends TestCase {
+
+	public void testMapping() {
+		List<Annotation> exons = new ArrayList<Annotation>();
+		exons.add(new BasicAnnotation("chr1", 100, 110));
+		exons.add(new BasicAnnotation("chr1", 200, 205));
+		exons.add(new BasicAnnotation("chr1", 300, 320));
+		Gene plus = new Gene("chr1", "plus", Strand.POSITIVE, exons, 100, 100);
+		Gene minus = new Gene("chr1", "minus", Strand.NEGATIVE, exons, 100, 100);
+		TranscriptOffsets p = new TranscriptOffsets(plus);
+		TranscriptOffsets m = new TranscriptOffsets(minus);
+		assertEquals(35, p.length());
+		assertEquals(3, p.getNumExons());
+
+		assertEquals(0, p.getPosition(100));
+		assertEquals(10, p.getPosition(200));
+		assertEquals(-1, p.getPosition(150));
+		assertEquals(-1, p.getPosition(320));
+		assertEquals(34, m.getPosition(100));
+		assertEquals(0, m.getPosition(319));
+
+		for(int pos=0; pos<p.length(); pos++) {
+			assertEquals(pos, p.getPosition(p.getGenomicPosition(pos)));
+			assertEquals(pos, m.getPosition(m.getGenomicPosition(pos)));
+			assertEquals(plus.getReferenceCoordinateAtPosition(pos, true), p.getGenomicPosition(pos));
+		}
+		assertEquals(-1, p.getGenomicPosition(35));
+
+		assertEquals(10, p.getOverlap(105, 210));
+		assertEquals(0, p.getOverlap(110, 200));
+		assertEquals(35, p.getOverlap(0, 1000));
+		assertEquals(200, p.getProjectedStart(150, 250));
+		assertEquals(205, p.getProjectedEnd(150, 250));
+		assertEquals(-1, p.getProjectedStart(110, 200));
+	}
+
+	public void testMergesOverlappingExons() {
+		List<Annotation> exons = new ArrayList<Annotation>();
+		exons.add(new BasicAnnotation("chr1", 10, 30));
+		exons.add(new BasicAnnotation("chr1", 20, 40));
+		exons.add(new BasicAnnotation("chr1", 40, 50));
+		TranscriptOffsets t = new TranscriptOffsets(new BasicAnnotation(exons));
+		assertEquals(1, t.getNumExons());
+		assertEquals(40, t.length());
+	}
+
+	public void testFragmentSizesMatchGetFragment() {
+		Random random = new Random(5);
+		Map<String, Collection<Gene>> genes = new TreeMap<String, Collection<Gene>>();
+		List<Gene> all = new ArrayList<Gene>();
+		for(String chr : new String[] {"chr1", "chr2"}) {
+			Collection<Gene> chrGenes = new ArrayList<Gene>();
+			for(int g=0; g<40; g++) {
+				int start = random.nextInt(20000);
+				List<Annotation> exons = new ArrayList<Annotation>();
+				int numExons = 1 + random.nextInt(6);
+				for(int e=0; e<numExons; e++) {
+					int exonEnd = start + 20 + random.nextInt(200);
+					exons.add(new BasicAnnotation(chr, start, exonEnd));
+					start = exonEnd + 50 + random.nextInt(500);
+				}
+				Strand strand = random.nextBoolean() ? Strand.POSITIVE : Strand.NEGATIVE;
+				Gene gene = new Gene(chr, chr + "_gene" + g, strand, exons, exons.get(0).getStart(), exons.get(0).getStart());
+				chrGenes.add(gene);
+				all.add(gene);
+			}
+			genes.put(chr, chrGenes);
+		}
+		TranscriptomeSpace space = new TranscriptomeSpace(genes);
+
+		int[] sizes = new int[1];
+		for(int q=0; q<2000; q++) {
+			String chr = q % 2 == 0 ? "chr1" : "chr2";
+			int start = random.nextInt(25000);
+			int end = start + 1 + random.nextInt(q % 10 == 0 ? 2000 : 100);
+			List<Integer> expected = new ArrayList<Integer>();
+			for(Window w : space.getFragment(chr, start, end)) {
+				expected.add(Integer.valueOf(w.getSize()));
+			}
+			int n = space.getFragmentSizes(chr, start, end, sizes);
+			if(n > sizes.length) {
+				sizes = new int[n];
+				assertEquals(n, space.getFragmentSizes(chr, start, end, sizes));
+			}
+			List<Integer> actual = new ArrayList<Integer>();
+			for(int i=0; i<n; i++) {
+				actual.add(Integer.valueOf(sizes[i]));
+			}
+			Collections.sort(expected);
+			Collections.sort(actual);
+			assertEquals(chr + ":" + start + "-" + end, expected, actual);
+		}
+		assertEquals(-1, space.getFragmentSizes("chrUn", 0, 100, sizes));
+
+		for(Gene gene : all) {
+			for(int pos=0; pos<gene.length(); pos+=7) {
+				int genomic = space.getGenomicPosition(gene.getName(), pos);
+				assertTrue(genomic >= gene.getStart() && genomic < gene.getEnd());
+				assertEquals(pos, space.getReferencePosition(gene.getName(), genomic));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+package nextgen.core.tests;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import broad.core.sequence.FastaSequenceIO;
+import broad.core.sequence.Sequence;
+import broad.core.sequence.TwoBitGenome;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.annotation.Gene;
+
+/**
+ * Checks that broad.core.sequence.TwoBitGenome reads the same bases as the FASTA file it was converted from
+ *
+ */
+public class TestTwoBitGenome extends TestCase {
+
+	private static final String[] NAMES = {"chr1", "chr2", "chrM"};
+	private static final int[] LENGTHS = {5003, 777, 1};
+
+	private File fasta;
+	private File twoBit;
+	private Map<String, Sequence> chromosomes;
+
+	@Override
+	protected void setUp() throws IOException {
+		Random random = new Random(23);
+		fasta = File.createTempFile("TestTwoBitGenome", ".fa");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(fasta));
+		for(int i = 0; i < NAMES.length; i++) {
+			bw.write(">" + NAMES[i]);
+			bw.newLine();
+			// Runs of lower case and N of random lengths, with lines of uneven width
+			boolean lower = false;
+			boolean n = i == 0;
+			for(int position = 0; position < LENGTHS[i]; position++) {
+				if(random.nextInt(50) == 0) lower = !lower;
+				if(random.nextInt(80) == 0) n = !n;
+				char base = n ? 'N' : "ACGT".charAt(random.nextInt(4));
+				bw.write(lower ? Character.toLowerCase(base) : base);
+				if(position % 61 == 60) bw.newLine();
+			}
+			bw.newLine();
+		}
+		bw.close();
+		twoBit = new File(fasta.getAbsolutePath() + TwoBitGenome.EXTENSION);
+		chromosomes = FastaSequenceIO.getChrSequencesFromFasta(fasta.getAbsolutePath());
+	}
+
+	@Override
+	protected void tearDown() {
+		fasta.delete();
+		twoBit.delete();
+		new File(fasta.getAbsolutePath() + ".fai").delete();
+	}
+
+	private TwoBitGenome convert() throws IOException {
+		TwoBitGenome.convertFasta(fasta.getAbsolutePath(), twoBit.getAbsolutePath());
+		assertTrue(TwoBitGenome.isTwoBit(twoBit.getAbsolutePath()));
+		assertFalse(TwoBitGenome.isTwoBit(fasta.getAbsolutePath()));
+		return TwoBitGenome.open(twoBit.getAbsolutePath());
+	}
+
+	private void assertSameBases(TwoBitGenome genome) {
+		assertEquals(NAMES.length, genome.getSequenceNames().size());
+		Random random = new Random(29);
+		for(int i = 0; i < NAMES.length; i++) {
+			String chr = NAMES[i];
+			assertEquals(LENGTHS[i], genome.getLength(chr));
+			String bases = chromosomes.get(chr).getSequenceBases();
+			assertEquals(bases, genome.getSequence(chr).getSequenceBases());
+			for(int q = 0; q < 500; q++) {
+				int start = random.nextInt(LENGTHS[i]);
+				int end = start + random.nextInt(LENGTHS[i] - start + 1);
+				assertEquals(chr + ":" + start + "-" + end, bases.substring(start, end), genome.getBases(chr, start, end));
+				Sequence minus = genome.getSubSequence(chr, start, end, Strand.NEGATIVE);
+				Sequence expected = new Sequence(chr);
+				expected.setSequenceBases(bases.substring(start, end));
+				expected.reverse();
+				assertEquals(expected.getSequenceBases(), minus.getSequenceBases());
+				assertEquals(chr + ":" + start + "-" + end, minus.getId());
+			}
+		}
+	}
+
+	public void testConvertedBasesMatchFasta() throws IOException {
+		TwoBitGenome genome = convert();
+		assertSameBases(genome);
+		assertEquals(chromosomes.keySet(), genome.getSequences().keySet());
+		genome.close();
+	}
+
+	public void testConvertWithFastaIndex() throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(fasta.getAbsolutePath() + ".fai"));
+		for(int i = 0; i < NAMES.length; i++) {
+			// Only the names are read
+			bw.write(NAMES[i] + "\t" + LENGTHS[i] + "\t0\t61\t62");
+			bw.newLine();
+		}
+		bw.close();
+		TwoBitGenome genome = convert();
+		assertSameBases(genome);
+		genome.close();
+	}
+
+	public void testSplicedSequencesMatchFasta() throws IOException {
+		TwoBitGenome genome = convert();
+		Random random = new Random(31);
+		for(int g = 0; g < 200; g++) {
+			List<Annotation> exons = new ArrayList<Annotation>();
+			int start = random.nextInt(3000);
+			for(int e = 0; e < 1 + random.nextInt(5); e++) {
+				int end = start + 1 + random.nextInt(200);
+				exons.add(new BasicAnnotation("chr1", start, end));
+				start = end + 1 + random.nextInt(100);
+			}
+			Strand strand = g % 2 == 0 ? Strand.POSITIVE : Strand.NEGATIVE;
+			Gene gene = new Gene("chr1", "gene" + g, strand, exons);
+			Sequence expected = chromosomes.get("chr1").getSubsequence(gene);
+			Sequence actual = genome.getSubsequence(gene);
+			assertEquals(gene.toUCSC() + " " + strand, expected.getSequenceBases(), actual.getSequenceBases());
+			assertEquals(expected.getId(), actual.getId());
+		}
+		genome.close();
+	}
+
+	public void testRegionsClippedAsInSequence() throws IOException {
+		TwoBitGenome genome = convert();
+		Sequence chr1 = chromosomes.get("chr1");
+		int length = chr1.getLength();
+		assertEquals(chr1.getSubSequence("", length - 20, length + 50).getSequenceBases(), genome.getBases("chr1", length - 20, length + 50));
+		assertEquals(chr1.getSubSequence("", -5, 30).getSequenceBases(), genome.getBases("chr1", -5, 30));
+		List<Annotation> exons = new ArrayList<Annotation>();
+		exons.add(new BasicAnnotation("chr1", length - 300, length - 200));
+		exons.add(new BasicAnnotation("chr1", length - 100, length + 40));
+		Gene gene = new Gene("chr1", "pastEnd", Strand.NEGATIVE, exons);
+		assertEquals(chr1.getSubsequence(gene).getSequenceBases(), genome.getSubsequence(gene).getSequenceBases());
+		try {
+			genome.getBases("chr1", length + 10, length + 20);
+			fail();
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		genome.close();
+	}
+
+	public void testIupacCodesReadAsN() throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(fasta));
+		bw.write(">chrX\nACGTRYKMacgtSWnnBDHVN\n");
+		bw.close();
+		TwoBitGenome genome = convert();
+		assertEquals("ACGTNNNNacgtNNnnNNNNN", genome.getBases("chrX", 0, 21));
+		assertFalse(genome.hasSequence("chr1"));
+		genome.close();
+	}
+
+	public void testConcurrentReads() throws Exception {
+		final TwoBitGenome genome = convert();
+		final String bases = chromosomes.get("chr1").getSequenceBases();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		Collection<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for(int t = 0; t < 8; t++) {
+			final long seed = t;
+			tasks.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					Random random = new Random(seed);
+					int mismatches = 0;
+					for(int q = 0; q < 2000; q++) {
+						int start = random.nextInt(bases.length());
+						int end = Math.min(bases.length(), start + random.nextInt(300));
+						if(!bases.substring(start, end).equals(genome.getBases("chr1", start, end))) mismatches++;
+					}
+					return Integer.valueOf(mismatches);
+				}
+			});
+		}
+		for(Future<Integer> future : executor.invokeAll(tasks)) {
+			assertEquals(0, future.get().intValue());
+		}
+		executor.shutdown();
+		genome.close();
+	}
+}
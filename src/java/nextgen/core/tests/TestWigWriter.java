@@ -0,0 +1,248 @@
+package nextgen.core.tests;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.Gene;
+import nextgen.core.coordinatesystem.GenomicSpace;
+import nextgen.core.coordinatesystem.TranscriptomeSpace;
+import nextgen.core.model.AlignmentModel;
+import nextgen.core.normalize.NormalizedCount;
+import nextgen.core.normalize.RawCounts;
+import nextgen.core.normalize.TranscriptAverageNormalization;
+import nextgen.core.writers.PositionCountArray;
+import nextgen.core.writers.WigWriter;
+
+/**
+ * Checks that nextgen.core.writers.WigWriter writes the same file from PositionCountArray as the counts by position
+ * of RawCounts and TranscriptAverageNormalization written with WigWriter.write, on one and on several threads,
+ * and that the bedGraph and fixedStep output hold the same values
+ *
+ */
+public class TestWigWriter extends TestCase {
+
+	private static final String[] CHRS = {"chr1", "chr2", "chr3"};
+	private static final int CHR_LENGTH = 5000;
+
+	private File dir;
+	private File bam;
+	private File sizes;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("TestWigWriter", "");
+		dir.delete();
+		dir.mkdir();
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		FileWriter w = new FileWriter(new File(dir, "sizes.txt"));
+		for(String chr : CHRS) {
+			header.addSequence(new SAMSequenceRecord(chr, CHR_LENGTH));
+			w.write(chr + "\t" + CHR_LENGTH + "\n");
+		}
+		w.close();
+		sizes = new File(dir, "sizes.txt");
+		bam = new File(dir, "reads.bam");
+		SAMFileWriterFactory factory = new SAMFileWriterFactory();
+		factory.setCreateIndex(true);
+		SAMFileWriter writer = factory.makeBAMWriter(header, false, bam);
+		Random random = new Random(3);
+		for(int c=0; c<CHRS.length; c++) {
+			int start = 1 + random.nextInt(100);
+			for(int i=0; start<CHR_LENGTH-200; i++) {
+				// Leave gaps with no reads
+				start += (i % 50 == 0) ? 150 : random.nextInt(20);
+				SAMRecord record = new SAMRecord(header);
+				record.setReadName(CHRS[c] + "_read" + i);
+				record.setReferenceName(CHRS[c]);
+				record.setAlignmentStart(start);
+				record.setCigarString(random.nextInt(5) == 0 ? "10M40N20M" : "30M");
+				record.setReadString("ACGTACGTACGTACGTACGTACGTACGTAC");
+				record.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+				record.setReadNegativeStrandFlag(random.nextBoolean());
+				record.setMappingQuality(255);
+				record.setAttribute("NH", Integer.valueOf(1));
+				writer.addAlignment(record);
+			}
+		}
+		writer.close();
+	}
+
+	@Override
+	protected void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	public void testPositionCountArray() {
+		PositionCountArray counts = new PositionCountArray();
+		assertEquals(-1, counts.nextPosition(0));
+		counts.set(5, 0);
+		counts.set(70000, 2.5);
+		counts.add(70000, 1);
+		counts.add(200000, 1);
+		assertEquals(3, counts.size());
+		assertTrue(counts.contains(5));
+		assertFalse(counts.contains(6));
+		assertEquals(0.0, counts.get(5));
+		assertEquals(3.5, counts.get(70000));
+		assertEquals(5, counts.nextPosition(0));
+		assertEquals(70000, counts.nextPosition(6));
+		assertEquals(200000, counts.nextPosition(70001));
+		assertEquals(-1, counts.nextPosition(200001));
+		counts.remove(70000);
+		assertFalse(counts.contains(70000));
+		assertEquals(200000, counts.nextPosition(6));
+		assertEquals(2, counts.size());
+	}
+
+	public void testGenomeSpace() throws IOException {
+		for(boolean normalize : new boolean[] {false, true}) {
+			GenomicSpace space = new GenomicSpace(sizes.getAbsolutePath());
+			AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), space, false);
+			NormalizedCount normalization = normalize ? new TranscriptAverageNormalization(model) : new RawCounts(model, false);
+			File expected = new File(dir, "expected.wig");
+			FileWriter w = new FileWriter(expected);
+			for(String chr : CHRS) {
+				TreeMap<Integer, Double> counts = (TreeMap<Integer, Double>) normalization.getNormalizedCountsByPosition(space.getEntireChromosome(chr));
+				counts.remove(Integer.valueOf(CHR_LENGTH));
+				WigWriter.write(w, chr, counts, false);
+			}
+			w.close();
+
+			for(int numThreads : new int[] {1, 3}) {
+				WigWriter ww = new WigWriter(bam.getAbsolutePath(), sizes.getAbsolutePath(), null, false, normalize);
+				ww.setNumThreads(numThreads);
+				String prefix = new File(dir, "out" + numThreads).getAbsolutePath();
+				ww.writeFullWig(prefix);
+				assertEquals(read(expected), read(new File(prefix + ".wig")));
+			}
+		}
+	}
+
+	public void testTranscriptomeSpace() throws IOException {
+		Map<String, Collection<Gene>> genesByChr = new TreeMap<String, Collection<Gene>>();
+		Random random = new Random(11);
+		for(String chr : CHRS) {
+			Collection<Gene> genes = new TreeSet<Gene>();
+			for(int i=0; i<6; i++) {
+				int start = random.nextInt(CHR_LENGTH - 1000);
+				genes.add(new Gene(chr + "\t" + start + "\t" + (start + 600) + "\tgene" + i + "\t0\t+\t" + start + "\t" + (start + 600) + "\t0,0,0\t2\t200,100,\t0,500,", false));
+			}
+			genesByChr.put(chr, genes);
+		}
+		for(String singlePos : new String[] {null, WigWriter.BEGINNING_POSITION_DESCRIPTION}) {
+			TranscriptomeSpace space = new TranscriptomeSpace(genesByChr);
+			AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), space, false);
+			RawCounts normalization = new RawCounts(model, false);
+			File expected = new File(dir, "expected.wig");
+			FileWriter w = new FileWriter(expected);
+			for(String chr : CHRS) {
+				TreeMap<Integer, Double> counts = new TreeMap<Integer, Double>();
+				for(Gene gene : genesByChr.get(chr)) {
+					if(singlePos == null) {
+						counts.putAll(normalization.getNormalizedCountsByPosition(gene));
+						continue;
+					}
+					TreeMap<Integer, Double> geneCounts = new TreeMap<Integer, Double>();
+					CloseableIterator<Alignment> iter = model.getOverlappingReads(gene, false);
+					while(iter.hasNext()) {
+						Integer pos = Integer.valueOf(iter.next().getFirstFragmentPositionStranded());
+						geneCounts.put(pos, Double.valueOf(geneCounts.containsKey(pos) ? geneCounts.get(pos).doubleValue() + 1 : 1));
+					}
+					iter.close();
+					counts.putAll(geneCounts);
+				}
+				WigWriter.write(w, chr, counts, false);
+			}
+			w.close();
+
+			for(int numThreads : new int[] {1, 2}) {
+				WigWriter ww = new WigWriter(bam.getAbsolutePath(), genesByChr, singlePos, false, false);
+				ww.setNumThreads(numThreads);
+				String prefix = new File(dir, "out" + numThreads).getAbsolutePath();
+				ww.writeFullWig(prefix);
+				assertEquals(read(expected), read(new File(prefix + ".wig")));
+			}
+		}
+	}
+
+	public void testBedGraphAndFixedStep() throws IOException {
+		GenomicSpace space = new GenomicSpace(sizes.getAbsolutePath());
+		AlignmentModel model = new AlignmentModel(bam.getAbsolutePath(), space, false);
+		RawCounts normalization = new RawCounts(model, false);
+		Map<String, TreeMap<Integer, Double>> expected = new TreeMap<String, TreeMap<Integer, Double>>();
+		for(String chr : CHRS) {
+			TreeMap<Integer, Double> counts = (TreeMap<Integer, Double>) normalization.getNormalizedCountsByPosition(space.getEntireChromosome(chr));
+			counts.remove(Integer.valueOf(CHR_LENGTH));
+			expected.put(chr, counts);
+		}
+
+		WigWriter ww = new WigWriter(bam.getAbsolutePath(), sizes.getAbsolutePath(), null, false, false);
+		ww.setOutputFormat(WigWriter.OutputFormat.BEDGRAPH);
+		String prefix = new File(dir, "out").getAbsolutePath();
+		ww.writeFullWig(prefix);
+		Map<String, TreeMap<Integer, Double>> bedGraph = new TreeMap<String, TreeMap<Integer, Double>>();
+		int numLines = 0;
+		for(String line : read(new File(prefix + ".bedGraph"))) {
+			String[] tokens = line.split("\t");
+			if(!bedGraph.containsKey(tokens[0])) {
+				bedGraph.put(tokens[0], new TreeMap<Integer, Double>());
+			}
+			for(int pos = Integer.parseInt(tokens[1]); pos < Integer.parseInt(tokens[2]); pos++) {
+				bedGraph.get(tokens[0]).put(Integer.valueOf(pos), Double.valueOf(tokens[3]));
+			}
+			numLines++;
+		}
+		assertEquals(expected, bedGraph);
+		assertTrue(numLines < CHRS.length * CHR_LENGTH / 2);
+
+		ww.setOutputFormat(WigWriter.OutputFormat.FIXED_STEP);
+		ww.writeFullWig(prefix);
+		Map<String, TreeMap<Integer, Double>> fixedStep = new TreeMap<String, TreeMap<Integer, Double>>();
+		String chr = null;
+		int pos = 0;
+		for(String line : read(new File(prefix + ".wig"))) {
+			if(line.startsWith("fixedStep")) {
+				chr = line.split(" ")[1].substring("chrom=".length());
+				pos = WigWriter.wigPositionToCoordinate(Integer.parseInt(line.split(" ")[2].substring("start=".length())));
+				if(!fixedStep.containsKey(chr)) {
+					fixedStep.put(chr, new TreeMap<Integer, Double>());
+				}
+				continue;
+			}
+			fixedStep.get(chr).put(Integer.valueOf(pos++), Double.valueOf(line));
+		}
+		assertEquals(expected, fixedStep);
+	}
+
+	private static ArrayList<String> read(File file) throws IOException {
+		ArrayList<String> rtrn = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		String line;
+		while((line = reader.readLine()) != null) {
+			rtrn.add(line);
+		}
+		reader.close();
+		return rtrn;
+	}
+}
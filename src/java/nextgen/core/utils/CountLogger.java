@@ -19,6 +19,8 @@ public class CountLogger {
 	private int step;
 	private static Logger logger = Logger.getLogger(CountLogger.class.getName());
 	private DecimalFormat decimalFormat;
+	private Metrics.Counter counter;
+	private long startNanos;
 	
 	/**
 	 * @param overallTotal The eventual total for the incrementing count
@@ -37,6 +39,18 @@ public class CountLogger {
 		numDone = 0;
 		step = Math.max(1, totalCount / totalMessages);
 		decimalFormat = new DecimalFormat("#.##");
+		startNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Also count in a metric, and add the rate to the progress messages
+	 * @param overallTotal The eventual total for the incrementing count
+	 * @param numMessages The total number of messages to print
+	 * @param metricName Name of the Metrics counter to increment
+	 */
+	public CountLogger(int overallTotal, int numMessages, String metricName) {
+		this(overallTotal, numMessages);
+		counter = Metrics.counter(metricName);
 	}
 	
 	/**
@@ -52,9 +66,16 @@ public class CountLogger {
 	 */
 	public void advance(String extraMessage) {
 		numDone++;
+		if(counter != null) {
+			counter.increment();
+		}
 		if(numDone % step == 0) {
 			String pct = decimalFormat.format(100 * (double)numDone / totalCount);
 			String message = "Finished " + pct + "%.";
+			if(counter != null) {
+				double seconds = (System.nanoTime() - startNanos) / 1e9;
+				message += " " + decimalFormat.format(numDone / seconds) + " per second.";
+			}
 			if(extraMessage != null) {
 				message += " " + extraMessage;
 			}
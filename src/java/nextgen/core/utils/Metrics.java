@@ -0,0 +1,422 @@
+package nextgen.core.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Process wide counters and timers for long runs: cache behavior, reads decoded, reads rejected by each filter, windows scored
+ * Counters are striped by thread so the per read call sites do not contend; keep the Counter in a field rather than
+ * looking it up by name for every event
+ *
+ * The values are published as attributes of the MBean nextgen.core:type=Metrics and can be written to a JSON file
+ * periodically, either with startJsonDump or by starting the JVM with -Dnextgen.metrics.json=file
+ * (and optionally -Dnextgen.metrics.period=seconds, default 60)
+ *
+ */
+public class Metrics {
+
+	static Logger logger = Logger.getLogger(Metrics.class.getName());
+
+	public static final String MBEAN_NAME = "nextgen.core:type=Metrics";
+	public static final String JSON_FILE_PROPERTY = "nextgen.metrics.json";
+	public static final String JSON_PERIOD_PROPERTY = "nextgen.metrics.period";
+
+	private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+	private static final long startNanos = System.nanoTime();
+	private static ScheduledExecutorService dumpExecutor;
+	private static File dumpFile;
+	private static boolean shutdownHookAdded;
+
+	static {
+		registerMBean();
+		String file = System.getProperty(JSON_FILE_PROPERTY);
+		if(file != null) {
+			startJsonDump(new File(file), Integer.getInteger(JSON_PERIOD_PROPERTY, 60).intValue());
+		}
+	}
+
+	private Metrics() {}
+
+	/**
+	 * @param name Counter name, grouped by dots
+	 * @return The counter with this name, created the first time
+	 */
+	public static Counter counter(String name) {
+		Counter rtrn = counters.get(name);
+		if(rtrn == null) {
+			Counter created = new Counter();
+			rtrn = counters.putIfAbsent(name, created);
+			if(rtrn == null) {
+				rtrn = created;
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param name Timer name, grouped by dots
+	 * @return The timer with this name, created the first time
+	 */
+	public static Timer timer(String name) {
+		Timer rtrn = timers.get(name);
+		if(rtrn == null) {
+			Timer created = new Timer();
+			rtrn = timers.putIfAbsent(name, created);
+			if(rtrn == null) {
+				rtrn = created;
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Counters named by prefix and the class of an object, such as the read filter that rejected a read
+	 * @param prefix Name prefix
+	 * @return A group whose counters are named prefix.SimpleClassName
+	 */
+	public static CounterGroup counterGroup(String prefix) {
+		return new CounterGroup(prefix);
+	}
+
+	/**
+	 * Current values by name: for each counter its count (name) and average rate since the process started (name.perSecond),
+	 * for each timer the number of timed events (name.count) and their total time (name.seconds)
+	 * @return The values sorted by name
+	 */
+	public static SortedMap<String, Number> snapshot() {
+		SortedMap<String, Number> rtrn = new TreeMap<String, Number>();
+		double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+		for(Map.Entry<String, Counter> entry : counters.entrySet()) {
+			long count = entry.getValue().get();
+			rtrn.put(entry.getKey(), Long.valueOf(count));
+			rtrn.put(entry.getKey() + ".perSecond", Double.valueOf(count / seconds));
+		}
+		for(Map.Entry<String, Timer> entry : timers.entrySet()) {
+			rtrn.put(entry.getKey() + ".count", Long.valueOf(entry.getValue().getCount()));
+			rtrn.put(entry.getKey() + ".seconds", Double.valueOf(entry.getValue().getNanos() / 1e9));
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Set every counter and timer to zero
+	 */
+	public static void reset() {
+		for(Counter counter : counters.values()) {
+			counter.reset();
+		}
+		for(Timer timer : timers.values()) {
+			timer.reset();
+		}
+	}
+
+	/**
+	 * Write the current values as a JSON object with the time and uptime
+	 * @param file File to write, replaced as a whole
+	 * @throws IOException
+	 */
+	public static void writeJson(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		JsonGenerator json = new JsonFactory().createJsonGenerator(tmp, JsonEncoding.UTF8);
+		json.useDefaultPrettyPrinter();
+		json.writeStartObject();
+		json.writeNumberField("timestamp", System.currentTimeMillis());
+		json.writeNumberField("uptimeSeconds", (System.nanoTime() - startNanos) / 1e9);
+		json.writeObjectFieldStart("metrics");
+		for(Map.Entry<String, Number> entry : snapshot().entrySet()) {
+			Number value = entry.getValue();
+			if(value instanceof Long) {
+				json.writeNumberField(entry.getKey(), value.longValue());
+			} else {
+				json.writeNumberField(entry.getKey(), value.doubleValue());
+			}
+		}
+		json.writeEndObject();
+		json.writeEndObject();
+		json.close();
+		if(!tmp.renameTo(file)) {
+			file.delete();
+			if(!tmp.renameTo(file)) {
+				throw new IOException("Could not move " + tmp + " to " + file);
+			}
+		}
+	}
+
+	/**
+	 * Write the values to a JSON file every period, and once more when the JVM exits or the dump is stopped
+	 * Replaces a dump already running
+	 * @param file File to write
+	 * @param periodSeconds Seconds between writes
+	 */
+	public static synchronized void startJsonDump(final File file, int periodSeconds) {
+		stopJsonDump();
+		dumpFile = file;
+		dumpExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread rtrn = new Thread(r, "metrics-json");
+				rtrn.setDaemon(true);
+				return rtrn;
+			}
+		});
+		dumpExecutor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				dump(file);
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+		if(!shutdownHookAdded) {
+			shutdownHookAdded = true;
+			Runtime.getRuntime().addShutdownHook(new Thread("metrics-json-final") {
+				@Override
+				public void run() {
+					File last = getDumpFile();
+					if(last != null) {
+						dump(last);
+					}
+				}
+			});
+		}
+		logger.info("Writing metrics to " + file + " every " + periodSeconds + " seconds");
+	}
+
+	/**
+	 * Stop the periodic dump after writing the values one last time
+	 */
+	public static synchronized void stopJsonDump() {
+		if(dumpExecutor != null) {
+			dumpExecutor.shutdownNow();
+			dumpExecutor = null;
+			dump(dumpFile);
+		}
+		dumpFile = null;
+	}
+
+	private static synchronized File getDumpFile() {
+		return dumpFile;
+	}
+
+	private static synchronized void dump(File file) {
+		try {
+			writeJson(file);
+		} catch(IOException e) {
+			logger.warn("Could not write metrics to " + file + ": " + e.getMessage());
+		}
+	}
+
+	private static void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			if(!server.isRegistered(name)) {
+				server.registerMBean(new MetricsMBean(), name);
+			}
+		} catch(Exception e) {
+			logger.warn("Could not register metrics MBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A count updated by many threads, each thread adding to its own cell
+	 */
+	public static final class Counter {
+
+		private static final int STRIPES = stripes();
+		// Cells are a cache line apart
+		private static final int SPACING = 8;
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * SPACING);
+
+		Counter() {}
+
+		public void increment() {
+			add(1);
+		}
+
+		public void add(long n) {
+			long id = Thread.currentThread().getId();
+			int cell = (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+			cells.getAndAdd(cell * SPACING, n);
+		}
+
+		/**
+		 * @return The sum of the cells; not a consistent snapshot while other threads add
+		 */
+		public long get() {
+			long rtrn = 0;
+			for(int i=0; i<STRIPES; i++) {
+				rtrn += cells.get(i * SPACING);
+			}
+			return rtrn;
+		}
+
+		void reset() {
+			for(int i=0; i<STRIPES; i++) {
+				cells.set(i * SPACING, 0);
+			}
+		}
+
+		private static int stripes() {
+			int processors = Runtime.getRuntime().availableProcessors();
+			int rtrn = 1;
+			while(rtrn < processors && rtrn < 64) {
+				rtrn <<= 1;
+			}
+			return rtrn;
+		}
+	}
+
+	/**
+	 * Number and total time of timed events
+	 */
+	public static final class Timer {
+
+		private final Counter count = new Counter();
+		private final Counter nanos = new Counter();
+
+		Timer() {}
+
+		/**
+		 * @param elapsedNanos Time of one event
+		 */
+		public void record(long elapsedNanos) {
+			count.increment();
+			nanos.add(elapsedNanos);
+		}
+
+		/**
+		 * @param startNanos System.nanoTime() at the start of the event
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getNanos() {
+			return nanos.get();
+		}
+
+		void reset() {
+			count.reset();
+			nanos.reset();
+		}
+	}
+
+	/**
+	 * Counters keyed by class, so the name is only built the first time a class is seen
+	 */
+	public static final class CounterGroup {
+
+		private final String prefix;
+		private final ConcurrentMap<Class<?>, Counter> byClass = new ConcurrentHashMap<Class<?>, Counter>();
+
+		CounterGroup(String prefix) {
+			this.prefix = prefix;
+		}
+
+		/**
+		 * @param key Object whose class names the counter
+		 * @return The counter for the class of the object
+		 */
+		public Counter get(Object key) {
+			Class<?> cls = key.getClass();
+			Counter rtrn = byClass.get(cls);
+			if(rtrn == null) {
+				String name = cls.getSimpleName().length() > 0 ? cls.getSimpleName() : cls.getName();
+				rtrn = counter(prefix + "." + name);
+				byClass.putIfAbsent(cls, rtrn);
+			}
+			return rtrn;
+		}
+	}
+
+	/**
+	 * Read only MBean with one attribute per value of snapshot()
+	 */
+	private static class MetricsMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Number rtrn = snapshot().get(attribute);
+			if(rtrn == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return rtrn;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Number> values = snapshot();
+			AttributeList rtrn = new AttributeList();
+			for(String attribute : attributes) {
+				if(values.containsKey(attribute)) {
+					rtrn.add(new Attribute(attribute, values.get(attribute)));
+				}
+			}
+			return rtrn;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			if("reset".equals(actionName)) {
+				reset();
+				return null;
+			}
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for(Map.Entry<String, Number> entry : snapshot().entrySet()) {
+				String type = entry.getValue() instanceof Long ? Long.class.getName() : Double.class.getName();
+				attributes.add(new MBeanAttributeInfo(entry.getKey(), type, entry.getKey(), true, false, false));
+			}
+			MBeanOperationInfo[] operations = {new MBeanOperationInfo("reset", "Set every counter and timer to zero", null, "void", MBeanOperationInfo.ACTION)};
+			return new MBeanInfo(Metrics.class.getName(), "Counters and timers of nextgen.core", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, operations, null);
+		}
+	}
+
+}
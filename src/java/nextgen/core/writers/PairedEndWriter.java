@@ -1,8 +1,11 @@
 package nextgen.core.writers;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -54,6 +57,10 @@ public class PairedEndWriter {
 	private BAMRecordCodec testCodec;
 	private int maxAllowableInsert=500000;
 	private String bamFileName;
+	private boolean streaming;
+	private int maxRecordsInRam=500000;
+	private File tmpDir;
+	private SpillingRecordQueue outputQueue;
 	
 	/**
 	 * @param bamFile Input SAM or BAM file to extract header and/or reads from.
@@ -63,10 +70,20 @@ public class PairedEndWriter {
 	}
 			
 	/**
+	 * Coordinate sorted input is converted in a single streaming pass, anything else is first sorted by query name
 	 * @param bamFile Input SAM or BAM file to extract header and/or reads from.
 	 * @param output Output path
 	 */
 	public PairedEndWriter(File bamFile, String output) {
+		this(bamFile, output, true);
+	}
+	
+	/**
+	 * @param bamFile Input SAM or BAM file to extract header and/or reads from.
+	 * @param output Output path
+	 * @param allowStreaming If true and the input is sorted by coordinate, pair mates in one pass over the input instead of sorting it by query name
+	 */
+	public PairedEndWriter(File bamFile, String output, boolean allowStreaming) {
 		this.output=output;
 		
 		bamFileName = bamFile.getAbsolutePath();
@@ -75,10 +92,17 @@ public class PairedEndWriter {
 		
 		String userDefinedTmpDir = System.getProperty("tmp.dir");
 		logger.debug("user defined tmp dir: " + userDefinedTmpDir);
+		if(userDefinedTmpDir != null && !userDefinedTmpDir.isEmpty()) {
+			tmpDir = new File(userDefinedTmpDir);
+		}
+		streaming = allowStreaming && header.getSortOrder() == SAMFileHeader.SortOrder.coordinate;
 		/*
 		 * SORT THE FILE BY QUERY NAME FIRST
 		 */
-    	if (header.getSortOrder() != SAMFileHeader.SortOrder.queryname) {
+		if (streaming) {
+			logger.info("Supplied bam file is sorted by coordinate, mates will be paired in a single pass");
+		}
+		else if (header.getSortOrder() != SAMFileHeader.SortOrder.queryname) {
     		logger.info("Sorting the bam file by query name for faster conversion to Paired end bam. Please use this file for future runs of the program.");
     		header.setSortOrder(SAMFileHeader.SortOrder.queryname);
     		 //final SAMFileWriter writer2 = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, false, new File(bamFileName + ".sortedbyQueryname.bam"));
@@ -87,6 +111,8 @@ public class PairedEndWriter {
     			logger.info("Setting temporary directory to " + userDefinedTmpDir);
     			writer2.setTemporaryDirectory(new File(userDefinedTmpDir));	
     		}
+    		//Without an explicit sort order the writer marks the header unsorted and writes the records as they come
+    		writer2.setSortOrder(SAMFileHeader.SortOrder.queryname, false);
     		writer2.setHeader(header);
     	        for (final SAMRecord rec: reader) {
     	            writer2.addAlignment(rec);
@@ -114,7 +140,8 @@ public class PairedEndWriter {
 		}
 		//Presorted so YES
 		//writer.setSortOrder(SAMFileHeader.SortOrder.queryname,false);
-		writer.setSortOrder(SortOrder.coordinate, false);
+		//Streaming conversion emits records in coordinate order so the writer does not need to sort them again
+		writer.setSortOrder(SortOrder.coordinate, streaming);
 		writer.setHeader(header);
 		
 		testCodec = new BAMRecordCodec(header);
@@ -125,6 +152,13 @@ public class PairedEndWriter {
 		maxAllowableInsert = x;
 	}
 	
+	/**
+	 * @param x Number of records the streaming conversion keeps in memory, in each of its mate and output buffers, before spilling to disk
+	 */
+	public void setMaxRecordsInRam(int x) {
+		maxRecordsInRam = x;
+	}
+	
 	/**
 	 * Convert the bamFile provided in the constructor to paired end format.
 	 * If no transcription read is supplied, set to unstranded
@@ -245,6 +279,10 @@ public class PairedEndWriter {
 	 * Convert the bamFile provided in the constructor to paired end format.
 	 */
 	public void convertInputToPairedEnd(TranscriptionRead txnRead) {
+		if(streaming) {
+			convertCoordinateSortedInput(txnRead);
+			return;
+		}
         
 		SAMRecordIterator iter = reader.iterator();		
 		
@@ -262,19 +300,7 @@ public class PairedEndWriter {
 			
 			//If the read is not paired or the mate is unmapped, write it as it is
 			if(!record.getReadPairedFlag() || record.getMateUnmappedFlag()){//SK: using the !(passes distance checks) wrote really bad alignments ESP because the addRecord() function did not check for this
-				//mate unmapped so just write it
-				if(record.getReadPairedFlag()) {record.setMateUnmappedFlag(true);} //revised for single end @zhuxp
-				//If first read is in direction of transcription change orientation of second read
-				if(txnRead.equals(TranscriptionRead.FIRST_OF_PAIR) && !record.getFirstOfPairFlag()){
-					record.setReadNegativeStrandFlag(!record.getReadNegativeStrandFlag());
-				}
-				//Second read is the transcription read change the orientation of the first read
-				else if(txnRead.equals(TranscriptionRead.SECOND_OF_PAIR) && record.getFirstOfPairFlag()){
-						record.setReadNegativeStrandFlag(!record.getReadNegativeStrandFlag());
-				}//UNSTRANDED: DO nothing
-				
-				//writer.addAlignment(record); MG: We need to be consistent how we write alignments
-				addRecord(record);
+				addSingleEndRecord(record, txnRead);
 			}
 			// read is paired && mate is mapped	
 			else{
@@ -322,6 +348,201 @@ public class PairedEndWriter {
 		close();
 	}
 	
+	/**
+	 * Convert coordinate sorted input without sorting it by query name
+	 * The first mate seen waits until the input reaches its mate's position and is dropped if the mate is not found there
+	 * Waiting mates and finished records are held in buffers that spill to disk when they exceed maxRecordsInRam,
+	 * and finished records are written once no waiting mate can produce an earlier fragment, so the output is already sorted
+	 */
+	private void convertCoordinateSortedInput(TranscriptionRead txnRead) {
+		SAMRecordIterator iter = reader.iterator();
+		outputQueue = new SpillingRecordQueue(header, maxRecordsInRam, tmpDir);
+		// Mates waiting for the input to reach their mate, keyed by the mate's start
+		SpillingRecordQueue waiting = new SpillingRecordQueue(header, maxRecordsInRam, tmpDir);
+		// Mates whose mate starts at the current position
+		Map<String, List<SAMRecord>> ready = new HashMap<String, List<SAMRecord>>();
+		// Starts of all mates still waiting, the earliest one bounds the fragments still to come
+		TreeMap<Integer, Integer> waitingStarts = new TreeMap<Integer, Integer>();
+		
+		int referenceIndex = -1;
+		int position = 0;
+		int numRead = 0;
+		int paired = 0;
+		long unmatched = 0;
+		while(iter.hasNext()) {
+			SAMRecord record=iter.next();
+			
+			//If the read is unmapped, skip
+			if(record.getReadUnmappedFlag()) continue;
+			
+			if(record.getReferenceIndex().intValue() != referenceIndex || record.getAlignmentStart() != position) {
+				if(record.getReferenceIndex().intValue() != referenceIndex) {
+					//Mates are only paired on the same chromosome so nothing left over can be matched
+					unmatched += dropUnmatched(ready, waitingStarts) + waiting.size();
+					waiting.clear();
+					waitingStarts.clear();
+					flushOutput(Integer.MAX_VALUE);
+					referenceIndex = record.getReferenceIndex().intValue();
+				}
+				else {
+					unmatched += dropUnmatched(ready, waitingStarts);
+				}
+				position = record.getAlignmentStart();
+				//Mates expecting their mate at or before this position can now be looked up
+				while(!waiting.isEmpty() && waiting.peekKey() <= position) {
+					SAMRecord mate = waiting.poll();
+					if(mate.getMateAlignmentStart() < position) {
+						unmatched++;
+						removeStart(waitingStarts, mate.getAlignmentStart());
+					} else {
+						addToReady(ready, mate);
+					}
+				}
+				flushOutput(waitingStarts.isEmpty() ? position : Math.min(position, waitingStarts.firstKey()));
+			}
+			
+			//If the read is not paired or the mate is unmapped, write it as it is
+			if(!record.getReadPairedFlag() || record.getMateUnmappedFlag()){
+				addSingleEndRecord(record, txnRead);
+			}
+			else if(passesDistanceChecks(record)){
+				SAMRecord mate = removeMate(ready, record);
+				if(mate != null) {
+					removeStart(waitingStarts, mate.getAlignmentStart());
+					AlignmentPair pair = new AlignmentPair();
+					pair.add(mate);
+					pair.add(record);
+					writeAll(pair.makePairs());
+					paired++;
+				}
+				else if(record.getMateAlignmentStart() >= position) {
+					Integer start = Integer.valueOf(position);
+					Integer count = waitingStarts.get(start);
+					waitingStarts.put(start, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+					if(record.getMateAlignmentStart() == position) {
+						addToReady(ready, record);
+					} else {
+						waiting.add(record.getMateAlignmentStart(), record);
+					}
+				}
+				else {
+					//The mate should have come before this read
+					unmatched++;
+				}
+			}
+			numRead++;
+			if(numRead % 1000000 == 0) {
+				logger.info("Processed " + numRead + " reads, free mem: " + Runtime.getRuntime().freeMemory() + " waiting mates: " + waiting.size() + " buffered output: " + outputQueue.size() + " on " + record.getReferenceName() + " paired alignments: " + paired);
+			}
+		}
+		iter.close();
+		unmatched += dropUnmatched(ready, waitingStarts) + waiting.size();
+		waiting.clear();
+		flushOutput(Integer.MAX_VALUE);
+		outputQueue = null;
+		if(unmatched > 0) {
+			logger.warn(unmatched + " paired alignments whose mate was not found were skipped");
+		}
+		
+		close();
+	}
+	
+	/**
+	 * Key shared by a record and its mate
+	 */
+	private static String getMateKey(SAMRecord record) {
+		int start = Math.min(record.getAlignmentStart(), record.getMateAlignmentStart());
+		int end = Math.max(record.getAlignmentStart(), record.getMateAlignmentStart());
+		boolean firstNegative = record.getFirstOfPairFlag() ? record.getReadNegativeStrandFlag() : record.getMateNegativeStrandFlag();
+		boolean secondNegative = record.getFirstOfPairFlag() ? record.getMateNegativeStrandFlag() : record.getReadNegativeStrandFlag();
+		return record.getReadName() + ":" + start + ":" + end + ":" + firstNegative + ":" + secondNegative;
+	}
+	
+	private static void addToReady(Map<String, List<SAMRecord>> ready, SAMRecord record) {
+		String key = getMateKey(record);
+		List<SAMRecord> records = ready.get(key);
+		if(records == null) {
+			records = new ArrayList<SAMRecord>(1);
+			ready.put(key, records);
+		}
+		records.add(record);
+	}
+	
+	/**
+	 * Remove and return the waiting mate of the record, or null if there is none
+	 */
+	private static SAMRecord removeMate(Map<String, List<SAMRecord>> ready, SAMRecord record) {
+		String key = getMateKey(record);
+		List<SAMRecord> records = ready.get(key);
+		if(records == null) {
+			return null;
+		}
+		for(Iterator<SAMRecord> iter = records.iterator(); iter.hasNext();) {
+			SAMRecord mate = iter.next();
+			if(mate.getFirstOfPairFlag() != record.getFirstOfPairFlag()) {
+				iter.remove();
+				if(records.isEmpty()) {
+					ready.remove(key);
+				}
+				return mate;
+			}
+		}
+		return null;
+	}
+	
+	private static int dropUnmatched(Map<String, List<SAMRecord>> ready, TreeMap<Integer, Integer> waitingStarts) {
+		int rtrn = 0;
+		for(List<SAMRecord> records : ready.values()) {
+			for(SAMRecord record : records) {
+				removeStart(waitingStarts, record.getAlignmentStart());
+				rtrn++;
+			}
+		}
+		ready.clear();
+		return rtrn;
+	}
+	
+	private static void removeStart(TreeMap<Integer, Integer> waitingStarts, int start) {
+		Integer key = Integer.valueOf(start);
+		Integer count = waitingStarts.get(key);
+		if(count == null) {
+			return;
+		}
+		if(count.intValue() == 1) {
+			waitingStarts.remove(key);
+		} else {
+			waitingStarts.put(key, Integer.valueOf(count.intValue() - 1));
+		}
+	}
+	
+	/**
+	 * Write the buffered records that start at or before the position
+	 */
+	private void flushOutput(int position) {
+		while(!outputQueue.isEmpty() && outputQueue.peekKey() <= position) {
+			writer.addAlignment(outputQueue.poll());
+		}
+	}
+	
+	/**
+	 * Write a read whose mate is not available as it is, fixing its orientation for the transcription read
+	 */
+	private void addSingleEndRecord(SAMRecord record, TranscriptionRead txnRead) {
+		//mate unmapped so just write it
+		if(record.getReadPairedFlag()) {record.setMateUnmappedFlag(true);} //revised for single end @zhuxp
+		//If first read is in direction of transcription change orientation of second read
+		if(txnRead.equals(TranscriptionRead.FIRST_OF_PAIR) && !record.getFirstOfPairFlag()){
+			record.setReadNegativeStrandFlag(!record.getReadNegativeStrandFlag());
+		}
+		//Second read is the transcription read change the orientation of the first read
+		else if(txnRead.equals(TranscriptionRead.SECOND_OF_PAIR) && record.getFirstOfPairFlag()){
+				record.setReadNegativeStrandFlag(!record.getReadNegativeStrandFlag());
+		}//UNSTRANDED: DO nothing
+		
+		//writer.addAlignment(record); MG: We need to be consistent how we write alignments
+		addRecord(record);
+	}
+	
 	/**
 	 * This function checks whether the given record and its mate:
 	 * 			- are on the same chromosome
@@ -474,7 +695,13 @@ public class PairedEndWriter {
 			}
 //		}
 		if (encoded){
-			writer.addAlignment(record);
+			if(outputQueue != null) {
+				//Streaming conversion: hold the record until it can be written in coordinate order
+				outputQueue.add(record.getAlignmentStart(), record);
+			}
+			else {
+				writer.addAlignment(record);
+			}
 		}
 		else{
 			logger.info("encoded is false");
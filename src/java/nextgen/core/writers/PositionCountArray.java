@@ -0,0 +1,158 @@
+package nextgen.core.writers;
+
+import java.util.Arrays;
+
+/**
+ * Counts by position for one chromosome held in primitive chunks instead of a TreeMap<Integer, Double>
+ * A position can be set to zero, which is written to the wig file, or not set at all, which is skipped
+ * Chunks are allocated the first time a position in them is set: a bitmap of the positions that have a value,
+ * and a value array only once one of them is nonzero, so long stretches of zeros cost one bit per base
+ */
+public class PositionCountArray {
+
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private long[][] present = new long[0][];
+	private double[][] values = new double[0][];
+	private int numPositions;
+
+	/**
+	 * Set the value at a position, replacing any previous value
+	 * @param position Zero based position
+	 * @param value The value
+	 */
+	public void set(int position, double value) {
+		int chunk = chunkFor(position, true);
+		int offset = position & CHUNK_MASK;
+		markPresent(chunk, offset);
+		if(values[chunk] == null) {
+			if(Double.doubleToRawLongBits(value) == 0L) {
+				return;
+			}
+			values[chunk] = new double[CHUNK_SIZE];
+		}
+		values[chunk][offset] = value;
+	}
+
+	/**
+	 * Add to the value at a position, starting from zero if it has no value yet
+	 * @param position Zero based position
+	 * @param value The amount to add
+	 */
+	public void add(int position, double value) {
+		set(position, get(position) + value);
+	}
+
+	/**
+	 * Remove the value at a position so it is not written
+	 * @param position Zero based position
+	 */
+	public void remove(int position) {
+		if(!contains(position)) {
+			return;
+		}
+		int chunk = position >>> CHUNK_BITS;
+		int offset = position & CHUNK_MASK;
+		present[chunk][offset >>> 6] &= ~(1L << offset);
+		if(values[chunk] != null) {
+			values[chunk][offset] = 0;
+		}
+		numPositions--;
+	}
+
+	/**
+	 * @param position Zero based position
+	 * @return Whether the position has a value
+	 */
+	public boolean contains(int position) {
+		int chunk = chunkFor(position, false);
+		if(chunk < 0 || present[chunk] == null) {
+			return false;
+		}
+		int offset = position & CHUNK_MASK;
+		return (present[chunk][offset >>> 6] & (1L << offset)) != 0;
+	}
+
+	/**
+	 * @param position Zero based position
+	 * @return The value at the position or zero if it has none
+	 */
+	public double get(int position) {
+		int chunk = chunkFor(position, false);
+		if(chunk < 0 || values[chunk] == null) {
+			return 0;
+		}
+		return values[chunk][position & CHUNK_MASK];
+	}
+
+	/**
+	 * @param from Zero based position to start looking from
+	 * @return The first position at or after from that has a value, or -1 if there is none
+	 */
+	public int nextPosition(int from) {
+		if(from < 0) {
+			from = 0;
+		}
+		int chunk = from >>> CHUNK_BITS;
+		int word = (from & CHUNK_MASK) >>> 6;
+		long mask = -1L << from;
+		while(chunk < present.length) {
+			long[] bits = present[chunk];
+			if(bits != null) {
+				for(; word < bits.length; word++) {
+					long w = bits[word] & mask;
+					mask = -1L;
+					if(w != 0) {
+						return (chunk << CHUNK_BITS) + (word << 6) + Long.numberOfTrailingZeros(w);
+					}
+				}
+			}
+			chunk++;
+			word = 0;
+			mask = -1L;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Number of positions that have a value
+	 */
+	public int size() {
+		return numPositions;
+	}
+
+	private void markPresent(int chunk, int offset) {
+		if(present[chunk] == null) {
+			present[chunk] = new long[CHUNK_SIZE >>> 6];
+		}
+		long bit = 1L << offset;
+		long[] bits = present[chunk];
+		if((bits[offset >>> 6] & bit) == 0) {
+			bits[offset >>> 6] |= bit;
+			numPositions++;
+		}
+	}
+
+	/**
+	 * @param position Zero based position
+	 * @param grow Whether to grow the chunk tables to hold the position
+	 * @return The chunk index or -1 if the position is beyond the chunk tables and grow is false
+	 */
+	private int chunkFor(int position, boolean grow) {
+		if(position < 0) {
+			throw new IllegalArgumentException("Position must be non-negative: " + position);
+		}
+		int chunk = position >>> CHUNK_BITS;
+		if(chunk >= present.length) {
+			if(!grow) {
+				return -1;
+			}
+			int length = Math.max(chunk + 1, 2 * present.length);
+			present = Arrays.copyOf(present, length);
+			values = Arrays.copyOf(values, length);
+		}
+		return chunk;
+	}
+}
@@ -0,0 +1,198 @@
+package nextgen.core.writers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import nextgen.core.exception.RuntimeIOException;
+
+/**
+ * Priority queue of SAMRecords ordered by an int key, records with the same key come out in the order they were added
+ * When more than maxRecordsInRam records are held, they are sorted and written to a temporary run file in BAM encoding
+ * and merged back as the queue is drained
+ */
+class SpillingRecordQueue {
+
+	private final SAMFileHeader header;
+	private final BAMRecordCodec codec;
+	private final int maxRecordsInRam;
+	private final File tmpDir;
+	private final PriorityQueue<Entry> memory = new PriorityQueue<Entry>();
+	private final List<Run> runs = new ArrayList<Run>();
+	private long added;
+	private int size;
+
+	SpillingRecordQueue(SAMFileHeader header, int maxRecordsInRam, File tmpDir) {
+		this.header = header;
+		this.codec = new BAMRecordCodec(header);
+		this.maxRecordsInRam = maxRecordsInRam;
+		this.tmpDir = tmpDir;
+	}
+
+	void add(int key, SAMRecord record) {
+		memory.add(new Entry(key, added++, record));
+		size++;
+		if(memory.size() >= maxRecordsInRam) {
+			spill();
+		}
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return The smallest key in the queue, the queue must not be empty
+	 */
+	int peekKey() {
+		return head().key;
+	}
+
+	/**
+	 * @return The record with the smallest key
+	 */
+	SAMRecord poll() {
+		Entry head = head();
+		Run run = head.run;
+		if(run == null) {
+			memory.poll();
+		} else {
+			run.advance();
+			if(run.head == null) {
+				run.close();
+				runs.remove(run);
+			}
+		}
+		size--;
+		return head.record;
+	}
+
+	/**
+	 * Drop all records and delete the run files
+	 */
+	void clear() {
+		memory.clear();
+		for(Run run : runs) {
+			run.close();
+		}
+		runs.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return Number of run files currently open
+	 */
+	int getNumRuns() {
+		return runs.size();
+	}
+
+	private Entry head() {
+		Entry rtrn = memory.peek();
+		for(Run run : runs) {
+			if(rtrn == null || run.head.compareTo(rtrn) < 0) {
+				rtrn = run.head;
+			}
+		}
+		return rtrn;
+	}
+
+	private void spill() {
+		List<Entry> entries = new ArrayList<Entry>(memory);
+		memory.clear();
+		Collections.sort(entries);
+		try {
+			File file = File.createTempFile("PairedEndWriter", ".run", tmpDir);
+			file.deleteOnExit();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			codec.setOutputStream(out);
+			for(Entry entry : entries) {
+				out.writeInt(entry.key);
+				out.writeLong(entry.order);
+				codec.encode(entry.record);
+			}
+			out.close();
+			runs.add(new Run(file));
+		} catch(IOException e) {
+			throw new RuntimeIOException(e.getMessage());
+		}
+	}
+
+	private static class Entry implements Comparable<Entry> {
+		final int key;
+		final long order;
+		final SAMRecord record;
+		Run run;
+
+		Entry(int key, long order, SAMRecord record) {
+			this.key = key;
+			this.order = order;
+			this.record = record;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			if(key != other.key) {
+				return key < other.key ? -1 : 1;
+			}
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+	}
+
+	/**
+	 * A sorted run on disk, with its next record decoded
+	 */
+	private class Run {
+		private final File file;
+		private final DataInputStream in;
+		private final BAMRecordCodec runCodec;
+		Entry head;
+
+		Run(File file) throws IOException {
+			this.file = file;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			this.runCodec = new BAMRecordCodec(header);
+			this.runCodec.setInputStream(in);
+			advance();
+		}
+
+		void advance() {
+			try {
+				int key = in.readInt();
+				long order = in.readLong();
+				SAMRecord record = runCodec.decode();
+				head = new Entry(key, order, record);
+				head.run = this;
+			} catch(EOFException e) {
+				head = null;
+			} catch(IOException e) {
+				throw new RuntimeIOException(e.getMessage());
+			}
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch(IOException e) {
+				throw new RuntimeIOException(e.getMessage());
+			}
+			file.delete();
+		}
+	}
+}
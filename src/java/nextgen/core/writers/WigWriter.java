@@ -5,14 +5,27 @@ package nextgen.core.writers;
 
 import broad.core.parser.CommandLineParser;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.collections15.Predicate;
 import org.apache.log4j.Logger;
@@ -29,9 +42,6 @@ import nextgen.core.coordinatesystem.TranscriptomeSpace;
 import nextgen.core.model.AlignmentModel;
 import nextgen.core.model.score.CountScore;
 import nextgen.core.model.score.WindowScoreIterator;
-import nextgen.core.normalize.NormalizedCount;
-import nextgen.core.normalize.RawCounts;
-import nextgen.core.normalize.TranscriptAverageNormalization;
 import nextgen.core.readFilters.FirstOfPairFilter;
 import nextgen.core.readFilters.GenomicSpanFilter;
 import nextgen.core.readFilters.ProperPairFilter;
@@ -49,7 +59,6 @@ public class WigWriter {
 	private Map<String, Collection<Gene>> genesByChr;
 	private AlignmentModel data;
 	private AlignmentModel normData;
-	private NormalizedCount normalization;
 	protected Collection<String> chrNames;
 	private boolean readSinglePositionOnly;
 	private boolean isTranscriptomeSpace;
@@ -61,6 +70,56 @@ public class WigWriter {
 	static Logger logger = Logger.getLogger(WigWriter.class.getName());
 	private PositionWithinAlignment positionWithinAlignment;
 	private boolean useSpan; //Add contiguous span of same value for gaps between keys
+	private String bamFile;
+	private boolean useFragments;
+	private List<Predicate<Alignment>> readFilters = new ArrayList<Predicate<Alignment>>();
+	private int numThreads = 1;
+	private OutputFormat outputFormat = OutputFormat.VARIABLE_STEP;
+	
+	/**
+	 * Formats writeFullWig can write
+	 */
+	public enum OutputFormat {
+		/** variableStep wig with a line per position */
+		VARIABLE_STEP("variableStep", ".wig"),
+		/** fixedStep wig with a block per stretch of adjacent positions */
+		FIXED_STEP("fixedStep", ".wig"),
+		/** bedGraph with a line per run of adjacent positions with the same value */
+		BEDGRAPH("bedGraph", ".bedGraph");
+		
+		private final String name;
+		private final String extension;
+		
+		private OutputFormat(String name, String extension) {
+			this.name = name;
+			this.extension = extension;
+		}
+		
+		/**
+		 * @return Extension added to the output file prefix
+		 */
+		public String getExtension() {
+			return extension;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+		
+		/**
+		 * @param name Format name as given on the command line
+		 * @return The format
+		 */
+		public static OutputFormat fromString(String name) {
+			for(OutputFormat format : values()) {
+				if(format.name.equals(name)) {
+					return format;
+				}
+			}
+			throw new IllegalArgumentException("Valid output formats: " + Arrays.toString(values()));
+		}
+	}
 
 	/**
 	 * Construct with a transcriptome space
@@ -93,7 +152,7 @@ public class WigWriter {
 		}
 		transcriptomeSpace = new TranscriptomeSpace(genesByChr);
 		data = new AlignmentModel(bamFile, transcriptomeSpace, useFragments);
-		initParams(singlePositionOnly, nor, data);
+		initParams(bamFile, useFragments, singlePositionOnly, nor);
 		isTranscriptomeSpace = true;
 	}
 	
@@ -128,7 +187,7 @@ public class WigWriter {
 		}
 
 		data = new AlignmentModel(bamFile, genomeSpace, useFragments);
-		initParams(singlePositionOnly, nor, data);
+		initParams(bamFile, useFragments, singlePositionOnly, nor);
 		isTranscriptomeSpace = false;
 	}
 	
@@ -183,7 +242,7 @@ public class WigWriter {
 			isTranscriptomeSpace = false;
 			bothFiles = true;
 			data = new AlignmentModel(bamFile, genomeSpace, useFragments);
-			initParams(singlePositionOnly, nor, data);
+			initParams(bamFile, useFragments, singlePositionOnly, nor);
 			return;
 			
 		}
@@ -209,7 +268,7 @@ public class WigWriter {
 			}
 			transcriptomeSpace = new TranscriptomeSpace(genesByChr);
 			data = new AlignmentModel(bamFile, transcriptomeSpace, useFragments);
-			initParams(singlePositionOnly, nor, data);
+			initParams(bamFile, useFragments, singlePositionOnly, nor);
 			isTranscriptomeSpace = true;
 			return;
 		}
@@ -223,7 +282,7 @@ public class WigWriter {
 				chrNames.add(chrToWrite);
 			}
 			data = new AlignmentModel(bamFile, genomeSpace, useFragments);
-			initParams(singlePositionOnly, nor, data);
+			initParams(bamFile, useFragments, singlePositionOnly, nor);
 			isTranscriptomeSpace = false;
 			return;
 		}
@@ -249,14 +308,14 @@ public class WigWriter {
 		throw new IllegalArgumentException("Valid position descriptions: " + BEGINNING_POSITION_DESCRIPTION + ", " + MIDPOINT_POSITION_DESCRIPTION);
 	}
 	
-	private void initParams(String singlePositionOnly, boolean nor, AlignmentModel alignmentData) {
+	private void initParams(String bam, boolean fragments, String singlePositionOnly, boolean nor) {
+		bamFile = bam;
+		useFragments = fragments;
 		readSinglePositionOnly = (singlePositionOnly != null);
 		if(readSinglePositionOnly) {
 			positionWithinAlignment = getPositionWithinAlignment(singlePositionOnly);
 		}
 		normalize = nor;
-		if(normalize) normalization = new TranscriptAverageNormalization(alignmentData);
-		else normalization = new RawCounts(alignmentData, false);
 	}
 	
 	/**
@@ -265,20 +324,50 @@ public class WigWriter {
 	 */
 	public void addReadFilter(Predicate<Alignment> filter) {
 		data.addFilter(filter);
+		readFilters.add(filter);
+	}
+	
+	/**
+	 * Count chromosomes on several threads when writing the full wig file
+	 * Each thread opens its own alignment models and the chromosomes are still written in order
+	 * @param threads Number of threads, 1 counts every chromosome on the calling thread
+	 */
+	public void setNumThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+		}
+		numThreads = threads;
 	}
 	
+	/**
+	 * @param format Format of the file written by writeFullWig
+	 */
+	public void setOutputFormat(OutputFormat format) {
+		outputFormat = format;
+	}
+	
+	/**
+	 * @param span Merge runs of adjacent positions with the same value into one variableStep line with a span
+	 */
+	public void setUseSpan(boolean span) {
+		useSpan = span;
+	}
 	
 	/**
-	 * Get counts by position
+	 * Put counts by position in the array, replacing counts already there
+	 * Includes the same positions as RawCounts or TranscriptAverageNormalization.getNormalizedCountsByPosition(region) without building a map
+	 * @param model Alignment data to count
+	 * @param normModel Alignment data in transcriptome space to normalize genes by when both files are used
 	 * @param region The region
-	 * @return Map of position to count, includes only positions with at least one read
+	 * @param counts Array to put the counts in
 	 * @throws IOException
 	 */
-	private TreeMap<Integer, Double> getCounts(Annotation region) throws IOException {
+	private void putCounts(AlignmentModel model, AlignmentModel normModel, Annotation region, PositionCountArray counts) throws IOException {
 		
 		// Include entire read/fragment in transcriptome space
 		if(!readSinglePositionOnly && isTranscriptomeSpace) {
-			return (TreeMap<Integer, Double>) normalization.getNormalizedCountsByPosition(region);
+			putScannedCounts(model, region, counts);
+			return;
 		}
 		
 		// Include entire read/fragment in genomic space
@@ -287,128 +376,123 @@ public class WigWriter {
 			if (bothFiles) {
 				//logger.info("Using both files to write counts...");
 				Collection<Gene> collapsedGenes = collapseGenes(genesByChr.get(region.getChr()));
-				Iterator<Gene> winItr = collapsedGenes.iterator();
-				Gene currGene;
-
-				double geneCount;
-				CountScore score;
-
-				TreeMap<Integer,Double> rtrn = new TreeMap<Integer,Double>();
-				while (winItr.hasNext()) {
-					currGene = winItr.next();
+				for(Gene currGene : collapsedGenes) {
+					double geneCount;
 					if (normalize) {
-						geneCount = normData.getCount(currGene,true);
+						geneCount = normModel.getCount(currGene,true);
 					} else {
 						geneCount = currGene.getSize();
 					}
 					
-					Iterator<? extends Annotation> exonItr = currGene.getExonSet().iterator();
-					while (exonItr.hasNext()) {
-					
-						WindowScoreIterator<CountScore> wIter = data.scan(exonItr.next(), 1,0);
-						Annotation a;
-						int pos;
-						double count;
-						
+					for(Annotation exon : currGene.getExonSet()) {
+						WindowScoreIterator<CountScore> wIter = model.scan(exon, 1, 0);
 						while (wIter.hasNext()){
-							score = wIter.next();
-							a = score.getAnnotation();
-							pos = a.getStart();
-							count = score.getCount();
-							if (normalize) {
-								if (count>0) {
+							CountScore score = wIter.next();
+							int pos = score.getAnnotation().getStart();
+							double count = score.getCount();
+							if (count>0) {
+								if (normalize) {
 									if (geneCount>0 && currGene.getSize()>0)
-										rtrn.put(Integer.valueOf(pos), Double.valueOf(count/(geneCount/currGene.getSize()))); 
-								}
-							} else {
-								if (count>0) {
-									rtrn.put(Integer.valueOf(pos), Double.valueOf(count));
+										counts.set(pos, count/(geneCount/currGene.getSize()));
+								} else {
+									counts.set(pos, count);
 								}
 							}
-							score = null;
 						}
 					}
-					
 				}
-				return rtrn;
+				return;
 			}
 			//logger.info("Using chromosome size file to find counts...");
-			return (TreeMap<Integer, Double>) normalization.getNormalizedCountsByPosition(region);
+			putScannedCounts(model, region, counts);
+			return;
 		}
 		
 		// Count single read position only
 		double norm = 1;
 		if (normalize) {
-			norm = data.getCount(region)/region.length();
+			norm = model.getCount(region)/region.length();
 		}
-		CloseableIterator<Alignment> iter = data.getOverlappingReads(region, false);
-		TreeMap<Integer, Double> rtrn = new TreeMap<Integer, Double>();
+		CloseableIterator<Alignment> iter = model.getOverlappingReads(region, false);
+		int[] positions = new int[1024];
+		int numPositions = 0;
 		while(iter.hasNext()) {
 			Alignment read = iter.next();
-			
 			int singlePos;
 			try {
 				singlePos = positionWithinAlignment.getPosition(read, region);
 			} catch (Exception e) {
 				continue;
 			}
-			read = null;
-			Integer i = Integer.valueOf(singlePos);
-			if(rtrn.containsKey(i)) {
-				double oldVal = rtrn.get(i).doubleValue();
-				double newVal = oldVal + 1;
-				rtrn.put(i, Double.valueOf(newVal));
-			} else {
-				rtrn.put(i, Double.valueOf(1));
+			if(numPositions == positions.length) {
+				positions = Arrays.copyOf(positions, 2 * numPositions);
 			}
-			i = null;
+			positions[numPositions++] = singlePos;
 		}
 		iter.close();
-		if (normalize) {
-			for (Integer key : rtrn.keySet()) {
-				double val = rtrn.get(key).doubleValue();
-				rtrn.put(key, Double.valueOf(val/norm));
-			}
+		// Count each position for this region then replace what other regions put there
+		Arrays.sort(positions, 0, numPositions);
+		int i = 0;
+		while(i < numPositions) {
+			int j = i + 1;
+			while(j < numPositions && positions[j] == positions[i]) j++;
+			double count = j - i;
+			counts.set(positions[i], normalize ? count / norm : count);
+			i = j;
 		}
-		return rtrn;
-		
 	}
 	
 	/**
-	 * Get counts across a whole chromosome for positions in transcriptome space
-	 * @param chr Chromosome name
-	 * @return Map of position to count, includes only positions with at least one read
-	 * @throws IOException
+	 * Put the count of every single base window in the region, divided by the average over the region if normalizing
+	 * Same values as RawCounts or TranscriptAverageNormalization
 	 */
-	private TreeMap<Integer, Double> getCountsInTranscriptomeSpace(String chr) throws IOException {
-		if(!isTranscriptomeSpace) {
-			throw new IllegalStateException("Must instantiate alignment model with a transcriptome space");
+	private void putScannedCounts(AlignmentModel model, Annotation region, PositionCountArray counts) {
+		double regionAverage = 1;
+		if(normalize) {
+			double sum = 0;
+			int numCounts = 0;
+			WindowScoreIterator<CountScore> iter = model.scan(region, 1, 0, new CountScore.Processor(model));
+			while(iter.hasNext()) {
+				sum += iter.next().getCount();
+				numCounts++;
+			}
+			regionAverage = sum / numCounts;
+			if(regionAverage == 0) {
+				return;
+			}
 		}
-	
-		TreeMap<Integer, Double> rtrn = new TreeMap<Integer, Double>();
-	
-		int numGenes = genesByChr.get(chr).size();
-		CountLogger c = new CountLogger(numGenes, 10);
-		
-		for(Gene gene : genesByChr.get(chr)) {
-			rtrn.putAll(getCounts(gene));
-			c.advance();
+		WindowScoreIterator<CountScore> iter = model.scan(region, 1, 0, new CountScore.Processor(model));
+		while(iter.hasNext()) {
+			CountScore score = iter.next();
+			int pos = score.getAnnotation().getStart();
+			counts.set(pos, normalize ? score.getCount() / regionAverage : score.getCount());
 		}
-		return rtrn;
 	}
 	
 	/**
 	 * Get counts across a whole chromosome
+	 * @param model Alignment data to count
+	 * @param normModel Alignment data in transcriptome space to normalize genes by when both files are used
 	 * @param chr Chromosome name
-	 * @return Map of position to count, includes only positions with at least one read
+	 * @return Counts by position, includes only positions that are written
 	 * @throws IOException
 	 */
-	private TreeMap<Integer, Double> getCountsInGenomeSpace(String chr) throws IOException {
+	private PositionCountArray getCounts(AlignmentModel model, AlignmentModel normModel, String chr) throws IOException {
+		PositionCountArray rtrn = new PositionCountArray();
 		if(isTranscriptomeSpace) {
-			throw new IllegalStateException("Must instantiate alignment model with a genome space");
+			int numGenes = genesByChr.get(chr).size();
+			CountLogger c = new CountLogger(numGenes, 10);
+			for(Gene gene : genesByChr.get(chr)) {
+				putCounts(model, normModel, gene, rtrn);
+				c.advance();
+			}
+		} else {
+			logger.info("Getting counts for entire chromosome " + chr);
+			putCounts(model, normModel, genomeSpace.getEntireChromosome(chr), rtrn);
+			// End position of chromosome is off the end - not valid position for wig format
+			rtrn.remove(Long.valueOf(genomeSpace.getLength(chr)).intValue());
 		}
-		logger.info("Getting counts for entire chromosome " + chr);
-		return getCounts(genomeSpace.getEntireChromosome(chr));
+		return rtrn;
 	}
 	
 	/**
@@ -460,32 +544,178 @@ public class WigWriter {
 	}
 	
 	/**
-	 * Write all counts to a wig file
-	 * @param outFilePrefix Output file prefix for wig
+	 * Write a set of counts to an existing writer
+	 * Without a span the lines are the same as write(FileWriter, String, TreeMap, boolean)
+	 * With a span each run of adjacent positions with the same value is one line, and a new declaration line is written when the span changes
+	 * @param w Writer
+	 * @param chr Chromosome name
+	 * @param counts Counts by position
+	 * @param useSpan Merge runs of adjacent positions with the same value
+	 * @throws IOException
+	 */
+	public static void writeVariableStep(Writer w, String chr, PositionCountArray counts, boolean useSpan) throws IOException {
+		w.write("variableStep chrom=" + chr + "\n");
+		if(!useSpan) {
+			w.write("variableStep chrom=" + chr + "\n");
+			for(int pos = counts.nextPosition(0); pos >= 0; pos = counts.nextPosition(pos + 1)) {
+				w.write(coordinateToWigPosition(pos) + "\t" + Double.toString(counts.get(pos)) + "\n");
+			}
+			return;
+		}
+		int currSpan = 1;
+		for(int pos = counts.nextPosition(0); pos >= 0; ) {
+			int end = runEnd(counts, pos);
+			int span = end - pos;
+			if(span != currSpan) {
+				w.write("variableStep chrom=" + chr + "\tspan=" + span + "\n");
+				currSpan = span;
+			}
+			w.write(coordinateToWigPosition(pos) + "\t" + Double.toString(counts.get(pos)) + "\n");
+			pos = counts.nextPosition(end);
+		}
+	}
+	
+	/**
+	 * Write a set of counts as one fixedStep block per stretch of adjacent positions
+	 * @param w Writer
+	 * @param chr Chromosome name
+	 * @param counts Counts by position
 	 * @throws IOException
 	 */
-	public void writeFullWig(String outFilePrefix) throws IOException {
-		String wigFile = outFilePrefix + ".wig";
-		FileWriter w = new FileWriter(wigFile);
-		for(String chrName : chrNames) {
-			logger.info("Writing counts for chromosome " + chrName + "...");
-			TreeMap<Integer, Double> counts = new TreeMap<Integer, Double>();
-			if(isTranscriptomeSpace) {
-				if(genesByChr.get(chrName).isEmpty()) continue;
-				counts = getCountsInTranscriptomeSpace(chrName);
+	public static void writeFixedStep(Writer w, String chr, PositionCountArray counts) throws IOException {
+		int prev = -2;
+		for(int pos = counts.nextPosition(0); pos >= 0; pos = counts.nextPosition(pos + 1)) {
+			if(pos != prev + 1) {
+				w.write("fixedStep chrom=" + chr + " start=" + coordinateToWigPosition(pos) + " step=1\n");
 			}
-			else {
-				counts = getCountsInGenomeSpace(chrName);
-				// End position of chromosome is off the end - not valid position for wig format
-				counts.remove(Integer.valueOf(Long.valueOf(genomeSpace.getLength(chrName)).intValue()));
+			w.write(Double.toString(counts.get(pos)) + "\n");
+			prev = pos;
+		}
+	}
+	
+	/**
+	 * Write a set of counts as bedGraph lines, one per run of adjacent positions with the same value
+	 * @param w Writer
+	 * @param chr Chromosome name
+	 * @param counts Counts by position
+	 * @throws IOException
+	 */
+	public static void writeBedGraph(Writer w, String chr, PositionCountArray counts) throws IOException {
+		for(int pos = counts.nextPosition(0); pos >= 0; ) {
+			int end = runEnd(counts, pos);
+			w.write(chr + "\t" + pos + "\t" + end + "\t" + Double.toString(counts.get(pos)) + "\n");
+			pos = counts.nextPosition(end);
+		}
+	}
+	
+	/**
+	 * @return End of the run of adjacent positions that have the same value as start
+	 */
+	private static int runEnd(PositionCountArray counts, int start) {
+		long value = Double.doubleToLongBits(counts.get(start));
+		int end = start + 1;
+		while(counts.contains(end) && Double.doubleToLongBits(counts.get(end)) == value) {
+			end++;
+		}
+		return end;
+	}
+	
+	private void write(Writer w, String chr, PositionCountArray counts) throws IOException {
+		switch(outputFormat) {
+		case FIXED_STEP:
+			writeFixedStep(w, chr, counts);
+			break;
+		case BEDGRAPH:
+			writeBedGraph(w, chr, counts);
+			break;
+		default:
+			writeVariableStep(w, chr, counts, useSpan);
+		}
+	}
+	
+	/**
+	 * Write all counts to a wig file, or a bedGraph file if that is the output format
+	 * @param outFilePrefix Output file prefix
+	 * @throws IOException
+	 */
+	public void writeFullWig(String outFilePrefix) throws IOException {
+		String outFile = outFilePrefix + outputFormat.getExtension();
+		Writer w = new BufferedWriter(new FileWriter(outFile));
+		if(numThreads > 1 && chrNames.size() > 1) {
+			writeChromosomesInParallel(w, new File(outFile).getAbsoluteFile().getParentFile());
+		} else {
+			for(String chrName : chrNames) {
+				if(isTranscriptomeSpace && genesByChr.get(chrName).isEmpty()) continue;
+				logger.info("Writing counts for chromosome " + chrName + "...");
+				write(w, chrName, getCounts(data, normData, chrName));
 			}
-			write(w, chrName, counts, useSpan);
 		}
 		w.close();
-		logger.info("Done writing wig file.");
+		logger.info("Done writing " + outFile + ".");
 
 	}
 	
+	/**
+	 * Count and write each chromosome to a temporary file on the pool, then append the files in chromosome order
+	 * @param w Writer for the full file
+	 * @param tmpDir Directory for the temporary files
+	 * @throws IOException
+	 */
+	private void writeChromosomesInParallel(Writer w, final File tmpDir) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<File>> futures = new ArrayList<Future<File>>();
+		try {
+			for(final String chrName : chrNames) {
+				if(isTranscriptomeSpace && genesByChr.get(chrName).isEmpty()) continue;
+				futures.add(executor.submit(new Callable<File>() {
+					@Override
+					public File call() throws IOException {
+						logger.info("Writing counts for chromosome " + chrName + "...");
+						AlignmentModel model = new AlignmentModel(bamFile, isTranscriptomeSpace ? transcriptomeSpace : genomeSpace, readFilters, useFragments);
+						AlignmentModel normModel = bothFiles ? new AlignmentModel(bamFile, transcriptomeSpace, readFilters, useFragments) : null;
+						PositionCountArray counts = getCounts(model, normModel, chrName);
+						File tmp = File.createTempFile("WigWriter", ".tmp", tmpDir);
+						tmp.deleteOnExit();
+						Writer tw = new BufferedWriter(new FileWriter(tmp));
+						write(tw, chrName, counts);
+						tw.close();
+						return tmp;
+					}
+				}));
+			}
+			for(Future<File> future : futures) {
+				File tmp = getResult(future);
+				Reader r = new BufferedReader(new FileReader(tmp));
+				char[] buf = new char[64 * 1024];
+				int n;
+				while((n = r.read(buf)) > 0) {
+					w.write(buf, 0, n);
+				}
+				r.close();
+				tmp.delete();
+			}
+		} finally {
+			// Files of chromosomes after a failed one are removed on exit
+			executor.shutdownNow();
+		}
+	}
+	
+	private static File getResult(Future<File> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Interrupted while writing chromosomes", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Failed to write chromosome", e.getCause());
+		}
+	}
+	
 	/**
 	 * Collapse all overlapping genes within a collection into a non-overlapping set (considering strand)
 	 * @param genes Collection of genes you wish to collapse
@@ -575,6 +805,9 @@ public class WigWriter {
 		p.addBooleanArg("-pp", "Proper pairs only", false, false);
 		p.addBooleanArg("-r1", "Read 1 only", false, false);
 		p.addBooleanArg("-r2", "Read 2 only", false, false);
+		p.addStringArg("-f", "Output format. Valid formats: " + Arrays.toString(OutputFormat.values()), false, OutputFormat.VARIABLE_STEP.toString());
+		p.addBooleanArg("-span", "Merge adjacent positions with the same value into spans (variableStep only)", false, false);
+		p.addIntArg("-t", "Number of chromosomes to count at once", false, 1);
 		
 		p.parse(args);
 		return p;
@@ -619,6 +852,9 @@ public class WigWriter {
 		boolean properPairs = p.getBooleanArg("-pp");
 		boolean read1 = p.getBooleanArg("-r1");
 		boolean read2 = p.getBooleanArg("-r2");
+		OutputFormat format = OutputFormat.fromString(p.getStringArg("-f"));
+		boolean span = p.getBooleanArg("-span");
+		int threads = p.getIntArg("-t");
 		
 		WigWriter ww = new WigWriter(bamFile, bedFile, chrSizeFile, singlePos, fragments, normalize, singleChr);
 		
@@ -627,6 +863,9 @@ public class WigWriter {
 		if(properPairs) ww.addReadFilter(new ProperPairFilter());
 		if(read1) ww.addReadFilter(new FirstOfPairFilter());
 		if(read2) ww.addReadFilter(new SecondOfPairFilter());
+		ww.setOutputFormat(format);
+		ww.setUseSpan(span);
+		ww.setNumThreads(threads);
 		
 		return ww; 
 	}
@@ -1,6 +1,6 @@
 package xp.core.Basic;
 
-import broad.core.math.ScanStatistics;
+import broad.core.math.ScanStatisticsTable;
 
 public class PoissonScanStatisticScoreMachine implements ScoreMachine {
 	private double effectiveGenomeSize;
@@ -22,7 +22,7 @@ public class PoissonScanStatisticScoreMachine implements ScoreMachine {
 	
 	public double getScore(int x, double lambda)
 	{
-		double p = ScanStatistics.calculatePVal(x, lambda, window, effectiveGenomeSize);
+		double p = ScanStatisticsTable.getDefault().calculatePVal(x, lambda, window, effectiveGenomeSize);
 		double score=-Math.log10(p);
 		
 		return score < MAXSCORE ? score : MAXSCORE;